@@ -15,53 +15,246 @@
  ******************************************************************************/
 package com.ikanow.aleph2.access_manager.data_access;
 
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.access_manager.data_access.BucketSubscriptionManager.SlowSubscriberPolicy;
+import com.ikanow.aleph2.core.shared.utils.StorageStreamUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_access.IAccessContext;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService.StorageStage;
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils.ServiceContext;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.SetOnce;
+import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
 
 public class AccessContext extends ServiceContext implements IAccessContext {
 
+	public static final String SUBSCRIPTION_ID = "subscription_id";
+	public static final String SUBSCRIPTION_TOPIC = "topic";
+	public static final String NO_DISTRIBUTED_SERVICES = "No distributed services available for subscriptions: {0}";
+	public static final String STORAGE_SERVICE = "storage_service";
+	public static final String UNKNOWN_STORAGE_STAGE = "Unknown storage stage {0}, should be one of {1}";
+	public static final String NO_STORAGE_INPUTS = "Analytic thread has no enabled storage_service inputs to subscribe to";
+
+	protected final SetOnce<BucketSubscriptionManager> _subscription_manager = new SetOnce<>();
+	protected final SetOnce<IStorageService> _storage_service = new SetOnce<>();
+
+	/** Guice/user c'tor - the distributed services are retrieved from the service context when first needed
+	 */
+	public AccessContext() {
+	}
+
+	/** User c'tor (eg for testing)
+	 * @param distributed_services - provides access to the message queues
+	 */
+	public AccessContext(final ICoreDistributedServices distributed_services) {
+		_subscription_manager.set(new BucketSubscriptionManager(distributed_services, Optional.empty()));
+	}
+
+	/** User c'tor (eg for testing)
+	 * @param storage_service - provides access to the stored data (if not set, retrieved from the service context when first needed)
+	 * @param distributed_services - provides access to the message queues (if not set, retrieved from the service context when first needed)
+	 */
+	public AccessContext(final Optional<IStorageService> storage_service, final Optional<ICoreDistributedServices> distributed_services) {
+		storage_service.ifPresent(s -> _storage_service.set(s));
+		distributed_services.ifPresent(d -> _subscription_manager.set(new BucketSubscriptionManager(d, Optional.empty())));
+	}
+
 	@Override
 	public CompletableFuture<BasicMessageBean> subscribeToBucket(
 			DataBucketBean bucket, Optional<String> stage,
 			Consumer<JsonNode> on_new_object_callback) {
-		return null;
+		return subscribeToBucket(bucket, stage, on_new_object_callback, BucketSubscriptionManager.DEFAULT_QUEUE_SIZE, SlowSubscriberPolicy.drop_oldest);
+	}
+
+	/** As subscribeToBucket, but controls what happens when the callback can't keep up
+	 * @param bucket - the bucket to monitor
+	 * @param stage - if set to Optionals.empty() then occurs post enrichment. If set to "" then occurs pre-enrichment. Otherwise should be the name of a module - will listen immediately after that.
+	 * @param on_new_object_callback - a void function taking a JsonNode (the object)
+	 * @param queue_size - the max number of objects queued for the callback
+	 * @param policy - what to do when the queue is full
+	 * @return a future that completes when the subscription has occurred - on success, the details contain SUBSCRIPTION_ID (to pass to unsubscribe) and SUBSCRIPTION_TOPIC
+	 */
+	public CompletableFuture<BasicMessageBean> subscribeToBucket(
+			DataBucketBean bucket, Optional<String> stage,
+			Consumer<JsonNode> on_new_object_callback,
+			int queue_size, SlowSubscriberPolicy policy)
+	{
+		try {
+			final BucketSubscriptionManager manager = getSubscriptionManager();
+			final String topic = manager._distributed_services.generateTopicName(bucket.full_name(),
+					stage.map(s -> s.isEmpty() ? ICoreDistributedServices.QUEUE_START_NAME : Optional.of(s)).orElse(ICoreDistributedServices.QUEUE_END_NAME));
+
+			final BucketSubscriptionManager.Subscription subscription = manager.subscribe(topic, on_new_object_callback, queue_size, policy);
+
+			final BasicMessageBean success = ErrorUtils.buildSuccessMessage(this, "subscribeToBucket", "Subscribed to {0}", topic);
+			return CompletableFuture.completedFuture(new BasicMessageBean(success.date(), success.success(), success.source(), success.command(), success.message_code(), success.message(),
+					ImmutableMap.of(SUBSCRIPTION_ID, subscription.getId(), SUBSCRIPTION_TOPIC, topic)));
+		}
+		catch (Exception e) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "subscribeToBucket", ErrorUtils.getLongForm("{0}", e)));
+		}
+	}
+
+	/** Cancels a subscription created by subscribeToBucket or subscribeToAnalyticThread
+	 * @param subscription_id - the SUBSCRIPTION_ID from the details of the subscribeToBucket reply (or subscribeToAnalyticThread reply, which is a comma separated list of ids, one per bucket)
+	 * @return false if the subscription was not found
+	 */
+	public boolean unsubscribe(final String subscription_id) {
+		return _subscription_manager.isSet() && Arrays.stream(subscription_id.split(","))
+				.map(id -> _subscription_manager.get().unsubscribe(id))
+				.reduce(false, (a, b) -> a || b);
 	}
 
+	/** Subscribes to the buckets that the thread's (enabled) jobs read from the storage service (ie inputs with data_service "storage_service"), as per subscribeToBucket
+	 * @param analytic_thread - the analytic thread whose inputs are subscribed to
+	 * @param stage - as for subscribeToBucket, where in the buckets' pipelines to listen
+	 * @param on_new_object_callback - a void function taking a JsonNode (the object) - called with the objects from all of the buckets
+	 * @return a future that completes when the subscriptions have occurred - on success, the details contain SUBSCRIPTION_ID (to pass to unsubscribe) and SUBSCRIPTION_TOPIC, each a comma separated list
+	 */
 	@Override
 	public CompletableFuture<BasicMessageBean> subscribeToAnalyticThread(
 			AnalyticThreadBean analytic_thread,
 			Optional<String> stage,
 			Consumer<JsonNode> on_new_object_callback) {
-		return null;
+		final List<String> bucket_paths = getStorageInputBuckets(analytic_thread);
+		if (bucket_paths.isEmpty()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "subscribeToAnalyticThread", NO_STORAGE_INPUTS));
+		}
+		final List<BasicMessageBean> replies = bucket_paths.stream()
+				.map(path -> subscribeToBucket(BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, path).done().get(), stage, on_new_object_callback).join())
+				.collect(Collectors.toList());
+		
+		final Optional<BasicMessageBean> error = replies.stream().filter(reply -> !reply.success()).findFirst();
+		if (error.isPresent()) { // (all or nothing)
+			replies.stream().filter(reply -> reply.success()).forEach(reply -> unsubscribe(reply.details().get(SUBSCRIPTION_ID)));
+			return CompletableFuture.completedFuture(error.get());
+		}
+		final String topics = replies.stream().map(reply -> reply.details().get(SUBSCRIPTION_TOPIC)).collect(Collectors.joining(","));
+		final BasicMessageBean success = ErrorUtils.buildSuccessMessage(this, "subscribeToAnalyticThread", "Subscribed to {0}", topics);
+		return CompletableFuture.completedFuture(new BasicMessageBean(success.date(), success.success(), success.source(), success.command(), success.message_code(), success.message(),
+				ImmutableMap.of(SUBSCRIPTION_ID, replies.stream().map(reply -> reply.details().get(SUBSCRIPTION_ID)).collect(Collectors.joining(",")), SUBSCRIPTION_TOPIC, topics)));
 	}
 
 	@Override
 	public CompletableFuture<Stream<JsonNode>> getObjectStreamFromBucket(
 			DataBucketBean bucket, Optional<String> stage) {
-		return null;
+		return getObjectStreamFromBucket(bucket, stage, Optional.empty(), Optional.empty());
+	}
+
+	/** As getObjectStreamFromBucket, but only returns objects in the given time range - time partitions outside the range are not read
+	 *  The returned stream is lazy (files are opened as they are reached) and can be made parallel, in which case files are read concurrently
+	 *  Close the stream if it is not fully consumed
+	 * @param bucket - the bucket whose stored data is read
+	 * @param stage - if set to Optionals.empty() then the processed data. If set to "" then the json data. Otherwise the name of a storage stage (raw, json, processed)
+	 * @param from - optionally, the start of the time range (inclusive)
+	 * @param to - optionally, the end of the time range (exclusive)
+	 * @return a future containing the stream of objects (or completed exceptionally if the stage is unknown or the storage can't be read)
+	 */
+	public CompletableFuture<Stream<JsonNode>> getObjectStreamFromBucket(
+			DataBucketBean bucket, Optional<String> stage,
+			Optional<Date> from, Optional<Date> to)
+	{
+		final CompletableFuture<Stream<JsonNode>> future = new CompletableFuture<Stream<JsonNode>>();
+		try {
+			future.complete(StorageStreamUtils.getObjectStream(getStorageService(), bucket, getStorageStage(stage), from, to));
+		}
+		catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
 	}
 
+	/** Returns the stored data of the buckets that the thread's (enabled) jobs read from the storage service (ie inputs with data_service "storage_service"),
+	 *  concatenated into a single lazy stream (as per getObjectStreamFromBucket - close the stream if it is not fully consumed)
+	 * @param analytic_thread - the analytic thread whose inputs are read
+	 * @param stage - as for getObjectStreamFromBucket, the storage stage to read
+	 * @return the stream of objects (empty if the thread has no storage inputs)
+	 */
 	@Override
 	public Stream<JsonNode> getObjectStreamFromAnalyticThread(
 			AnalyticThreadBean analytic_thread,
 			Optional<String> stage) {
-		return null;
+		final StorageStage storage_stage = getStorageStage(stage);
+		final List<String> bucket_paths = getStorageInputBuckets(analytic_thread);
+
+		// (Stream.concat rather than flatMap, so the streams stay lazy and are all closed with the returned stream)
+		return bucket_paths.stream()
+				.map(path -> StorageStreamUtils.getObjectStream(getStorageService(), BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, path).done().get(),
+									storage_stage, Optional.empty(), Optional.empty()))
+				.reduce(Stream::concat)
+				.orElseGet(Stream::empty);
+	}
+
+	/** Returns the buckets that the thread's (enabled) jobs read from the storage service (ie inputs with data_service "storage_service")
+	 * @param analytic_thread - the analytic thread
+	 * @return the distinct bucket paths
+	 */
+	protected static List<String> getStorageInputBuckets(final AnalyticThreadBean analytic_thread) {
+		return Optionals.ofNullable(analytic_thread.jobs()).stream()
+				.filter(job -> Optional.ofNullable(job.enabled()).orElse(true))
+				.flatMap(job -> Optionals.ofNullable(job.inputs()).stream())
+				.filter(input -> Optional.ofNullable(input.enabled()).orElse(true))
+				.filter(input -> STORAGE_SERVICE.equalsIgnoreCase(input.data_service()))
+				.map(input -> input.resource_name_or_id())
+				.filter(path -> null != path)
+				.distinct()
+				.collect(Collectors.toList());
+	}
+
+	/** Converts the stage parameter of the getObjectStream calls into a storage stage
+	 * @param stage - if set to Optionals.empty() then the processed data. If set to "" then the json data. Otherwise the name of a storage stage (raw, json, processed)
+	 * @return the storage stage
+	 * @throws RuntimeException if the stage is unknown
+	 */
+	protected static StorageStage getStorageStage(final Optional<String> stage) {
+		try {
+			return stage
+					.map(s -> s.isEmpty() ? StorageStage.json : StorageStage.valueOf(s))
+					.orElse(StorageStage.processed);
+		}
+		catch (IllegalArgumentException e) {
+			throw new RuntimeException(ErrorUtils.get(UNKNOWN_STORAGE_STAGE, stage.orElse(""), Arrays.toString(StorageStage.values())), e);
+		}
 	}
 
 	@Override
 	public void initializeNewContext(String string) {
 	}
-	
-	
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.utils.ModuleUtils.ServiceContext#getStorageService()
+	 */
+	@Override
+	public IStorageService getStorageService() {
+		return _storage_service.isSet() ? _storage_service.get() : super.getStorageService();
+	}
+
+	/** Returns the subscription manager, creating it on first use
+	 * @return the subscription manager
+	 */
+	protected synchronized BucketSubscriptionManager getSubscriptionManager() {
+		if (!_subscription_manager.isSet()) {
+			final ICoreDistributedServices distributed_services = getService(ICoreDistributedServices.class, Optional.empty())
+					.orElseThrow(() -> new RuntimeException(ErrorUtils.get(NO_DISTRIBUTED_SERVICES, ICoreDistributedServices.class.getSimpleName())));
+			_subscription_manager.set(new BucketSubscriptionManager(distributed_services, Optional.empty()));
+		}
+		return _subscription_manager.get();
+	}
 
 }
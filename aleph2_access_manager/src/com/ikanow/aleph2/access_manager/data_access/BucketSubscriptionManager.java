@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.ikanow.aleph2.access_manager.data_access;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.UuidUtils;
+import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+
+/** Fans the objects from a single kafka consumer per topic (via ICoreDistributedServices.consumeAs) out to any number of in-process callbacks
+ *  Each subscriber has its own bounded queue and dispatch thread, so a slow callback only affects the others if its policy is "block"
+ *  The consumer is started with the first subscriber to a topic and shut down after the last one leaves
+ */
+public class BucketSubscriptionManager implements Closeable {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	protected static final long RETRY_DELAY_MS = 1000L;
+
+	/** What to do when a subscriber's queue is full
+	 */
+	public enum SlowSubscriberPolicy {
+		/** Discard the incoming object */
+		drop_newest,
+		/** Discard the oldest queued object to make room for the incoming one */
+		drop_oldest,
+		/** Stop reading from the topic until there is room (slows down all the subscribers of the topic) */
+		block
+	}
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected final ICoreDistributedServices _distributed_services;
+	protected final String _consumer_name;
+	protected final ExecutorService _executor = Executors.newCachedThreadPool(r -> {
+		final Thread t = new Thread(r, "BucketSubscriptionManager");
+		t.setDaemon(true);
+		return t;
+	});
+
+	protected final Map<String, TopicConsumer> _topics = new ConcurrentHashMap<>();
+	protected final Map<String, Subscription> _subscriptions = new ConcurrentHashMap<>();
+
+	/** User c'tor
+	 * @param distributed_services - provides access to the message queues
+	 * @param consumer_name - the consumer group name - the manager should be the only consumer in the group (defaults to a unique name)
+	 */
+	public BucketSubscriptionManager(final ICoreDistributedServices distributed_services, final Optional<String> consumer_name) {
+		_distributed_services = distributed_services;
+		_consumer_name = consumer_name.orElseGet(() -> "aleph2_access_" + UuidUtils.get().getRandomUuid());
+	}
+
+	/** Subscribes a callback to a topic
+	 * @param topic - the topic to subscribe to
+	 * @param on_new_object_callback - called (from the subscription's own thread, in order) with each object (its own copy, so it can be modified)
+	 * @param queue_size - the max number of objects queued for the callback
+	 * @param policy - what to do when the queue is full
+	 * @return the subscription (close or unsubscribe to stop receiving objects)
+	 */
+	public Subscription subscribe(final String topic, final Consumer<JsonNode> on_new_object_callback, final int queue_size, final SlowSubscriberPolicy policy) {
+		final Subscription subscription = new Subscription(topic, on_new_object_callback, Math.max(1, queue_size), policy);
+		_subscriptions.put(subscription.getId(), subscription);
+		_executor.submit(subscription::dispatch);
+		synchronized (_topics) {
+			_topics.computeIfAbsent(topic, t -> {
+				final TopicConsumer consumer = new TopicConsumer(t);
+				_executor.submit(consumer::consume);
+				return consumer;
+			})
+			._subscribers.add(subscription);
+		}
+		return subscription;
+	}
+
+	/** Cancels a subscription
+	 * @param subscription_id - the id of the subscription (see Subscription.getId)
+	 * @return false if the subscription was not found
+	 */
+	public boolean unsubscribe(final String subscription_id) {
+		return Optional.ofNullable(_subscriptions.get(subscription_id)).map(s -> { s.close(); return true; }).orElse(false);
+	}
+
+	/** Returns the subscription with the given id
+	 * @param subscription_id - the id of the subscription
+	 * @return the subscription, if it exists
+	 */
+	public Optional<Subscription> getSubscription(final String subscription_id) {
+		return Optional.ofNullable(_subscriptions.get(subscription_id));
+	}
+
+	/** Returns the number of subscribers to a topic
+	 * @param topic - the topic
+	 * @return the number of subscribers
+	 */
+	public int getSubscriberCount(final String topic) {
+		return Optional.ofNullable(_topics.get(topic)).map(c -> c._subscribers.size()).orElse(0);
+	}
+
+	/** Cancels all the subscriptions
+	 */
+	@Override
+	public void close() {
+		_subscriptions.values().forEach(Subscription::close);
+		_executor.shutdownNow();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	/** A single callback's subscription to a topic
+	 */
+	public class Subscription implements Closeable {
+		protected final String _id = UuidUtils.get().getRandomUuid();
+		protected final String _topic;
+		protected final Consumer<JsonNode> _callback;
+		protected final BlockingQueue<JsonNode> _queue;
+		protected final SlowSubscriberPolicy _policy;
+		protected final AtomicLong _num_dropped = new AtomicLong(0);
+		protected final AtomicLong _num_delivered = new AtomicLong(0);
+		protected volatile boolean _active = true;
+
+		protected Subscription(final String topic, final Consumer<JsonNode> callback, final int queue_size, final SlowSubscriberPolicy policy) {
+			_topic = topic;
+			_callback = callback;
+			_queue = new ArrayBlockingQueue<JsonNode>(queue_size);
+			_policy = policy;
+		}
+
+		/** The unique id of this subscription
+		 * @return the id
+		 */
+		public String getId() {
+			return _id;
+		}
+
+		/** The topic this subscription is listening to
+		 * @return the topic
+		 */
+		public String getTopic() {
+			return _topic;
+		}
+
+		/** The number of objects discarded because the queue was full
+		 * @return the number of discarded objects
+		 */
+		public long getDroppedCount() {
+			return _num_dropped.get();
+		}
+
+		/** The number of objects passed to the callback
+		 * @return the number of delivered objects
+		 */
+		public long getDeliveredCount() {
+			return _num_delivered.get();
+		}
+
+		/** Whether the subscription is still active
+		 * @return false once the subscription has been closed
+		 */
+		public boolean isActive() {
+			return _active;
+		}
+
+		/** Queues an object for the callback, applying the policy if the queue is full
+		 * @param json - the object
+		 */
+		protected void offer(final JsonNode json) throws InterruptedException {
+			switch (_policy) {
+				case block:
+					while (_active && !_queue.offer(json, 100L, TimeUnit.MILLISECONDS)) {}
+					break;
+				case drop_oldest:
+					while (!_queue.offer(json)) {
+						if (null != _queue.poll()) {
+							_num_dropped.incrementAndGet();
+						}
+					}
+					break;
+				default:
+					if (!_queue.offer(json)) {
+						_num_dropped.incrementAndGet();
+					}
+			}
+		}
+
+		/** Passes queued objects to the callback until the subscription is closed
+		 */
+		protected void dispatch() {
+			try {
+				while (_active) {
+					final JsonNode json = _queue.poll(100L, TimeUnit.MILLISECONDS);
+					if (null != json) {
+						try {
+							_callback.accept(json);
+						}
+						catch (Throwable t) { // (don't let a bad callback kill the subscription)
+							_logger.error(ErrorUtils.getLongForm("Subscription {1} callback error: {0}", t, _topic));
+						}
+						_num_delivered.incrementAndGet();
+					}
+				}
+			}
+			catch (InterruptedException e) {}
+		}
+
+		/** Cancels the subscription (any queued objects are discarded)
+		 */
+		@Override
+		public void close() {
+			_active = false;
+			_subscriptions.remove(_id);
+			synchronized (_topics) {
+				Optional.ofNullable(_topics.get(_topic)).ifPresent(consumer -> {
+					consumer._subscribers.remove(this);
+					if (consumer._subscribers.isEmpty()) {
+						_topics.remove(_topic);
+						consumer._active = false;
+					}
+				});
+			}
+			_queue.clear();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	/** Reads a topic and passes each object to all of its subscribers
+	 */
+	protected class TopicConsumer {
+		protected final String _topic;
+		protected final Set<Subscription> _subscribers = ConcurrentHashMap.newKeySet();
+		protected volatile boolean _active = true;
+
+		protected TopicConsumer(final String topic) {
+			_topic = topic;
+		}
+
+		/** Reads the topic until there are no more subscribers
+		 *  (the consumer iterator returns false from hasNext after a period with no data, so it is re-created as long as there are subscribers -
+		 *   since the consumer name is the same, reading continues from the last committed offset)
+		 */
+		protected void consume() {
+			while (_active) {
+				Iterator<String> it = null;
+				try {
+					it = _distributed_services.consumeAs(_topic, Optional.of(_consumer_name));
+					while (_active && it.hasNext()) {
+						final String message = it.next();
+						if (null == message) {
+							continue;
+						}
+						final JsonNode json;
+						try {
+							json = _mapper.readTree(message);
+						}
+						catch (Exception e) {
+							_logger.warn(ErrorUtils.getLongForm("Topic {1}: failed to parse object: {0}", e, _topic));
+							continue;
+						}
+						// (each subscriber gets its own copy, since callbacks run concurrently and can mutate the object - the last gets the original)
+						final Iterator<Subscription> subscribers = _subscribers.iterator();
+						while (subscribers.hasNext()) {
+							final Subscription subscription = subscribers.next();
+							subscription.offer(subscribers.hasNext() ? json.deepCopy() : json);
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					_active = false;
+				}
+				catch (Throwable t) {
+					_logger.error(ErrorUtils.getLongForm("Topic {1}: consumer error: {0}", t, _topic));
+					try {
+						Thread.sleep(RETRY_DELAY_MS); // (don't spin if eg the message queue is down)
+					}
+					catch (InterruptedException e) {
+						_active = false;
+					}
+				}
+				finally {
+					if (it instanceof Closeable) {
+						try {
+							((Closeable) it).close();
+						}
+						catch (Exception e) {}
+					}
+				}
+			}
+		}
+	}
+}
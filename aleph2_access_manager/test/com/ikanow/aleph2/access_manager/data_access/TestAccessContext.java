@@ -23,6 +23,30 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.services.LocalFileStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadBean;
+import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+import com.ikanow.aleph2.distributed_services.services.MockCoreDistributedServices;
+
 public class TestAccessContext {
 
 	@BeforeClass
@@ -46,4 +70,131 @@ public class TestAccessContext {
 		assertTrue(true);
 	}
 
+	@Test
+	public void test_subscribeToBucket() throws Exception {
+		final MockCoreDistributedServices distributed_services = new MockCoreDistributedServices();
+		final AccessContext access_context = new AccessContext(distributed_services);
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/access/subscribe").done().get();
+		final String end_topic = distributed_services.generateTopicName(bucket.full_name(), ICoreDistributedServices.QUEUE_END_NAME);
+		distributed_services.createTopic(end_topic, Optional.empty());
+
+		final List<JsonNode> received_1 = Collections.synchronizedList(new LinkedList<JsonNode>());
+		final List<JsonNode> received_2 = Collections.synchronizedList(new LinkedList<JsonNode>());
+		final BasicMessageBean res_1 = access_context.subscribeToBucket(bucket, Optional.empty(), received_1::add).get();
+		final BasicMessageBean res_2 = access_context.subscribeToBucket(bucket, Optional.empty(), received_2::add).get();
+		assertTrue(res_1.message(), res_1.success());
+		assertEquals(end_topic, res_1.details().get(AccessContext.SUBSCRIPTION_TOPIC));
+		assertNotEquals(res_1.details().get(AccessContext.SUBSCRIPTION_ID), res_2.details().get(AccessContext.SUBSCRIPTION_ID));
+
+		// (the consumer only sees objects written after it has connected, so keep writing until it has)
+		for (int i = 0; (i < 60) && received_1.isEmpty(); ++i) {
+			distributed_services.produce(end_topic, "{\"test\":\"warmup\"}");
+			Thread.sleep(500L);
+		}
+		assertFalse(received_1.isEmpty());
+		received_1.clear();
+		received_2.clear();
+		Thread.sleep(500L);
+
+		distributed_services.produce(end_topic, "{\"test\":\"a\"}");
+		distributed_services.produce(end_topic, "{\"test\":\"b\"}");
+		for (int i = 0; (i < 60) && ((received_1.size() < 2) || (received_2.size() < 2)); ++i) {
+			Thread.sleep(250L);
+		}
+		assertEquals("a", received_1.get(received_1.size() - 2).get("test").asText());
+		assertEquals("b", received_1.get(received_1.size() - 1).get("test").asText());
+		assertEquals("b", received_2.get(received_2.size() - 1).get("test").asText());
+
+		// Unsubscribe
+		assertTrue(access_context.unsubscribe(res_1.details().get(AccessContext.SUBSCRIPTION_ID)));
+		assertFalse(access_context.unsubscribe(res_1.details().get(AccessContext.SUBSCRIPTION_ID)));
+		assertTrue(access_context.unsubscribe(res_2.details().get(AccessContext.SUBSCRIPTION_ID)));
+
+		// Analytic threads: subscribes to the buckets of the enabled storage inputs
+		final AnalyticThreadBean thread = BeanTemplateUtils.build(AnalyticThreadBean.class)
+				.with(AnalyticThreadBean::jobs, Arrays.asList(
+						BeanTemplateUtils.build(AnalyticThreadJobBean.class)
+							.with(AnalyticThreadJobBean::inputs, Arrays.asList(
+									BeanTemplateUtils.build(AnalyticThreadJobBean.AnalyticThreadJobInputBean.class)
+										.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::resource_name_or_id, bucket.full_name())
+										.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::data_service, "storage_service")
+									.done().get(),
+									BeanTemplateUtils.build(AnalyticThreadJobBean.AnalyticThreadJobInputBean.class)
+										.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::resource_name_or_id, "/test/access/other")
+										.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::data_service, "search_index_service")
+									.done().get()
+									))
+						.done().get()))
+				.done().get();
+		final List<JsonNode> received_thread = Collections.synchronizedList(new LinkedList<JsonNode>());
+		final BasicMessageBean res_thread = access_context.subscribeToAnalyticThread(thread, Optional.empty(), received_thread::add).get();
+		assertTrue(res_thread.message(), res_thread.success());
+		assertEquals(end_topic, res_thread.details().get(AccessContext.SUBSCRIPTION_TOPIC));
+		for (int i = 0; (i < 60) && received_thread.isEmpty(); ++i) {
+			distributed_services.produce(end_topic, "{\"test\":\"thread\"}");
+			Thread.sleep(500L);
+		}
+		assertEquals("thread", received_thread.get(0).get("test").asText());
+		assertTrue(access_context.unsubscribe(res_thread.details().get(AccessContext.SUBSCRIPTION_ID)));
+
+		// (threads without storage inputs have nothing to subscribe to)
+		assertFalse(access_context.subscribeToAnalyticThread(BeanTemplateUtils.build(AnalyticThreadBean.class).done().get(), Optional.empty(), __ -> {}).get().success());
+	}
+
+	@Test
+	public void test_getObjectStreamFromBucket() throws Exception {
+		final String root_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_access_stream_" + System.currentTimeMillis();
+		try {
+			final LocalFileStorageService storage_service = new LocalFileStorageService(new GlobalPropertiesBean(null, null, null, root_dir));
+			final AccessContext access_context = new AccessContext(Optional.of(storage_service), Optional.empty());
+			final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/access/stream").done().get();
+
+			final IDataWriteService<JsonNode> write_service = storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+			for (int segment = 0; segment < 10; ++segment) {
+				final int offset = 100*segment;
+				write_service.storeObjects(IntStream.range(offset, offset + 100)
+						.<JsonNode>mapToObj(i -> BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("index", i))
+						.collect(Collectors.toList())).get();
+			}
+
+			// Processed (the default) is read in parallel
+			try (Stream<JsonNode> stream = access_context.getObjectStreamFromBucket(bucket, Optional.empty()).get()) {
+				assertEquals(IntStream.range(0, 1000).boxed().collect(Collectors.toSet()), stream.parallel().map(json -> json.get("index").asInt()).collect(Collectors.toSet()));
+			}
+			// Other stages
+			assertEquals(0L, access_context.getObjectStreamFromBucket(bucket, Optional.of("")).get().count());
+			assertEquals(0L, access_context.getObjectStreamFromBucket(bucket, Optional.of("raw")).get().count());
+			assertTrue(access_context.getObjectStreamFromBucket(bucket, Optional.of("not_a_stage")).isCompletedExceptionally());
+
+			// Analytic threads: reads the buckets of the enabled storage inputs
+			final AnalyticThreadBean thread = BeanTemplateUtils.build(AnalyticThreadBean.class)
+					.with(AnalyticThreadBean::jobs, Arrays.asList(
+							BeanTemplateUtils.build(AnalyticThreadJobBean.class)
+								.with(AnalyticThreadJobBean::inputs, Arrays.asList(
+										BeanTemplateUtils.build(AnalyticThreadJobBean.AnalyticThreadJobInputBean.class)
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::resource_name_or_id, bucket.full_name())
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::data_service, "storage_service")
+										.done().get(),
+										BeanTemplateUtils.build(AnalyticThreadJobBean.AnalyticThreadJobInputBean.class)
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::resource_name_or_id, bucket.full_name())
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::data_service, "search_index_service")
+										.done().get(),
+										BeanTemplateUtils.build(AnalyticThreadJobBean.AnalyticThreadJobInputBean.class)
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::enabled, false)
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::resource_name_or_id, "/test/access/other")
+											.with(AnalyticThreadJobBean.AnalyticThreadJobInputBean::data_service, "storage_service")
+										.done().get()
+										))
+							.done().get()))
+					.done().get();
+			try (Stream<JsonNode> stream = access_context.getObjectStreamFromAnalyticThread(thread, Optional.empty())) {
+				assertEquals(1000L, stream.parallel().count());
+			}
+			assertEquals(0L, access_context.getObjectStreamFromAnalyticThread(BeanTemplateUtils.build(AnalyticThreadBean.class).done().get(), Optional.empty()).count());
+		}
+		finally {
+			FileUtils.deleteQuietly(new File(root_dir));
+		}
+	}
+
 }
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.ikanow.aleph2.access_manager.data_access;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.access_manager.data_access.BucketSubscriptionManager.SlowSubscriberPolicy;
+import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+
+public class TestBucketSubscriptionManager {
+
+	/** A single in-memory topic, whose consumer iterator behaves like the kafka one (ie hasNext returns false after a timeout)
+	 */
+	protected final BlockingQueue<String> _topic = new LinkedBlockingQueue<String>();
+	protected final AtomicInteger _num_consumers = new AtomicInteger(0);
+
+	protected ICoreDistributedServices getDistributedServices() {
+		return (ICoreDistributedServices) Proxy.newProxyInstance(ICoreDistributedServices.class.getClassLoader(), new Class<?>[] { ICoreDistributedServices.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "consumeAs":
+							_num_consumers.incrementAndGet();
+							return new Iterator<String>() {
+								String _next = null;
+								public boolean hasNext() {
+									try {
+										_next = _topic.poll(200L, TimeUnit.MILLISECONDS);
+									}
+									catch (InterruptedException e) {
+										Thread.currentThread().interrupt();
+									}
+									return null != _next;
+								}
+								public String next() {
+									return _next;
+								}
+							};
+						default: return null;
+					}
+				});
+	}
+
+	protected void produce(final int from, final int to) {
+		for (int i = from; i < to; ++i) {
+			_topic.add("{\"index\":" + i + "}");
+		}
+	}
+
+	protected static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; (i < 100) && !condition.getAsBoolean(); ++i) {
+			Thread.sleep(50L);
+		}
+	}
+
+	@Test
+	public void test_fanOut() throws Exception {
+		final BucketSubscriptionManager manager = new BucketSubscriptionManager(getDistributedServices(), Optional.of("test"));
+
+		final List<JsonNode> received_1 = Collections.synchronizedList(new LinkedList<JsonNode>());
+		final List<JsonNode> received_2 = Collections.synchronizedList(new LinkedList<JsonNode>());
+		final BucketSubscriptionManager.Subscription sub_1 = manager.subscribe("topic", received_1::add, 100, SlowSubscriberPolicy.drop_newest);
+		final BucketSubscriptionManager.Subscription sub_2 = manager.subscribe("topic", json -> { ((ObjectNode) json).put("index", -1); received_2.add(json); throw new RuntimeException("bad callback"); }, 100, SlowSubscriberPolicy.drop_newest);
+		assertEquals(2, manager.getSubscriberCount("topic"));
+
+		produce(0, 50);
+		_topic.add("not json"); // (skipped)
+		waitFor(() -> (received_1.size() == 50) && (received_2.size() == 50));
+		assertEquals(50, received_1.size());
+		assertEquals(50, received_2.size()); // (exceptions in the callback don't stop the subscription)
+		assertEquals(49, received_1.get(49).get("index").asInt());
+		assertTrue(received_1.stream().allMatch(json -> json.get("index").asInt() >= 0)); // (each subscriber has its own copy of the object)
+
+		// A single consumer serves both subscribers, and is re-created after timing out
+		Thread.sleep(500L);
+		assertTrue(_num_consumers.get() > 1);
+
+		// Unsubscribe
+		assertTrue(manager.unsubscribe(sub_2.getId()));
+		assertFalse(manager.unsubscribe(sub_2.getId()));
+		assertFalse(sub_2.isActive());
+		assertEquals(1, manager.getSubscriberCount("topic"));
+		produce(50, 60);
+		waitFor(() -> received_1.size() == 60);
+		assertEquals(60, received_1.size());
+		assertEquals(50, received_2.size());
+
+		sub_1.close();
+		assertEquals(0, manager.getSubscriberCount("topic"));
+		assertFalse(manager.getSubscription(sub_1.getId()).isPresent());
+		manager.close();
+	}
+
+	@Test
+	public void test_dropPolicies() throws Exception {
+		final BucketSubscriptionManager manager = new BucketSubscriptionManager(getDistributedServices(), Optional.empty());
+
+		// Each callback blocks until released, so the queues fill up
+		final CountDownLatch entered = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> newest = Collections.synchronizedList(new LinkedList<Integer>());
+		final List<Integer> oldest = Collections.synchronizedList(new LinkedList<Integer>());
+		final BucketSubscriptionManager.Subscription sub_newest = manager.subscribe("topic", json -> { entered.countDown(); await(release); newest.add(json.get("index").asInt()); }, 5, SlowSubscriberPolicy.drop_newest);
+		final BucketSubscriptionManager.Subscription sub_oldest = manager.subscribe("topic", json -> { entered.countDown(); await(release); oldest.add(json.get("index").asInt()); }, 5, SlowSubscriberPolicy.drop_oldest);
+
+		produce(0, 1);
+		assertTrue(entered.await(5L, TimeUnit.SECONDS));
+		produce(1, 20);
+		waitFor(() -> (sub_newest.getDroppedCount() == 14) && (sub_oldest.getDroppedCount() == 14));
+		release.countDown();
+		waitFor(() -> (newest.size() == 6) && (oldest.size() == 6));
+
+		// Each subscriber gets the first object (already in the callback) + a full queue of either the oldest or newest objects
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), newest);
+		assertEquals(14L, sub_newest.getDroppedCount());
+		assertEquals(Arrays.asList(0, 15, 16, 17, 18, 19), oldest);
+		assertEquals(14L, sub_oldest.getDroppedCount());
+
+		manager.close();
+	}
+
+	@Test
+	public void test_blockPolicy() throws Exception {
+		final BucketSubscriptionManager manager = new BucketSubscriptionManager(getDistributedServices(), Optional.empty());
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> received = Collections.synchronizedList(new LinkedList<Integer>());
+		final BucketSubscriptionManager.Subscription sub = manager.subscribe("topic", json -> { entered.countDown(); await(release); received.add(json.get("index").asInt()); }, 5, SlowSubscriberPolicy.block);
+
+		produce(0, 20);
+		assertTrue(entered.await(5L, TimeUnit.SECONDS));
+		Thread.sleep(500L);
+
+		// The consumer stops reading: 1 object in the callback, 5 queued, 1 waiting to be queued
+		assertEquals(13, _topic.size());
+
+		release.countDown();
+		waitFor(() -> received.size() == 20);
+		assertEquals(IntStream.range(0, 20).boxed().collect(Collectors.toList()), received);
+		assertEquals(0L, sub.getDroppedCount());
+		assertEquals(20L, sub.getDeliveredCount());
+
+		manager.close();
+	}
+
+	protected static void await(final CountDownLatch latch) {
+		try {
+			latch.await();
+		}
+		catch (InterruptedException e) {}
+	}
+}
@@ -16,6 +16,7 @@
 package com.ikanow.aleph2.analytics.services;
 
 import java.io.File;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -36,12 +37,15 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import scala.Tuple2;
+import scala.Tuple4;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.ikanow.aleph2.analytics.utils.ErrorUtils;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.DeduplicationEngine;
 import com.ikanow.aleph2.core.shared.utils.LiveInjector;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsAccessContext;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
@@ -59,6 +63,7 @@ import com.ikanow.aleph2.data_model.objects.data_import.AnnotationBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean.MasterEnrichmentType;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.AssetStateDirectoryBean.StateDirectoryType;
 import com.ikanow.aleph2.data_model.objects.shared.AssetStateDirectoryBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
@@ -83,6 +88,7 @@ import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigRenderOptions;
 import com.typesafe.config.ConfigValueFactory;
 
+import fj.Unit;
 import fj.data.Either;
 
 //TODO: ALEPH-12 wire up module config via signature
@@ -131,8 +137,15 @@ public class AnalyticsContext implements IAnalyticsContext {
 	protected Optional<IDataWriteService.IBatchSubservice<JsonNode>> _batch_index_service;
 	protected Optional<IDataWriteService<JsonNode>> _crud_storage_service;
 	protected Optional<IDataWriteService.IBatchSubservice<JsonNode>> _batch_storage_service;
+	protected Optional<DeduplicationEngine> _deduplication_engine = Optional.empty();
+	
+	// Emitted objects are buffered per thread and grouped by output, then bucket and job (the first string is the topic name for streaming, else unused)
+	// (if the bucket is deduplicated then everything goes via the deduplication output, which forwards the non-duplicates on)
+	protected static enum OutputTarget { search_index_service, storage_service, streaming, deduplication };
+	protected volatile BatchedOutputBuffer<Tuple4<OutputTarget, String, String, String>, JsonNode> _output_buffer = null;
 	
 	private static ConcurrentHashMap<String, AnalyticsContext> static_instances = new ConcurrentHashMap<>();
+	private static ConcurrentHashMap<String, AnalyticsContext> static_service_instances = new ConcurrentHashMap<>(); // (keyed on the config minus the bucket/library, see ModuleUtils.getServiceConfigSignature)
 	
 	/**Guice injector
 	 * @param service_context
@@ -191,10 +204,13 @@ public class AnalyticsContext implements IAnalyticsContext {
 	 */
 	@Override
 	public void initializeNewContext(final String signature) {
+		final long start = System.currentTimeMillis();
 		try {
 			// Inject dependencies
 			final Config parsed_config = ConfigFactory.parseString(signature);
-			final AnalyticsContext to_clone = static_instances.get(signature);
+			final String service_signature = ModuleUtils.getServiceConfigSignature(parsed_config, __MY_BUCKET_ID, __MY_TECH_LIBRARY_ID, __MY_MODULE_LIBRARY_ID);
+			// (contexts for other buckets with the same config can share their already resolved services)
+			final AnalyticsContext to_clone = Optional.ofNullable(static_instances.get(signature)).orElseGet(() -> static_service_instances.get(service_signature));
 			
 			if (null != to_clone) { //copy the fields				
 				_service_context = to_clone._service_context;
@@ -240,7 +256,12 @@ public class AnalyticsContext implements IAnalyticsContext {
 					)
 					.flatMap(IDataWriteService::getBatchWriteSubservice)
 					;
+			
+			_deduplication_engine = DeduplicationEngine.from(retrieve_bucket.get(), _service_context);
+			
 			static_instances.put(signature, this);
+			static_service_instances.putIfAbsent(service_signature, this);
+			ModuleUtils.recordStartupTiming("AnalyticsContext.initializeNewContext", start);
 		}
 		catch (Exception e) {
 			//DEBUG
@@ -784,7 +805,7 @@ public class AnalyticsContext implements IAnalyticsContext {
 		this.getOutputTopic(bucket, job).ifPresent(topic -> {	
 			if (_distributed_services.doesTopicExist(topic)) {
 				// (ie someone is listening in on our output data, so duplicate it for their benefit)
-				_distributed_services.produce(topic, obj_json.toString());
+				getOutputBuffer().add(Tuples._4T(OutputTarget.streaming, topic, bucket.orElseGet(() -> _mutable_state.bucket.get()).full_name(), job.name()), obj_json);
 			}
 		});
 	}
@@ -849,24 +870,113 @@ public class AnalyticsContext implements IAnalyticsContext {
 		}
 		final JsonNode obj_json =  object.either(__->__, map -> (JsonNode) _mapper.convertValue(map, JsonNode.class));
 		
-		if (_batch_index_service.isPresent()) {
-			_batch_index_service.get().storeObject(obj_json);
-		}
-		else if (_crud_index_service.isPresent()){ // (super slow)
-			_crud_index_service.get().storeObject(obj_json);
+		final BatchedOutputBuffer<Tuple4<OutputTarget, String, String, String>, JsonNode> output_buffer = getOutputBuffer();
+		
+		if (_deduplication_engine.isPresent()) {
+			// (the engine only knows about this bucket's contexts, and the non-duplicates are written to this bucket's outputs)
+			if (!_deduplication_engine.get().getBucket().full_name().equals(this_bucket.full_name())) {
+				throw new RuntimeException(ErrorUtils.get(ErrorUtils.DEDUPLICATED_BUCKET_MISMATCH, _deduplication_engine.get().getBucket().full_name(), "emitObject", this_bucket.full_name()));
+			}
+			output_buffer.add(Tuples._4T(OutputTarget.deduplication, "", this_bucket.full_name(), job.name()), obj_json);
+			return;
 		}
-		if (_batch_storage_service.isPresent()) {
-			_batch_storage_service.get().storeObject(obj_json);
+		if (_batch_index_service.isPresent() || _crud_index_service.isPresent()) {
+			output_buffer.add(Tuples._4T(OutputTarget.search_index_service, "", this_bucket.full_name(), job.name()), obj_json);
 		}
-		else if (_crud_storage_service.isPresent()){ // (super slow)
-			_crud_storage_service.get().storeObject(obj_json);
+		if (_batch_storage_service.isPresent() || _crud_storage_service.isPresent()) {
+			output_buffer.add(Tuples._4T(OutputTarget.storage_service, "", this_bucket.full_name(), job.name()), obj_json);
 		}
 		
 		final String topic = _distributed_services.generateTopicName(this_bucket.full_name(), ICoreDistributedServices.QUEUE_END_NAME);
 		if (_distributed_services.doesTopicExist(topic)) {
 			// (ie someone is listening in on our output data, so duplicate it for their benefit)
-			_distributed_services.produce(topic, obj_json.toString());
+			output_buffer.add(Tuples._4T(OutputTarget.streaming, topic, this_bucket.full_name(), job.name()), obj_json);
 		}
 		//(else nothing to do)
 	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext#flushBatchOutput(java.util.Optional, com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean)
+	 */
+	@Override
+	public CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket, final AnalyticThreadJobBean job) {
+		// (flushes in place rather than swapping the buffer out, so objects emitted concurrently by other threads can't be stranded)
+		final String bucket_name = bucket.orElseGet(() -> _mutable_state.bucket.get()).full_name();
+		final BatchedOutputBuffer<Tuple4<OutputTarget, String, String, String>, JsonNode> output_buffer = _output_buffer;
+		if (null != output_buffer) {
+			output_buffer.flushAll(target -> bucket_name.equals(target._3()) && job.name().equals(target._4()));
+		}
+		return CompletableFuture.completedFuture(Unit.unit());
+	}
+	
+	////////////////////////////////////////////////////////////////
+	
+	// OUTPUT BUFFERING
+	
+	/** Lazily creates the per-thread output buffer, sized from the bucket's search index write settings if present (else the buffer defaults)
+	 *  (if the bucket is deduplicated, the timed flushes run on the deduplication engine's own flush executor since the lookups block)
+	 * @return the output buffer
+	 */
+	protected BatchedOutputBuffer<Tuple4<OutputTarget, String, String, String>, JsonNode> getOutputBuffer() {
+		if (null == _output_buffer) {
+			synchronized (this) {
+				if (null == _output_buffer) {
+					final Optional<DataSchemaBean.WriteSettings> write_settings = 
+							this.getBucket()
+								.map(b -> b.data_schema())
+								.map(schema -> schema.search_index_schema())
+								.map(search_index_schema -> search_index_schema.target_write_settings());
+					
+					final int max_objects = write_settings.map(w -> w.batch_max_objects()).orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS);
+					final Duration max_latency = write_settings.map(w -> w.batch_flush_interval()).<Duration>map(secs -> Duration.ofSeconds(secs)).orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY);
+					
+					_output_buffer = _deduplication_engine.isPresent()
+							? new BatchedOutputBuffer<>(max_objects, max_latency, DeduplicationEngine.getFlushExecutor(), this::flushOutputBatch)
+							: new BatchedOutputBuffer<>(max_objects, max_latency, this::flushOutputBatch);
+				}
+			}
+		}
+		return _output_buffer;
+	}
+	
+	/** Writes a batch of buffered objects out to its output service
+	 * @param target - the output service (and topic name for streaming outputs), bucket name and job name
+	 * @param objects - the batch of objects to write
+	 */
+	protected void flushOutputBatch(final Tuple4<OutputTarget, String, String, String> target, final List<JsonNode> objects) {
+		if (OutputTarget.deduplication == target._1()) {
+			final List<JsonNode> non_duplicates = _deduplication_engine.get().filterDuplicates(objects);
+			if (!non_duplicates.isEmpty()) {
+				if (_batch_index_service.isPresent() || _crud_index_service.isPresent()) {
+					flushOutputBatch(Tuples._4T(OutputTarget.search_index_service, "", target._3(), target._4()), non_duplicates);
+				}
+				if (_batch_storage_service.isPresent() || _crud_storage_service.isPresent()) {
+					flushOutputBatch(Tuples._4T(OutputTarget.storage_service, "", target._3(), target._4()), non_duplicates);
+				}
+				final String topic = _distributed_services.generateTopicName(target._3(), ICoreDistributedServices.QUEUE_END_NAME);
+				if (_distributed_services.doesTopicExist(topic)) {
+					flushOutputBatch(Tuples._4T(OutputTarget.streaming, topic, target._3(), target._4()), non_duplicates);
+				}
+			}
+		}
+		else if (OutputTarget.search_index_service == target._1()) {
+			if (_batch_index_service.isPresent()) {
+				_batch_index_service.get().storeObjects(objects);
+			}
+			else if (_crud_index_service.isPresent()){ // (slow, but at least it's a single call per batch)
+				_crud_index_service.get().storeObjects(objects);
+			}			
+		}
+		else if (OutputTarget.storage_service == target._1()) {
+			if (_batch_storage_service.isPresent()) {
+				_batch_storage_service.get().storeObjects(objects);
+			}
+			else if (_crud_storage_service.isPresent()){ // (slow, but at least it's a single call per batch)
+				_crud_storage_service.get().storeObjects(objects);
+			}			
+		}
+		else { // streaming
+			_distributed_services.produce(target._2(), objects.stream().map(JsonNode::toString).collect(Collectors.toList()));
+		}
+	}
 }
@@ -26,4 +26,5 @@ public class ErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUtils {
 	final public static String SERVICE_RESTRICTIONS = "Can't call getAnalyticsContextSignature with different 'services' parameter; can't call getUnderlyingArtefacts without having called getEnrichmentContextSignature.";
 	final public static String TECHNOLOGY_NOT_MODULE = "Can only be called from technology, not module";
 	final public static String MODULE_NOT_TECHNOLOGY = "Can only be called from module, not technology";
+	final public static String DEDUPLICATED_BUCKET_MISMATCH = "Bucket {0} is deduplicated, so {1} can only be called for it, not for {2}";
 }
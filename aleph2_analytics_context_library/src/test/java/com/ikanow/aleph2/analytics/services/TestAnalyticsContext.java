@@ -806,6 +806,10 @@ public class TestAnalyticsContext {
 		test_external1a.emitObject(Optional.empty(), analytic_job1, Either.right(
 				ImmutableMap.<String, Object>builder().put("test", "test3").put("extra", "test3_extra").build()
 				), Optional.empty());
+		
+		// (objects are buffered until flushed)
+		assertEquals(0, crud_check_index.countObjects().get().intValue());
+		test_external1a.flushBatchOutput(Optional.empty(), analytic_job1).get();
 				
 		for (int i = 0; i < 60; ++i) {
 			Thread.sleep(1000L);
@@ -915,6 +919,10 @@ public class TestAnalyticsContext {
 		}
 		catch (Exception e) {}
 
+		// (objects are buffered until flushed)
+		assertEquals(4L, test_context._output_buffer.getBufferedCount());
+		test_context.flushBatchOutput(Optional.empty(), analytic_job1).join();
+		assertEquals(0L, test_context._output_buffer.getBufferedCount());
 		
 		final HashSet<String> mutable_set = new HashSet<>(Arrays.asList(message1, message2, message3, message4));
 		
@@ -35,6 +35,7 @@ public class DistributedServicesPropertyBean {
 	public static final String __DEFAULT_CLUSTER_NAME = "aleph2";	 
 	
 	public static final String ZOOKEEPER_APPLICATION_LOCK = "/app/aleph2/locks/zookeeper";
+	public static final String ZOOKEEPER_ID_ROOT = "/app/aleph2/ids";
 	
 	// "Core" application names
 	public enum ApplicationNames { DataImportManager };
@@ -29,6 +29,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import kafka.javaapi.consumer.ConsumerConnector;
 import kafka.javaapi.producer.Producer;
@@ -421,6 +422,18 @@ public class CoreDistributedServices implements ICoreDistributedServices, IExtra
 		logger.debug("DONE SENDING");
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#produce(java.lang.String, java.util.List)
+	 */
+	@Override
+	public void produce(String topic, List<String> messages) {
+		if (messages.isEmpty()) return;
+		this.createTopic(topic, Optional.empty());
+		
+		final Producer<String, String> producer = KafkaUtils.getKafkaProducer();
+		producer.send(messages.stream().map(message -> new KeyedMessage<String, String>(topic, message)).collect(Collectors.toList()));
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#consume(java.lang.String)
 	 */
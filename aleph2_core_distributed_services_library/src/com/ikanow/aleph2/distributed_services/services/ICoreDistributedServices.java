@@ -20,6 +20,7 @@ package com.ikanow.aleph2.distributed_services.services;
 
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -142,6 +143,12 @@ public interface ICoreDistributedServices extends IUnderlyingService {
 	 */
 	void produce(String topic, String message);
 	
+	/** Writes a batch of JSON strings to the designated message queue in a single send (much more efficient than calling produce once per message)
+	 * @param topic - the name of the message queue, eg for buckets will usually be KafkaUtils.bucketNameToKafkaTopic(bucket.full_name)
+	 * @param messages - a list of strings, in most cases each will represent a JSON object
+	 */
+	void produce(String topic, List<String> messages);
+	
 	/** Returns an iterator from which messages can be read
 	 * @param topic - the name of the message queue, eg for buckets will usually be KafkaUtils.bucketNameToKafkaTopic(bucket.full_name)
 	 * @return an iterator of Strings, typically representing JSON stringd
@@ -19,10 +19,12 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import kafka.javaapi.consumer.ConsumerConnector;
 import kafka.javaapi.producer.Producer;
@@ -226,6 +228,18 @@ public class MockCoreDistributedServices implements ICoreDistributedServices {
 		logger.debug("DONE SENDING");
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#produce(java.lang.String, java.util.List)
+	 */
+	@Override
+	public void produce(String topic, List<String> messages) {
+		if (messages.isEmpty()) return;
+		this.createTopic(topic, Optional.empty());
+		
+		final Producer<String, String> producer = KafkaUtils.getKafkaProducer();
+		producer.send(messages.stream().map(message -> new KeyedMessage<String, String>(topic, message)).collect(Collectors.toList()));
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#consume(java.lang.String)
 	 */
@@ -97,7 +97,8 @@ public class KafkaUtils {
 		final Properties new_properties = 
 				consumer_name
 					.map(name -> {
-						final Properties np = new Properties(kafka_properties);
+						final Properties np = new Properties();
+						np.putAll(kafka_properties); // (not new Properties(defaults) - kafka's config ignores defaults)
 						np.put("group.id", name);
 						return np;
 					})
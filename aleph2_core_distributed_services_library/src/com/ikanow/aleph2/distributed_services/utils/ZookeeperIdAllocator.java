@@ -0,0 +1,114 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.distributed_services.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.atomic.AtomicValue;
+import org.apache.curator.framework.recipes.atomic.DistributedAtomicLong;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.distributed_services.data_model.DistributedServicesPropertyBean;
+
+/** Allocates ids that are unique across the cluster, and (per process) increasing
+ *  Leases blocks of ids from a zookeeper counter and then hands them out locally, so zookeeper is only hit once per block
+ *  (ids from a block that is never fully used are lost, so the ids are not contiguous across processes)
+ */
+public class ZookeeperIdAllocator {
+	public static final long DEFAULT_BLOCK_SIZE = 10000L;
+	protected static final int MAX_LEASE_ATTEMPTS = 10;
+
+	private static final ConcurrentHashMap<Tuple2<CuratorFramework, String>, ZookeeperIdAllocator> _allocators = new ConcurrentHashMap<>(); // (curator, path)
+
+	protected final DistributedAtomicLong _counter;
+	protected final String _path;
+	protected final long _block_size;
+
+	protected long _next_id = 0L;
+	protected long _end_id = 0L; // (exclusive - so _next_id == _end_id means a new block is needed)
+
+	/** Returns the (per process) shared allocator for the given id space - use this in preference to the constructor
+	 *  so that all users in the process share the same leased block
+	 *  (allocators are shared per curator, so that eg different clusters in the same process never share a block)
+	 * @param curator - the curator framework (eg from ICoreDistributedServices.getCuratorFramework)
+	 * @param id_space - the name of the id space, eg the bucket full name
+	 * @return the allocator for that id space
+	 */
+	public static ZookeeperIdAllocator getAllocator(final CuratorFramework curator, final String id_space) {
+		final String path = getPath(id_space);
+		return _allocators.computeIfAbsent(Tuples._2T(curator, path), curator_path -> new ZookeeperIdAllocator(curator_path._1(), curator_path._2(), DEFAULT_BLOCK_SIZE));
+	}
+
+	/** Returns the zookeeper path of the counter for the given id space
+	 * @param id_space - the name of the id space, eg the bucket full name
+	 * @return the zookeeper path
+	 */
+	public static String getPath(final String id_space) {
+		return DistributedServicesPropertyBean.ZOOKEEPER_ID_ROOT + (id_space.startsWith("/") ? "" : "/") + id_space;
+	}
+
+	/** User c'tor
+	 * @param curator - the curator framework
+	 * @param path - the zookeeper path of the counter
+	 * @param block_size - the number of ids leased at a time
+	 */
+	public ZookeeperIdAllocator(final CuratorFramework curator, final String path, final long block_size) {
+		_counter = new DistributedAtomicLong(curator, path, new ExponentialBackoffRetry(100, 5));
+		_path = path;
+		_block_size = Math.max(1L, block_size);
+	}
+
+	/** Returns the next id, leasing a new block from zookeeper if the current one is exhausted
+	 * @return an id that hasn't been returned before anywhere in the cluster
+	 */
+	public synchronized long getNextId() {
+		if (_next_id >= _end_id) {
+			leaseBlock();
+		}
+		return _next_id++;
+	}
+
+	/** Returns the number of ids left in the current block (ie before zookeeper is next contacted)
+	 * @return the number of ids left in the current block
+	 */
+	public synchronized long getRemainingInBlock() {
+		return _end_id - _next_id;
+	}
+
+	/** Leases the next block of ids from the zookeeper counter
+	 */
+	protected void leaseBlock() {
+		try {
+			for (int i = 0; i < MAX_LEASE_ATTEMPTS; ++i) {
+				final AtomicValue<Long> result = _counter.add(_block_size);
+				if (result.succeeded()) {
+					_next_id = result.preValue();
+					_end_id = result.postValue();
+					return;
+				}
+			}
+		}
+		catch (Exception e) { // (just make unchecked)
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to lease ids from {1}: {0}", e, _path), e);
+		}
+		throw new RuntimeException("Failed to lease ids from " + _path + " after " + MAX_LEASE_ATTEMPTS + " attempts");
+	}
+}
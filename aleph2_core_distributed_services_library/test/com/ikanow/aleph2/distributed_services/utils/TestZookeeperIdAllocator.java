@@ -0,0 +1,93 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.distributed_services.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestZookeeperIdAllocator {
+
+	protected TestingServer _test_server;
+	protected CuratorFramework _curator;
+
+	@Before
+	public void setup() throws Exception {
+		_test_server = new TestingServer();
+		_test_server.start();
+		_curator = CuratorFrameworkFactory.newClient(_test_server.getConnectString(), new ExponentialBackoffRetry(1000, 3));
+		_curator.start();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		_curator.close();
+		_test_server.close();
+	}
+
+	@Test
+	public void test_blockLeasing() {
+		final ZookeeperIdAllocator allocator1 = new ZookeeperIdAllocator(_curator, ZookeeperIdAllocator.getPath("/test/leasing"), 10L);
+		final ZookeeperIdAllocator allocator2 = new ZookeeperIdAllocator(_curator, ZookeeperIdAllocator.getPath("/test/leasing"), 10L);
+
+		// First allocator gets the first block, second the next
+		assertEquals(0L, allocator1.getNextId());
+		assertEquals(9L, allocator1.getRemainingInBlock());
+		assertEquals(10L, allocator2.getNextId());
+		assertEquals(1L, allocator1.getNextId());
+
+		// Exhausting the block leases the one after the other allocator's
+		IntStream.range(2, 10).forEach(i -> assertEquals((long)i, allocator1.getNextId()));
+		assertEquals(0L, allocator1.getRemainingInBlock());
+		assertEquals(20L, allocator1.getNextId());
+
+		// Different id spaces are independent
+		assertEquals(0L, new ZookeeperIdAllocator(_curator, ZookeeperIdAllocator.getPath("/test/other"), 10L).getNextId());
+	}
+
+	@Test
+	public void test_concurrentUniqueness() {
+		final ZookeeperIdAllocator allocator1 = new ZookeeperIdAllocator(_curator, ZookeeperIdAllocator.getPath("test/concurrent"), 7L);
+		final ZookeeperIdAllocator allocator2 = new ZookeeperIdAllocator(_curator, ZookeeperIdAllocator.getPath("test/concurrent"), 7L);
+		final Set<Long> ids = ConcurrentHashMap.newKeySet();
+
+		IntStream.range(0, 1000).parallel().forEach(i -> assertTrue(ids.add(((0 == (i % 2)) ? allocator1 : allocator2).getNextId())));
+		assertEquals(1000, ids.size());
+
+		// Shared allocator
+		assertSame(ZookeeperIdAllocator.getAllocator(_curator, "/test/shared"), ZookeeperIdAllocator.getAllocator(_curator, "/test/shared"));
+
+		// (but not across curators, eg connected to different clusters)
+		final CuratorFramework other_curator = CuratorFrameworkFactory.newClient(_test_server.getConnectString(), new ExponentialBackoffRetry(1000, 3));
+		try {
+			other_curator.start();
+			assertNotSame(ZookeeperIdAllocator.getAllocator(_curator, "/test/shared"), ZookeeperIdAllocator.getAllocator(other_curator, "/test/shared"));
+		}
+		finally {
+			other_curator.close();
+		}
+	}
+}
@@ -15,7 +15,9 @@
  *******************************************************************************/
 package com.ikanow.aleph2.security.interfaces;
 
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import scala.Tuple2;
 
@@ -23,5 +25,14 @@ public interface IRoleProvider {
 
 	public Tuple2<Set<String>,Set<String>> getRolesAndPermissions(String principalName);
 	
+	/**
+	 * Registers a listener that the provider calls whenever roles or permissions change, so that cached authorization decisions can be discarded.
+	 * The listener is passed the principal whose roles/permissions changed, or Optional.empty() if the change affects everyone.
+	 * Providers whose roles never change do not need to override this.
+	 * @param listener
+	 */
+	public default void registerChangeListener(Consumer<Optional<String>> listener) {
+		// (default: roles/permissions are static)
+	}
 	
 }
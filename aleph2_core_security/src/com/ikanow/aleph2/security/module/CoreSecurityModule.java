@@ -15,11 +15,14 @@
  *******************************************************************************/
 package com.ikanow.aleph2.security.module;
 
+import java.util.Optional;
+
 import org.apache.shiro.config.Ini;
 import org.apache.shiro.guice.ShiroModule;
 import org.apache.shiro.realm.text.IniRealm;
 
 import com.google.inject.Provides;
+import com.ikanow.aleph2.security.interfaces.IRoleProvider;
 
 /** Core module for Security Service
  * @author Joern
@@ -27,6 +30,7 @@ import com.google.inject.Provides;
 public class CoreSecurityModule extends ShiroModule {
     protected void configureShiro() {
         	bindRealms();
+        	bindRoleProvider();
     }
 
     @Provides
@@ -49,6 +53,26 @@ public class CoreSecurityModule extends ShiroModule {
         bind.toInstance(sessionManager);
     }
     */
+    /**
+     * Binds (and exposes, since this is a private module) the role provider that SecurityService registers for change notifications
+     * and passes to the secured CRUD wrappers it creates - nothing is bound if getRoleProviderClass is empty.
+     */
+    protected void bindRoleProvider() {
+    	final Optional<Class<? extends IRoleProvider>> role_provider_class = getRoleProviderClass();
+    	if (role_provider_class.isPresent()) {
+    		bind(IRoleProvider.class).to(role_provider_class.get());
+    		expose(IRoleProvider.class);
+    	}
+    }
+    
+    /**
+     * Override in order to provide a role provider, by default there is none (so authorization decisions are only invalidated by TTL).
+     * @return the role provider class, if any
+     */
+    protected Optional<Class<? extends IRoleProvider>> getRoleProviderClass() {
+    	return Optional.empty();
+    }
+    
     protected void bindRealms(){
         try {
         bindRealm().toConstructor(IniRealm.class.getConstructor(Ini.class));
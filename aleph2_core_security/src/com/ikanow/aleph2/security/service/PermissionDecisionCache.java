@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.security.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/** A bounded (LRU), TTL-based cache of authorization decisions, keyed by subject principal and role/permission string
+ *  Owned by the SecurityService so that it is shared across all the secured CRUD wrappers
+ */
+public class PermissionDecisionCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final Duration DEFAULT_TTL = Duration.ofSeconds(60L);
+
+	/** Whether the decision was for a role or a permission (so the same string can't collide)
+	 */
+	public static enum DecisionType { role, permission };
+
+	protected final int _max_entries;
+	protected final long _ttl_ms;
+
+	protected static class Decision {
+		protected Decision(final boolean permitted, final long expiry) {
+			this.permitted = permitted;
+			this.expiry = expiry;
+		}
+		protected final boolean permitted;
+		protected final long expiry;
+	}
+
+	/** The cache key - kept structured (rather than concatenated into a string) so that invalidating a principal can't match another principal's decisions
+	 */
+	protected static class DecisionKey {
+		protected DecisionKey(final String principal, final DecisionType type, final String identifier) {
+			this.principal = principal;
+			this.type = type;
+			this.identifier = identifier;
+		}
+		protected final String principal;
+		protected final DecisionType type;
+		protected final String identifier;
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof DecisionKey)) return false;
+			final DecisionKey other_key = (DecisionKey) other;
+			return principal.equals(other_key.principal) && (type == other_key.type) && identifier.equals(other_key.identifier);
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(principal, type, identifier);
+		}
+	}
+
+	protected final LinkedHashMap<DecisionKey, Decision> _decisions;
+
+	/** Incremented (under the _decisions lock) by every invalidation, so that a check that started before an invalidation doesn't cache its (possibly stale) result
+	 */
+	protected long _generation = 0L;
+
+	/** Creates a cache with the default size and TTL
+	 */
+	public PermissionDecisionCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+	}
+
+	/** Creates a cache with the specified size and TTL
+	 * @param max_entries - the max number of decisions to retain, the least recently used are evicted first
+	 * @param ttl - how long a decision is trusted before the underlying check is re-run
+	 */
+	public PermissionDecisionCache(final int max_entries, final Duration ttl) {
+		_max_entries = Math.max(1, max_entries);
+		_ttl_ms = ttl.toMillis();
+		_decisions = new LinkedHashMap<DecisionKey, Decision>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<DecisionKey, Decision> eldest) {
+				return size() > _max_entries;
+			}
+		};
+	}
+
+	/** Returns the cached decision if present and not expired, else runs the check and caches its result
+	 * @param principal - the principal of the subject (if not present, ie unauthenticated, the check is always run and not cached)
+	 * @param type - role or permission
+	 * @param identifier - the role or permission string
+	 * @param check - the underlying (expensive) check
+	 * @return the decision
+	 */
+	public boolean getOrCheck(final Optional<Object> principal, final DecisionType type, final String identifier, final Supplier<Boolean> check) {
+		if (!principal.isPresent()) {
+			return check.get();
+		}
+		final DecisionKey key = new DecisionKey(principal.get().toString(), type, identifier);
+		final long now = System.currentTimeMillis();
+		final long generation;
+		synchronized (_decisions) {
+			final Decision decision = _decisions.get(key);
+			if ((null != decision) && (decision.expiry > now)) {
+				return decision.permitted;
+			}
+			generation = _generation;
+		}
+		// (run the check outside the lock - worst case 2 threads both check the same decision)
+		final boolean permitted = check.get();
+		synchronized (_decisions) {
+			if (generation == _generation) { // (else the decision was invalidated while we were checking, so don't cache it)
+				_decisions.put(key, new Decision(permitted, now + _ttl_ms));
+			}
+		}
+		return permitted;
+	}
+
+	/** Removes all cached decisions
+	 */
+	public void invalidateAll() {
+		synchronized (_decisions) {
+			_generation++;
+			_decisions.clear();
+		}
+	}
+
+	/** Removes all cached decisions for the specified principal (eg when its roles or permissions change)
+	 * @param principal - the principal whose decisions should be discarded
+	 */
+	public void invalidate(final Object principal) {
+		final String principal_str = principal.toString();
+		synchronized (_decisions) {
+			_generation++;
+			_decisions.keySet().removeIf(key -> key.principal.equals(principal_str));
+		}
+	}
+
+	/** Returns the number of decisions currently cached (including expired ones that have not yet been evicted)
+	 * @return the number of cached decisions
+	 */
+	public int size() {
+		synchronized (_decisions) {
+			return _decisions.size();
+		}
+	}
+}
@@ -17,13 +17,76 @@ package com.ikanow.aleph2.security.service;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import scala.Tuple2;
 
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 
 public class PermissionExtractor {
 	
+	public static final String ID_FIELD = "_id";
+	public static final String OWNER_ID_FIELD = "owner_id";
+	
+	/** Shiro's default WildcardPermission lower-cases permissions, so a permission on "ABC" also covers the _id "abc" - the query 
+	 *  can only match _ids exactly, so by default ids with upper/lower case characters aren't pushed down (see extractReadQueryFilter) */
+	protected boolean caseSensitiveIds = false;
+	
+	/**
+	 * Set to true if the realms' permissions are case sensitive (eg WildcardPermission(string, true)), so that _ids with upper/lower
+	 * case characters can be pushed down into read queries as exact matches.
+	 * @param caseSensitiveIds
+	 */
+	public void setCaseSensitiveIds(boolean caseSensitiveIds) {
+		this.caseSensitiveIds = caseSensitiveIds;
+	}
+	
+	/** 
+	 * Converts a principal's roles and permissions (eg from an IRoleProvider) into a query clause that can be ANDed onto read queries,
+	 * so that the CRUD service only returns candidates the principal could be permitted to read (objects whose _id is covered by 
+	 * one of the permissions, or objects the principal owns).
+	 * The clause is deliberately a superset of what the element-level checks allow, those still run as a final filter.
+	 * Since the query can only match _ids exactly, if the permissions are case insensitive (the Shiro default, see setCaseSensitiveIds) and 
+	 * any of the _ids has upper/lower case characters then no clause is returned, ie the element-level checks do all the filtering.
+	 * @param principalName - the principal the query is being run for
+	 * @param rolesAndPermissions - the principal's roles and permissions
+	 * @return the clause, or Optional.empty() if the principal can read everything (admin role or wildcard permission) or the _ids can't be matched exactly
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Optional<QueryComponent<T>> extractReadQueryFilter(String principalName, Tuple2<Set<String>, Set<String>> rolesAndPermissions) {
+		if (rolesAndPermissions._1().contains(SecuredCrudManagementDbService.ROLE_ADMIN)) {
+			return Optional.empty();
+		}
+		// The _id is checked via Shiro's wildcard permissions, so the first part of each permission lists the _ids it can cover
+		// (eg "id1,id2:read" -> id1, id2 - permissions like "id1:read" don't actually imply "id1" but a superset is fine)
+		final Set<String> ids = rolesAndPermissions._2().stream()
+				.map(permission -> permission.split(":", 2)[0])
+				.flatMap(part -> Arrays.stream(part.split(",")))
+				.map(String::trim)
+				.filter(id -> !id.isEmpty())
+				.collect(Collectors.toSet());
+		if (ids.contains("*")) {
+			return Optional.empty();
+		}
+		if (!caseSensitiveIds && ids.stream().anyMatch(id -> !id.toLowerCase().equals(id.toUpperCase()))) {
+			return Optional.empty();
+		}
+		final SingleQueryComponent<?> clause = CrudUtils.anyOf().when(OWNER_ID_FIELD, principalName);
+		if (!ids.isEmpty()) {
+			clause.withAny(ID_FIELD, ids);
+		}
+		return Optional.of((QueryComponent<T>)clause);
+	}
+	
+
 	/** 
 	 * This class extracts permission values from known classes,e.g._id() or ownerId etc matching permissions.
 	 * @return
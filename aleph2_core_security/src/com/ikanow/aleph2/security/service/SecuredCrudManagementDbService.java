@@ -37,10 +37,13 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISubject;
 import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
 import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.data_model.utils.FutureUtils;
 import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
+import com.ikanow.aleph2.security.interfaces.IRoleProvider;
 
 
 public class SecuredCrudManagementDbService<T> implements IManagementCrudService<T> {
@@ -58,6 +61,7 @@ public class SecuredCrudManagementDbService<T> implements IManagementCrudService
 	private ISubject subject; // system user's subject
 	
 	protected PermissionExtractor permissionExtractor = new PermissionExtractor(); // default permission extractor;
+	protected Optional<IRoleProvider> roleProvider = Optional.empty(); // (if present, read queries are restricted to candidates the principal could read) 
 	//BiConsumer<? super Optional<T>, ? super Throwable> action = new
 	protected BiConsumer<? super Optional<T>, ? super Throwable> readCheckOne = (o, t) -> {
 			      logger.debug("readCheckOne:"+o+",t="+t);
@@ -89,6 +93,11 @@ public class SecuredCrudManagementDbService<T> implements IManagementCrudService
 	}
 
 
+	public void setRoleProvider(IRoleProvider roleProvider) {
+		this.roleProvider = Optional.ofNullable(roleProvider);
+	}
+
+
 	public SecuredCrudManagementDbService(IServiceContext serviceContext, IManagementCrudService<T> delegate, AuthorizationBean authBean) {
 		_delegate = delegate;
 		this.serviceContext  = serviceContext;
@@ -223,7 +232,7 @@ public class SecuredCrudManagementDbService<T> implements IManagementCrudService
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
 	 */
 	public ManagementFuture<com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor<T>> getObjectsBySpec(QueryComponent<T> spec) {
-		ManagementFuture<com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor<T>> mf = _delegate.getObjectsBySpec(spec);		
+		ManagementFuture<com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor<T>> mf = _delegate.getObjectsBySpec(restrictToReadable(spec));		
 		return FutureUtils.createManagementFuture(mf.thenApply(convertCursor));
 	}
 
@@ -237,7 +246,7 @@ public class SecuredCrudManagementDbService<T> implements IManagementCrudService
 	 */
 	public ManagementFuture<com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor<T>> getObjectsBySpec(
 			QueryComponent<T> spec, List<String> field_list, boolean include) {
-		ManagementFuture<com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor<T>> mf = _delegate.getObjectsBySpec(spec, field_list, include);		
+		ManagementFuture<com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor<T>> mf = _delegate.getObjectsBySpec(restrictToReadable(spec), field_list, include);		
 		return FutureUtils.createManagementFuture(mf.thenApply(convertCursor));
 	}
 
@@ -247,7 +256,7 @@ public class SecuredCrudManagementDbService<T> implements IManagementCrudService
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService#countObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
 	 */
 	public ManagementFuture<Long> countObjectsBySpec(QueryComponent<T> spec) {
-		return _delegate.countObjectsBySpec(spec);
+		return _delegate.countObjectsBySpec(restrictToReadable(spec));
 	}
 
 	/**
@@ -410,6 +419,40 @@ public class SecuredCrudManagementDbService<T> implements IManagementCrudService
 		}		
 	}
 
+	/**
+	 * ANDs the principal's read clause (see PermissionExtractor.extractReadQueryFilter) onto the query, so the delegate doesn't return 
+	 * (and the secured cursor doesn't have to discard) candidates that can never be readable. The element level checks still apply.
+	 * @param spec
+	 * @return the restricted query (or the original query if there is no role provider or the principal can read everything)
+	 */
+	protected QueryComponent<T> restrictToReadable(QueryComponent<T> spec) {
+		return roleProvider
+				.map(rp -> rp.getRolesAndPermissions(authBean.getPrincipalName()))
+				.flatMap(roles_perms -> permissionExtractor.<T>extractReadQueryFilter(authBean.getPrincipalName(), roles_perms))
+				.<QueryComponent<T>>map(clause -> {
+					final MultiQueryComponent<T> restricted = CrudUtils.allOf(spec, clause);
+					// (limit and ordering are only applied from the top level query)
+					if (null != spec.getLimit()) {
+						restricted.limit(spec.getLimit());
+					}
+					if (null != spec.getOrderBy()) {
+						restricted.orderBy(toOrderByArray(spec.getOrderBy()));
+					}
+					return restricted;
+				})
+				.orElse(spec);
+	}
+
+	/**
+	 * Converts a query's ordering back into the (generic) varargs form accepted by orderBy
+	 * @param orderBy
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Tuple2<String, Integer>[] toOrderByArray(List<Tuple2<String, Integer>> orderBy) {
+		return orderBy.toArray((Tuple2<String, Integer>[])new Tuple2<?, ?>[orderBy.size()]);
+	}
+
 	/**
 	 * Read permissions are the default permissions. 
 	 * @param new_object
@@ -39,6 +39,7 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISubject;
 import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.security.interfaces.IRoleProvider;
 import com.ikanow.aleph2.security.module.CoreSecurityModule;
 
 public class SecurityService implements ISecurityService, IExtraDependencyLoader{
@@ -47,6 +48,12 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 	private static final Logger logger = LogManager.getLogger(SecurityService.class);
 	@Inject
 	protected IServiceContext serviceContext;
+	
+	/** (shared by all the secured CRUD wrappers since they all get this service from the service context) */
+	protected final PermissionDecisionCache decisionCache = new PermissionDecisionCache();
+	
+	/** (injected if CoreSecurityModule - or a derived module - binds one) */
+	protected Optional<IRoleProvider> roleProvider = Optional.empty();
 
 	@Inject
 	public SecurityService(IServiceContext serviceContext, SecurityManager securityManager) {
@@ -113,10 +120,52 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 
 	@Override
 	public boolean hasRole(ISubject subject, String roleIdentifier) {
-		boolean ret = ((Subject)getSubject().getSubject()).hasRole(roleIdentifier);
+		final Subject shiroSubject = (Subject)getSubject().getSubject();
+		boolean ret = decisionCache.getOrCheck(Optional.ofNullable(shiroSubject.getPrincipal()), PermissionDecisionCache.DecisionType.role, roleIdentifier, 
+				() -> shiroSubject.hasRole(roleIdentifier));
 		return ret;
 	}
 
+	/**
+	 * Discards all cached authorization decisions, eg after a bulk change to roles or permissions.
+	 */
+	public void invalidateAuthorizationCache() {
+		decisionCache.invalidateAll();
+	}
+
+	/**
+	 * Discards the cached authorization decisions for a single principal.
+	 * @param principalName
+	 */
+	public void invalidateAuthorizationCache(String principalName) {
+		decisionCache.invalidate(principalName);
+	}
+
+	/**
+	 * Subscribes to the role provider's change notifications, so that cached decisions are discarded when its roles or permissions change. 
+	 * @param roleProvider
+	 */
+	public void registerRoleProvider(IRoleProvider roleProvider) {
+		roleProvider.registerChangeListener(principalName -> {
+			if (principalName.isPresent()) {
+				invalidateAuthorizationCache(principalName.get());
+			}
+			else {
+				invalidateAuthorizationCache();
+			}
+		});
+	}
+
+	/**
+	 * Called by guice if a role provider has been bound (see CoreSecurityModule.getRoleProviderClass), registers it for change notifications.
+	 * @param roleProvider
+	 */
+	@Inject(optional = true)
+	public void setRoleProvider(IRoleProvider roleProvider) {
+		this.roleProvider = Optional.of(roleProvider);
+		registerRoleProvider(roleProvider);
+	}
+
 	public static List<Module> getExtraDependencyModules() {
 		return Arrays.asList((Module)new CoreSecurityModule());
 	}
@@ -131,8 +180,10 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 
 	@Override
 	public boolean isPermitted(ISubject subject, String string) {
-		// TODO Auto-generated method stub
-		return false;
+		final Subject shiroSubject = (Subject)getSubject().getSubject();
+		boolean ret = decisionCache.getOrCheck(Optional.ofNullable(shiroSubject.getPrincipal()), PermissionDecisionCache.DecisionType.permission, string, 
+				() -> shiroSubject.isPermitted(string));
+		return ret;
 	}
 
 
@@ -152,8 +203,10 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 
 	@Override
 	public <O> IManagementCrudService<O> secured(IManagementCrudService<O> crud, AuthorizationBean authorizationBean) {
-		
-		return null;
+		final SecuredCrudManagementDbService<O> securedCrud = new SecuredCrudManagementDbService<O>(serviceContext, crud, authorizationBean);
+		// (if present, read queries are restricted to candidates the principal could read)
+		roleProvider.ifPresent(rp -> securedCrud.setRoleProvider(rp));
+		return securedCrud;
 	}
 
 
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.security.service;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.Operator;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class PermissionExtractorTest {
+
+	protected PermissionExtractor permissionExtractor = new PermissionExtractor();
+
+	@Test
+	public void testReadQueryFilter(){
+		// (case insensitive permissions are tested below)
+		permissionExtractor.setCaseSensitiveIds(true);
+		
+		// admin and wildcard permissions can read everything
+		assertEquals(Optional.empty(), permissionExtractor.<DataBucketBean>extractReadQueryFilter("root", 
+				Tuples._2T(new HashSet<String>(Arrays.asList("admin")), Collections.emptySet())));
+		assertEquals(Optional.empty(), permissionExtractor.<DataBucketBean>extractReadQueryFilter("someone", 
+				Tuples._2T(Collections.emptySet(), new HashSet<String>(Arrays.asList("id1", "*:read")))));
+
+		// otherwise owned objects or ones covered by a permission
+		final Optional<QueryComponent<DataBucketBean>> clause = permissionExtractor.extractReadQueryFilter("lonestarr", 
+				Tuples._2T(new HashSet<String>(Arrays.asList("goodguy")), new HashSet<String>(Arrays.asList("id1", "id2,id3:read"))));
+		assertTrue(clause.isPresent());
+		final SingleQueryComponent<DataBucketBean> single = (SingleQueryComponent<DataBucketBean>)clause.get();
+		assertEquals(Operator.any_of, single.getOp());
+		assertEquals(Tuples._2T(Operator.equals, Tuples._2T("lonestarr", null)), single.getAll().get(PermissionExtractor.OWNER_ID_FIELD).iterator().next());
+		assertEquals(Operator.any_of, single.getAll().get(PermissionExtractor.ID_FIELD).iterator().next()._1());
+		assertEquals(new HashSet<String>(Arrays.asList("id1", "id2", "id3")), 
+				new HashSet<Object>((Collection<?>)single.getAll().get(PermissionExtractor.ID_FIELD).iterator().next()._2()._1()));
+		
+		// no permissions, just owned objects
+		final SingleQueryComponent<DataBucketBean> owned = (SingleQueryComponent<DataBucketBean>)permissionExtractor.<DataBucketBean>extractReadQueryFilter("lonestarr", 
+				Tuples._2T(Collections.emptySet(), Collections.emptySet())).get();
+		assertEquals(1, owned.getAll().size());		
+	}
+
+	@Test
+	public void testReadQueryFilter_caseInsensitive(){
+		final PermissionExtractor caseInsensitiveExtractor = new PermissionExtractor();
+		
+		// (_ids without upper/lower case characters can still be matched exactly)
+		final Optional<QueryComponent<DataBucketBean>> clause = caseInsensitiveExtractor.extractReadQueryFilter("lonestarr", 
+				Tuples._2T(Collections.emptySet(), new HashSet<String>(Arrays.asList("1234:read", "5678"))));
+		assertTrue(clause.isPresent());
+		assertEquals(new HashSet<String>(Arrays.asList("1234", "5678")), 
+				new HashSet<Object>((Collection<?>)((SingleQueryComponent<DataBucketBean>)clause.get()).getAll().get(PermissionExtractor.ID_FIELD).iterator().next()._2()._1()));
+		
+		// (else "ABC" would also cover "abc", which an exact match can't express, so fall back to the element-level checks)
+		assertEquals(Optional.empty(), caseInsensitiveExtractor.<DataBucketBean>extractReadQueryFilter("lonestarr", 
+				Tuples._2T(Collections.emptySet(), new HashSet<String>(Arrays.asList("1234:read", "ABC")))));
+	}
+}
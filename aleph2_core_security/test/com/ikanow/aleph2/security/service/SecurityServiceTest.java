@@ -18,20 +18,30 @@ package com.ikanow.aleph2.security.service;
 import static org.junit.Assert.*;
 
 import java.io.InputStreamReader;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import scala.Tuple2;
+
+import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISubject;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
+import com.ikanow.aleph2.security.interfaces.IRoleProvider;
+import com.ikanow.aleph2.security.module.CoreSecurityModule;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
@@ -86,6 +96,98 @@ public class SecurityServiceTest {
 		
 	}
 
+	@Test
+	public void testPermission(){
+        ISubject subject = securityService.login("lonestarr", "vespa");
+		assertEquals(true,securityService.isPermitted(subject,"lightsaber:weild"));
+		assertEquals(true,securityService.isPermitted(subject,"winnebago:drive:eagle5"));
+		assertEquals(false,securityService.isPermitted(subject,"winnebago:drive:otherguy"));
+	}
+
+	@Test
+	public void testPermissionCache(){
+        ISubject subject = securityService.login("lonestarr", "vespa");
+        SecurityService service = (SecurityService)securityService;
+        service.invalidateAuthorizationCache();
+		assertEquals(0,service.decisionCache.size());
+		assertEquals(true,securityService.hasRole(subject,"schwartz"));
+		assertEquals(true,securityService.hasRole(subject,"schwartz"));
+		assertEquals(false,securityService.isPermitted(subject,"winnebago:drive:otherguy"));
+		assertEquals(2,service.decisionCache.size());
+
+		// cached decisions are returned without re-running the check
+		final PermissionDecisionCache cache = new PermissionDecisionCache(2, Duration.ofHours(1L));
+		assertEquals(true,cache.getOrCheck(Optional.of("lonestarr"), PermissionDecisionCache.DecisionType.role, "schwartz", () -> true));
+		assertEquals(true,cache.getOrCheck(Optional.of("lonestarr"), PermissionDecisionCache.DecisionType.role, "schwartz", () -> false));
+		// (not cached for unauthenticated subjects)
+		assertEquals(false,cache.getOrCheck(Optional.empty(), PermissionDecisionCache.DecisionType.role, "schwartz", () -> false));
+		assertEquals(1,cache.size());
+		// (roles and permissions don't collide)
+		assertEquals(false,cache.getOrCheck(Optional.of("lonestarr"), PermissionDecisionCache.DecisionType.permission, "schwartz", () -> false));
+		// (bounded)
+		cache.getOrCheck(Optional.of("darkhelmet"), PermissionDecisionCache.DecisionType.role, "schwartz", () -> true);
+		assertEquals(2,cache.size());
+		
+		// invalidation via role provider changes
+		final List<Consumer<Optional<String>>> listeners = new LinkedList<>();
+		service.registerRoleProvider(new IRoleProvider() {
+			@Override
+			public Tuple2<Set<String>, Set<String>> getRolesAndPermissions(String principalName) {
+				return null;
+			}
+			@Override
+			public void registerChangeListener(Consumer<Optional<String>> listener) {
+				listeners.add(listener);
+			}
+		});
+		listeners.forEach(l -> l.accept(Optional.of("someone_else")));
+		assertEquals(2,service.decisionCache.size());
+		listeners.forEach(l -> l.accept(Optional.of("lonestarr")));
+		assertEquals(0,service.decisionCache.size());
+	}
+
+	@Test
+	public void testPermissionCacheInvalidation(){
+		final PermissionDecisionCache cache = new PermissionDecisionCache();
+		
+		// (principals that are prefixes of each other don't collide)
+		cache.getOrCheck(Optional.of("a"), PermissionDecisionCache.DecisionType.role, "b:role", () -> true);
+		cache.getOrCheck(Optional.of("a:b"), PermissionDecisionCache.DecisionType.role, "role", () -> true);
+		assertEquals(2,cache.size());
+		cache.invalidate("a");
+		assertEquals(1,cache.size());
+		assertEquals(true,cache.getOrCheck(Optional.of("a:b"), PermissionDecisionCache.DecisionType.role, "role", () -> false));
+		
+		// (a check that was running when the cache was invalidated doesn't cache its result)
+		assertEquals(true,cache.getOrCheck(Optional.of("a"), PermissionDecisionCache.DecisionType.role, "admin", () -> {
+			cache.invalidate("a");
+			return true;
+		}));
+		assertEquals(false,cache.getOrCheck(Optional.of("a"), PermissionDecisionCache.DecisionType.role, "admin", () -> false));
+	}
+
+	public static class TestRoleProvider implements IRoleProvider {
+		@Override
+		public Tuple2<Set<String>, Set<String>> getRolesAndPermissions(String principalName) {
+			return null;
+		}
+	}
+	
+	@Test
+	public void testRoleProviderBinding(){
+		final Injector injector = Guice.createInjector(new CoreSecurityModule() {
+			@Override
+			protected Optional<Class<? extends IRoleProvider>> getRoleProviderClass() {
+				return Optional.of(TestRoleProvider.class);
+			}
+		});
+		assertTrue(injector.getInstance(IRoleProvider.class) instanceof TestRoleProvider);
+		
+		final SecurityService service = (SecurityService)securityService;
+		service.setRoleProvider(injector.getInstance(IRoleProvider.class));
+		assertTrue(service.roleProvider.get() instanceof TestRoleProvider);
+	}
+
 	@Test
 	@Ignore
 	public void testSecondRealm(){
@@ -0,0 +1,401 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Adds atomic primary/secondary buffer swaps to any generic data service that supports secondary buffers
+ *  Every "physical" buffer of the underlying service is a generation: the bucket's original primary buffer, or a secondary buffer called
+ *  <logical name>__<generation number>. Each bucket has an alias pointing at its current generation:
+ *  - writes to a (logical) secondary buffer go straight to the underlying service's buffer for that generation (so at full batch speed)
+ *  - switchCrudServiceToPrimaryBuffer just repoints the alias (a single atomic reference swap), so readers never see a partially written
+ *    or mixed buffer, and there is no downtime
+ *  - readers that need a consistent view across several calls take a lease (acquireReadLease), which pins them to a generation until closed
+ *  - the previous generation is retired in the background, once its last lease has been closed
+ *  The alias is held in memory, so after a restart readers see the underlying service's primary buffer again (as before any swaps)
+ */
+public class BufferedDataService implements IDataServiceProvider.IGenericDataService {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String GENERATION_SEPARATOR = "__";
+	public static final int DEFAULT_REBUILD_BATCH_SIZE = 1000;
+
+	/** One physical buffer of the underlying service
+	 */
+	protected static class Generation {
+		final Optional<String> _physical_buffer; // (empty for the underlying primary buffer)
+		final AtomicInteger _readers = new AtomicInteger(0);
+		final AtomicBoolean _deleted = new AtomicBoolean(false);
+		volatile boolean _retired = false;
+		Generation(final Optional<String> physical_buffer) {
+			_physical_buffer = physical_buffer;
+		}
+	}
+
+	/** The alias and pending secondary buffers of one bucket
+	 */
+	protected static class BucketBuffers {
+		final AtomicReference<Generation> _current = new AtomicReference<Generation>(new Generation(Optional.empty()));
+		final Map<String, Generation> _pending = new ConcurrentHashMap<String, Generation>();
+	}
+
+	/** A reader's view of a bucket, pinned to one generation until closed
+	 *
+	 * @param <O> - the type of object being read
+	 */
+	public class ReadLease<O> implements AutoCloseable {
+		protected final DataBucketBean _bucket;
+		protected final Generation _generation;
+		protected final IDataWriteService<O> _service;
+		protected final AtomicBoolean _closed = new AtomicBoolean(false);
+
+		protected ReadLease(final DataBucketBean bucket, final Generation generation, final IDataWriteService<O> service) {
+			_bucket = bucket;
+			_generation = generation;
+			_service = service;
+		}
+		/** The underlying service for the pinned generation (eg use getCrudService() to query it)
+		 */
+		public IDataWriteService<O> getService() {
+			return _service;
+		}
+		/** The underlying service's name for the pinned buffer (empty if it is the original primary)
+		 */
+		public Optional<String> getPhysicalBuffer() {
+			return _generation._physical_buffer;
+		}
+		/* (non-Javadoc)
+		 * @see java.lang.AutoCloseable#close()
+		 */
+		@Override
+		public void close() {
+			if (_closed.compareAndSet(false, true)) {
+				release(_bucket, _generation);
+			}
+		}
+	}
+
+	protected final IDataServiceProvider.IGenericDataService _delegate;
+	protected final Executor _retirement_executor;
+	protected final Map<String, BucketBuffers> _buckets = new ConcurrentHashMap<String, BucketBuffers>();
+	protected final AtomicLong _generation_counter = new AtomicLong(System.currentTimeMillis()); // (so names don't clash with buffers left by an earlier process)
+
+	/** User c'tor - retires old buffers on the common fork join pool
+	 * @param delegate - the underlying data service
+	 */
+	public BufferedDataService(final IDataServiceProvider.IGenericDataService delegate) {
+		this(delegate, ForkJoinPool.commonPool());
+	}
+
+	/** User c'tor
+	 * @param delegate - the underlying data service
+	 * @param retirement_executor - runs the deletion of retired buffers (eg Runnable::run in tests, to make it synchronous)
+	 */
+	public BufferedDataService(final IDataServiceProvider.IGenericDataService delegate, final Executor retirement_executor) {
+		_delegate = delegate;
+		_retirement_executor = retirement_executor;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		final BucketBuffers buffers = getBuffers(bucket);
+		if (secondary_buffer.isPresent()) { // (the underlying service for the buffer, so there's no overhead for bulk writes)
+			final Generation generation = buffers._pending.computeIfAbsent(secondary_buffer.get(),
+					logical -> new Generation(Optional.of(logical + GENERATION_SEPARATOR + _generation_counter.incrementAndGet())));
+			return _delegate.getWritableDataService(clazz, bucket, options, generation._physical_buffer);
+		}
+		else { // (follows the alias on every call)
+			return _delegate.getWritableDataService(clazz, bucket, options, buffers._current.get()._physical_buffer)
+					.map(__ -> new AliasedDataWriteService<O>(buffers, physical -> _delegate.getWritableDataService(clazz, bucket, options, physical)));
+		}
+	}
+
+	/** Returns a lease on the bucket's current buffer, which reads from that buffer (even if it is swapped out) until closed
+	 *  Use in a try-with-resources block - the retired buffer can't be deleted until all its leases are closed
+	 * @param clazz - the class of the bean to use, or JsonNode.class
+	 * @param bucket - the bucket to read
+	 * @param options - passed to the underlying service's getWritableDataService
+	 * @return the lease, or empty if the underlying service doesn't support this bucket
+	 */
+	public <O> Optional<ReadLease<O>> acquireReadLease(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options) {
+		final BucketBuffers buffers = getBuffers(bucket);
+		for (;;) {
+			final Generation generation = buffers._current.get();
+			generation._readers.incrementAndGet();
+			if (generation == buffers._current.get()) { // (else the alias moved before the lease was registered, so retry)
+				final Optional<IDataWriteService<O>> service = _delegate.getWritableDataService(clazz, bucket, options, generation._physical_buffer);
+				if (!service.isPresent()) {
+					release(bucket, generation);
+				}
+				return service.map(s -> new ReadLease<O>(bucket, generation, s));
+			}
+			release(bucket, generation);
+		}
+	}
+
+	/** Writes a complete replacement for the bucket's data into a secondary buffer (in batches of DEFAULT_REBUILD_BATCH_SIZE), then swaps it in (or deletes it on failure)
+	 * @param clazz - the class of the bean to use, or JsonNode.class
+	 * @param bucket - the bucket to rebuild
+	 * @param secondary_buffer - the (logical) name of the secondary buffer to use
+	 * @param objects - the bucket's new contents
+	 * @return a future containing the success/failure of the swap
+	 */
+	public <O> CompletableFuture<BasicMessageBean> rebuild(final Class<O> clazz, final DataBucketBean bucket, final String secondary_buffer, final Stream<O> objects) {
+		return rebuild(clazz, bucket, secondary_buffer, objects, DEFAULT_REBUILD_BATCH_SIZE);
+	}
+
+	/** Writes a complete replacement for the bucket's data into a secondary buffer, then swaps it in (or deletes it on failure)
+	 * @param clazz - the class of the bean to use, or JsonNode.class
+	 * @param bucket - the bucket to rebuild
+	 * @param secondary_buffer - the (logical) name of the secondary buffer to use
+	 * @param objects - the bucket's new contents
+	 * @param batch_size - the number of objects per write to the underlying service
+	 * @return a future containing the success/failure of the swap
+	 */
+	public <O> CompletableFuture<BasicMessageBean> rebuild(final Class<O> clazz, final DataBucketBean bucket, final String secondary_buffer, final Stream<O> objects, final int batch_size) {
+		final Optional<IDataWriteService<O>> writer = getWritableDataService(clazz, bucket, Optional.empty(), Optional.of(secondary_buffer));
+		if (!writer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "rebuild", "Data service doesn't support bucket {0}", bucket.full_name()));
+		}
+		try {
+			final List<CompletableFuture<?>> writes = new LinkedList<CompletableFuture<?>>();
+			final List<O> batch = new LinkedList<O>();
+			final Iterator<O> it = objects.iterator();
+			while (it.hasNext()) {
+				batch.add(it.next());
+				if (batch.size() >= batch_size) {
+					writes.add(writer.get().storeObjects(new LinkedList<O>(batch)));
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				writes.add(writer.get().storeObjects(batch));
+			}
+			CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+		}
+		catch (Throwable t) {
+			handleBucketDeletionRequest(bucket, Optional.of(secondary_buffer), false);
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "rebuild", ErrorUtils.getLongForm("Failed to rebuild {1}: {0}", t, bucket.full_name())));
+		}
+		return switchCrudServiceToPrimaryBuffer(bucket, Optional.of(secondary_buffer));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		if (1 == buckets.size()) { // (follow the alias)
+			final DataBucketBean bucket = buckets.iterator().next();
+			final Generation generation = getBuffers(bucket)._current.get();
+			if (generation._physical_buffer.isPresent()) {
+				return _delegate.getWritableDataService(clazz, bucket, options, generation._physical_buffer).flatMap(IDataWriteService::getCrudService);
+			}
+		}
+		return _delegate.getReadableCrudService(clazz, buckets, options); // (multi-bucket reads go to the underlying primary buffers)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		return getBuffers(bucket)._pending.keySet().stream().sorted().collect(Collectors.toList());
+	}
+
+	/** Returns the underlying service's name for the buffer the bucket's alias currently points at
+	 * @param bucket - the bucket
+	 * @return the physical buffer name, or empty for the original primary
+	 */
+	public Optional<String> getCurrentPhysicalBuffer(final DataBucketBean bucket) {
+		return getBuffers(bucket)._current.get()._physical_buffer;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.INVALID_CONFIG_ERROR, "secondary_buffer", "(none)"));
+		}
+		final BucketBuffers buffers = getBuffers(bucket);
+		final Generation next = buffers._pending.remove(secondary_buffer.get());
+		if (null == next) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", "Secondary buffer {0} not found", secondary_buffer.get()));
+		}
+		final Generation previous = buffers._current.getAndSet(next);
+		retire(bucket, previous);
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to buffer {1}", bucket.full_name(), secondary_buffer.get()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		return _delegate.handleAgeOutRequest(bucket);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		if (secondary_buffer.isPresent()) { // (abandon a pending rebuild)
+			final Generation pending = getBuffers(bucket)._pending.remove(secondary_buffer.get());
+			return (null == pending)
+					? CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Secondary buffer {0} not found", secondary_buffer.get()))
+					: _delegate.handleBucketDeletionRequest(bucket, pending._physical_buffer, bucket_getting_deleted);
+		}
+		else { // (the underlying service deletes the primary and all its secondary buffers, ie every generation)
+			_buckets.remove(bucket.full_name());
+			return _delegate.handleBucketDeletionRequest(bucket, Optional.empty(), bucket_getting_deleted);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** A write service that resolves the bucket's alias on every call
+	 */
+	protected static class AliasedDataWriteService<O> implements IDataWriteService<O> {
+		protected final BucketBuffers _buffers;
+		protected final Function<Optional<String>, Optional<IDataWriteService<O>>> _getter;
+
+		protected AliasedDataWriteService(final BucketBuffers buffers, final Function<Optional<String>, Optional<IDataWriteService<O>>> getter) {
+			_buffers = buffers;
+			_getter = getter;
+		}
+		protected IDataWriteService<O> current() {
+			final Optional<String> physical = _buffers._current.get()._physical_buffer;
+			return _getter.apply(physical).orElseThrow(() -> new RuntimeException(ErrorUtils.get("Buffer {0} is no longer available", physical.orElse("(primary)"))));
+		}
+		@Override
+		public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+			return current().storeObject(new_object);
+		}
+		@Override
+		public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+			return current().storeObjects(new_objects);
+		}
+		@Override
+		public CompletableFuture<Long> countObjects() {
+			return current().countObjects();
+		}
+		@Override
+		public CompletableFuture<Boolean> deleteDatastore() {
+			return current().deleteDatastore();
+		}
+		@Override
+		public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+			return current().getBatchWriteSubservice();
+		}
+		@Override
+		public Optional<ICrudService<O>> getCrudService() {
+			return current().getCrudService();
+		}
+		@Override
+		public IDataWriteService<JsonNode> getRawService() {
+			return new AliasedDataWriteService<JsonNode>(_buffers, physical -> _getter.apply(physical).map(IDataWriteService::getRawService));
+		}
+		@Override
+		public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+			return current().getUnderlyingPlatformDriver(driver_class, driver_options);
+		}
+	}
+
+	/** Returns the alias etc for a bucket
+	 */
+	protected BucketBuffers getBuffers(final DataBucketBean bucket) {
+		return _buckets.computeIfAbsent(bucket.full_name(), __ -> new BucketBuffers());
+	}
+
+	/** Marks a generation as no longer current, deleting it once it has no readers
+	 */
+	protected void retire(final DataBucketBean bucket, final Generation generation) {
+		generation._retired = true;
+		if (0 == generation._readers.get()) {
+			delete(bucket, generation);
+		}
+	}
+
+	/** Called when a reader has finished with a generation
+	 */
+	protected void release(final DataBucketBean bucket, final Generation generation) {
+		if ((0 == generation._readers.decrementAndGet()) && generation._retired) {
+			delete(bucket, generation);
+		}
+	}
+
+	/** Deletes a retired generation's data in the background (once only)
+	 */
+	protected void delete(final DataBucketBean bucket, final Generation generation) {
+		if (generation._deleted.compareAndSet(false, true)) {
+			_retirement_executor.execute(() -> {
+				try {
+					if (generation._physical_buffer.isPresent()) {
+						_delegate.handleBucketDeletionRequest(bucket, generation._physical_buffer, false).join();
+					}
+					else { // (deleting the underlying primary via handleBucketDeletionRequest would delete the secondary buffers too)
+						_delegate.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).ifPresent(s -> s.deleteDatastore().join());
+					}
+				}
+				catch (Throwable t) {
+					_logger.error(ErrorUtils.getLongForm("Failed to retire buffer {1} of {2}: {0}", t, generation._physical_buffer.orElse("(primary)"), bucket.full_name()));
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** A minimal generic data service that keeps each bucket's (primary and secondary buffer) objects in lists in memory
+ *  Intended for tests (eg of BufferedDataService, or of modules that write to a data service) - there is no query support beyond getObjects
+ */
+public class InMemoryDataService implements IDataServiceProvider.IGenericDataService {
+
+	/** The buffers, by bucket and buffer name (see getBufferKey) */
+	protected final Map<String, List<JsonNode>> _buffers = new ConcurrentHashMap<>();
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		return Optional.of(new InMemoryDataWriteService<O>(getBufferKey(bucket, secondary_buffer), clazz));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		return Optional.empty(); // (use InMemoryDataWriteService.getObjects)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		final String prefix = getBufferKey(bucket, Optional.of(""));
+		return _buffers.keySet().stream().filter(key -> key.startsWith(prefix) && (key.length() > prefix.length()))
+				.map(key -> key.substring(prefix.length()))
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.INVALID_CONFIG_ERROR, "secondary_buffer", "(none)"));
+		}
+		final List<JsonNode> secondary = _buffers.remove(getBufferKey(bucket, secondary_buffer));
+		if (null == secondary) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", "Secondary buffer {0} not found", secondary_buffer.get()));
+		}
+		_buffers.put(getBufferKey(bucket, Optional.empty()), secondary);
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to buffer {1}", bucket.full_name(), secondary_buffer.get()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleAgeOutRequest", "No age out for {0}", bucket.full_name()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		if (secondary_buffer.isPresent()) {
+			_buffers.remove(getBufferKey(bucket, secondary_buffer));
+		}
+		else {
+			_buffers.remove(getBufferKey(bucket, Optional.empty()));
+			final String prefix = getBufferKey(bucket, Optional.of(""));
+			_buffers.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Deleted {0}", bucket.full_name()));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// WRITE SERVICE
+
+	/** A write service pointing at one buffer (looked up on each call, so it follows switches of the primary buffer)
+	 *
+	 * @param <O> - the type of object being stored
+	 */
+	public class InMemoryDataWriteService<O> implements IDataWriteService<O> {
+		protected final String _key;
+		protected final Class<O> _clazz;
+
+		protected InMemoryDataWriteService(final String key, final Class<O> clazz) {
+			_key = key;
+			_clazz = clazz;
+		}
+
+		/** Returns the objects in the buffer, in the order they were written
+		 */
+		public List<O> getObjects() {
+			final List<JsonNode> buffer = getBuffer(false);
+			synchronized (buffer) {
+				return buffer.stream().map(json -> fromJson(json)).collect(Collectors.toList());
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObject(java.lang.Object)
+		 */
+		@Override
+		public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+			return storeObjects(Arrays.asList(new_object)).thenApply(t2 -> () -> null);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObjects(java.util.List)
+		 */
+		@Override
+		public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+			final List<JsonNode> jsons = new_objects.stream().map(o -> (o instanceof JsonNode) ? (JsonNode) o : BeanTemplateUtils.toJson(o)).collect(Collectors.toList());
+			final List<JsonNode> buffer = getBuffer(true);
+			synchronized (buffer) {
+				buffer.addAll(jsons);
+			}
+			return CompletableFuture.completedFuture(Tuples._2T(() -> null, () -> (long)jsons.size()));
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#countObjects()
+		 */
+		@Override
+		public CompletableFuture<Long> countObjects() {
+			final List<JsonNode> buffer = getBuffer(false);
+			synchronized (buffer) {
+				return CompletableFuture.completedFuture((long)buffer.size());
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#deleteDatastore()
+		 */
+		@Override
+		public CompletableFuture<Boolean> deleteDatastore() {
+			return CompletableFuture.completedFuture(null != _buffers.remove(_key));
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getBatchWriteSubservice()
+		 */
+		@Override
+		public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+			return Optional.of(new IBatchSubservice<O>() { // (writes are immediate, so no batching)
+				public void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {}
+				public void storeObjects(final List<O> new_objects) { InMemoryDataWriteService.this.storeObjects(new_objects); }
+				public void storeObject(final O new_object) { InMemoryDataWriteService.this.storeObject(new_object); }
+			});
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+		 */
+		@Override
+		public Optional<ICrudService<O>> getCrudService() {
+			return Optional.empty();
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getRawService()
+		 */
+		@Override
+		public IDataWriteService<JsonNode> getRawService() {
+			return new InMemoryDataWriteService<JsonNode>(_key, JsonNode.class);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+		 */
+		@Override
+		public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+			return Optional.empty();
+		}
+
+		/** Returns the buffer's list, optionally creating it (reads don't, so that a deleted buffer stays deleted)
+		 */
+		protected List<JsonNode> getBuffer(final boolean create) {
+			return create ? _buffers.computeIfAbsent(_key, __ -> new ArrayList<JsonNode>()) : _buffers.getOrDefault(_key, new ArrayList<JsonNode>());
+		}
+
+		@SuppressWarnings("unchecked")
+		protected O fromJson(final JsonNode json) {
+			return JsonNode.class.isAssignableFrom(_clazz) ? (O) json : BeanTemplateUtils.from(json, _clazz).get();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the key of the buffer for the given bucket/buffer
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer (if "" then returns the prefix of all the secondary buffers' keys)
+	 * @return the key
+	 */
+	protected static String getBufferKey(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		return bucket.full_name() + secondary_buffer.map(buffer -> ":secondary:" + buffer).orElse(":primary");
+	}
+}
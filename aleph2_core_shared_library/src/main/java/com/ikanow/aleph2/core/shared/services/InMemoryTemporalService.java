@@ -0,0 +1,150 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.utils.TemporalPartitioner;
+import com.ikanow.aleph2.data_model.interfaces.data_services.ITemporalService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+import fj.data.Validation;
+
+/** In-memory reference implementation of the temporal service, for use in tests
+ *  Each bucket's objects are held in partitions named by the temporal schema's grouping_time_period (see TemporalPartitioner),
+ *  so age out just removes the expired partitions from the map
+ */
+public class InMemoryTemporalService implements ITemporalService {
+
+	// bucket full name -> partition name -> objects
+	protected final Map<String, ConcurrentSkipListMap<String, List<JsonNode>>> _buckets = new ConcurrentHashMap<>();
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.ITemporalService#validateSchema(com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.TemporalSchemaBean, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Tuple2<String, List<BasicMessageBean>> validateSchema(final DataSchemaBean.TemporalSchemaBean schema, final DataBucketBean bucket) {
+		final Validation<String, TemporalPartitioner> partitioner = TemporalPartitioner.from(schema);
+		return Tuples._2T(bucket.full_name(), partitioner.isFail()
+				? Arrays.asList(ErrorUtils.buildErrorMessage(this, "validateSchema", partitioner.fail()))
+				: Collections.emptyList());
+	}
+
+	/** Adds objects to the bucket, each into the partition given by its temporal_schema.time_field (else the current time)
+	 * @param bucket - the bucket
+	 * @param objects - the objects to add
+	 */
+	public void storeObjects(final DataBucketBean bucket, final Collection<JsonNode> objects) {
+		final TemporalPartitioner partitioner = getPartitioner(bucket);
+		final Optional<String> time_field = getTemporalSchema(bucket).map(DataSchemaBean.TemporalSchemaBean::time_field);
+		final ConcurrentSkipListMap<String, List<JsonNode>> partitions = _buckets.computeIfAbsent(bucket.full_name(), __ -> new ConcurrentSkipListMap<>());
+		objects.stream()
+			.collect(Collectors.groupingBy(json -> partitioner.getPartition(json, time_field)))
+			.forEach((partition, partition_objects) -> partitions.computeIfAbsent(partition, __ -> Collections.synchronizedList(new LinkedList<JsonNode>())).addAll(partition_objects));
+	}
+
+	/** Returns the names of the bucket's partitions
+	 * @param bucket - the bucket
+	 * @return the (sorted) partition names
+	 */
+	public Set<String> getPartitions(final DataBucketBean bucket) {
+		return new TreeSet<String>(Optional.ofNullable(_buckets.get(bucket.full_name())).map(m -> m.keySet()).orElse(Collections.emptyNavigableSet()));
+	}
+
+	/** Returns all the objects in the bucket
+	 * @param bucket - the bucket
+	 * @return the objects, in partition order
+	 */
+	public List<JsonNode> getObjects(final DataBucketBean bucket) {
+		return Optional.ofNullable(_buckets.get(bucket.full_name()))
+				.map(m -> m.values().stream().flatMap(l -> {
+					synchronized (l) {
+						return new LinkedList<JsonNode>(l).stream();
+					}
+				})
+				.collect(Collectors.toList()))
+				.orElse(Collections.emptyList());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.ITemporalService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		final Validation<String, TemporalPartitioner> partitioner = TemporalPartitioner.from(getTemporalSchema(bucket).orElse(null));
+		if (partitioner.isFail()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "handleAgeOutRequest", partitioner.fail()));
+		}
+		final List<String> dropped = Optional.ofNullable(_buckets.get(bucket.full_name()))
+				.map(partitions -> partitioner.success().dropExpiredPartitions(partitions.keySet(), new Date(), partition -> null != partitions.remove(partition)))
+				.orElse(Collections.emptyList());
+
+		return CompletableFuture.completedFuture(TemporalPartitioner.buildAgeOutMessage(this, bucket.full_name(), dropped));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
+	 */
+	@Override
+	public Collection<Object> getUnderlyingArtefacts() {
+		return Arrays.asList(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the temporal schema of the bucket
+	 */
+	protected static Optional<DataSchemaBean.TemporalSchemaBean> getTemporalSchema(final DataBucketBean bucket) {
+		return Optional.ofNullable(bucket.data_schema()).map(DataSchemaBean::temporal_schema);
+	}
+
+	/** Returns the partitioner for the bucket (falls back to a single partition if the schema is invalid)
+	 */
+	protected static TemporalPartitioner getPartitioner(final DataBucketBean bucket) {
+		final Validation<String, TemporalPartitioner> partitioner = TemporalPartitioner.from(getTemporalSchema(bucket).orElse(null));
+		return partitioner.isSuccess() ? partitioner.success() : new TemporalPartitioner(Optional.empty(), Optional.empty());
+	}
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import scala.Tuple2;
+
+import com.google.inject.Inject;
+import com.ikanow.aleph2.core.shared.utils.ColumnarSegment;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IColumnarService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.ColumnarSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Columnar service backed by an embedded column store on the local file system (see LocalColumnarStore)
+ *  ie <root>/columnar/<bucket full name>/columns/<segment files>, with secondary buffers under .../columns_secondary/<buffer name>/
+ *  The columns are chosen by the schema's field include/exclude lists, patterns and types (see ColumnarSegment.getColumnFilter)
+ *  Intended for local runs and tests, eg analytic scans of bucket data without a columnar cluster
+ */
+public class LocalColumnarService implements IColumnarService, IDataServiceProvider.IGenericDataService {
+
+	public static final String COLUMNS_SUFFIX = "/columns/";
+	public static final String SECONDARY_BUFFER_SUFFIX = "/columns_secondary/";
+
+	final protected GlobalPropertiesBean _globals;
+
+	/** The open stores, by directory (so that all the services for a bucket share the same in-memory state) */
+	protected final Map<String, LocalColumnarStore.StoreState> _stores = new ConcurrentHashMap<>();
+
+	/** The services for each store directory and class (shared so that all users of a store write through the same batch buffer) */
+	protected final Map<String, LocalColumnarStore<?>> _services = new ConcurrentHashMap<>();
+
+	/** Guice constructor
+	 * @param globals - the global properties, which provide the root directory
+	 */
+	@Inject
+	public LocalColumnarService(final GlobalPropertiesBean globals) {
+		_globals = globals;
+	}
+
+	/** The directory under which all the stores are stored
+	 * @return the root directory
+	 */
+	public String getRootPath() {
+		return _globals.distributed_root_dir() + "/columnar/";
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
+	 */
+	@Override
+	public Collection<Object> getUnderlyingArtefacts() {
+		return Arrays.asList(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider#getDataService()
+	 */
+	@Override
+	public Optional<IGenericDataService> getDataService() {
+		return Optional.of(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.IColumnarService#validateSchema(com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.ColumnarSchemaBean, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Tuple2<String, List<BasicMessageBean>> validateSchema(final ColumnarSchemaBean schema, final DataBucketBean bucket) {
+		final LinkedList<BasicMessageBean> errors = new LinkedList<BasicMessageBean>();
+		Arrays.asList(Tuples._2T("field_type_include_list", schema.field_type_include_list()), Tuples._2T("field_type_exclude_list", schema.field_type_exclude_list()))
+			.forEach(t2 -> Optional.ofNullable(t2._2()).orElse(Arrays.asList()).stream()
+								.filter(type -> !ColumnarSegment.FIELD_TYPES.contains(type))
+								.forEach(type -> errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, t2._1(), type))));
+		return Tuples._2T(getStoreDirectory(bucket, Optional.empty()), errors);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		return getColumnarStore(clazz, bucket, secondary_buffer).map(store -> (IDataWriteService<O>) store);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		return Optional.empty(); // (append only, use getColumnarStore)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		return Arrays.asList(Optional.ofNullable(new File(getStoreDirectory(bucket, Optional.of(""))).list()).orElse(new String[0]));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.INVALID_CONFIG_ERROR, "secondary_buffer", "(none)"));
+		}
+		final String primary_path = getStoreDirectory(bucket, Optional.empty());
+		final String secondary_path = getStoreDirectory(bucket, secondary_buffer);
+		try {
+			final File secondary = new File(secondary_path);
+			if (!secondary.isDirectory()) {
+				return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", "Secondary buffer {0} not found", secondary_buffer.get()));
+			}
+			// (commit anything still buffered for either directory before they're moved)
+			closeStores(secondary_path);
+			closeStores(primary_path);
+			final File primary = new File(primary_path);
+			final File old_primary = new File(primary.getParentFile(), "." + primary.getName() + "_old_" + System.currentTimeMillis());
+			if (primary.exists()) {
+				Files.move(primary.toPath(), old_primary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			Files.move(secondary.toPath(), primary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			FileUtils.deleteQuietly(old_primary);
+			return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to buffer {1}", bucket.full_name(), secondary_buffer.get()));
+		}
+		catch (IOException e) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.getLongForm("{0}", e)));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		// (segments aren't time partitioned, so there is nothing to age out - the storage service handles it)
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleAgeOutRequest", "No age out for {0}", bucket.full_name()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		final List<String> paths = secondary_buffer.isPresent()
+				? Arrays.asList(getStoreDirectory(bucket, secondary_buffer))
+				: Arrays.asList(getStoreDirectory(bucket, Optional.empty()), getStoreDirectory(bucket, Optional.of("")));
+		paths.forEach(path -> {
+			closeStores(path);
+			FileUtils.deleteQuietly(new File(path));
+		});
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Deleted columnar store for {0}", bucket.full_name()));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the directory in which the store for the given bucket/buffer is kept
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer (if "" then returns the directory containing all secondary buffers)
+	 * @return the directory, ending in /
+	 */
+	public String getStoreDirectory(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		return (getRootPath() + bucket.full_name()
+				+ secondary_buffer.map(buffer -> SECONDARY_BUFFER_SUFFIX + buffer + (buffer.isEmpty() ? "" : "/")).orElse(COLUMNS_SUFFIX))
+				.replaceAll("//+", "/");
+	}
+
+	/** Returns the column store for the bucket/buffer (opening it if necessary), which supports queries as well as writes
+	 * @param clazz - the class of the objects to store/return, or JsonNode.class
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, a secondary buffer to use instead of the primary
+	 * @return the store, or empty if the columnar service is disabled for this bucket
+	 */
+	@SuppressWarnings("unchecked")
+	public <O> Optional<LocalColumnarStore<O>> getColumnarStore(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		final Optional<ColumnarSchemaBean> schema = Optional.ofNullable(bucket.data_schema()).map(DataSchemaBean::columnar_schema);
+		if (!schema.map(s -> Optional.ofNullable(s.enabled()).orElse(true)).orElse(true)) {
+			return Optional.empty();
+		}
+		final String path = getStoreDirectory(bucket, secondary_buffer);
+		final LocalColumnarStore.StoreState state = _stores.computeIfAbsent(path, p -> new LocalColumnarStore.StoreState(new File(p), ColumnarSegment.getColumnFilter(schema)));
+		return Optional.of((LocalColumnarStore<O>) _services.computeIfAbsent(path + ":" + clazz.getName(), __ -> new LocalColumnarStore<O>(state, clazz, Optional.empty())));
+	}
+
+	/** Closes the services and stores in (or under) a directory, committing anything they have buffered
+	 * @param dir - the directory, ending in /
+	 */
+	protected void closeStores(final String dir) {
+		_services.entrySet().removeIf(kv -> {
+			if (kv.getKey().startsWith(dir)) {
+				kv.getValue().close();
+				return true;
+			}
+			return false;
+		});
+		_stores.keySet().removeIf(path -> path.startsWith(dir));
+	}
+}
@@ -0,0 +1,499 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Lists;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.ColumnarQuery;
+import com.ikanow.aleph2.core.shared.utils.ColumnarSegment;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** An embedded, file backed column store over a single directory (see LocalColumnarService for the layout)
+ *  Each committed batch of objects is written as one or more immutable segments (see ColumnarSegment), whose columns are chosen by the columnar schema
+ *  Queries are CrudUtils specs: segments are skipped using their footers where possible, and otherwise only the query's columns plus the
+ *  requested (projected) columns are read from each segment - so eg counts and narrow aggregate scans read a small fraction of the data
+ *
+ * @param <O> - the type of object being stored
+ */
+public class LocalColumnarStore<O> implements IDataWriteService<O>, AutoCloseable {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String SEGMENT_PREFIX = "segment_";
+	public static final String SEGMENT_SUFFIX = ".col";
+	public static final int DEFAULT_MAX_SEGMENT_ROWS = 100000;
+
+	/** The state of a column store directory, shared between all the (differently typed) services pointing at it
+	 */
+	public static class StoreState {
+		protected final File _dir;
+		protected final BiPredicate<String, JsonNode> _column_filter;
+		protected final ReadWriteLock _lock = new ReentrantReadWriteLock();
+		protected final List<ColumnarSegment> _segments = new ArrayList<ColumnarSegment>();
+
+		/** User c'tor - opens any existing segments
+		 * @param dir - the directory containing the segment files
+		 * @param column_filter - decides which fields are stored as columns, see ColumnarSegment.getColumnFilter
+		 */
+		public StoreState(final File dir, final BiPredicate<String, JsonNode> column_filter) {
+			_dir = dir;
+			_column_filter = column_filter;
+			Arrays.stream(Optional.ofNullable(dir.listFiles((__, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))).orElse(new File[0]))
+				.sorted(Comparator.comparing(f -> getSegmentNumber(f)))
+				.forEach(f -> _segments.add(new ColumnarSegment(f)));
+		}
+	}
+
+	protected final StoreState _state;
+	protected final Class<O> _clazz;
+	protected final BatchSubservice _batch_service;
+
+	/** User c'tor
+	 * @param state - the store
+	 * @param clazz - the class of the objects being stored (JsonNode for schema-less)
+	 * @param write_settings - the default batch settings
+	 */
+	public LocalColumnarStore(final StoreState state, final Class<O> clazz, final Optional<DataSchemaBean.WriteSettings> write_settings) {
+		_state = state;
+		_clazz = clazz;
+		_batch_service = new BatchSubservice(write_settings);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA WRITE SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+		return storeObjects(Arrays.asList(new_object)).thenApply(t2 -> () -> null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+		try {
+			commit(new_objects.stream().map(o -> toJson(o)).collect(Collectors.toList()));
+			return CompletableFuture.completedFuture(Tuples._2T(() -> null, () -> (long)new_objects.size()));
+		}
+		catch (Exception e) {
+			final CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> error = new CompletableFuture<>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#countObjects()
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		_state._lock.readLock().lock();
+		try {
+			return CompletableFuture.completedFuture(_state._segments.stream().mapToLong(s -> s.size()).sum());
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		_state._lock.writeLock().lock();
+		try {
+			_state._segments.clear();
+			return CompletableFuture.completedFuture(FileUtils.deleteQuietly(_state._dir));
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getBatchWriteSubservice()
+	 */
+	@Override
+	public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+		return Optional.of(_batch_service);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<O>> getCrudService() {
+		return Optional.empty(); // (append only, use getObjectsBySpec/countObjectsBySpec)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getRawService()
+	 */
+	@Override
+	public IDataWriteService<JsonNode> getRawService() {
+		return new LocalColumnarStore<JsonNode>(_state, JsonNode.class, Optional.empty());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// QUERIES
+
+	/** Returns all the (stored) fields of the objects matching the spec - the spec's order by and limit are applied
+	 * @param spec - the query
+	 * @return a future containing a cursor over the matching objects
+	 */
+	public CompletableFuture<ICrudService.Cursor<O>> getObjectsBySpec(final QueryComponent<O> spec) {
+		return getObjectsBySpec(spec, Arrays.asList(), false);
+	}
+
+	/** Returns the objects matching the spec, reading only the columns needed for the query and the projection - the spec's order by and limit are applied
+	 * @param spec - the query
+	 * @param field_list - the (dot notation) fields to include or exclude (a field includes all its sub-fields)
+	 * @param include - whether field_list is the fields to include (else the fields to exclude)
+	 * @return a future containing a cursor over the matching (projected) objects
+	 */
+	public CompletableFuture<ICrudService.Cursor<O>> getObjectsBySpec(final QueryComponent<O> spec, final List<String> field_list, final boolean include) {
+		final Predicate<String> in_list = column -> field_list.stream().anyMatch(f -> column.equals(f) || column.startsWith(f + "."));
+		final Predicate<String> output_columns = include ? in_list : in_list.negate();
+		final List<Tuple2<String, Integer>> order_by = Optional.ofNullable(spec.getOrderBy()).orElse(Arrays.asList());
+		final long limit = Optional.ofNullable(spec.getLimit()).orElse(Long.MAX_VALUE);
+
+		final List<JsonNode> results = new ArrayList<JsonNode>();
+		// (order by fields are always read, so may appear in the results even if they aren't in the projection)
+		return runQuery(spec, Optional.of(column -> output_columns.test(column) || order_by.stream().anyMatch(t2 -> t2._1().equals(column))), order_by.isEmpty() ? limit : Long.MAX_VALUE,
+				(segment, columns, rows) -> {
+					for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+						results.add(ColumnarSegment.getRow(columns, row));
+					}
+				})
+				.thenApply(__ -> {
+					Comparator<JsonNode> comparator = (a, b) -> 0;
+					for (Tuple2<String, Integer> t2: order_by) {
+						final Comparator<JsonNode> by_field = Comparator.comparing((JsonNode json) -> getField(json, t2._1()), LocalColumnarStore::compareValues);
+						comparator = comparator.thenComparing((t2._2() < 0) ? by_field.reversed() : by_field);
+					}
+					final List<O> objects = results.stream()
+							.sorted(comparator)
+							.limit(limit)
+							.map(json -> fromJson(json))
+							.collect(Collectors.toList());
+					return (ICrudService.Cursor<O>) new ICrudService.Cursor<O>() {
+						public Iterator<O> iterator() { return objects.iterator(); }
+						public long count() { return objects.size(); }
+						public void close() {} // (nothing to release, the results are in memory)
+					};
+				});
+	}
+
+	/** Counts the objects matching the spec, reading only the columns needed for the query
+	 * @param spec - the query
+	 * @return a future containing the number of matching objects
+	 */
+	public CompletableFuture<Long> countObjectsBySpec(final QueryComponent<O> spec) {
+		final long[] count = { 0L };
+		return runQuery(spec, Optional.empty(), Long.MAX_VALUE, (segment, columns, rows) -> count[0] += rows.cardinality()).thenApply(__ -> count[0]);
+	}
+
+	/** The total number of bytes read from this store's segment files (by any service pointing at it) since they were opened
+	 * @return the number of bytes read
+	 */
+	public long getBytesRead() {
+		_state._lock.readLock().lock();
+		try {
+			return _state._segments.stream().mapToLong(s -> s.getBytesRead()).sum();
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/** Handles the matching rows of a segment
+	 */
+	@FunctionalInterface
+	protected interface MatchHandler {
+		void accept(ColumnarSegment segment, Map<String, ColumnarSegment.Column> output_columns, BitSet rows);
+	}
+
+	/** Runs a query against each segment under the read lock
+	 * @param spec - the query
+	 * @param output_columns - the columns needed by the handler (as well as the query's)
+	 * @param limit - stop once this many rows have matched
+	 * @param handler - called with the matching rows of each segment
+	 * @return a future that completes when all the segments have been queried (or errors)
+	 */
+	protected CompletableFuture<Void> runQuery(final QueryComponent<O> spec, final Optional<Predicate<String>> output_columns, final long limit, final MatchHandler handler) {
+		_state._lock.readLock().lock();
+		try {
+			final ColumnarQuery query = new ColumnarQuery(spec);
+			long matched = 0L;
+			for (ColumnarSegment segment: _state._segments) {
+				if (matched >= limit) break;
+				if (!query.mightMatch(segment)) continue;
+
+				final Map<String, ColumnarSegment.Column> query_columns = new LinkedHashMap<String, ColumnarSegment.Column>();
+				query.getFields().forEach(field -> segment.readColumn(field).ifPresent(column -> query_columns.put(field, column)));
+				final BitSet rows = query.evaluate(segment, query_columns);
+				if (matched + rows.cardinality() > limit) { // (trim to the limit)
+					rows.clear(rows.stream().skip(limit - matched).findFirst().orElse(segment.size()), segment.size());
+				}
+				if (rows.isEmpty()) continue;
+				matched += rows.cardinality();
+
+				final Map<String, ColumnarSegment.Column> columns = new LinkedHashMap<String, ColumnarSegment.Column>();
+				output_columns.ifPresent(filter -> segment.getColumns().keySet().stream().filter(filter).forEach(field ->
+					columns.put(field, Optional.ofNullable(query_columns.get(field)).orElseGet(() -> segment.readColumn(field).get()))));
+				handler.accept(segment, columns, rows);
+			}
+			return CompletableFuture.completedFuture(null);
+		}
+		catch (Exception e) {
+			final CompletableFuture<Void> error = new CompletableFuture<Void>();
+			error.completeExceptionally(e);
+			return error;
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// BATCH SUB SERVICE
+
+	/** Buffers objects and commits them to the store when the batch is full (by count or size) or the flush interval has expired
+	 *  (larger batches give better compression, since dictionaries and runs are per segment)
+	 */
+	public class BatchSubservice implements IBatchSubservice<O> {
+		protected BatchedOutputBuffer<String, JsonNode> _batch_buffer = null; // (created on first use, so unused services don't have a flush timer)
+		protected int _max_objects;
+		protected Duration _flush_interval;
+		protected long _max_batch_bytes;
+		protected long _batch_bytes = 0L;
+
+		protected BatchSubservice(final Optional<DataSchemaBean.WriteSettings> write_settings) {
+			setBatchProperties(
+					write_settings.map(w -> w.batch_max_objects()),
+					write_settings.map(w -> w.batch_max_size_kb()),
+					write_settings.map(w -> w.batch_flush_interval()).map(secs -> Duration.ofSeconds(secs)),
+					Optional.empty());
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#setBatchProperties(java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional)
+		 */
+		@Override
+		public synchronized void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
+			close();
+			_max_objects = max_objects.orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS);
+			_flush_interval = flush_interval.orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY);
+			_max_batch_bytes = size_kb.map(kb -> kb*1024L).orElse(Long.MAX_VALUE);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List)
+		 */
+		@Override
+		public void storeObjects(final List<O> new_objects) {
+			new_objects.forEach(o -> storeObject(o));
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObject(java.lang.Object)
+		 */
+		@Override
+		public synchronized void storeObject(final O new_object) {
+			final JsonNode json = toJson(new_object);
+			final BatchedOutputBuffer<String, JsonNode> batch_buffer = getBatchBuffer();
+			batch_buffer.add("", json);
+			final long buffered = batch_buffer.getBufferedCount();
+			if (0 == buffered) { // (the buffer flushed itself)
+				_batch_bytes = 0L;
+			}
+			else {
+				// (if this is the only buffered object then anything before it was flushed by the buffer's timer)
+				_batch_bytes = ((1 == buffered) ? 0L : _batch_bytes) + json.toString().length();
+				if (_batch_bytes >= _max_batch_bytes) {
+					flush();
+				}
+			}
+		}
+
+		/** Returns the current batch buffer, creating it (and so starting its flush timer) on first use
+		 */
+		protected synchronized BatchedOutputBuffer<String, JsonNode> getBatchBuffer() {
+			if (null == _batch_buffer) {
+				_batch_buffer = new BatchedOutputBuffer<String, JsonNode>(_max_objects, _flush_interval, (__, objects) -> commit(objects));
+			}
+			return _batch_buffer;
+		}
+
+		/** Commits any objects buffered by the batch sub-service (from any thread)
+		 */
+		public synchronized void flush() {
+			if (null != _batch_buffer) {
+				_batch_buffer.flushAll();
+			}
+			_batch_bytes = 0L;
+		}
+
+		/** Commits any buffered objects and stops the flush timer (the buffer is re-created if more objects are written)
+		 */
+		public synchronized void close() {
+			if (null != _batch_buffer) {
+				_batch_buffer.close();
+				_batch_buffer = null;
+			}
+			_batch_bytes = 0L;
+		}
+	}
+
+	/** Commits any objects buffered by the batch sub-service (from any thread)
+	 */
+	public void flush() {
+		_batch_service.flush();
+	}
+
+	/** Commits any objects buffered by the batch sub-service, and stops its flush timer
+	 */
+	@Override
+	public void close() {
+		_batch_service.close();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** The number of segments in the store
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		_state._lock.readLock().lock();
+		try {
+			return _state._segments.size();
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/** Writes objects to new segments (of at most DEFAULT_MAX_SEGMENT_ROWS objects)
+	 * @param objects - the objects to add
+	 */
+	protected void commit(final List<JsonNode> objects) {
+		if (objects.isEmpty()) {
+			return;
+		}
+		_state._lock.writeLock().lock();
+		try {
+			final Consumer<List<JsonNode>> write_segment = batch -> _state._segments.add(ColumnarSegment.write(
+					new File(_state._dir, SEGMENT_PREFIX + (_state._segments.isEmpty() ? 0 : getSegmentNumber(_state._segments.get(_state._segments.size() - 1).getFile()) + 1) + SEGMENT_SUFFIX),
+					batch, _state._column_filter));
+			Lists.partition(objects, DEFAULT_MAX_SEGMENT_ROWS).forEach(write_segment);
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns a (dot notation) field of an object
+	 */
+	protected static JsonNode getField(final JsonNode object, final String field) {
+		JsonNode node = object;
+		for (String name: field.split("\\.")) {
+			node = (null == node) ? null : node.get(name);
+		}
+		return node;
+	}
+
+	/** Orders values: missing values last, then as per ColumnarSegment.compareValues
+	 */
+	protected static int compareValues(final JsonNode a, final JsonNode b) {
+		if ((null == a) || (null == b)) {
+			return (null == a) ? ((null == b) ? 0 : 1) : -1;
+		}
+		return ColumnarSegment.compareValues(a, b);
+	}
+
+	/** Returns the number from a segment file name
+	 */
+	protected static int getSegmentNumber(final File segment) {
+		try {
+			return Integer.parseInt(segment.getName().substring(SEGMENT_PREFIX.length(), segment.getName().length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/** Converts an object to JSON (if it isn't already)
+	 */
+	protected static JsonNode toJson(final Object object) {
+		return (object instanceof JsonNode) ? (JsonNode) object : BeanTemplateUtils.toJson(object);
+	}
+
+	/** Converts JSON to the object type of this service
+	 */
+	@SuppressWarnings("unchecked")
+	protected O fromJson(final JsonNode json) {
+		return JsonNode.class.isAssignableFrom(_clazz) ? (O) json : BeanTemplateUtils.from(json, _clazz).get();
+	}
+}
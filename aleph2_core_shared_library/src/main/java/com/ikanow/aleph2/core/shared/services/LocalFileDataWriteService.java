@@ -0,0 +1,367 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.StorageCodec;
+import com.ikanow.aleph2.core.shared.utils.TemporalPartitioner;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.data_model.utils.UuidUtils;
+
+/** Writes objects into time partitioned segment files under a single storage stage directory
+ *  (see LocalFileStorageService for the layout) - each flush writes a new segment per partition, to a hidden temp file that is then
+ *  renamed into place, so readers only ever see complete segments
+ *
+ * @param <O> - the type of object being written
+ */
+public class LocalFileDataWriteService<O> implements IDataWriteService<O>, AutoCloseable {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String SEGMENT_PREFIX = "data_";
+	public static final String SEGMENT_SUFFIX = ".json";
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected final File _stage_dir;
+	protected final TemporalPartitioner _partitioner;
+	protected final StorageCodec _codec;
+	protected final Optional<String> _time_field;
+
+	protected final BatchSubservice _batch_service = new BatchSubservice();
+
+	/** User c'tor
+	 * @param stage_dir - the directory containing the partitions of this stage (or secondary buffer)
+	 * @param partitioner - determines the partition of each object (from its time field)
+	 * @param codec - the codec with which to compress the segments
+	 * @param time_field - the field from which to take the time of each object (if empty or missing, the time of writing is used)
+	 */
+	public LocalFileDataWriteService(final File stage_dir, final TemporalPartitioner partitioner, final StorageCodec codec, final Optional<String> time_field) {
+		_stage_dir = stage_dir;
+		_partitioner = partitioner;
+		_codec = codec;
+		_time_field = time_field;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA WRITE SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+		return storeObjects(Arrays.asList(new_object)).thenApply(t2 -> () -> null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+		try {
+			new_objects.stream().map(o -> toJson(o))
+				.collect(Collectors.groupingBy(json -> getPartition(json)))
+				.forEach((partition, objects) -> writeSegment(partition, objects));
+
+			return CompletableFuture.completedFuture(Tuples._2T(() -> null, () -> (long)new_objects.size()));
+		}
+		catch (Exception e) {
+			final CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> error = new CompletableFuture<>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#countObjects()
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		try (Stream<File> segments = getSegments()) {
+			return CompletableFuture.completedFuture(segments.mapToLong(f -> {
+				try (Stream<JsonNode> objects = readSegment(f)) {
+					return objects.count();
+				}
+			}).sum());
+		}
+		catch (Exception e) {
+			final CompletableFuture<Long> error = new CompletableFuture<>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		return CompletableFuture.completedFuture(FileUtils.deleteQuietly(_stage_dir));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getBatchWriteSubservice()
+	 */
+	@Override
+	public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+		return Optional.of(_batch_service);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<O>> getCrudService() {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getRawService()
+	 */
+	@Override
+	public IDataWriteService<JsonNode> getRawService() {
+		return new LocalFileDataWriteService<JsonNode>(_stage_dir, _partitioner, _codec, _time_field);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// BATCH SUB SERVICE
+
+	/** Buffers objects and writes them out as a segment per partition, when the batch is full or the flush interval has expired
+	 */
+	public class BatchSubservice implements IBatchSubservice<O> {
+		protected BatchedOutputBuffer<String, JsonNode> _batch_buffer = null; // (created on first use, so unused services don't have a flush timer)
+		protected int _max_objects = BatchedOutputBuffer.DEFAULT_MAX_OBJECTS;
+		protected Duration _flush_interval = BatchedOutputBuffer.DEFAULT_MAX_LATENCY;
+		// (adds share the read lock, so close can't swap the buffer out from under an add that's in progress - which would strand its object)
+		protected final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+		protected BatchSubservice() {
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#setBatchProperties(java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional)
+		 */
+		@Override
+		public void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
+			_lock.writeLock().lock();
+			try {
+				close();
+				_max_objects = max_objects.orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS);
+				_flush_interval = flush_interval.orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY);
+			}
+			finally {
+				_lock.writeLock().unlock();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List)
+		 */
+		@Override
+		public void storeObjects(final List<O> new_objects) {
+			new_objects.forEach(o -> storeObject(o));
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObject(java.lang.Object)
+		 */
+		@Override
+		public void storeObject(final O new_object) {
+			final JsonNode json = toJson(new_object);
+			_lock.readLock().lock();
+			try {
+				getBatchBuffer().add(getPartition(json), json);
+			}
+			finally {
+				_lock.readLock().unlock();
+			}
+		}
+
+		/** Returns the current batch buffer, creating it (and so starting its flush timer) on first use
+		 */
+		protected synchronized BatchedOutputBuffer<String, JsonNode> getBatchBuffer() {
+			if (null == _batch_buffer) {
+				_batch_buffer = new BatchedOutputBuffer<String, JsonNode>(_max_objects, _flush_interval, (partition, objects) -> writeSegment(partition, objects));
+			}
+			return _batch_buffer;
+		}
+
+		/** Writes out any objects buffered by the batch sub-service (from any thread)
+		 */
+		public void flush() {
+			_lock.readLock().lock();
+			try {
+				if (null != _batch_buffer) {
+					_batch_buffer.flushAll();
+				}
+			}
+			finally {
+				_lock.readLock().unlock();
+			}
+		}
+
+		/** Writes out any buffered objects and stops the flush timer (the buffer is re-created if more objects are written)
+		 *  (waits for any adds in progress to complete first)
+		 */
+		public void close() {
+			_lock.writeLock().lock();
+			try {
+				if (null != _batch_buffer) {
+					_batch_buffer.close();
+					_batch_buffer = null;
+				}
+			}
+			finally {
+				_lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/** Writes out any objects buffered by the batch sub-service (from any thread)
+	 */
+	public void flush() {
+		_batch_service.flush();
+	}
+
+	/** Writes out any objects buffered by the batch sub-service, and stops its flush timer
+	 */
+	@Override
+	public void close() {
+		_batch_service.close();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the name of the partition directory for an object
+	 * @param json - the object
+	 * @return the partition, see TemporalPartitioner
+	 */
+	public String getPartition(final JsonNode json) {
+		return _partitioner.getPartition(json, _time_field);
+	}
+
+	/** Writes a batch of objects as a new segment of a partition
+	 * @param partition - the partition directory name
+	 * @param objects - the objects to write
+	 */
+	protected void writeSegment(final String partition, final List<JsonNode> objects) {
+		final File partition_dir = new File(_stage_dir, partition);
+		final String segment_name = SEGMENT_PREFIX + UuidUtils.get().getRandomUuid() + SEGMENT_SUFFIX + _codec.getExtension();
+		final File tmp_file = new File(partition_dir, "." + segment_name + ".tmp");
+		try {
+			partition_dir.mkdirs();
+			try (OutputStream out = _codec.wrap(new FileOutputStream(tmp_file))) {
+				for (JsonNode json: objects) {
+					out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+					out.write('\n');
+				}
+			}
+			Files.move(tmp_file.toPath(), new File(partition_dir, segment_name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			FileUtils.deleteQuietly(tmp_file);
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to write to {1}: {0}", e, partition_dir), e);
+		}
+	}
+
+	/** Returns all the (complete) segment files in this stage
+	 * @return a stream of segment files
+	 */
+	public Stream<File> getSegments() {
+		return Arrays.stream(Optional.ofNullable(_stage_dir.listFiles(File::isDirectory)).orElse(new File[0]))
+				.flatMap(dir -> Arrays.stream(Optional.ofNullable(dir.listFiles((__, name) -> name.startsWith(SEGMENT_PREFIX))).orElse(new File[0])));
+	}
+
+	/** Reads the objects back out of a segment file (the codec is determined from the file extension)
+	 * @param segment - the segment file
+	 * @return a stream of objects (the file is closed when the stream is)
+	 */
+	public static Stream<JsonNode> readSegment(final File segment) {
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(StorageCodec.fromFileName(segment.getName()).wrap(new FileInputStream(segment)), StandardCharsets.UTF_8));
+			return reader.lines()
+					.filter(line -> !line.isEmpty())
+					.map(line -> {
+						try {
+							return _mapper.readTree(line);
+						}
+						catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					})
+					.onClose(() -> {
+						try {
+							reader.close();
+						}
+						catch (IOException e) {}
+					});
+		}
+		catch (IOException e) {
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to read {1}: {0}", e, segment), e);
+		}
+	}
+
+	/** Converts an object to JSON (if it isn't already)
+	 */
+	protected static JsonNode toJson(final Object object) {
+		return (object instanceof JsonNode) ? (JsonNode) object : BeanTemplateUtils.toJson(object);
+	}
+}
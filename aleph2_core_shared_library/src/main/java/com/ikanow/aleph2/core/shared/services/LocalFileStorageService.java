@@ -0,0 +1,368 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.AbstractFileSystem;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.google.inject.Inject;
+import com.ikanow.aleph2.core.shared.utils.StorageCodec;
+import com.ikanow.aleph2.core.shared.utils.TemporalPartitioner;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.StorageSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.TimeUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+import fj.data.Validation;
+
+/** Storage service that writes to the local file system, with the same layout as the HDFS storage service
+ *  ie <bucket root>/<bucket full name>/managed_bucket/import/stored/<raw|json|processed>/<time partition>/<segment files>
+ *  Segments are newline-separated JSON, compressed with the codec from the storage schema, and partitioned by its grouping_time_period
+ *  (using the bucket's temporal_schema.time_field where present, else the time of writing) - age out drops whole partitions
+ *  Intended for local runs and tests - no network required
+ */
+public class LocalFileStorageService implements IStorageService, IDataServiceProvider.IGenericDataService {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	/** Secondary buffers for a stage are stored under <stage dir minus the trailing /> + this + <buffer name>
+	 */
+	public static final String SECONDARY_BUFFER_SUFFIX = "_secondary/";
+
+	final protected GlobalPropertiesBean _globals;
+
+	/** The write services handed out, by stage directory and class, with the settings they were created with
+	 *  (shared so that all users of a stage write through the same batch buffer)
+	 */
+	protected final ConcurrentHashMap<String, Tuple2<String, LocalFileDataWriteService<?>>> _write_services = new ConcurrentHashMap<>();
+
+	/** Guice constructor
+	 * @param globals - the global properties, which provide the root directory
+	 */
+	@Inject
+	public LocalFileStorageService(final GlobalPropertiesBean globals) {
+		_globals = globals;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService#getRootPath()
+	 */
+	@Override
+	public String getRootPath() {
+		return _globals.distributed_root_dir();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService#getBucketRootPath()
+	 */
+	@Override
+	public String getBucketRootPath() {
+		return getRootPath() + "/data/";
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider#getDataService()
+	 */
+	@Override
+	public Optional<IDataServiceProvider.IGenericDataService> getDataService() {
+		return Optional.of(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
+	 */
+	@Override
+	public Collection<Object> getUnderlyingArtefacts() {
+		return Arrays.asList(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		try {
+			if (driver_class.isAssignableFrom(FileContext.class)) {
+				return (Optional<T>) Optional.of(FileContext.getLocalFSFileContext(new Configuration()));
+			}
+			else if (driver_class.isAssignableFrom(RawLocalFileSystem.class)) {
+				return Optional.of(driver_class.newInstance());
+			}
+			else if (driver_class.isAssignableFrom(AbstractFileSystem.class)) {
+				return (Optional<T>) Optional.of(FileContext.getLocalFSFileContext(new Configuration()).getDefaultFileSystem());
+			}
+		}
+		catch (Exception e) {
+			_logger.error(ErrorUtils.getLongForm("Failed to create driver {1}: {0}", e, driver_class));
+		}
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService#validateSchema(com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.StorageSchemaBean, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Tuple2<String, List<BasicMessageBean>> validateSchema(final StorageSchemaBean schema, final DataBucketBean bucket) {
+		final LinkedList<BasicMessageBean> errors = new LinkedList<BasicMessageBean>();
+		Arrays.asList(Tuples._2T(StorageStage.raw, schema.raw()), Tuples._2T(StorageStage.json, schema.json()), Tuples._2T(StorageStage.processed, schema.processed()))
+			.stream()
+			.filter(t2 -> null != t2._2())
+			.forEach(t2 -> {
+				final StorageSchemaBean.StorageSubSchemaBean sub_schema = t2._2();
+				if (null != sub_schema.grouping_time_period()) {
+					TimeUtils.getTimePeriod(sub_schema.grouping_time_period()).f()
+						.forEach(err -> errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", err)));
+				}
+				if (null != sub_schema.exist_age_max()) {
+					TimeUtils.getDuration(sub_schema.exist_age_max()).f()
+						.forEach(err -> errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", err)));
+				}
+				if (!StorageCodec.fromName(sub_schema.codec()).isPresent()) {
+					errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, t2._1().toString() + ".codec", sub_schema.codec()));
+				}
+			});
+		return Tuples._2T(getBucketRootPath() + bucket.full_name() + IStorageService.STORED_DATA_SUFFIX, errors);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		final Optional<StorageStage> maybe_stage = options.isPresent() 
+				? Arrays.stream(StorageStage.values()).filter(s -> s.name().equals(options.get())).findFirst()
+				: Optional.of(StorageStage.processed);
+		if (!maybe_stage.isPresent()) { // (eg the streaming enrichment's "errors" location, which isn't provided by this service)
+			return Optional.empty();
+		}
+		final StorageStage stage = maybe_stage.get();
+		final Optional<StorageSchemaBean.StorageSubSchemaBean> sub_schema = getSubSchema(bucket, stage);
+		if (sub_schema.map(s -> Optional.ofNullable(s.enabled()).orElse(true)).orElse(true)) {
+			final String stage_dir = getStageDirectory(bucket, stage, secondary_buffer);
+			final Optional<String> grouping_time_period = sub_schema.map(s -> s.grouping_time_period());
+			final StorageCodec codec = sub_schema.flatMap(s -> StorageCodec.fromName(s.codec())).orElse(StorageCodec.none);
+			final Optional<String> time_field = getTimeField(bucket);
+			final String settings = codec + ":" + grouping_time_period.orElse("") + ":" + time_field.orElse("");
+			
+			// Re-use the existing service unless the bucket's settings have changed (in which case the old one is flushed and closed)
+			final Tuple2<String, LocalFileDataWriteService<?>> settings_service = _write_services.compute(stage_dir + ":" + clazz.getName(), (key, existing) -> {
+				if ((null != existing) && existing._1().equals(settings)) {
+					return existing;
+				}
+				Optional.ofNullable(existing).ifPresent(t2 -> t2._2().close());
+				return Tuples._2T(settings, new LocalFileDataWriteService<O>(
+						new File(stage_dir),
+						new TemporalPartitioner(grouping_time_period.flatMap(p -> toOptional(TimeUtils.getTimePeriod(p))), Optional.empty()),
+						codec,
+						time_field
+						));
+			});
+			return Optional.of((IDataWriteService<O>) settings_service._2());
+		}
+		else return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		return Optional.empty(); // (file store, not a database)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		return Arrays.stream(StorageStage.values())
+				.map(stage -> new File(getStageDirectory(bucket, stage, Optional.of(""))))
+				.filter(dir -> dir.isDirectory())
+				.flatMap(dir -> Arrays.stream(Optional.ofNullable(dir.list()).orElse(new String[0])))
+				.distinct()
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "switch without secondary buffer")));
+		}
+		try {
+			// For each stage with a secondary buffer of this name, move the current primary out of the way, move the secondary in, then delete the old primary
+			for (StorageStage stage: StorageStage.values()) {
+				final File secondary = new File(getStageDirectory(bucket, stage, secondary_buffer));
+				if (secondary.isDirectory()) {
+					final File primary = new File(getStageDirectory(bucket, stage, Optional.empty()));
+					// (write out anything still buffered for either directory before they're moved)
+					closeWriteServices(getStageDirectory(bucket, stage, secondary_buffer));
+					closeWriteServices(getStageDirectory(bucket, stage, Optional.empty()));
+					final File old_primary = new File(primary.getParentFile(), "." + primary.getName() + "_old_" + System.currentTimeMillis());
+					if (primary.exists()) {
+						Files.move(primary.toPath(), old_primary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					}
+					Files.move(secondary.toPath(), primary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					FileUtils.deleteQuietly(old_primary);
+				}
+			}
+			return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to {1}", bucket.full_name(), secondary_buffer.get()));
+		}
+		catch (Exception e) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.getLongForm("{0}", e)));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		final Date now = new Date();
+		final List<String> deleted = new LinkedList<String>();
+		for (StorageStage stage: StorageStage.values()) {
+			final Validation<String, TemporalPartitioner> partitioner = TemporalPartitioner.from(getSubSchema(bucket, stage).orElse(null));
+			if (partitioner.isFail()) {
+				continue; // (invalid schema, will have been rejected by validateSchema)
+			}
+			// (a partition is only dropped once everything in it is older than the cutoff, ie the partition _end_ is before the cutoff)
+			final File stage_dir = new File(getStageDirectory(bucket, stage, Optional.empty()));
+			partitioner.success().dropExpiredPartitions(Arrays.asList(Optional.ofNullable(stage_dir.list()).orElse(new String[0])), now,
+					partition -> FileUtils.deleteQuietly(new File(stage_dir, partition)))
+				.forEach(partition -> deleted.add(stage + "/" + partition));
+		}
+		return CompletableFuture.completedFuture(TemporalPartitioner.buildAgeOutMessage(this, bucket.full_name(), deleted));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		try {
+			for (StorageStage stage: StorageStage.values()) {
+				final String stage_dir = getStageDirectory(bucket, stage, secondary_buffer);
+				closeWriteServices(stage_dir);
+				FileUtils.deleteDirectory(new File(stage_dir));
+			}
+			return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Deleted stored data for {0}", bucket.full_name()));
+		}
+		catch (IOException e) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "handleBucketDeletionRequest", ErrorUtils.getLongForm("{0}", e)));
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the directory in which data for the given bucket/stage/buffer is stored
+	 * @param bucket - the bucket
+	 * @param stage - the storage stage
+	 * @param secondary_buffer - optionally, the secondary buffer (if "" then returns the directory containing all secondary buffers)
+	 * @return the directory, ending in /
+	 */
+	public String getStageDirectory(final DataBucketBean bucket, final StorageStage stage, final Optional<String> secondary_buffer) {
+		final String stage_suffix = getStageSuffix(stage);
+		final String primary = getBucketRootPath() + bucket.full_name() + stage_suffix;
+		return secondary_buffer
+				.map(buffer -> primary.substring(0, primary.length() - 1) + SECONDARY_BUFFER_SUFFIX + buffer + (buffer.isEmpty() ? "" : "/"))
+				.orElse(primary)
+				.replaceAll("//+", "/");
+	}
+
+	/** Flushes and removes any write services for the given directory (or any directory below it)
+	 * @param dir - the directory, ending in /
+	 */
+	protected void closeWriteServices(final String dir) {
+		_write_services.entrySet().removeIf(kv -> {
+			if (kv.getKey().startsWith(dir)) {
+				kv.getValue()._2().close();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	/** Returns the stored data suffix for the stage
+	 */
+	protected static String getStageSuffix(final StorageStage stage) {
+		switch (stage) {
+			case raw: return IStorageService.STORED_DATA_SUFFIX_RAW;
+			case json: return IStorageService.STORED_DATA_SUFFIX_JSON;
+			default: return IStorageService.STORED_DATA_SUFFIX_PROCESSED;
+		}
+	}
+
+	/** Returns the storage sub-schema for the bucket/stage
+	 */
+	protected static Optional<StorageSchemaBean.StorageSubSchemaBean> getSubSchema(final DataBucketBean bucket, final StorageStage stage) {
+		return Optional.ofNullable(bucket.data_schema())
+				.map(DataSchemaBean::storage_schema)
+				.map(s -> (StorageStage.raw == stage) ? s.raw() : (StorageStage.json == stage) ? s.json() : s.processed());
+	}
+
+	/** Converts a successful validation into an optional (failures are empty)
+	 */
+	protected static <T> Optional<T> toOptional(final Validation<String, T> validation) {
+		return validation.isSuccess() ? Optional.of(validation.success()) : Optional.empty();
+	}
+
+	/** Returns the field used to partition objects by time (from the bucket's temporal schema)
+	 */
+	protected static Optional<String> getTimeField(final DataBucketBean bucket) {
+		return Optional.ofNullable(bucket.data_schema())
+				.map(DataSchemaBean::temporal_schema)
+				.map(DataSchemaBean.TemporalSchemaBean::time_field);
+	}
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.utils.ColumnarQuery;
+import com.ikanow.aleph2.core.shared.utils.GeoHashUtils;
+import com.ikanow.aleph2.core.shared.utils.GeoQuery;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** An in-memory spatial index over a bucket's objects, keyed by the geohash of each object's location
+ *  Spatial queries (see GeoQuery) are answered by range scans over the geohash cells that cover the query's bounding box, followed by
+ *  an exact test of each candidate - plus an optional CrudUtils query for the other fields, limit and order
+ *  Objects without a (valid) location are not indexed
+ *
+ * @param <O> - the type of object being indexed
+ */
+public class LocalGeospatialIndex<O> implements IDataWriteService<O> {
+
+	public static final String DEFAULT_LOCATION_FIELD = "location";
+
+	/** The state of an index, shared between all the (differently typed) services pointing at it
+	 */
+	public static class IndexState {
+		protected final String _location_field;
+		protected final int _precision;
+		protected final ReadWriteLock _lock = new ReentrantReadWriteLock();
+		protected final TreeMap<String, Entry> _entries = new TreeMap<String, Entry>(); // (key is <geohash>/<sequence number>)
+		protected final AtomicLong _sequence = new AtomicLong(0L);
+
+		/** User c'tor
+		 * @param location_field - the (dot notation) field containing each object's location, see GeoHashUtils.getPoint for the formats
+		 * @param precision - the length of the geohash keys (1-12, longer keys make small area queries faster at the expense of memory)
+		 */
+		public IndexState(final String location_field, final int precision) {
+			_location_field = location_field;
+			_precision = Math.max(1, Math.min(GeoHashUtils.MAX_PRECISION, precision));
+		}
+	}
+
+	/** An indexed object
+	 */
+	protected static class Entry {
+		final double _lat;
+		final double _lon;
+		final JsonNode _object;
+		Entry(final double lat, final double lon, final JsonNode object) {
+			_lat = lat; _lon = lon; _object = object;
+		}
+	}
+
+	protected final IndexState _state;
+	protected final Class<O> _clazz;
+
+	/** User c'tor
+	 * @param state - the index
+	 * @param clazz - the class of the objects being indexed (JsonNode for schema-less)
+	 */
+	public LocalGeospatialIndex(final IndexState state, final Class<O> clazz) {
+		_state = state;
+		_clazz = clazz;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA WRITE SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+		return storeObjects(Arrays.asList(new_object)).thenApply(t2 -> () -> null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+		final long indexed = bulkLoad(new_objects.stream().map(o -> toJson(o)));
+		return CompletableFuture.completedFuture(Tuples._2T(() -> null, () -> indexed));
+	}
+
+	/** Adds a stream of objects to the index, building the keys outside the lock and then adding them all at once
+	 * @param objects - the objects to add
+	 * @return the number of objects indexed (ie that had a valid location)
+	 */
+	public long bulkLoad(final Stream<JsonNode> objects) {
+		final List<Tuple2<String, Entry>> entries = objects
+				.map(object -> Tuples._2T(object, GeoHashUtils.getPoint(getField(object, _state._location_field))))
+				.filter(t2 -> t2._2().isPresent())
+				.map(t2 -> Tuples._2T(GeoHashUtils.encode(t2._2().get()[0], t2._2().get()[1], _state._precision) + "/" + _state._sequence.getAndIncrement(),
+										new Entry(t2._2().get()[0], t2._2().get()[1], t2._1())))
+				.collect(Collectors.toList());
+
+		_state._lock.writeLock().lock();
+		try {
+			entries.forEach(t2 -> _state._entries.put(t2._1(), t2._2()));
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+		return entries.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#countObjects()
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		_state._lock.readLock().lock();
+		try {
+			return CompletableFuture.completedFuture((long)_state._entries.size());
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		_state._lock.writeLock().lock();
+		try {
+			_state._entries.clear();
+			return CompletableFuture.completedFuture(true);
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getBatchWriteSubservice()
+	 */
+	@Override
+	public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+		return Optional.empty(); // (in memory, so writes are already cheap)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<O>> getCrudService() {
+		return Optional.empty(); // (use getObjectsBySpec/countObjectsBySpec)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getRawService()
+	 */
+	@Override
+	public IDataWriteService<JsonNode> getRawService() {
+		return new LocalGeospatialIndex<JsonNode>(_state, JsonNode.class);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// QUERIES
+
+	/** Returns the objects matching a spatial query and a CRUD query - the CRUD query's limit and order by are applied
+	 *  (if it has no order by, then radius/point query results are returned nearest first)
+	 * @param geo_query - the spatial query
+	 * @param spec - the query on the other fields (eg CrudUtils.allOf() for all)
+	 * @return a future containing a cursor over the matching objects
+	 */
+	public CompletableFuture<ICrudService.Cursor<O>> getObjectsBySpec(final GeoQuery geo_query, final QueryComponent<O> spec) {
+		final List<Tuple2<String, Integer>> order_by = Optional.ofNullable(spec.getOrderBy()).orElse(Arrays.asList());
+		Comparator<Entry> comparator = (a, b) -> 0;
+		if (order_by.isEmpty()) {
+			comparator = Comparator.comparing(e -> geo_query.getDistance(e._lat, e._lon).orElse(0.0));
+		}
+		for (Tuple2<String, Integer> t2: order_by) {
+			final Comparator<Entry> by_field = Comparator.comparing((Entry e) -> getField(e._object, t2._1()), LocalGeospatialIndex::compareValues);
+			comparator = comparator.thenComparing((t2._2() < 0) ? by_field.reversed() : by_field);
+		}
+		final List<O> results = getMatches(geo_query, spec).stream()
+				.sorted(comparator)
+				.limit(Optional.ofNullable(spec.getLimit()).orElse(Long.MAX_VALUE))
+				.map(e -> fromJson(e._object))
+				.collect(Collectors.toList());
+		return CompletableFuture.completedFuture(new ICrudService.Cursor<O>() {
+			public Iterator<O> iterator() { return results.iterator(); }
+			public long count() { return results.size(); }
+			public void close() {} // (nothing to release, the results are in memory)
+		});
+	}
+
+	/** Counts the objects matching a spatial query and a CRUD query
+	 * @param geo_query - the spatial query
+	 * @param spec - the query on the other fields (eg CrudUtils.allOf() for all)
+	 * @return a future containing the number of matching objects
+	 */
+	public CompletableFuture<Long> countObjectsBySpec(final GeoQuery geo_query, final QueryComponent<O> spec) {
+		return CompletableFuture.completedFuture((long)getMatches(geo_query, spec).size());
+	}
+
+	/** Finds the matching entries: a range scan per covering cell, then the exact spatial test, then the CRUD query
+	 */
+	protected List<Entry> getMatches(final GeoQuery geo_query, final QueryComponent<O> spec) {
+		final ColumnarQuery query = new ColumnarQuery(spec);
+		final List<String> cells = geo_query.getCells().stream()
+				.map(cell -> cell.substring(0, Math.min(cell.length(), _state._precision))) // (can't search within a key)
+				.distinct()
+				.collect(Collectors.toList());
+		_state._lock.readLock().lock();
+		try {
+			final List<Entry> matches = new ArrayList<Entry>();
+			for (String cell: cells) {
+				for (Entry e: _state._entries.subMap(cell, true, cell + "~", false).values()) { // ("~" sorts after all the geohash characters)
+					if (geo_query.contains(e._lat, e._lon) && query.matches(e._object)) {
+						matches.add(e);
+					}
+				}
+			}
+			return matches;
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns a (dot notation) field of an object
+	 */
+	protected static JsonNode getField(final JsonNode object, final String field) {
+		JsonNode node = object;
+		for (String name: field.split("\\.")) {
+			node = (null == node) ? null : node.get(name);
+		}
+		return node;
+	}
+
+	/** Orders values: missing values last, then numerically if both are numbers, else as strings
+	 */
+	protected static int compareValues(final JsonNode a, final JsonNode b) {
+		if ((null == a) || (null == b)) {
+			return (null == a) ? ((null == b) ? 0 : 1) : -1;
+		}
+		return (a.isNumber() && b.isNumber()) ? Double.compare(a.asDouble(), b.asDouble()) : a.asText().compareTo(b.asText());
+	}
+
+	/** Converts an object to JSON (if it isn't already)
+	 */
+	protected static JsonNode toJson(final Object object) {
+		return (object instanceof JsonNode) ? (JsonNode) object : BeanTemplateUtils.toJson(object);
+	}
+
+	/** Converts JSON to the object type of this service
+	 */
+	@SuppressWarnings("unchecked")
+	protected O fromJson(final JsonNode json) {
+		return JsonNode.class.isAssignableFrom(_clazz) ? (O) json : BeanTemplateUtils.from(json, _clazz).get();
+	}
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.utils.GeoHashUtils;
+import com.ikanow.aleph2.core.shared.utils.StorageStreamUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IGeospatialService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.GeospatialSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Geospatial service backed by in-process geohash indexes (see LocalGeospatialIndex), one per bucket (and secondary buffer)
+ *  The indexes are filled by writes, or bulk loaded from existing data (eg from the storage service, see bulkLoadFromStorage)
+ *  The schema's location_field (default "location") gives each object's location, and its index_precision (default 8, ~20m cells) the key length
+ */
+public class LocalGeospatialService implements IGeospatialService, IDataServiceProvider.IGenericDataService {
+
+	public static final int DEFAULT_PRECISION = 8;
+
+	/** The indexes, by bucket and buffer name (see getIndexKey) */
+	protected final Map<String, LocalGeospatialIndex.IndexState> _indexes = new ConcurrentHashMap<>();
+
+	/** Guice constructor
+	 */
+	public LocalGeospatialService() {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
+	 */
+	@Override
+	public Collection<Object> getUnderlyingArtefacts() {
+		return Arrays.asList(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider#getDataService()
+	 */
+	@Override
+	public Optional<IGenericDataService> getDataService() {
+		return Optional.of(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.IGeospatialService#validateSchema(com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.GeospatialSchemaBean, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Tuple2<String, List<BasicMessageBean>> validateSchema(final GeospatialSchemaBean schema, final DataBucketBean bucket) {
+		final LinkedList<BasicMessageBean> errors = new LinkedList<BasicMessageBean>();
+		if ((null != schema.index_precision()) && ((schema.index_precision() < 1) || (schema.index_precision() > GeoHashUtils.MAX_PRECISION))) {
+			errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "index_precision", schema.index_precision()));
+		}
+		if ((null != schema.location_field()) && schema.location_field().trim().isEmpty()) {
+			errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "location_field", schema.location_field()));
+		}
+		return Tuples._2T("", errors); // (in memory, so no storage signature)
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		return getGeospatialIndex(clazz, bucket, secondary_buffer).map(index -> (IDataWriteService<O>) index);
+	}
+
+	/** Returns the spatial index for the bucket/buffer (creating it if necessary), which supports spatial queries as well as writes
+	 * @param clazz - the class of the objects to store/return, or JsonNode.class
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, a secondary buffer to use instead of the primary
+	 * @return the index, or empty if the geospatial service is disabled for this bucket
+	 */
+	public <O> Optional<LocalGeospatialIndex<O>> getGeospatialIndex(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		final Optional<GeospatialSchemaBean> schema = Optional.ofNullable(bucket.data_schema()).map(DataSchemaBean::geospatial_schema);
+		if (!schema.map(s -> Optional.ofNullable(s.enabled()).orElse(true)).orElse(true)) {
+			return Optional.empty();
+		}
+		final LocalGeospatialIndex.IndexState state = _indexes.computeIfAbsent(getIndexKey(bucket, secondary_buffer), __ -> new LocalGeospatialIndex.IndexState(
+				schema.map(GeospatialSchemaBean::location_field).orElse(LocalGeospatialIndex.DEFAULT_LOCATION_FIELD),
+				schema.map(GeospatialSchemaBean::index_precision).orElse(DEFAULT_PRECISION)));
+		return Optional.of(new LocalGeospatialIndex<O>(state, clazz));
+	}
+
+	/** Bulk loads objects into the bucket's index
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer to load (eg to rebuild the index, then switch to it)
+	 * @param objects - the objects
+	 * @return a future containing the number of objects indexed (ie that had a valid location)
+	 */
+	public CompletableFuture<Long> bulkLoad(final DataBucketBean bucket, final Optional<String> secondary_buffer, final Stream<JsonNode> objects) {
+		return getGeospatialIndex(JsonNode.class, bucket, secondary_buffer)
+				.map(index -> CompletableFuture.completedFuture(index.bulkLoad(objects)))
+				.orElseGet(() -> CompletableFuture.completedFuture(0L));
+	}
+
+	/** Bulk loads the bucket's processed data from the storage service into its index
+	 * @param storage_service - the storage service (which must provide a FileContext driver)
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer to load
+	 * @return a future containing the number of objects indexed, or an error
+	 */
+	public CompletableFuture<Long> bulkLoadFromStorage(final IStorageService storage_service, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		try (Stream<JsonNode> objects = StorageStreamUtils.getObjectStream(storage_service, bucket, IStorageService.StorageStage.processed, Optional.empty(), Optional.empty())) {
+			return bulkLoad(bucket, secondary_buffer, objects);
+		}
+		catch (Exception e) {
+			final CompletableFuture<Long> error = new CompletableFuture<Long>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		return Optional.empty(); // (spatial queries only, use getGeospatialIndex)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		final String prefix = getIndexKey(bucket, Optional.of(""));
+		return _indexes.keySet().stream().filter(key -> key.startsWith(prefix) && (key.length() > prefix.length()))
+				.map(key -> key.substring(prefix.length()))
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.INVALID_CONFIG_ERROR, "secondary_buffer", "(none)"));
+		}
+		final LocalGeospatialIndex.IndexState secondary = _indexes.remove(getIndexKey(bucket, secondary_buffer));
+		if (null == secondary) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", "Secondary buffer {0} not found", secondary_buffer.get()));
+		}
+		_indexes.put(getIndexKey(bucket, Optional.empty()), secondary);
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to buffer {1}", bucket.full_name(), secondary_buffer.get()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		// (the index isn't time partitioned, so there is nothing to age out - reload it from storage instead)
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleAgeOutRequest", "No age out for {0}", bucket.full_name()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		if (secondary_buffer.isPresent()) {
+			_indexes.remove(getIndexKey(bucket, secondary_buffer));
+		}
+		else {
+			_indexes.remove(getIndexKey(bucket, Optional.empty()));
+			final String prefix = getIndexKey(bucket, Optional.of(""));
+			_indexes.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Deleted geospatial index for {0}", bucket.full_name()));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the key of the index for the given bucket/buffer
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer (if "" then returns the prefix of all the secondary buffers' keys)
+	 * @return the key
+	 */
+	protected static String getIndexKey(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		return bucket.full_name() + secondary_buffer.map(buffer -> ":secondary:" + buffer).orElse(":primary");
+	}
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.utils.StorageStreamUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IGraphService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.GraphSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Graph service backed by in-process adjacency indexed graphs (see LocalGraphStore), one per bucket (and secondary buffer)
+ *  The graphs are filled by writes (eg enrichment output that links entities), or bulk loaded from existing data (see bulkLoadFromStorage)
+ *  The schema's source_field/target_field (default "source"/"target") and optional label_field describe each object's edges, and its max_fan_out
+ *  (default 1000) bounds the number of edges followed out of any one vertex during traversals
+ *  Runs fully in-process, so graph enrichment modules can be tested and benchmarked offline
+ */
+public class LocalGraphService implements IGraphService, IDataServiceProvider.IGenericDataService {
+
+	/** The graphs, by bucket and buffer name (see getGraphKey) */
+	protected final Map<String, LocalGraphStore.GraphState> _graphs = new ConcurrentHashMap<>();
+
+	/** Guice constructor
+	 */
+	public LocalGraphService() {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
+	 */
+	@Override
+	public Collection<Object> getUnderlyingArtefacts() {
+		return Arrays.asList(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider#getDataService()
+	 */
+	@Override
+	public Optional<IGenericDataService> getDataService() {
+		return Optional.of(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.IGraphService#validateSchema(com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.GraphSchemaBean, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Tuple2<String, List<BasicMessageBean>> validateSchema(final GraphSchemaBean schema, final DataBucketBean bucket) {
+		final LinkedList<BasicMessageBean> errors = new LinkedList<BasicMessageBean>();
+		if ((null != schema.max_fan_out()) && (schema.max_fan_out() < 1)) {
+			errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "max_fan_out", schema.max_fan_out()));
+		}
+		Arrays.asList(Tuples._2T("source_field", schema.source_field()), Tuples._2T("target_field", schema.target_field()), Tuples._2T("label_field", schema.label_field())).stream()
+			.filter(t2 -> (null != t2._2()) && t2._2().trim().isEmpty())
+			.forEach(t2 -> errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, t2._1(), t2._2())));
+		if (getSourceField(schema).equals(getTargetField(schema))) {
+			errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "target_field", getTargetField(schema)));
+		}
+		return Tuples._2T("", errors); // (in memory, so no storage signature)
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		return getGraphStore(clazz, bucket, secondary_buffer).map(store -> (IDataWriteService<O>) store);
+	}
+
+	/** Returns the graph for the bucket/buffer (creating it if necessary), which supports traversals as well as writes
+	 * @param clazz - the class of the objects to store/return, or JsonNode.class
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, a secondary buffer to use instead of the primary
+	 * @return the graph, or empty if the graph service is disabled for this bucket
+	 */
+	public <O> Optional<LocalGraphStore<O>> getGraphStore(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		final Optional<GraphSchemaBean> schema = Optional.ofNullable(bucket.data_schema()).map(DataSchemaBean::graph_schema);
+		if (!schema.map(s -> Optional.ofNullable(s.enabled()).orElse(true)).orElse(true)) {
+			return Optional.empty();
+		}
+		final LocalGraphStore.GraphState state = _graphs.computeIfAbsent(getGraphKey(bucket, secondary_buffer), __ -> new LocalGraphStore.GraphState(
+				schema.map(LocalGraphService::getSourceField).orElse(LocalGraphStore.DEFAULT_SOURCE_FIELD),
+				schema.map(LocalGraphService::getTargetField).orElse(LocalGraphStore.DEFAULT_TARGET_FIELD),
+				schema.map(GraphSchemaBean::label_field),
+				schema.map(GraphSchemaBean::max_fan_out).orElse(LocalGraphStore.DEFAULT_MAX_FAN_OUT)));
+		return Optional.of(new LocalGraphStore<O>(state, clazz));
+	}
+
+	/** Bulk loads objects into the bucket's graph
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer to load (eg to rebuild the graph, then switch to it)
+	 * @param objects - the objects
+	 * @return a future containing the number of objects stored (ie that described at least one edge)
+	 */
+	public CompletableFuture<Long> bulkLoad(final DataBucketBean bucket, final Optional<String> secondary_buffer, final Stream<JsonNode> objects) {
+		return getGraphStore(JsonNode.class, bucket, secondary_buffer)
+				.map(store -> CompletableFuture.completedFuture(store.bulkLoad(objects)))
+				.orElseGet(() -> CompletableFuture.completedFuture(0L));
+	}
+
+	/** Bulk loads the bucket's processed data from the storage service into its graph
+	 * @param storage_service - the storage service (which must provide a FileContext driver)
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer to load
+	 * @return a future containing the number of objects stored, or an error
+	 */
+	public CompletableFuture<Long> bulkLoadFromStorage(final IStorageService storage_service, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		try (Stream<JsonNode> objects = StorageStreamUtils.getObjectStream(storage_service, bucket, IStorageService.StorageStage.processed, Optional.empty(), Optional.empty())) {
+			return bulkLoad(bucket, secondary_buffer, objects);
+		}
+		catch (Exception e) {
+			final CompletableFuture<Long> error = new CompletableFuture<Long>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		return Optional.empty(); // (traversals only, use getGraphStore)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		final String prefix = getGraphKey(bucket, Optional.of(""));
+		return _graphs.keySet().stream().filter(key -> key.startsWith(prefix) && (key.length() > prefix.length()))
+				.map(key -> key.substring(prefix.length()))
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.INVALID_CONFIG_ERROR, "secondary_buffer", "(none)"));
+		}
+		final LocalGraphStore.GraphState secondary = _graphs.remove(getGraphKey(bucket, secondary_buffer));
+		if (null == secondary) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", "Secondary buffer {0} not found", secondary_buffer.get()));
+		}
+		_graphs.put(getGraphKey(bucket, Optional.empty()), secondary);
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to buffer {1}", bucket.full_name(), secondary_buffer.get()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		// (the graph isn't time partitioned, so there is nothing to age out - reload it from storage instead)
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleAgeOutRequest", "No age out for {0}", bucket.full_name()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		if (secondary_buffer.isPresent()) {
+			_graphs.remove(getGraphKey(bucket, secondary_buffer));
+		}
+		else {
+			_graphs.remove(getGraphKey(bucket, Optional.empty()));
+			final String prefix = getGraphKey(bucket, Optional.of(""));
+			_graphs.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Deleted graph for {0}", bucket.full_name()));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the source field from the schema, or the default
+	 */
+	protected static String getSourceField(final GraphSchemaBean schema) {
+		return Optional.ofNullable(schema.source_field()).orElse(LocalGraphStore.DEFAULT_SOURCE_FIELD);
+	}
+
+	/** Returns the target field from the schema, or the default
+	 */
+	protected static String getTargetField(final GraphSchemaBean schema) {
+		return Optional.ofNullable(schema.target_field()).orElse(LocalGraphStore.DEFAULT_TARGET_FIELD);
+	}
+
+	/** Returns the key of the graph for the given bucket/buffer
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer (if "" then returns the prefix of all the secondary buffers' keys)
+	 * @return the key
+	 */
+	protected static String getGraphKey(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		return bucket.full_name() + secondary_buffer.map(buffer -> ":secondary:" + buffer).orElse(":primary");
+	}
+}
@@ -0,0 +1,479 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.utils.AdjacencyList;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** An in-memory graph built from a bucket's objects, each of which describes one or more edges (source field -> target field, with an optional label)
+ *  Vertices and labels are interned to ints, each vertex has compressed out and in adjacency lists (see AdjacencyList), and an edge index maps
+ *  each (source, target, label) to the objects that created it
+ *  Traversals (k-hop, neighbourhood) are breadth first and follow at most max_fan_out edges out of any one vertex, so hub vertices can't blow up a query
+ *
+ * @param <O> - the type of object being stored
+ */
+public class LocalGraphStore<O> implements IDataWriteService<O> {
+
+	public static final String DEFAULT_SOURCE_FIELD = "source";
+	public static final String DEFAULT_TARGET_FIELD = "target";
+	public static final int DEFAULT_MAX_FAN_OUT = 1000;
+
+	/** Which edges to follow from a vertex
+	 */
+	public enum Direction { out, in, both }
+
+	/** The state of a graph, shared between all the (differently typed) services pointing at it
+	 */
+	public static class GraphState {
+		protected final String _source_field;
+		protected final String _target_field;
+		protected final Optional<String> _label_field;
+		protected final int _max_fan_out;
+		protected final ReadWriteLock _lock = new ReentrantReadWriteLock();
+		protected final Map<String, Integer> _vertex_ids = new HashMap<String, Integer>();
+		protected final List<String> _vertices = new ArrayList<String>();
+		protected final Map<String, Integer> _label_ids = new HashMap<String, Integer>();
+		protected final List<String> _labels = new ArrayList<String>();
+		protected final List<AdjacencyList> _out = new ArrayList<AdjacencyList>();
+		protected final List<AdjacencyList> _in = new ArrayList<AdjacencyList>();
+		protected final Map<EdgeKey, List<JsonNode>> _edge_index = new HashMap<EdgeKey, List<JsonNode>>();
+		protected long _object_count = 0L;
+
+		/** User c'tor
+		 * @param source_field - the (dot notation) field containing the id (or ids) of each edge's source vertex
+		 * @param target_field - the (dot notation) field containing the id (or ids) of each edge's target vertex
+		 * @param label_field - optionally, the (dot notation) field containing each edge's label
+		 * @param max_fan_out - the max number of edges followed out of any one vertex in a traversal
+		 */
+		public GraphState(final String source_field, final String target_field, final Optional<String> label_field, final int max_fan_out) {
+			_source_field = source_field;
+			_target_field = target_field;
+			_label_field = label_field;
+			_max_fan_out = Math.max(1, max_fan_out);
+			_labels.add(""); // (label 0 is "unlabelled")
+			_label_ids.put("", 0);
+		}
+	}
+
+	/** Key of the edge index
+	 */
+	protected static class EdgeKey {
+		final int _source;
+		final int _target;
+		final int _label;
+		EdgeKey(final int source, final int target, final int label) {
+			_source = source; _target = target; _label = label;
+		}
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof EdgeKey)) return false;
+			final EdgeKey key = (EdgeKey) other;
+			return (_source == key._source) && (_target == key._target) && (_label == key._label);
+		}
+		@Override
+		public int hashCode() {
+			return 31*(31*_source + _target) + _label;
+		}
+	}
+
+	/** The result of a traversal
+	 */
+	public static class GraphResult<T> {
+		protected final Map<String, Integer> _vertices;
+		protected final List<T> _edges;
+		protected final boolean _truncated;
+		protected GraphResult(final Map<String, Integer> vertices, final List<T> edges, final boolean truncated) {
+			_vertices = Collections.unmodifiableMap(vertices);
+			_edges = Collections.unmodifiableList(edges);
+			_truncated = truncated;
+		}
+		/** The vertices reached, in the order they were reached, with the number of hops needed to reach them (0 for the start vertices)
+		 */
+		public Map<String, Integer> vertices() {
+			return _vertices;
+		}
+		/** The objects of the edges that were followed (neighbourhood queries only)
+		 */
+		public List<T> edges() {
+			return _edges;
+		}
+		/** True if at least one vertex had more matching edges than max_fan_out, ie the result may be incomplete
+		 */
+		public boolean truncated() {
+			return _truncated;
+		}
+	}
+
+	protected final GraphState _state;
+	protected final Class<O> _clazz;
+
+	/** User c'tor
+	 * @param state - the graph
+	 * @param clazz - the class of the objects being stored (JsonNode for schema-less)
+	 */
+	public LocalGraphStore(final GraphState state, final Class<O> clazz) {
+		_state = state;
+		_clazz = clazz;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA WRITE SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+		return storeObjects(Arrays.asList(new_object)).thenApply(t2 -> () -> null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+		final long stored = bulkLoad(new_objects.stream().map(o -> toJson(o)));
+		return CompletableFuture.completedFuture(Tuples._2T(() -> null, () -> stored));
+	}
+
+	/** Adds a stream of objects to the graph, extracting the edges outside the lock and then adding them all at once
+	 *  (only the adjacency lists of vertices touched by the batch are re-compressed, so large batches are much cheaper than many small ones)
+	 * @param objects - the objects to add
+	 * @return the number of objects stored (ie that had a source and a target)
+	 */
+	public long bulkLoad(final Stream<JsonNode> objects) {
+		final List<Tuple2<JsonNode, List<String[]>>> edges = objects
+				.map(object -> Tuples._2T(object, getEdges(object)))
+				.filter(t2 -> !t2._2().isEmpty())
+				.collect(Collectors.toList());
+
+		_state._lock.writeLock().lock();
+		try {
+			final Set<AdjacencyList> touched = new HashSet<AdjacencyList>();
+			for (Tuple2<JsonNode, List<String[]>> t2: edges) {
+				for (String[] edge: t2._2()) {
+					final int source = getVertexId(edge[0]), target = getVertexId(edge[1]);
+					final int label = _state._label_ids.computeIfAbsent(edge[2], l -> { _state._labels.add(l); return _state._labels.size() - 1; });
+					_state._out.get(source).add(target, label);
+					_state._in.get(target).add(source, label);
+					touched.add(_state._out.get(source));
+					touched.add(_state._in.get(target));
+					_state._edge_index.computeIfAbsent(new EdgeKey(source, target, label), __ -> new LinkedList<JsonNode>()).add(t2._1());
+				}
+			}
+			touched.forEach(AdjacencyList::compact);
+			_state._object_count += edges.size();
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+		return edges.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#countObjects()
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		_state._lock.readLock().lock();
+		try {
+			return CompletableFuture.completedFuture(_state._object_count);
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		_state._lock.writeLock().lock();
+		try {
+			_state._vertex_ids.clear();
+			_state._vertices.clear();
+			_state._out.clear();
+			_state._in.clear();
+			_state._edge_index.clear();
+			_state._object_count = 0L;
+			return CompletableFuture.completedFuture(true);
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getBatchWriteSubservice()
+	 */
+	@Override
+	public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+		return Optional.empty(); // (in memory, so writes are already cheap - use bulkLoad for large loads)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<O>> getCrudService() {
+		return Optional.empty(); // (use the traversal methods)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getRawService()
+	 */
+	@Override
+	public IDataWriteService<JsonNode> getRawService() {
+		return new LocalGraphStore<JsonNode>(_state, JsonNode.class);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// QUERIES
+
+	/** Returns the objects that created the edges from one vertex to another (with any label)
+	 * @param source - the source vertex
+	 * @param target - the target vertex
+	 * @return the objects (empty if there is no such edge)
+	 */
+	public List<O> getEdges(final String source, final String target) {
+		_state._lock.readLock().lock();
+		try {
+			final Integer source_id = _state._vertex_ids.get(source), target_id = _state._vertex_ids.get(target);
+			if ((null == source_id) || (null == target_id)) {
+				return Collections.emptyList();
+			}
+			final List<O> results = new LinkedList<O>();
+			_state._out.get(source_id).forEach(-1, (neighbour, label) -> {
+				if (neighbour == target_id) {
+					_state._edge_index.getOrDefault(new EdgeKey(source_id, target_id, label), Collections.emptyList()).forEach(json -> results.add(fromJson(json)));
+				}
+				return neighbour <= target_id; // (sorted by neighbour)
+			});
+			return results;
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the vertices directly connected to a vertex (at most max_fan_out of them)
+	 * @param vertex - the vertex
+	 * @param direction - whether to follow out edges, in edges, or both
+	 * @param labels - optionally, the labels of the edges to follow (all edges if empty)
+	 * @return the neighbouring vertices
+	 */
+	public List<String> getNeighbours(final String vertex, final Direction direction, final Optional<Collection<String>> labels) {
+		return traverse(Arrays.asList(vertex), 1, direction, labels).vertices().entrySet().stream()
+				.filter(kv -> kv.getValue() > 0)
+				.map(kv -> kv.getKey())
+				.collect(Collectors.toList());
+	}
+
+	/** Returns the vertices within k hops of a set of start vertices
+	 * @param start - the vertices to start from (unknown vertices are ignored)
+	 * @param hops - the max number of edges to follow from a start vertex
+	 * @param direction - whether to follow out edges, in edges, or both
+	 * @param labels - optionally, the labels of the edges to follow (all edges if empty)
+	 * @return the vertices reached (including the start vertices) with their hop counts - the edges are not returned
+	 */
+	public GraphResult<O> traverse(final Collection<String> start, final int hops, final Direction direction, final Optional<Collection<String>> labels) {
+		return runTraversal(start, hops, direction, labels, false);
+	}
+
+	/** Returns the neighbourhood of a vertex, ie the vertices within k hops and the edges followed to reach them
+	 * @param vertex - the vertex at the centre
+	 * @param hops - the max number of edges to follow from the centre
+	 * @param direction - whether to follow out edges, in edges, or both
+	 * @param labels - optionally, the labels of the edges to follow (all edges if empty)
+	 * @return the vertices and (the objects of) the edges
+	 */
+	public GraphResult<O> getNeighbourhood(final String vertex, final int hops, final Direction direction, final Optional<Collection<String>> labels) {
+		return runTraversal(Arrays.asList(vertex), hops, direction, labels, true);
+	}
+
+	/** Returns the number of vertices in the graph
+	 */
+	public int getVertexCount() {
+		_state._lock.readLock().lock();
+		try {
+			return _state._vertices.size();
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the number of bytes used by the compressed adjacency lists (for monitoring)
+	 */
+	public long getAdjacencyBytes() {
+		_state._lock.readLock().lock();
+		try {
+			return Stream.concat(_state._out.stream(), _state._in.stream()).mapToLong(AdjacencyList::getPackedBytes).sum();
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/** Breadth first traversal, following at most max_fan_out (matching) edges out of each vertex
+	 */
+	protected GraphResult<O> runTraversal(final Collection<String> start, final int hops, final Direction direction, final Optional<Collection<String>> labels, final boolean include_edges) {
+		_state._lock.readLock().lock();
+		try {
+			final Optional<Set<Integer>> label_ids = labels.map(ls -> ls.stream().map(l -> _state._label_ids.getOrDefault(l, -1)).collect(Collectors.toSet()));
+			final Map<String, Integer> vertices = new LinkedHashMap<String, Integer>();
+			final Map<Integer, Integer> hop_counts = new LinkedHashMap<Integer, Integer>();
+			final List<EdgeKey> followed = new LinkedList<EdgeKey>();
+			final boolean[] truncated = { false };
+
+			List<Integer> frontier = start.stream().map(v -> _state._vertex_ids.get(v)).filter(id -> null != id).distinct().collect(Collectors.toList());
+			frontier.forEach(id -> hop_counts.put(id, 0));
+			for (int hop = 1; (hop <= hops) && !frontier.isEmpty(); ++hop) {
+				final List<Integer> next = new LinkedList<Integer>();
+				for (int vertex: frontier) {
+					final int[] remaining = { _state._max_fan_out };
+					final int hop_count = hop;
+					final Function<Boolean, AdjacencyList.Visitor> visitor = is_out -> (neighbour, label) -> {
+						if (label_ids.map(ids -> !ids.contains(label)).orElse(false)) return true;
+						if (0 == remaining[0]) { // (fan out reached, ignore the rest of this vertex's edges)
+							truncated[0] = true;
+							return false;
+						}
+						--remaining[0];
+						if (include_edges) followed.add(is_out ? new EdgeKey(vertex, neighbour, label) : new EdgeKey(neighbour, vertex, label));
+						if (!hop_counts.containsKey(neighbour)) {
+							hop_counts.put(neighbour, hop_count);
+							next.add(neighbour);
+						}
+						return true;
+					};
+					if (Direction.in != direction) {
+						_state._out.get(vertex).forEach(-1, visitor.apply(true));
+					}
+					if (Direction.out != direction) {
+						_state._in.get(vertex).forEach(-1, visitor.apply(false));
+					}
+				}
+				frontier = next;
+			}
+			hop_counts.forEach((id, hop) -> vertices.put(_state._vertices.get(id), hop));
+			final List<O> edges = followed.stream()
+					.distinct()
+					.flatMap(key -> _state._edge_index.getOrDefault(key, Collections.emptyList()).stream())
+					.map(json -> fromJson(json))
+					.collect(Collectors.toList());
+			return new GraphResult<O>(vertices, edges, truncated[0]);
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the id of a vertex, adding it if necessary (call under the write lock)
+	 */
+	protected int getVertexId(final String vertex) {
+		return _state._vertex_ids.computeIfAbsent(vertex, v -> {
+			_state._vertices.add(v);
+			_state._out.add(new AdjacencyList());
+			_state._in.add(new AdjacencyList());
+			return _state._vertices.size() - 1;
+		});
+	}
+
+	/** Returns the edges described by an object, as { source, target, label } - one per source/target pair if either field is an array
+	 */
+	protected List<String[]> getEdges(final JsonNode object) {
+		final List<String> sources = getIds(getField(object, _state._source_field));
+		final List<String> targets = getIds(getField(object, _state._target_field));
+		final String label = _state._label_field.map(f -> getField(object, f)).filter(l -> (null != l) && !l.isNull()).map(l -> l.asText()).orElse("");
+		return sources.stream().flatMap(s -> targets.stream().map(t -> new String[] { s, t, label })).collect(Collectors.toList());
+	}
+
+	/** Returns the vertex ids from a field (a single value or an array of them)
+	 */
+	protected static List<String> getIds(final JsonNode field) {
+		if ((null == field) || field.isNull()) {
+			return Collections.emptyList();
+		}
+		final Stream<JsonNode> values = field.isArray() ? StreamSupport.stream(field.spliterator(), false) : Stream.of(field);
+		return values.filter(v -> v.isValueNode() && !v.isNull()).map(v -> v.asText()).filter(v -> !v.isEmpty()).collect(Collectors.toList());
+	}
+
+	/** Returns a (dot notation) field of an object
+	 */
+	protected static JsonNode getField(final JsonNode object, final String field) {
+		JsonNode node = object;
+		for (String name: field.split("\\.")) {
+			node = (null == node) ? null : node.get(name);
+		}
+		return node;
+	}
+
+	/** Converts an object to JSON (if it isn't already)
+	 */
+	protected static JsonNode toJson(final Object object) {
+		return (object instanceof JsonNode) ? (JsonNode) object : BeanTemplateUtils.toJson(object);
+	}
+
+	/** Converts JSON to the object type of this service
+	 */
+	@SuppressWarnings("unchecked")
+	protected O fromJson(final JsonNode json) {
+		return JsonNode.class.isAssignableFrom(_clazz) ? (O) json : BeanTemplateUtils.from(json, _clazz).get();
+	}
+}
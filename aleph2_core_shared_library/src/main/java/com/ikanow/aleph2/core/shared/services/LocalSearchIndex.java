@@ -0,0 +1,609 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.SearchIndexSegment;
+import com.ikanow.aleph2.core.shared.utils.SearchQueryParser;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+import fj.data.Validation;
+
+/** An embedded, file backed full text index over a single directory (see LocalSearchIndexService for the layout)
+ *  Documents are appended to the newest segment file until it reaches the target index size, at which point it is sealed (its postings
+ *  are moved to disk, see SearchIndexSegment) and a new segment is started - so only the newest segment's postings are held in memory
+ *  The batch sub-service buffers documents according to the write settings and commits them a batch at a time - searches only see committed documents
+ *  (close the service to commit anything left over and stop the batch buffer's flush timer)
+ *  Searches use (a subset of) the Lucene query syntax, see SearchQueryParser
+ *
+ * @param <O> - the type of object being indexed
+ */
+public class LocalSearchIndex<O> implements IDataWriteService<O>, IBasicSearchService<O>, AutoCloseable {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String SEGMENT_PREFIX = "segment_";
+	public static final String SEGMENT_SUFFIX = ".json";
+	public static final int DEFAULT_LIMIT = 100;
+	public static final long DEFAULT_MAX_SEGMENT_SIZE_MB = 100L;
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	/** The state of an index directory, shared between all the (differently typed) services pointing at it
+	 */
+	public static class IndexState {
+		protected final File _index_dir;
+		protected final long _max_segment_bytes;
+		protected final ReadWriteLock _lock = new ReentrantReadWriteLock();
+		protected final List<SearchIndexSegment> _segments = new ArrayList<SearchIndexSegment>();
+
+		/** User c'tor - opens any existing segments (only the newest, which is still being written, is re-indexed)
+		 * @param index_dir - the directory containing the segment files
+		 * @param max_segment_size_mb - the size at which to start a new segment
+		 */
+		public IndexState(final File index_dir, final long max_segment_size_mb) {
+			_index_dir = index_dir;
+			_max_segment_bytes = Math.max(1L, max_segment_size_mb)*1024L*1024L;
+			Arrays.stream(Optional.ofNullable(index_dir.listFiles((__, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))).orElse(new File[0]))
+				.sorted(Comparator.comparing(f -> getSegmentNumber(f)))
+				.forEach(f -> _segments.add(SearchIndexSegment.open(f)));
+			_segments.stream().limit(Math.max(0, _segments.size() - 1)).forEach(segment -> segment.seal()); // (eg if the process stopped before sealing a full segment)
+		}
+
+		/** Closes the segment files (the state can't be used afterwards)
+		 */
+		public void close() {
+			_lock.writeLock().lock();
+			try {
+				_segments.forEach(segment -> segment.close());
+				_segments.clear();
+			}
+			finally {
+				_lock.writeLock().unlock();
+			}
+		}
+	}
+
+	protected final IndexState _state;
+	protected final Class<O> _clazz;
+	protected final BatchSubservice _batch_service;
+
+	/** User c'tor
+	 * @param state - the index
+	 * @param clazz - the class of the objects being indexed (JsonNode for schema-less)
+	 * @param write_settings - the default batch settings (from the search index schema)
+	 */
+	public LocalSearchIndex(final IndexState state, final Class<O> clazz, final Optional<DataSchemaBean.WriteSettings> write_settings) {
+		_state = state;
+		_clazz = clazz;
+		_batch_service = new BatchSubservice(write_settings);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA WRITE SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+		return storeObjects(Arrays.asList(new_object)).thenApply(t2 -> () -> null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+		try {
+			commit(new_objects.stream().map(o -> toJson(o)).collect(Collectors.toList()));
+			return CompletableFuture.completedFuture(Tuples._2T(() -> null, () -> (long)new_objects.size()));
+		}
+		catch (Exception e) {
+			final CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> error = new CompletableFuture<>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#countObjects()
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		_state._lock.readLock().lock();
+		try {
+			return CompletableFuture.completedFuture(_state._segments.stream().mapToLong(s -> s.size()).sum());
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		_state._lock.writeLock().lock();
+		try {
+			_state._segments.forEach(segment -> segment.close());
+			_state._segments.clear();
+			return CompletableFuture.completedFuture(FileUtils.deleteQuietly(_state._index_dir));
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getBatchWriteSubservice()
+	 */
+	@Override
+	public Optional<IBatchSubservice<O>> getBatchWriteSubservice() {
+		return Optional.of(_batch_service);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<O>> getCrudService() {
+		return Optional.empty(); // (search only, use getSearchService)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getRawService()
+	 */
+	@Override
+	public IDataWriteService<JsonNode> getRawService() {
+		return new LocalSearchIndex<JsonNode>(_state, JsonNode.class, Optional.empty());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// SEARCH SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService#count(java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<Long> count(final Optional<String> query_string, final Optional<String> filter_string) {
+		return runQuery(query_string, filter_string, false, matches -> matches._hits.stream().mapToLong(bits -> bits.cardinality()).sum());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService#search(java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Iterable<O>, Optional<Map<String, Collection<Tuple2<String, Long>>>>>> search(
+			final Optional<String> query_string, final Optional<String> filter_string, final Optional<Integer> limit,
+			final Optional<Tuple2<String, Integer>> orderBy, final Optional<Integer> skip, final Optional<Collection<String>> return_fields,
+			final Optional<Map<String, Long>> facet_fields)
+	{
+		return runQuery(query_string, filter_string, !orderBy.isPresent(), matches -> {
+			final Optional<Map<String, Collection<Tuple2<String, Long>>>> facets = facet_fields.map(fields -> getFacets(matches, fields));
+
+			Comparator<Hit> comparator = orderBy
+					.<Comparator<Hit>>map(t2 -> {
+						final Comparator<Hit> by_field = Comparator.comparing((Hit hit) -> getField(hit.getDoc(), t2._1()), LocalSearchIndex::compareValues);
+						return (t2._2() > 0) ? by_field.reversed() : by_field;
+					})
+					.orElse(Comparator.comparing((Hit hit) -> hit._score).reversed());
+			comparator = comparator.thenComparing(hit -> hit._order); // (stable, in insertion order)
+
+			final List<O> results = getHits(matches).stream()
+					.sorted(comparator)
+					.skip(skip.orElse(0))
+					.limit(limit.orElse(DEFAULT_LIMIT))
+					.map(hit -> fromJson(return_fields.map(fields -> project(hit.getDoc(), fields)).orElse(hit.getDoc())))
+					.collect(Collectors.toList());
+			return Tuples._2T(results, facets);
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService#search(java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<Iterable<O>> search(final Optional<String> query_string, final Optional<String> filter_string, final Optional<Integer> limit,
+			final Optional<Tuple2<String, Integer>> orderBy, final Optional<Integer> skip, final Optional<Collection<String>> return_fields)
+	{
+		return search(query_string, filter_string, limit, orderBy, skip, return_fields, Optional.empty()).thenApply(t2 -> t2._1());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService#search(java.util.Optional, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<Iterable<O>> search(final Optional<String> query_string, final Optional<String> filter_string, final Optional<Integer> limit) {
+		return search(query_string, filter_string, limit, Optional.empty(), Optional.empty(), Optional.empty());
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// BATCH SUB SERVICE
+
+	/** Buffers objects and commits them to the index when the batch is full (by count or size) or the flush interval has expired
+	 */
+	public class BatchSubservice implements IBatchSubservice<O> {
+		protected BatchedOutputBuffer<String, JsonNode> _batch_buffer = null; // (created on first use, so unused services don't have a flush timer)
+		protected int _max_objects;
+		protected Duration _flush_interval;
+		protected long _max_batch_bytes;
+		protected long _batch_bytes = 0L;
+
+		protected BatchSubservice(final Optional<DataSchemaBean.WriteSettings> write_settings) {
+			setBatchProperties(
+					write_settings.map(w -> w.batch_max_objects()),
+					write_settings.map(w -> w.batch_max_size_kb()),
+					write_settings.map(w -> w.batch_flush_interval()).map(secs -> Duration.ofSeconds(secs)),
+					Optional.empty());
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#setBatchProperties(java.util.Optional, java.util.Optional, java.util.Optional, java.util.Optional)
+		 */
+		@Override
+		public synchronized void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
+			close();
+			_max_objects = max_objects.orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS);
+			_flush_interval = flush_interval.orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY);
+			_max_batch_bytes = size_kb.map(kb -> kb*1024L).orElse(Long.MAX_VALUE);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List)
+		 */
+		@Override
+		public void storeObjects(final List<O> new_objects) {
+			new_objects.forEach(o -> storeObject(o));
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObject(java.lang.Object)
+		 */
+		@Override
+		public synchronized void storeObject(final O new_object) {
+			final JsonNode json = toJson(new_object);
+			final BatchedOutputBuffer<String, JsonNode> batch_buffer = getBatchBuffer();
+			batch_buffer.add("", json);
+			final long buffered = batch_buffer.getBufferedCount();
+			if (0 == buffered) { // (the buffer flushed itself)
+				_batch_bytes = 0L;
+			}
+			else {
+				// (if this is the only buffered object then anything before it was flushed by the buffer's timer)
+				_batch_bytes = ((1 == buffered) ? 0L : _batch_bytes) + json.toString().length();
+				if (_batch_bytes >= _max_batch_bytes) {
+					flush();
+				}
+			}
+		}
+
+		/** Returns the current batch buffer, creating it (and so starting its flush timer) on first use
+		 */
+		protected synchronized BatchedOutputBuffer<String, JsonNode> getBatchBuffer() {
+			if (null == _batch_buffer) {
+				_batch_buffer = new BatchedOutputBuffer<String, JsonNode>(_max_objects, _flush_interval, (__, objects) -> commit(objects));
+			}
+			return _batch_buffer;
+		}
+
+		/** Commits any objects buffered by the batch sub-service (from any thread)
+		 */
+		public synchronized void flush() {
+			if (null != _batch_buffer) {
+				_batch_buffer.flushAll();
+			}
+			_batch_bytes = 0L;
+		}
+
+		/** Commits any buffered objects and stops the flush timer (the buffer is re-created if more objects are written)
+		 */
+		public synchronized void close() {
+			if (null != _batch_buffer) {
+				_batch_buffer.close();
+				_batch_buffer = null;
+			}
+			_batch_bytes = 0L;
+		}
+	}
+
+	/** Commits any objects buffered by the batch sub-service (from any thread)
+	 */
+	public void flush() {
+		_batch_service.flush();
+	}
+
+	/** Commits any objects buffered by the batch sub-service, and stops its flush timer
+	 */
+	@Override
+	public void close() {
+		_batch_service.close();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** The number of segments in the index
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		_state._lock.readLock().lock();
+		try {
+			return _state._segments.size();
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+	}
+
+	/** Adds documents to the index, starting a new segment whenever the current one reaches the max segment size
+	 * @param docs - the documents to add
+	 */
+	protected void commit(final List<JsonNode> docs) {
+		if (docs.isEmpty()) {
+			return;
+		}
+		_state._lock.writeLock().lock();
+		try {
+			final LinkedList<JsonNode> batch = new LinkedList<JsonNode>();
+			long batch_bytes = 0L;
+			SearchIndexSegment segment = getWritableSegment();
+			for (JsonNode doc: docs) {
+				final long doc_bytes = doc.toString().length() + 1;
+				if (!batch.isEmpty() && (segment.sizeBytes() + batch_bytes + doc_bytes > _state._max_segment_bytes)) {
+					segment.add(batch);
+					batch.clear();
+					batch_bytes = 0L;
+					segment = getWritableSegment();
+				}
+				batch.add(doc);
+				batch_bytes += doc_bytes;
+			}
+			segment.add(batch);
+		}
+		finally {
+			_state._lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns the newest segment, or (after sealing it) a new one if it is full (call with the write lock held)
+	 */
+	protected SearchIndexSegment getWritableSegment() {
+		if (_state._segments.isEmpty() || (_state._segments.get(_state._segments.size() - 1).sizeBytes() >= _state._max_segment_bytes)) {
+			if (!_state._segments.isEmpty()) {
+				_state._segments.get(_state._segments.size() - 1).seal();
+			}
+			_state._segments.add(new SearchIndexSegment(Optional.of(new File(_state._index_dir, SEGMENT_PREFIX + _state._segments.size() + SEGMENT_SUFFIX))));
+		}
+		return _state._segments.get(_state._segments.size() - 1);
+	}
+
+	/** Parses the query and filter, and runs them against each segment under the read lock
+	 * @param query_string - the query (all documents if empty)
+	 * @param filter_string - the filter (doesn't affect scores)
+	 * @param score - whether to calculate scores
+	 * @param handler - converts the matches into the result
+	 * @return a future containing the result, or a parse error
+	 */
+	protected <T> CompletableFuture<T> runQuery(final Optional<String> query_string, final Optional<String> filter_string, final boolean score,
+			final Function<Matches, T> handler)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final Validation<String, SearchQueryParser.Query> query = query_string.filter(q -> !q.trim().isEmpty()).map(q -> SearchQueryParser.parse(q))
+				.orElse(Validation.success(new SearchQueryParser.MatchAllQuery()));
+		final Optional<Validation<String, SearchQueryParser.Query>> filter = filter_string.filter(f -> !f.trim().isEmpty()).map(f -> SearchQueryParser.parse(f));
+		if (query.isFail() || filter.map(f -> f.isFail()).orElse(false)) {
+			future.completeExceptionally(new RuntimeException(query.isFail() ? query.fail() : filter.get().fail()));
+			return future;
+		}
+		_state._lock.readLock().lock();
+		try {
+			final List<SearchIndexSegment> segments = new ArrayList<SearchIndexSegment>(_state._segments);
+			final List<BitSet> hits = segments.stream().map(segment -> {
+				final BitSet bits = query.success().matches(segment);
+				filter.ifPresent(f -> bits.and(f.success().matches(segment)));
+				return bits;
+			})
+			.collect(Collectors.toList());
+			final Optional<List<double[]>> scores = Optional.of(score).filter(b -> b).map(__ -> IntStream.range(0, segments.size()).mapToObj(i -> {
+				final double[] segment_scores = new double[segments.get(i).size()];
+				query.success().score(segments.get(i), hits.get(i), segment_scores);
+				return segment_scores;
+			})
+			.collect(Collectors.toList()));
+			future.complete(handler.apply(new Matches(segments, hits, scores)));
+		}
+		catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		finally {
+			_state._lock.readLock().unlock();
+		}
+		return future;
+	}
+
+	/** The matching documents of each segment, and optionally their scores */
+	protected static class Matches {
+		final List<SearchIndexSegment> _segments;
+		final List<BitSet> _hits;
+		final Optional<List<double[]>> _scores;
+		Matches(final List<SearchIndexSegment> segments, final List<BitSet> hits, final Optional<List<double[]>> scores) {
+			_segments = segments;
+			_hits = hits;
+			_scores = scores;
+		}
+	}
+
+	/** A matching document (read from its segment when first needed, so eg only the top N of a scored search are read) */
+	protected static class Hit {
+		final SearchIndexSegment _segment;
+		final int _doc_num;
+		final double _score;
+		final long _order;
+		JsonNode _doc = null;
+		Hit(final SearchIndexSegment segment, final int doc_num, final double score, final long order) {
+			_segment = segment;
+			_doc_num = doc_num;
+			_score = score;
+			_order = order;
+		}
+		JsonNode getDoc() {
+			if (null == _doc) {
+				_doc = _segment.get(_doc_num);
+			}
+			return _doc;
+		}
+	}
+
+	/** Converts the matches of each segment into hits
+	 */
+	protected static List<Hit> getHits(final Matches matches) {
+		final List<Hit> results = new ArrayList<Hit>();
+		long offset = 0L;
+		for (int i = 0; i < matches._segments.size(); ++i) {
+			final int segment_index = i;
+			final SearchIndexSegment segment = matches._segments.get(i);
+			final Optional<double[]> segment_scores = matches._scores.map(scores -> scores.get(segment_index));
+			final long segment_offset = offset;
+			matches._hits.get(i).stream().forEach(doc -> results.add(new Hit(segment, doc, segment_scores.map(scores -> scores[doc]).orElse(0.0), segment_offset + doc)));
+			offset += segment.size();
+		}
+		return results;
+	}
+
+	/** Counts the values of each facet field over the matching documents, returning the top N for each
+	 */
+	protected static Map<String, Collection<Tuple2<String, Long>>> getFacets(final Matches matches, final Map<String, Long> fields) {
+		final Map<String, Collection<Tuple2<String, Long>>> facets = new LinkedHashMap<>();
+		fields.forEach((field, max_terms) -> {
+			final Map<String, Long> counts = new HashMap<String, Long>();
+			for (int i = 0; i < matches._segments.size(); ++i) {
+				matches._segments.get(i).facet(field, matches._hits.get(i)).forEach((value, count) -> counts.merge(value, count, Long::sum));
+			}
+			facets.put(field, counts.entrySet().stream()
+					.sorted(Comparator.comparing((Map.Entry<String, Long> kv) -> kv.getValue()).reversed().thenComparing(kv -> kv.getKey()))
+					.limit(max_terms)
+					.map(kv -> Tuples._2T(kv.getKey(), kv.getValue()))
+					.collect(Collectors.toList()));
+		});
+		return facets;
+	}
+
+	/** Returns a (dot notation) field of a document
+	 */
+	protected static JsonNode getField(final JsonNode doc, final String field) {
+		JsonNode node = doc;
+		for (String name: field.split("\\.")) {
+			node = (null == node) ? null : node.get(name);
+		}
+		return node;
+	}
+
+	/** Orders values: missing values last, then numerically if both are numbers, else as strings
+	 */
+	protected static int compareValues(final JsonNode a, final JsonNode b) {
+		if ((null == a) || (null == b)) {
+			return (null == a) ? ((null == b) ? 0 : 1) : -1;
+		}
+		return (a.isNumber() && b.isNumber()) ? Double.compare(a.asDouble(), b.asDouble()) : a.asText().compareTo(b.asText());
+	}
+
+	/** Returns a copy of a document with only the given (dot notation) fields
+	 */
+	protected static JsonNode project(final JsonNode doc, final Collection<String> fields) {
+		final ObjectNode projected = _mapper.createObjectNode();
+		fields.forEach(field -> Optional.ofNullable(getField(doc, field)).ifPresent(value -> {
+			final String[] path = field.split("\\.");
+			ObjectNode parent = projected;
+			for (int i = 0; i < path.length - 1; ++i) {
+				parent = parent.has(path[i]) && parent.get(path[i]).isObject() ? (ObjectNode) parent.get(path[i]) : parent.putObject(path[i]);
+			}
+			parent.set(path[path.length - 1], value);
+		}));
+		return projected;
+	}
+
+	/** Returns the number from a segment file name
+	 */
+	protected static int getSegmentNumber(final File segment) {
+		try {
+			return Integer.parseInt(segment.getName().substring(SEGMENT_PREFIX.length(), segment.getName().length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/** Converts an object to JSON (if it isn't already)
+	 */
+	protected static JsonNode toJson(final Object object) {
+		return (object instanceof JsonNode) ? (JsonNode) object : BeanTemplateUtils.toJson(object);
+	}
+
+	/** Converts JSON to the object type of this service
+	 */
+	@SuppressWarnings("unchecked")
+	protected O fromJson(final JsonNode json) {
+		return JsonNode.class.isAssignableFrom(_clazz) ? (O) json : BeanTemplateUtils.from(json, _clazz).get();
+	}
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import scala.Tuple2;
+
+import com.google.inject.Inject;
+import com.ikanow.aleph2.data_model.interfaces.data_services.ISearchIndexService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.SearchIndexSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Search index service backed by an embedded full text index on the local file system (see LocalSearchIndex)
+ *  ie <root>/search_index/<bucket full name>/index/<segment files>, with secondary buffers under .../index_secondary/<buffer name>/
+ *  Indexes roll over to a new segment at the schema's target_index_size_mb, and batch writes use its target_write_settings
+ *  Intended for local runs and tests (and as a performance baseline) - no search cluster required
+ */
+public class LocalSearchIndexService implements ISearchIndexService, IDataServiceProvider.IGenericDataService {
+
+	public static final String INDEX_SUFFIX = "/index/";
+	public static final String SECONDARY_BUFFER_SUFFIX = "/index_secondary/";
+
+	final protected GlobalPropertiesBean _globals;
+
+	/** The open indexes, by directory (so that all the services for a bucket share the same in-memory state) */
+	protected final Map<String, LocalSearchIndex.IndexState> _indexes = new ConcurrentHashMap<>();
+
+	/** The services for each index directory and class, together with the write settings they were created with
+	 *  (shared so that all users of an index write through the same batch buffer)
+	 */
+	protected final ConcurrentHashMap<String, Tuple2<String, LocalSearchIndex<?>>> _services = new ConcurrentHashMap<>();
+
+	/** Guice constructor
+	 * @param globals - the global properties, which provide the root directory
+	 */
+	@Inject
+	public LocalSearchIndexService(final GlobalPropertiesBean globals) {
+		_globals = globals;
+	}
+
+	/** The directory under which all the indexes are stored
+	 * @return the root directory
+	 */
+	public String getRootPath() {
+		return _globals.distributed_root_dir() + "/search_index/";
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingArtefacts()
+	 */
+	@Override
+	public Collection<Object> getUnderlyingArtefacts() {
+		return Arrays.asList(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider#getDataService()
+	 */
+	@Override
+	public Optional<IGenericDataService> getDataService() {
+		return Optional.of(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_services.ISearchIndexService#validateSchema(com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.SearchIndexSchemaBean, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Tuple2<String, List<BasicMessageBean>> validateSchema(final SearchIndexSchemaBean schema, final DataBucketBean bucket) {
+		final LinkedList<BasicMessageBean> errors = new LinkedList<BasicMessageBean>();
+		if ((null != schema.target_index_size_mb()) && (schema.target_index_size_mb() <= 0)) {
+			errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "target_index_size_mb", schema.target_index_size_mb()));
+		}
+		Optional.ofNullable(schema.target_write_settings()).ifPresent(settings -> {
+			if ((null != settings.batch_max_objects()) && (settings.batch_max_objects() <= 0)) {
+				errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "target_write_settings.batch_max_objects", settings.batch_max_objects()));
+			}
+			if ((null != settings.batch_max_size_kb()) && (settings.batch_max_size_kb() <= 0)) {
+				errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "target_write_settings.batch_max_size_kb", settings.batch_max_size_kb()));
+			}
+			if ((null != settings.batch_flush_interval()) && (settings.batch_flush_interval() <= 0)) {
+				errors.add(ErrorUtils.buildErrorMessage(this, "validateSchema", ErrorUtils.INVALID_CONFIG_ERROR, "target_write_settings.batch_flush_interval", settings.batch_flush_interval()));
+			}
+		});
+		return Tuples._2T(getIndexDirectory(bucket, Optional.empty()), errors);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// DATA SERVICE
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getWritableDataService(java.lang.Class, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<IDataWriteService<O>> getWritableDataService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> options, final Optional<String> secondary_buffer) {
+		return getIndex(clazz, bucket, secondary_buffer).map(index -> (IDataWriteService<O>) index);
+	}
+
+	/** Returns a search service for the bucket's index
+	 * @param clazz - the class of the objects to return, or JsonNode.class
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, a secondary buffer to search instead of the primary
+	 * @return the search service, or empty if the search index is disabled for this bucket
+	 */
+	public <O> Optional<IBasicSearchService<O>> getSearchService(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		return getIndex(clazz, bucket, secondary_buffer).map(index -> (IBasicSearchService<O>) index);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getReadableCrudService(java.lang.Class, java.util.Collection, java.util.Optional)
+	 */
+	@Override
+	public <O> Optional<ICrudService<O>> getReadableCrudService(final Class<O> clazz, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		return Optional.empty(); // (search only, use getSearchService)
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public Collection<String> getSecondaryBufferList(final DataBucketBean bucket) {
+		return Arrays.asList(Optional.ofNullable(new File(getIndexDirectory(bucket, Optional.of(""))).list()).orElse(new String[0]));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#switchCrudServiceToPrimaryBuffer(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		if (!secondary_buffer.isPresent()) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.INVALID_CONFIG_ERROR, "secondary_buffer", "(none)"));
+		}
+		final String primary_path = getIndexDirectory(bucket, Optional.empty());
+		final String secondary_path = getIndexDirectory(bucket, secondary_buffer);
+		try {
+			final File secondary = new File(secondary_path);
+			if (!secondary.isDirectory()) {
+				return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", "Secondary buffer {0} not found", secondary_buffer.get()));
+			}
+			// (commit anything still buffered for either directory, and release their segment files, before they're moved)
+			closeIndexes(secondary_path);
+			closeIndexes(primary_path);
+			final File primary = new File(primary_path);
+			final File old_primary = new File(primary.getParentFile(), "." + primary.getName() + "_old_" + System.currentTimeMillis());
+			if (primary.exists()) {
+				Files.move(primary.toPath(), old_primary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			Files.move(secondary.toPath(), primary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			FileUtils.deleteQuietly(old_primary);
+			return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "switchCrudServiceToPrimaryBuffer", "Switched {0} to buffer {1}", bucket.full_name(), secondary_buffer.get()));
+		}
+		catch (IOException e) {
+			return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage(this, "switchCrudServiceToPrimaryBuffer", ErrorUtils.getLongForm("{0}", e)));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleAgeOutRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
+		// (indexes roll over by size not time, so there is nothing to age out - the storage service handles it)
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleAgeOutRequest", "No age out for {0}", bucket.full_name()));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
+	 */
+	@Override
+	public CompletableFuture<BasicMessageBean> handleBucketDeletionRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean bucket_getting_deleted) {
+		final List<String> paths = secondary_buffer.isPresent()
+				? Arrays.asList(getIndexDirectory(bucket, secondary_buffer))
+				: Arrays.asList(getIndexDirectory(bucket, Optional.empty()), getIndexDirectory(bucket, Optional.of("")));
+		paths.forEach(path -> {
+			closeIndexes(path);
+			FileUtils.deleteQuietly(new File(path));
+		});
+		return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage(this, "handleBucketDeletionRequest", "Deleted search index for {0}", bucket.full_name()));
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the directory in which the index for the given bucket/buffer is stored
+	 * @param bucket - the bucket
+	 * @param secondary_buffer - optionally, the secondary buffer (if "" then returns the directory containing all secondary buffers)
+	 * @return the directory, ending in /
+	 */
+	public String getIndexDirectory(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		return (getRootPath() + bucket.full_name()
+				+ secondary_buffer.map(buffer -> SECONDARY_BUFFER_SUFFIX + buffer + (buffer.isEmpty() ? "" : "/")).orElse(INDEX_SUFFIX))
+				.replaceAll("//+", "/");
+	}
+
+	/** Returns the (shared) index for the bucket/buffer, opening it if necessary
+	 */
+	@SuppressWarnings("unchecked")
+	protected <O> Optional<LocalSearchIndex<O>> getIndex(final Class<O> clazz, final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+		final Optional<SearchIndexSchemaBean> schema = Optional.ofNullable(bucket.data_schema()).map(DataSchemaBean::search_index_schema);
+		if (!schema.map(s -> Optional.ofNullable(s.enabled()).orElse(true)).orElse(true)) {
+			return Optional.empty();
+		}
+		final String path = getIndexDirectory(bucket, secondary_buffer);
+		final LocalSearchIndex.IndexState state = _indexes.computeIfAbsent(path, p -> new LocalSearchIndex.IndexState(new File(p),
+				schema.map(SearchIndexSchemaBean::target_index_size_mb).orElse(LocalSearchIndex.DEFAULT_MAX_SEGMENT_SIZE_MB)));
+		final Optional<DataSchemaBean.WriteSettings> write_settings = schema.map(SearchIndexSchemaBean::target_write_settings);
+		final String settings = write_settings.map(w -> BeanTemplateUtils.toJson(w).toString()).orElse("");
+
+		// Re-use the existing service unless the bucket's settings have changed (in which case the old one is flushed and closed)
+		final Tuple2<String, LocalSearchIndex<?>> settings_service = _services.compute(path + ":" + clazz.getName(), (key, existing) -> {
+			if ((null != existing) && existing._1().equals(settings) && (existing._2()._state == state)) {
+				return existing;
+			}
+			Optional.ofNullable(existing).ifPresent(t2 -> t2._2().close());
+			return Tuples._2T(settings, new LocalSearchIndex<O>(state, clazz, write_settings));
+		});
+		return Optional.of((LocalSearchIndex<O>) settings_service._2());
+	}
+
+	/** Closes the services and indexes in (or under) a directory, committing anything they have buffered
+	 * @param dir - the directory, ending in /
+	 */
+	protected void closeIndexes(final String dir) {
+		_services.entrySet().removeIf(kv -> {
+			if (kv.getKey().startsWith(dir)) {
+				kv.getValue()._2().close();
+				return true;
+			}
+			return false;
+		});
+		_indexes.entrySet().removeIf(kv -> {
+			if (kv.getKey().startsWith(dir)) {
+				kv.getValue().close();
+				return true;
+			}
+			return false;
+		});
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** A compressed list of the (neighbour, label) pairs of one vertex of a graph
+ *  The pairs are kept sorted by neighbour id then label id and de-duplicated, and stored as varint encoded deltas between neighbour ids
+ *  (followed by the varint label id), so a typical entry takes 2-3 bytes rather than the 8 of an int pair (or ~40 of a boxed object)
+ *  New pairs are buffered uncompressed until compact() is called - NOT thread safe, the caller must lock around it
+ */
+public class AdjacencyList {
+
+	/** Called for each pair in the list
+	 */
+	@FunctionalInterface
+	public interface Visitor {
+		/** @return true to continue, false to stop */
+		boolean visit(final int neighbour, final int label);
+	}
+
+	protected static final byte[] EMPTY = new byte[0];
+
+	protected byte[] _packed = EMPTY;
+	protected int _size = 0;
+	protected long[] _pending = null;
+	protected int _pending_size = 0;
+
+	/** Adds a (neighbour, label) pair, which won't be visible until compact() is called
+	 * @param neighbour - the (non-negative) id of the neighbouring vertex
+	 * @param label - the (non-negative) id of the edge's label
+	 */
+	public void add(final int neighbour, final int label) {
+		if (null == _pending) {
+			_pending = new long[4];
+		}
+		else if (_pending_size == _pending.length) {
+			_pending = Arrays.copyOf(_pending, 2*_pending.length);
+		}
+		_pending[_pending_size++] = toPair(neighbour, label);
+	}
+
+	/** Merges any added pairs into the compressed list
+	 * @return true if the list changed
+	 */
+	public boolean compact() {
+		if (0 == _pending_size) {
+			return false;
+		}
+		final long[] pairs = Arrays.copyOf(_pending, _size + _pending_size);
+		final int[] index = { _pending_size };
+		forEach(-1, (neighbour, label) -> { pairs[index[0]++] = toPair(neighbour, label); return true; });
+		Arrays.sort(pairs);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16, _packed.length + 3*_pending_size));
+		int size = 0;
+		int last_neighbour = 0;
+		for (int i = 0; i < pairs.length; ++i) {
+			if ((i > 0) && (pairs[i] == pairs[i - 1])) continue; // (de-duplicate)
+			final int neighbour = (int)(pairs[i] >>> 32), label = (int)pairs[i];
+			writeVarInt(out, neighbour - last_neighbour);
+			writeVarInt(out, label);
+			last_neighbour = neighbour;
+			++size;
+		}
+		final boolean changed = (size != _size);
+		_packed = out.toByteArray();
+		_size = size;
+		_pending = null;
+		_pending_size = 0;
+		return changed;
+	}
+
+	/** Visits the (compacted) pairs in order of neighbour id
+	 * @param max - the max number of pairs to visit, or -1 for all
+	 * @param visitor - called for each pair, return false to stop
+	 * @return the number of pairs visited
+	 */
+	public int forEach(final int max, final Visitor visitor) {
+		int pos = 0, visited = 0, neighbour = 0;
+		while ((pos < _packed.length) && ((max < 0) || (visited < max))) {
+			int delta = 0, label = 0;
+			for (int shift = 0; ; shift += 7) {
+				final byte b = _packed[pos++];
+				delta |= (b & 0x7F) << shift;
+				if (b >= 0) break;
+			}
+			for (int shift = 0; ; shift += 7) {
+				final byte b = _packed[pos++];
+				label |= (b & 0x7F) << shift;
+				if (b >= 0) break;
+			}
+			neighbour += delta;
+			++visited;
+			if (!visitor.visit(neighbour, label)) break;
+		}
+		return visited;
+	}
+
+	/** The number of (compacted) pairs
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/** The number of bytes used by the compressed pairs
+	 */
+	public int getPackedBytes() {
+		return _packed.length;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	protected static long toPair(final int neighbour, final int label) {
+		return (((long)neighbour) << 32) | (label & 0xFFFFFFFFL);
+	}
+
+	protected static void writeVarInt(final ByteArrayOutputStream out, final int value) {
+		int v = value;
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+}
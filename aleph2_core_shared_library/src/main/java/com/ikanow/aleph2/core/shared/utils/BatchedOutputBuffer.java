@@ -0,0 +1,287 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** A per-thread output buffer that groups objects by their destination ("target") and hands them
+ *  to a flush callback in batches, once either the max number of buffered objects or the max latency is reached
+ *  (Latency is checked when objects are added, and also by a background timer so that a thread that stops emitting doesn't strand its objects
+ *   - the timer is cancelled by close, which also flushes anything left over. The timer thread only drains the expired buffers, the
+ *   flushes themselves run on a flush executor, so a slow target can't hold up the timed flushes of every other buffer in the process)
+ *
+ * @param <K> - the type of the target key (eg topic name, or tuple of output type and name)
+ * @param <V> - the type of the buffered objects
+ */
+public class BatchedOutputBuffer<K, V> implements AutoCloseable {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final int DEFAULT_MAX_OBJECTS = 1000;
+	public static final Duration DEFAULT_MAX_LATENCY = Duration.ofSeconds(5L);
+
+	protected final int _max_objects;
+	protected final long _max_latency_ms;
+	protected final BiConsumer<K, List<V>> _flusher;
+	protected final Optional<ScheduledFuture<?>> _flush_task;
+	protected final Executor _flush_executor;
+	protected final Set<CompletableFuture<Void>> _timed_flushes = ConcurrentHashMap.newKeySet(); // (in progress, so flushAll can wait for them)
+
+	public static final int DEFAULT_FLUSH_THREADS = 4;
+
+	protected static final ScheduledExecutorService _flush_scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "BatchedOutputBuffer-timer");
+		t.setDaemon(true);
+		return t;
+	});
+	protected static final Executor _default_flush_executor = Executors.newFixedThreadPool(DEFAULT_FLUSH_THREADS, r -> {
+		final Thread t = new Thread(r, "BatchedOutputBuffer-flush");
+		t.setDaemon(true);
+		return t;
+	});
+
+	protected final Set<PerThreadBuffer> _all_buffers = ConcurrentHashMap.newKeySet();
+	protected final ThreadLocal<PerThreadBuffer> _thread_buffer = ThreadLocal.withInitial(() -> {
+		final PerThreadBuffer buffer = new PerThreadBuffer();
+		_all_buffers.add(buffer);
+		return buffer;
+	});
+
+	/** Creates a buffer with the default batch settings
+	 * @param flusher - called (from the thread that triggered the flush) with each target and its list of objects
+	 */
+	public BatchedOutputBuffer(final BiConsumer<K, List<V>> flusher) {
+		this(DEFAULT_MAX_OBJECTS, DEFAULT_MAX_LATENCY, flusher);
+	}
+
+	/** Creates a buffer with the specified batch settings
+	 * @param max_objects - the max number of objects (across all targets) a thread will buffer before flushing
+	 * @param max_latency - the max time an object will be buffered (checked on add) before flushing
+	 * @param flusher - called (from the thread that triggered the flush) with each target and its list of objects
+	 */
+	public BatchedOutputBuffer(final int max_objects, final Duration max_latency, final BiConsumer<K, List<V>> flusher) {
+		this(max_objects, max_latency, true, flusher);
+	}
+
+	/** Creates a buffer with the specified batch settings, optionally without the background timer
+	 * @param max_objects - the max number of objects (across all targets) a thread will buffer before flushing
+	 * @param max_latency - the max time an object will be buffered before flushing
+	 * @param timed_flush - if true, a background timer flushes any thread's buffer once it is older than max_latency (else latency is only checked on add)
+	 * @param flusher - called (from the thread that triggered the flush, or a thread of the shared flush pool) with each target and its list of objects
+	 */
+	public BatchedOutputBuffer(final int max_objects, final Duration max_latency, final boolean timed_flush, final BiConsumer<K, List<V>> flusher) {
+		this(max_objects, max_latency, timed_flush, _default_flush_executor, flusher);
+	}
+
+	/** Creates a buffer with the specified batch settings, whose timed flushes run on the specified executor (eg one owned by the caller, for targets that are slow to write to)
+	 * @param max_objects - the max number of objects (across all targets) a thread will buffer before flushing
+	 * @param max_latency - the max time an object will be buffered before flushing
+	 * @param flush_executor - the executor that the timed flushes run on
+	 * @param flusher - called (from the thread that triggered the flush, or the flush executor) with each target and its list of objects
+	 */
+	public BatchedOutputBuffer(final int max_objects, final Duration max_latency, final Executor flush_executor, final BiConsumer<K, List<V>> flusher) {
+		this(max_objects, max_latency, true, flush_executor, flusher);
+	}
+
+	protected BatchedOutputBuffer(final int max_objects, final Duration max_latency, final boolean timed_flush, final Executor flush_executor, final BiConsumer<K, List<V>> flusher) {
+		_max_objects = Math.max(1, max_objects);
+		_max_latency_ms = Math.max(1L, max_latency.toMillis());
+		_flusher = flusher;
+		_flush_executor = flush_executor;
+		_flush_task = timed_flush
+				? Optional.of(_flush_scheduler.scheduleWithFixedDelay(this::flushExpired, _max_latency_ms, _max_latency_ms, TimeUnit.MILLISECONDS))
+				: Optional.empty();
+	}
+
+	/** Adds an object to the calling thread's buffer, flushing that thread's buffer if it is full or too old
+	 * @param target - the destination of the object
+	 * @param object - the object to buffer
+	 */
+	public void add(final K target, final V object) {
+		final Map<K, List<V>> to_flush = _thread_buffer.get().add(target, object, System.currentTimeMillis());
+		if (null != to_flush) {
+			flushBatches(to_flush);
+		}
+	}
+
+	/** Flushes the objects buffered by the calling thread
+	 */
+	public void flush() {
+		flushBatches(_thread_buffer.get().drain());
+	}
+
+	/** Flushes the objects buffered by every thread (eg at job completion), and discards the buffers of threads that have exited
+	 *  (also waits for any timed flushes in progress, so everything added before the call has been handed to the flush callback on return)
+	 */
+	public void flushAll() {
+		flushAll(__ -> true);
+	}
+
+	/** Flushes the objects buffered by every thread for the targets matching the filter (eg a single job's outputs), and discards the empty buffers of threads that have exited
+	 *  (also waits for any timed flushes in progress, so everything added for those targets before the call has been handed to the flush callback on return)
+	 * @param target_filter - returns true for the targets to flush
+	 */
+	public void flushAll(final Predicate<K> target_filter) {
+		final Iterator<PerThreadBuffer> it = _all_buffers.iterator();
+		while (it.hasNext()) {
+			final PerThreadBuffer buffer = it.next();
+			flushBatches(buffer.drain(target_filter));
+			if (!buffer.isOwnerAlive() && (0 == buffer.size())) {
+				it.remove();
+			}
+		}
+		CompletableFuture.allOf(_timed_flushes.toArray(new CompletableFuture<?>[0])).handle((__, t) -> null).join(); // (errors are logged by the flush)
+	}
+
+	/** Cancels the background timer and flushes the objects buffered by every thread
+	 *  (the buffer can still be used afterwards, but latency will then only be checked on add)
+	 */
+	@Override
+	public void close() {
+		_flush_task.ifPresent(task -> task.cancel(false));
+		flushAll();
+	}
+
+	/** Called from the background timer - drains the buffer of any thread whose oldest object has exceeded the max latency, and hands it to the flush executor
+	 *  (exceptions are logged rather than thrown, since that would cancel the timer)
+	 */
+	protected void flushExpired() {
+		try {
+			final long now = System.currentTimeMillis();
+			_all_buffers.forEach(buffer -> {
+				final Map<K, List<V>> batches = buffer.drainIfExpired(now);
+				if (!batches.isEmpty()) {
+					final CompletableFuture<Void> flush = CompletableFuture.runAsync(() -> flushBatches(batches), _flush_executor);
+					_timed_flushes.add(flush);
+					flush.whenComplete((__, t) -> {
+						_timed_flushes.remove(flush);
+						if (null != t) {
+							_logger.error(ErrorUtils.getLongForm("Error flushing expired batches: {0}", t));
+						}
+					});
+				}
+			});
+		}
+		catch (Throwable t) {
+			_logger.error(ErrorUtils.getLongForm("Error flushing expired batches: {0}", t));
+		}
+	}
+
+	/** Returns the number of objects currently buffered across all threads
+	 * @return the number of objects currently buffered across all threads
+	 */
+	public long getBufferedCount() {
+		return _all_buffers.stream().mapToLong(PerThreadBuffer::size).sum();
+	}
+
+	/** Passes each target's batch to the flush callback (outside of any buffer lock)
+	 * @param batches - the set of batches to flush
+	 */
+	protected void flushBatches(final Map<K, List<V>> batches) {
+		batches.forEach((target, objects) -> {
+			if (!objects.isEmpty()) {
+				_flusher.accept(target, objects);
+			}
+		});
+	}
+
+	/** The buffer for a single thread - is synchronized because flushAll and the timer can drain it from a different thread
+	 */
+	protected class PerThreadBuffer {
+		protected final WeakReference<Thread> _owner = new WeakReference<>(Thread.currentThread());
+		protected LinkedHashMap<K, List<V>> _batches = new LinkedHashMap<>();
+		protected int _size = 0;
+		protected long _oldest_time = 0L;
+
+		/** Adds the object, returns the drained batches if a flush is required (else null)
+		 */
+		protected synchronized Map<K, List<V>> add(final K target, final V object, final long now) {
+			if (0 == _size) {
+				_oldest_time = now;
+			}
+			_batches.computeIfAbsent(target, __ -> new ArrayList<V>()).add(object);
+			_size++;
+			return ((_size >= _max_objects) || ((now - _oldest_time) >= _max_latency_ms))
+					? drain()
+					: null;
+		}
+
+		/** Returns the current set of batches and resets the buffer
+		 */
+		protected synchronized Map<K, List<V>> drain() {
+			final Map<K, List<V>> ret_val = _batches;
+			_batches = new LinkedHashMap<>();
+			_size = 0;
+			return ret_val;
+		}
+
+		/** Removes and returns the batches whose targets match the filter
+		 *  (the oldest time is left alone, so the remaining objects can only be flushed early, never late)
+		 */
+		protected synchronized Map<K, List<V>> drain(final Predicate<K> target_filter) {
+			final Map<K, List<V>> ret_val = new LinkedHashMap<>();
+			final Iterator<Map.Entry<K, List<V>>> it = _batches.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<K, List<V>> kv = it.next();
+				if (target_filter.test(kv.getKey())) {
+					ret_val.put(kv.getKey(), kv.getValue());
+					_size -= kv.getValue().size();
+					it.remove();
+				}
+			}
+			return ret_val;
+		}
+
+		/** Returns the current set of batches (and resets the buffer) if the oldest object is older than the max latency, else an empty map
+		 */
+		protected synchronized Map<K, List<V>> drainIfExpired(final long now) {
+			return ((_size > 0) && ((now - _oldest_time) >= _max_latency_ms))
+					? drain()
+					: Collections.emptyMap();
+		}
+
+		protected synchronized int size() {
+			return _size;
+		}
+
+		protected boolean isOwnerAlive() {
+			final Thread owner = _owner.get();
+			return (null != owner) && owner.isAlive();
+		}
+	}
+}
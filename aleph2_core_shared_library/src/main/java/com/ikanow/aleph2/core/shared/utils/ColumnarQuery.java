@@ -0,0 +1,284 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Evaluates CrudUtils queries against columnar segments (see ColumnarSegment), so that only the query's columns are read,
+ *  each term is evaluated once per distinct value rather than per row, and segments are skipped using the footer's per column min/max
+ *  (Can also be used to evaluate CrudUtils queries against individual JSON objects, see matches)
+ *  Supports the equals/not equals, any_of, all_of (array containment), exists and range operators, combined with all_of/any_of
+ */
+public class ColumnarQuery {
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	/** A compiled query (or sub-query)
+	 */
+	protected interface Node {
+		/** Whether any row of a segment could match, from its footer alone */
+		boolean mightMatch(Map<String, ColumnarSegment.ColumnInfo> columns);
+		/** The matching rows, given the columns returned by getFields */
+		BitSet evaluate(int num_rows, Function<String, Optional<ColumnarSegment.Column>> columns);
+		/** Whether a single object matches, given its (dot notation) field values */
+		boolean matches(Function<String, JsonNode> values);
+	}
+
+	protected final Node _root;
+	protected final Set<String> _fields = new HashSet<String>();
+
+	/** Compiles a query
+	 * @param spec - the CrudUtils query (any type, it is converted to JSON)
+	 */
+	public ColumnarQuery(final QueryComponent<?> spec) {
+		_root = compile(spec.toJson());
+	}
+
+	/** The fields (columns) needed to evaluate the query
+	 */
+	public Set<String> getFields() {
+		return Collections.unmodifiableSet(_fields);
+	}
+
+	/** Whether any row of a segment could match the query, from its footer alone (ie if false the segment can be skipped without reading any columns)
+	 */
+	public boolean mightMatch(final ColumnarSegment segment) {
+		return _root.mightMatch(segment.getColumns());
+	}
+
+	/** Returns the rows of a segment that match the query
+	 * @param segment - the segment
+	 * @param columns - the segment's columns (must include getFields(), missing columns are treated as having no values)
+	 * @return the matching rows
+	 */
+	public BitSet evaluate(final ColumnarSegment segment, final Map<String, ColumnarSegment.Column> columns) {
+		return _root.evaluate(segment.size(), field -> Optional.ofNullable(columns.get(field)));
+	}
+
+	/** Whether a single object matches the query
+	 * @param object - the object
+	 * @return whether it matches
+	 */
+	public boolean matches(final JsonNode object) {
+		return _root.matches(field -> {
+			JsonNode node = object;
+			for (String name: field.split("\\.")) {
+				node = (null == node) ? null : node.get(name);
+			}
+			return ((null == node) || node.isNull()) ? null : node;
+		});
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// COMPILATION
+
+	protected Node compile(final QueryComponent<JsonNode> spec) {
+		final boolean and = (CrudUtils.Operator.any_of != spec.getOp());
+		final List<Node> children = (spec instanceof MultiQueryComponent)
+				? ((MultiQueryComponent<JsonNode>) spec).getElements().stream().map(q -> compile(q)).collect(Collectors.toList())
+				: ((SingleQueryComponent<JsonNode>) spec).getAll().entries().stream().map(kv -> compileTerm(kv.getKey(), kv.getValue())).collect(Collectors.toList());
+
+		if (children.isEmpty()) { // (matches everything)
+			return new Node() {
+				public boolean mightMatch(final Map<String, ColumnarSegment.ColumnInfo> columns) { return true; }
+				public BitSet evaluate(final int num_rows, final Function<String, Optional<ColumnarSegment.Column>> columns) {
+					final BitSet all = new BitSet(num_rows);
+					all.set(0, num_rows);
+					return all;
+				}
+				public boolean matches(final Function<String, JsonNode> values) { return true; }
+			};
+		}
+		return new Node() {
+			public boolean mightMatch(final Map<String, ColumnarSegment.ColumnInfo> columns) {
+				return and ? children.stream().allMatch(c -> c.mightMatch(columns)) : children.stream().anyMatch(c -> c.mightMatch(columns));
+			}
+			public BitSet evaluate(final int num_rows, final Function<String, Optional<ColumnarSegment.Column>> columns) {
+				BitSet result = null;
+				for (Node child: children) {
+					final BitSet child_result = child.evaluate(num_rows, columns);
+					if (null == result) {
+						result = child_result;
+					}
+					else if (and) {
+						result.and(child_result);
+					}
+					else {
+						result.or(child_result);
+					}
+					if (and && result.isEmpty()) break;
+				}
+				return result;
+			}
+			public boolean matches(final Function<String, JsonNode> values) {
+				return and ? children.stream().allMatch(c -> c.matches(values)) : children.stream().anyMatch(c -> c.matches(values));
+			}
+		};
+	}
+
+	/** A single field/operator term, which is evaluated against each distinct value of its column
+	 */
+	protected Node compileTerm(final String field, final Tuple2<CrudUtils.Operator, Tuple2<Object, Object>> op_args) {
+		_fields.add(field);
+		final CrudUtils.Operator op = op_args._1();
+		final Object arg1 = op_args._2()._1();
+		final Object arg2 = op_args._2()._2();
+
+		final java.util.function.Predicate<JsonNode> test;
+		final Optional<Tuple2<Optional<JsonNode>, Optional<JsonNode>>> bounds; // (the range of values that can match, for min/max pruning)
+		switch (op) {
+			case equals:
+				if (null == arg1) { // (not equals)
+					final JsonNode not_value = toJson(arg2);
+					test = v -> !contains(v, not_value);
+					bounds = Optional.empty();
+				}
+				else {
+					final JsonNode value = toJson(arg1);
+					test = v -> contains(v, value);
+					bounds = Optional.of(Tuples._2T(Optional.of(value), Optional.of(value)));
+				}
+				break;
+			case any_of: {
+				final List<JsonNode> values = toJsonList(arg1);
+				test = v -> values.stream().anyMatch(value -> contains(v, value));
+				bounds = Optional.of(Tuples._2T(values.stream().reduce((a, b) -> (ColumnarSegment.compareValues(a, b) <= 0) ? a : b),
+													values.stream().reduce((a, b) -> (ColumnarSegment.compareValues(a, b) >= 0) ? a : b)))
+							.filter(t2 -> t2._1().isPresent() && ColumnarSegment.isOrdered(values));
+				break;
+			}
+			case all_of: {
+				final List<JsonNode> values = toJsonList(arg1);
+				test = v -> values.stream().allMatch(value -> contains(v, value));
+				bounds = Optional.empty();
+				break;
+			}
+			case exists: {
+				final boolean exists = Boolean.TRUE.equals(arg1);
+				test = v -> exists == (null != v);
+				bounds = Optional.empty();
+				break;
+			}
+			default: { // ranges
+				final Optional<JsonNode> lower = Optional.ofNullable(arg1).map(ColumnarQuery::toJson);
+				final Optional<JsonNode> upper = Optional.ofNullable(arg2).map(ColumnarQuery::toJson);
+				final boolean lower_open = (CrudUtils.Operator.range_open_open == op) || (CrudUtils.Operator.range_open_closed == op);
+				final boolean upper_open = (CrudUtils.Operator.range_open_open == op) || (CrudUtils.Operator.range_closed_open == op);
+				test = v -> (null != v) && !v.isArray()
+						&& lower.map(l -> { final int c = ColumnarSegment.compareValues(v, l); return lower_open ? (c > 0) : (c >= 0); }).orElse(true)
+						&& upper.map(u -> { final int c = ColumnarSegment.compareValues(v, u); return upper_open ? (c < 0) : (c <= 0); }).orElse(true);
+				bounds = Optional.of(Tuples._2T(lower, upper));
+			}
+		}
+		final boolean matches_missing = test.test(null);
+
+		return new Node() {
+			public boolean mightMatch(final Map<String, ColumnarSegment.ColumnInfo> columns) {
+				final ColumnarSegment.ColumnInfo info = columns.get(field);
+				if (null == info) {
+					return matches_missing;
+				}
+				if (matches_missing || !bounds.isPresent() || !info.min.isPresent()) {
+					return true;
+				}
+				// (only compare like with like, eg a string argument against a numeric column can't be pruned)
+				final boolean below_min = bounds.get()._2().filter(u -> sameType(u, info.min.get()) && (ColumnarSegment.compareValues(u, info.min.get()) < 0)).isPresent();
+				final boolean above_max = bounds.get()._1().filter(l -> sameType(l, info.max.get()) && (ColumnarSegment.compareValues(l, info.max.get()) > 0)).isPresent();
+				return !below_min && !above_max;
+			}
+			public BitSet evaluate(final int num_rows, final Function<String, Optional<ColumnarSegment.Column>> columns) {
+				final BitSet result = new BitSet(num_rows);
+				final Optional<ColumnarSegment.Column> maybe_column = columns.apply(field);
+				if (!maybe_column.isPresent()) {
+					if (matches_missing) result.set(0, num_rows);
+					return result;
+				}
+				final ColumnarSegment.Column column = maybe_column.get();
+				final List<JsonNode> dictionary = column.getDictionary();
+				final boolean[] matching_ids = new boolean[dictionary.size()];
+				boolean any = matches_missing;
+				for (int i = 0; i < matching_ids.length; ++i) {
+					any |= (matching_ids[i] = test.test(dictionary.get(i)));
+				}
+				if (any) {
+					for (int row = 0; row < num_rows; ++row) {
+						final int id = column.getId(row);
+						if ((id < 0) ? matches_missing : matching_ids[id]) {
+							result.set(row);
+						}
+					}
+				}
+				return result;
+			}
+			public boolean matches(final Function<String, JsonNode> values) {
+				return test.test(values.apply(field));
+			}
+		};
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Whether a (possibly array) value is or contains the given value
+	 */
+	protected static boolean contains(final JsonNode v, final JsonNode value) {
+		if (null == v) {
+			return false;
+		}
+		else if (v.isArray() && !value.isArray()) {
+			return StreamSupport.stream(v.spliterator(), false).anyMatch(el -> equalValues(el, value));
+		}
+		return equalValues(v, value);
+	}
+
+	protected static boolean equalValues(final JsonNode a, final JsonNode b) {
+		return (a.isNumber() && b.isNumber()) ? (0 == Double.compare(a.asDouble(), b.asDouble())) : a.equals(b);
+	}
+
+	protected static boolean sameType(final JsonNode a, final JsonNode b) {
+		return (a.isNumber() && b.isNumber()) || (a.isTextual() && b.isTextual());
+	}
+
+	protected static JsonNode toJson(final Object o) {
+		return (o instanceof JsonNode) ? (JsonNode) o : _mapper.valueToTree(o);
+	}
+
+	protected static List<JsonNode> toJsonList(final Object o) {
+		return ((Collection<?>) o).stream().map(ColumnarQuery::toJson).collect(Collectors.toList());
+	}
+}
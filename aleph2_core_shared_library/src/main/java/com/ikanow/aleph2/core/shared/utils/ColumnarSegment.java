@@ -0,0 +1,474 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** An immutable, column oriented file of JSON objects (a batch of objects is written as a single segment)
+ *  Objects are flattened into their (dot notation) leaf fields - arrays are leaves - and each field that passes the column filter
+ *  (see getColumnFilter) becomes a column, consisting of a dictionary of its distinct values and the run-length encoded dictionary ids of each row
+ *  Layout: MAGIC, column blocks, footer (row count, then per column: name, block offset/length, number of distinct values, min/max), footer offset, MAGIC
+ *  The footer is read when the segment is opened, and a column block only when that column is needed, so scans only pay for the columns they use
+ */
+public class ColumnarSegment {
+	public static final byte[] MAGIC = "A2COLS01".getBytes(StandardCharsets.UTF_8);
+
+	/** The field types that can be used in the column filter's type include/exclude lists */
+	public static final List<String> FIELD_TYPES = Collections.unmodifiableList(Arrays.asList("string", "number", "boolean", "array"));
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	// Value tags
+	protected static final byte TAG_STRING = 0, TAG_LONG = 1, TAG_DOUBLE = 2, TAG_TRUE = 3, TAG_FALSE = 4, TAG_JSON = 5, TAG_NONE = 6;
+
+	/** The footer information for a column
+	 */
+	public static class ColumnInfo {
+		public final String name;
+		public final long offset;
+		public final int length;
+		public final int distinct;
+		public final Optional<JsonNode> min; // (only if all values are numbers, or all values are strings)
+		public final Optional<JsonNode> max;
+		ColumnInfo(final String name, final long offset, final int length, final int distinct, final Optional<JsonNode> min, final Optional<JsonNode> max) {
+			this.name = name; this.offset = offset; this.length = length; this.distinct = distinct; this.min = min; this.max = max;
+		}
+	}
+
+	/** A column that has been read from the segment
+	 */
+	public static class Column {
+		protected final List<JsonNode> _dictionary;
+		protected final int[] _ids; // (per row, -1 for no value)
+
+		protected Column(final List<JsonNode> dictionary, final int[] ids) {
+			_dictionary = dictionary;
+			_ids = ids;
+		}
+		/** The distinct values in this column
+		 */
+		public List<JsonNode> getDictionary() {
+			return _dictionary;
+		}
+		/** The dictionary id of a row's value
+		 * @return the index into getDictionary(), or -1 if the row has no value
+		 */
+		public int getId(final int row) {
+			return _ids[row];
+		}
+		/** The value of a row
+		 * @return the value, or null if the row has no value
+		 */
+		public JsonNode get(final int row) {
+			return (_ids[row] < 0) ? null : _dictionary.get(_ids[row]);
+		}
+	}
+
+	protected final File _file;
+	protected final int _num_rows;
+	protected final Map<String, ColumnInfo> _columns;
+	protected final AtomicLong _bytes_read = new AtomicLong(0L);
+
+	/** Opens an existing segment, reading its footer
+	 * @param file - the segment file
+	 */
+	public ColumnarSegment(final File file) {
+		_file = file;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final byte[] tail = new byte[8 + MAGIC.length];
+			raf.seek(raf.length() - tail.length);
+			raf.readFully(tail);
+			final DataInputStream tail_in = new DataInputStream(new ByteArrayInputStream(tail));
+			final long footer_offset = tail_in.readLong();
+			if (!Arrays.equals(MAGIC, Arrays.copyOfRange(tail, 8, tail.length))) {
+				throw new IOException("Not a columnar segment");
+			}
+			final byte[] footer = new byte[(int)(raf.length() - tail.length - footer_offset)];
+			raf.seek(footer_offset);
+			raf.readFully(footer);
+			_bytes_read.addAndGet(tail.length + footer.length);
+
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+			_num_rows = readVarInt(in);
+			final int num_columns = readVarInt(in);
+			_columns = new LinkedHashMap<String, ColumnInfo>();
+			for (int i = 0; i < num_columns; ++i) {
+				final String name = readString(in);
+				_columns.put(name, new ColumnInfo(name, in.readLong(), readVarInt(in), readVarInt(in), Optional.ofNullable(readValue(in)), Optional.ofNullable(readValue(in))));
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to open segment {1}: {0}", e, file), e);
+		}
+	}
+
+	/** Writes a new segment
+	 * @param file - the segment file to create
+	 * @param objects - the objects to write
+	 * @param column_filter - decides which (flattened) field/value pairs are stored, see getColumnFilter
+	 * @return the opened segment
+	 */
+	public static ColumnarSegment write(final File file, final List<JsonNode> objects, final BiPredicate<String, JsonNode> column_filter) {
+		// Build the dictionaries and row ids
+		final Map<String, Map<JsonNode, Integer>> dictionaries = new LinkedHashMap<String, Map<JsonNode, Integer>>();
+		final Map<String, int[]> ids = new HashMap<String, int[]>();
+		int row = 0;
+		for (JsonNode object: objects) {
+			final int this_row = row++;
+			flatten("", object, (field, value) -> {
+				if (column_filter.test(field, value)) {
+					final Map<JsonNode, Integer> dictionary = dictionaries.computeIfAbsent(field, __ -> new LinkedHashMap<JsonNode, Integer>());
+					final int[] column_ids = ids.computeIfAbsent(field, __ -> { final int[] a = new int[objects.size()]; Arrays.fill(a, -1); return a; });
+					column_ids[this_row] = dictionary.computeIfAbsent(normalize(value), __ -> dictionary.size());
+				}
+			});
+		}
+
+		file.getParentFile().mkdirs();
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.write(MAGIC);
+			final ByteArrayOutputStream footer_bytes = new ByteArrayOutputStream();
+			final DataOutputStream footer = new DataOutputStream(footer_bytes);
+			writeVarInt(footer, objects.size());
+			writeVarInt(footer, dictionaries.size());
+			long offset = MAGIC.length;
+			for (Map.Entry<String, Map<JsonNode, Integer>> kv: dictionaries.entrySet()) {
+				final ByteArrayOutputStream block_bytes = new ByteArrayOutputStream();
+				final DataOutputStream block = new DataOutputStream(block_bytes);
+				writeVarInt(block, kv.getValue().size());
+				for (JsonNode value: kv.getValue().keySet()) {
+					writeValue(block, value);
+				}
+				// Runs of (id + 1, length), 0 for no value
+				final int[] column_ids = ids.get(kv.getKey());
+				final ByteArrayOutputStream runs = new ByteArrayOutputStream();
+				final DataOutputStream runs_out = new DataOutputStream(runs);
+				int num_runs = 0;
+				for (int start = 0; start < column_ids.length;) {
+					int end = start + 1;
+					while ((end < column_ids.length) && (column_ids[end] == column_ids[start])) ++end;
+					writeVarInt(runs_out, column_ids[start] + 1);
+					writeVarInt(runs_out, end - start);
+					num_runs++;
+					start = end;
+				}
+				writeVarInt(block, num_runs);
+				runs.writeTo(block);
+				block.flush();
+
+				final Optional<JsonNode> min = kv.getValue().keySet().stream().reduce((a, b) -> (compareValues(a, b) <= 0) ? a : b).filter(__ -> isOrdered(kv.getValue().keySet()));
+				final Optional<JsonNode> max = kv.getValue().keySet().stream().reduce((a, b) -> (compareValues(a, b) >= 0) ? a : b).filter(__ -> isOrdered(kv.getValue().keySet()));
+				writeString(footer, kv.getKey());
+				footer.writeLong(offset);
+				writeVarInt(footer, block_bytes.size());
+				writeVarInt(footer, kv.getValue().size());
+				writeValue(footer, min.orElse(null));
+				writeValue(footer, max.orElse(null));
+
+				block_bytes.writeTo(out);
+				offset += block_bytes.size();
+			}
+			footer.flush();
+			footer_bytes.writeTo(out);
+			out.writeLong(offset);
+			out.write(MAGIC);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to write segment {1}: {0}", e, file), e);
+		}
+		return new ColumnarSegment(file);
+	}
+
+	/** The number of rows in this segment
+	 */
+	public int size() {
+		return _num_rows;
+	}
+
+	/** The segment file
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	/** The footer information for each column, by name
+	 */
+	public Map<String, ColumnInfo> getColumns() {
+		return Collections.unmodifiableMap(_columns);
+	}
+
+	/** The number of bytes read from the segment file so far
+	 */
+	public long getBytesRead() {
+		return _bytes_read.get();
+	}
+
+	/** Reads a column
+	 * @param name - the column name
+	 * @return the column, or empty if there is no such column in this segment (ie no row has a value for it)
+	 */
+	public Optional<Column> readColumn(final String name) {
+		final ColumnInfo info = _columns.get(name);
+		if (null == info) {
+			return Optional.empty();
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(_file, "r")) {
+			final byte[] block = new byte[info.length];
+			raf.seek(info.offset);
+			raf.readFully(block);
+			_bytes_read.addAndGet(block.length);
+
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+			final int num_values = readVarInt(in);
+			final JsonNode[] dictionary = new JsonNode[num_values];
+			for (int i = 0; i < num_values; ++i) {
+				dictionary[i] = readValue(in);
+			}
+			final int num_runs = readVarInt(in);
+			final int[] ids = new int[_num_rows];
+			for (int i = 0, row = 0; i < num_runs; ++i) {
+				final int id = readVarInt(in) - 1;
+				final int length = readVarInt(in);
+				Arrays.fill(ids, row, row + length, id);
+				row += length;
+			}
+			return Optional.of(new Column(Arrays.asList(dictionary), ids));
+		}
+		catch (IOException e) {
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to read column {1} from {2}: {0}", e, name, _file), e);
+		}
+	}
+
+	/** Rebuilds a row from some columns
+	 * @param columns - the columns (by field name) to include
+	 * @param row - the row
+	 * @return the object (with only the fields that have values)
+	 */
+	public static JsonNode getRow(final Map<String, Column> columns, final int row) {
+		final ObjectNode object = _mapper.createObjectNode();
+		columns.forEach((field, column) -> Optional.ofNullable(column.get(row)).ifPresent(value -> {
+			final String[] path = field.split("\\.");
+			ObjectNode parent = object;
+			for (int i = 0; i < path.length - 1; ++i) {
+				parent = parent.has(path[i]) && parent.get(path[i]).isObject() ? (ObjectNode) parent.get(path[i]) : parent.putObject(path[i]);
+			}
+			parent.set(path[path.length - 1], value);
+		}));
+		return object;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// SCHEMA
+
+	/** Builds the column filter from a columnar schema: a field is a column if it is included (by name, glob pattern or type - everything is
+	 *  included if none of the include lists are set) and not excluded (by name, glob pattern or type). See FIELD_TYPES for the type names
+	 * @param schema - the columnar schema
+	 * @return a predicate on (dot notation field, value)
+	 */
+	public static BiPredicate<String, JsonNode> getColumnFilter(final Optional<DataSchemaBean.ColumnarSchemaBean> schema) {
+		final List<String> include = schema.map(s -> s.field_include_list()).orElse(Collections.emptyList());
+		final List<String> exclude = schema.map(s -> s.field_exclude_list()).orElse(Collections.emptyList());
+		final List<Pattern> include_patterns = schema.map(s -> s.field_include_pattern_list()).orElse(Collections.<String>emptyList()).stream().map(ColumnarSegment::globToPattern).collect(Collectors.toList());
+		final List<Pattern> exclude_patterns = schema.map(s -> s.field_exclude_pattern_list()).orElse(Collections.<String>emptyList()).stream().map(ColumnarSegment::globToPattern).collect(Collectors.toList());
+		final List<String> include_types = schema.map(s -> s.field_type_include_list()).orElse(Collections.emptyList());
+		final List<String> exclude_types = schema.map(s -> s.field_type_exclude_list()).orElse(Collections.emptyList());
+		final boolean include_all = include.isEmpty() && include_patterns.isEmpty() && include_types.isEmpty();
+
+		return (field, value) -> {
+			final String type = getType(value);
+			final boolean included = include_all
+					|| include.contains(field)
+					|| include_patterns.stream().anyMatch(p -> p.matcher(field).matches())
+					|| include_types.contains(type);
+			return included
+					&& !exclude.contains(field)
+					&& !exclude_patterns.stream().anyMatch(p -> p.matcher(field).matches())
+					&& !exclude_types.contains(type);
+		};
+	}
+
+	/** Returns the column filter type name of a value (see FIELD_TYPES)
+	 */
+	public static String getType(final JsonNode value) {
+		return value.isArray() ? "array" : value.isNumber() ? "number" : value.isBoolean() ? "boolean" : "string";
+	}
+
+	/** Converts a glob (* matches anything except ., ** matches anything, ? matches a single character) to a regex
+	 */
+	protected static Pattern globToPattern(final String glob) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < glob.length(); ++i) {
+			final char c = glob.charAt(i);
+			if ('*' == c) {
+				final boolean double_star = (i + 1 < glob.length()) && ('*' == glob.charAt(i + 1));
+				sb.append(double_star ? ".*" : "[^.]*");
+				if (double_star) ++i;
+			}
+			else if ('?' == c) {
+				sb.append("[^.]");
+			}
+			else {
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(sb.toString());
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Calls the handler for each (dot notation) leaf field of an object - arrays are leaves, nulls are skipped
+	 */
+	protected static void flatten(final String prefix, final JsonNode node, final java.util.function.BiConsumer<String, JsonNode> handler) {
+		if (node.isObject()) {
+			final Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+			while (it.hasNext()) {
+				final Map.Entry<String, JsonNode> kv = it.next();
+				flatten(prefix.isEmpty() ? kv.getKey() : (prefix + "." + kv.getKey()), kv.getValue(), handler);
+			}
+		}
+		else if (!node.isNull() && !node.isMissingNode() && !prefix.isEmpty()) {
+			handler.accept(prefix, node);
+		}
+	}
+
+	/** Normalizes numbers so that equal values share a dictionary entry (eg int vs long)
+	 */
+	protected static JsonNode normalize(final JsonNode value) {
+		if (value.isIntegralNumber() && value.canConvertToLong()) {
+			return LongNode.valueOf(value.asLong());
+		}
+		else if (value.isNumber()) {
+			return DoubleNode.valueOf(value.asDouble());
+		}
+		return value;
+	}
+
+	/** Whether min/max are meaningful for a set of values (all numbers or all strings)
+	 */
+	protected static boolean isOrdered(final java.util.Collection<JsonNode> values) {
+		return values.stream().allMatch(JsonNode::isNumber) || values.stream().allMatch(JsonNode::isTextual);
+	}
+
+	/** Orders values: numerically if both are numbers, else as strings
+	 */
+	public static int compareValues(final JsonNode a, final JsonNode b) {
+		return (a.isNumber() && b.isNumber()) ? Double.compare(a.asDouble(), b.asDouble()) : a.asText().compareTo(b.asText());
+	}
+
+	protected static void writeValue(final DataOutputStream out, final JsonNode value) throws IOException {
+		if (null == value) {
+			out.writeByte(TAG_NONE);
+		}
+		else if (value.isTextual()) {
+			out.writeByte(TAG_STRING);
+			writeString(out, value.asText());
+		}
+		else if (value.isIntegralNumber() && value.canConvertToLong()) {
+			out.writeByte(TAG_LONG);
+			out.writeLong(value.asLong());
+		}
+		else if (value.isNumber()) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(value.asDouble());
+		}
+		else if (value.isBoolean()) {
+			out.writeByte(value.asBoolean() ? TAG_TRUE : TAG_FALSE);
+		}
+		else {
+			out.writeByte(TAG_JSON);
+			writeString(out, value.toString());
+		}
+	}
+
+	protected static JsonNode readValue(final DataInputStream in) throws IOException {
+		final byte tag = in.readByte();
+		switch (tag) {
+			case TAG_STRING: return TextNode.valueOf(readString(in));
+			case TAG_LONG: return LongNode.valueOf(in.readLong());
+			case TAG_DOUBLE: return DoubleNode.valueOf(in.readDouble());
+			case TAG_TRUE: return BooleanNode.TRUE;
+			case TAG_FALSE: return BooleanNode.FALSE;
+			case TAG_JSON: return _mapper.readTree(readString(in));
+			case TAG_NONE: return null;
+			default: throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	protected static void writeString(final DataOutputStream out, final String s) throws IOException {
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	protected static String readString(final DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	protected static void writeVarInt(final DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	protected static int readVarInt(final DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			final byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (0 == (b & 0x80)) {
+				return value;
+			}
+		}
+	}
+}
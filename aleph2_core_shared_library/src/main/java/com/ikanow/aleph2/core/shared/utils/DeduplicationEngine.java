@@ -0,0 +1,380 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.collect.Lists;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IDocumentService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Removes duplicates from batches of objects before they are written, as configured by the bucket's document schema:
+ *  an object is a duplicate if an object with the same deduplication_fields (default _id) already exists in any of the
+ *  deduplication_contexts (default the bucket itself), each of which is looked up via the document service
+ *  Lookups are batched into a single query per context per LOOKUP_BATCH_SIZE objects. Each context also has a Bloom filter
+ *  of the keys (hashes of the deduplication fields) it contains, which is rebuilt in the background every refresh interval
+ *  and updated from the objects that pass through: once a context has a filter, only the objects that might be duplicates
+ *  are looked up. Until the first rebuild has completed (or if the last one failed) every object is looked up.
+ *  (so a key written to a context by another process is only missed if it was written since the last rebuild started)
+ */
+public class DeduplicationEngine {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String DEFAULT_DEDUPLICATION_FIELD = "_id";
+	public static final int DEFAULT_LOOKUP_BATCH_SIZE = 500;
+	public static final int DEFAULT_EXPECTED_KEYS = 1000000;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofMinutes(5L);
+	public static final int DEFAULT_FLUSH_THREADS = 2;
+
+	protected static final Executor _flush_executor = Executors.newFixedThreadPool(DEFAULT_FLUSH_THREADS, r -> {
+		final Thread t = new Thread(r, "DeduplicationEngine-flush");
+		t.setDaemon(true);
+		return t;
+	});
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	/** The state of a single deduplication context (guarded by the engine)
+	 */
+	protected static class Context {
+		final String _name;
+		final ICrudService<JsonNode> _crud_service;
+		Optional<BloomFilter<CharSequence>> _filter = Optional.empty(); // (empty until the first rebuild completes, or if the last one failed)
+		long _refreshed_at = 0L; // (when the last rebuild started)
+		boolean _refreshing = false;
+		CompletableFuture<Void> _refresh = CompletableFuture.completedFuture(null);
+		final List<String> _written_during_refresh = new ArrayList<String>(); // (keys let through since the current rebuild started, which it might not see)
+		Context(final String name, final ICrudService<JsonNode> crud_service) {
+			_name = name;
+			_crud_service = crud_service;
+		}
+	}
+
+	protected final DataBucketBean _bucket;
+	protected final List<String> _fields;
+	protected final List<Context> _contexts;
+	protected final int _expected_keys;
+	protected final double _false_positive_rate;
+	protected final long _refresh_interval_ms;
+	protected final int _lookup_batch_size;
+
+	protected final AtomicLong _num_checked = new AtomicLong(0);
+	protected final AtomicLong _num_skipped_lookups = new AtomicLong(0);
+	protected final AtomicLong _num_lookups = new AtomicLong(0);
+	protected final AtomicLong _num_duplicates = new AtomicLong(0);
+
+	/** User c'tor
+	 * @param bucket - the bucket whose objects are being deduplicated
+	 * @param crud_service_provider - returns the CRUD service for a context (a bucket or multi bucket with the context's name as its full_name)
+	 * @param expected_keys - the expected number of keys in each context (sizes the Bloom filters)
+	 * @param false_positive_rate - the target false positive rate of the Bloom filters (ie the fraction of new objects that are looked up unnecessarily)
+	 * @param refresh_interval - how often the Bloom filters are rebuilt from the contexts
+	 * @param lookup_batch_size - the max number of objects per lookup query
+	 */
+	public DeduplicationEngine(final DataBucketBean bucket, final Function<DataBucketBean, ICrudService<JsonNode>> crud_service_provider,
+			final int expected_keys, final double false_positive_rate, final Duration refresh_interval, final int lookup_batch_size)
+	{
+		final Optional<DataSchemaBean.DocumentSchemaBean> schema = Optional.ofNullable(bucket.data_schema()).map(DataSchemaBean::document_schema);
+		_bucket = bucket;
+		_fields = schema.map(DataSchemaBean.DocumentSchemaBean::deduplication_fields).filter(l -> !l.isEmpty()).orElse(Collections.singletonList(DEFAULT_DEDUPLICATION_FIELD));
+		_contexts = schema.map(DataSchemaBean.DocumentSchemaBean::deduplication_contexts).filter(l -> !l.isEmpty()).orElse(Collections.singletonList(bucket.full_name()))
+						.stream()
+						.map(name -> new Context(name,
+								crud_service_provider.apply(name.equals(bucket.full_name()) ? bucket : BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, name).done().get())))
+						.collect(Collectors.toList());
+		_expected_keys = expected_keys;
+		_false_positive_rate = false_positive_rate;
+		_refresh_interval_ms = refresh_interval.toMillis();
+		_lookup_batch_size = Math.max(1, lookup_batch_size);
+	}
+
+	/** Creates a deduplication engine for a bucket, if its document schema has deduplication enabled
+	 * @param bucket - the bucket
+	 * @param service_context - the service context, whose document service the contexts are looked up in
+	 * @return the deduplication engine, or empty if deduplication is not enabled (or there is no document service)
+	 */
+	public static Optional<DeduplicationEngine> from(final DataBucketBean bucket, final IServiceContext service_context) {
+		return Optional.ofNullable(bucket.data_schema())
+				.map(DataSchemaBean::document_schema)
+				.filter(schema -> Optional.ofNullable(schema.enabled()).orElse(true) && Optional.ofNullable(schema.deduplicate()).orElse(false))
+				.flatMap(__ -> service_context.getService(IDocumentService.class, Optional.empty()))
+				.map(document_service -> new DeduplicationEngine(bucket, b -> document_service.getCrudService(JsonNode.class, b),
+						DEFAULT_EXPECTED_KEYS, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_REFRESH_INTERVAL, DEFAULT_LOOKUP_BATCH_SIZE));
+	}
+
+	/** Returns the executor that the timed flushes of buffers feeding filterDuplicates should run on
+	 *  (filterDuplicates is synchronized and blocks on its lookups, so on the shared BatchedOutputBuffer flush pool it could hold up the timed flushes of every other buffer in the process)
+	 * @return the deduplication flush executor
+	 */
+	public static Executor getFlushExecutor() {
+		return _flush_executor;
+	}
+
+	/** Removes the duplicates from a batch of objects (both objects that already exist in a context, and repeats within the batch)
+	 *  The keys of the remaining objects are then treated as existing, ie the caller is expected to write them to the bucket
+	 *  Objects missing any of the deduplication fields are never treated as duplicates
+	 * @param objects - the batch of objects
+	 * @return the objects that are not duplicates, in their original order
+	 */
+	public synchronized List<JsonNode> filterDuplicates(final List<JsonNode> objects) {
+		_num_checked.addAndGet(objects.size());
+		refreshFilters(); // (in the background)
+
+		// Build keys, removing repeats within the batch
+		final List<Object> results = new ArrayList<Object>(objects.size()); // (the key for keyed objects, else the object)
+		final Map<String, JsonNode> keyed = new LinkedHashMap<String, JsonNode>();
+		for (JsonNode object: objects) {
+			final Optional<String> key = getKey(object);
+			if (!key.isPresent()) {
+				results.add(object);
+			}
+			else if (null == keyed.putIfAbsent(key.get(), object)) {
+				results.add(key.get());
+			}
+			else {
+				_num_duplicates.incrementAndGet();
+			}
+		}
+
+		// Look up the keys that might already exist
+		final Set<String> duplicates = new HashSet<String>();
+		for (Context context: _contexts) {
+			final List<String> candidates = keyed.keySet().stream()
+					.filter(key -> !duplicates.contains(key) && context._filter.map(filter -> filter.mightContain(key)).orElse(true))
+					.collect(Collectors.toList());
+			_num_skipped_lookups.addAndGet(keyed.size() - duplicates.size() - candidates.size());
+			for (List<String> batch: Lists.partition(candidates, _lookup_batch_size)) {
+				duplicates.addAll(lookup(context, batch.stream().map(key -> keyed.get(key)).collect(Collectors.toList())));
+			}
+		}
+		_num_duplicates.addAndGet(duplicates.size());
+
+		// The survivors are about to be written, so will exist from now on
+		_contexts.stream().filter(context -> context._name.equals(_bucket.full_name())).forEach(context ->
+			keyed.keySet().stream().filter(key -> !duplicates.contains(key)).forEach(key -> {
+				context._filter.ifPresent(filter -> filter.put(key));
+				if (context._refreshing) {
+					context._written_during_refresh.add(key);
+				}
+			}));
+
+		return results.stream()
+				.filter(key_or_object -> !(key_or_object instanceof String) || !duplicates.contains(key_or_object))
+				.map(key_or_object -> (key_or_object instanceof String) ? keyed.get(key_or_object) : (JsonNode) key_or_object)
+				.collect(Collectors.toList());
+	}
+
+	/** Starts a background rebuild of the Bloom filter of each context whose filter is older than the refresh interval
+	 *  (called from filterDuplicates, so only needs to be called directly to wait for the filters)
+	 * @return a future that completes when all the rebuilds in progress have completed
+	 */
+	public synchronized CompletableFuture<Void> refreshFilters() {
+		final long now = System.currentTimeMillis();
+		return CompletableFuture.allOf(_contexts.stream().map(context -> {
+			if (!context._refreshing && ((now - context._refreshed_at) >= _refresh_interval_ms)) {
+				context._refreshing = true;
+				context._refreshed_at = now;
+				context._written_during_refresh.clear();
+				context._refresh = scanContext(context).thenApplyAsync(cursor -> buildFilter(cursor))
+										.handle((filter, error) -> {
+											synchronized (DeduplicationEngine.this) {
+												if (null != error) {
+													// (everything will be looked up until the next rebuild, so this only affects performance)
+													_logger.warn(ErrorUtils.getLongForm("Failed to read existing keys from {1}: {0}", error, context._name));
+													context._filter = Optional.empty();
+												}
+												else {
+													context._written_during_refresh.forEach(key -> filter.put(key));
+													context._filter = Optional.of(filter);
+												}
+												context._written_during_refresh.clear();
+												context._refreshing = false;
+											}
+											return null;
+										});
+			}
+			return context._refresh;
+		})
+		.toArray(CompletableFuture[]::new));
+	}
+
+	/** The bucket whose objects are being deduplicated
+	 * @return the bucket
+	 */
+	public DataBucketBean getBucket() {
+		return _bucket;
+	}
+
+	/** Returns a summary of what the engine has done
+	 * @return a map of statistic name to value: checked, duplicates, lookups (objects looked up in a context), skipped_lookups (objects not looked up because of the filter)
+	 */
+	public Map<String, Long> getStatistics() {
+		final Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("checked", _num_checked.get());
+		stats.put("duplicates", _num_duplicates.get());
+		stats.put("lookups", _num_lookups.get());
+		stats.put("skipped_lookups", _num_skipped_lookups.get());
+		return stats;
+	}
+
+	/** The deduplication fields
+	 * @return the ordered list of fields making up the key
+	 */
+	public List<String> getFields() {
+		return _fields;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns the key of an object - a hash of its deduplication field values
+	 * @param object - the object
+	 * @return the key, or empty if any of the fields is missing
+	 */
+	public Optional<String> getKey(final JsonNode object) {
+		final ArrayNode values = _mapper.createArrayNode();
+		for (String field: _fields) {
+			final JsonNode value = getField(object, field);
+			if ((null == value) || value.isNull()) {
+				return Optional.empty();
+			}
+			values.add(value);
+		}
+		return Optional.of(Hashing.murmur3_128().hashString(values.toString(), StandardCharsets.UTF_8).toString());
+	}
+
+	/** Starts reading the keys of all the objects in a context
+	 */
+	protected CompletableFuture<ICrudService.Cursor<JsonNode>> scanContext(final Context context) {
+		try {
+			return context._crud_service.getObjectsBySpec(CrudUtils.allOf(), _fields, true);
+		}
+		catch (Exception e) {
+			final CompletableFuture<ICrudService.Cursor<JsonNode>> error = new CompletableFuture<ICrudService.Cursor<JsonNode>>();
+			error.completeExceptionally(e);
+			return error;
+		}
+	}
+
+	/** Builds a Bloom filter from the keys of the objects returned by a scan of a context
+	 */
+	protected BloomFilter<CharSequence> buildFilter(final ICrudService.Cursor<JsonNode> cursor) {
+		final BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), _expected_keys, _false_positive_rate);
+		try {
+			for (JsonNode object: cursor) {
+				getKey(object).ifPresent(key -> filter.put(key));
+			}
+			return filter;
+		}
+		finally {
+			closeCursor(cursor);
+		}
+	}
+
+	/** Looks up a batch of objects in a context
+	 * @return the keys of the objects that exist in the context
+	 */
+	protected Set<String> lookup(final Context context, final List<JsonNode> objects) {
+		_num_lookups.addAndGet(objects.size());
+		final QueryComponent<JsonNode> query = (1 == _fields.size())
+				? CrudUtils.allOf().withAny(_fields.get(0), objects.stream().map(o -> toValue(getField(o, _fields.get(0)))).collect(Collectors.toList()))
+				: CrudUtils.anyOf(objects.stream().map(o -> {
+					SingleQueryComponent<JsonNode> and = CrudUtils.allOf();
+					for (String field: _fields) {
+						and = and.when(field, toValue(getField(o, field)));
+					}
+					return (QueryComponent<JsonNode>) and;
+				}));
+		final ICrudService.Cursor<JsonNode> cursor;
+		try {
+			cursor = context._crud_service.getObjectsBySpec(query, _fields, true).get();
+		}
+		catch (Exception e) {
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to look up duplicates in {1}: {0}", e, context._name), e);
+		}
+		try {
+			final Set<String> found = new HashSet<String>();
+			for (JsonNode object: cursor) {
+				getKey(object).ifPresent(key -> found.add(key));
+			}
+			return found;
+		}
+		finally {
+			closeCursor(cursor);
+		}
+	}
+
+	/** Closes a cursor whose results have been read
+	 */
+	protected static void closeCursor(final ICrudService.Cursor<JsonNode> cursor) {
+		try {
+			cursor.close();
+		}
+		catch (Exception e) {
+			_logger.warn(ErrorUtils.getLongForm("Failed to close cursor: {0}", e));
+		}
+	}
+
+	/** Returns a (dot notation) field of an object
+	 */
+	protected static JsonNode getField(final JsonNode object, final String field) {
+		JsonNode node = object;
+		for (String name: field.split("\\.")) {
+			node = (null == node) ? null : node.get(name);
+		}
+		return node;
+	}
+
+	/** Converts a JSON value into the equivalent java object, for queries
+	 */
+	protected static Object toValue(final JsonNode value) {
+		return _mapper.convertValue(value, Object.class);
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/** Geohash encoding (base 32, interleaved lon/lat bits) and the geometry needed to index and query points with it
+ *  Points are (lat, lon) in degrees, distances are in metres
+ */
+public class GeoHashUtils {
+	public static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+	public static final int MAX_PRECISION = 12;
+	public static final double EARTH_RADIUS_M = 6371008.8;
+
+	/** Encodes a point as a geohash
+	 * @param lat - latitude, -90 to 90
+	 * @param lon - longitude, -180 to 180
+	 * @param precision - the number of characters (1-12)
+	 * @return the geohash
+	 */
+	public static String encode(final double lat, final double lon, final int precision) {
+		double min_lat = -90, max_lat = 90, min_lon = -180, max_lon = 180;
+		final StringBuilder sb = new StringBuilder(precision);
+		boolean is_lon = true;
+		int bits = 0, ch = 0;
+		while (sb.length() < precision) {
+			if (is_lon) {
+				final double mid = (min_lon + max_lon)/2;
+				if (lon >= mid) { ch = (ch << 1) | 1; min_lon = mid; } else { ch <<= 1; max_lon = mid; }
+			}
+			else {
+				final double mid = (min_lat + max_lat)/2;
+				if (lat >= mid) { ch = (ch << 1) | 1; min_lat = mid; } else { ch <<= 1; max_lat = mid; }
+			}
+			is_lon = !is_lon;
+			if (5 == ++bits) {
+				sb.append(BASE32.charAt(ch));
+				bits = 0;
+				ch = 0;
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Returns the size of a geohash cell
+	 * @param precision - the geohash length
+	 * @return { height in degrees of latitude, width in degrees of longitude }
+	 */
+	public static double[] getCellSize(final int precision) {
+		final int total_bits = 5*precision;
+		final int lon_bits = (total_bits + 1)/2;
+		final int lat_bits = total_bits/2;
+		return new double[] { 180.0/(1L << lat_bits), 360.0/(1L << lon_bits) };
+	}
+
+	/** Returns the geohash cells (all of the same precision) that cover a bounding box
+	 *  The precision is the highest at which no more than max_cells are needed, so the cells are as tight as possible for the given budget
+	 * @param min_lat - the bottom of the box
+	 * @param min_lon - the left of the box (if > max_lon then the box crosses the anti-meridian)
+	 * @param max_lat - the top of the box
+	 * @param max_lon - the right of the box
+	 * @param max_cells - the max number of cells to return (at precision 1 the whole world is 32 cells)
+	 * @return the covering cells
+	 */
+	public static Set<String> cover(final double min_lat, final double min_lon, final double max_lat, final double max_lon, final int max_cells) {
+		if (min_lon > max_lon) { // (crosses the anti-meridian, so split in 2)
+			final Set<String> cells = cover(min_lat, min_lon, max_lat, 180.0, max_cells/2);
+			cells.addAll(cover(min_lat, -180.0, max_lat, max_lon, max_cells/2));
+			return cells;
+		}
+		final double bottom = Math.max(-90.0, min_lat), top = Math.min(90.0, max_lat);
+		final double left = Math.max(-180.0, min_lon), right = Math.min(180.0, max_lon);
+		int precision = MAX_PRECISION;
+		for (; precision > 1; --precision) {
+			final double[] size = getCellSize(precision);
+			final long cells = (long)(Math.floor(top/size[0]) - Math.floor(bottom/size[0]) + 1)*(long)(Math.floor(right/size[1]) - Math.floor(left/size[1]) + 1);
+			if (cells <= max_cells) break;
+		}
+		final double[] size = getCellSize(precision);
+		final Set<String> cells = new LinkedHashSet<String>();
+		for (double lat = bottom; ; lat = Math.min(top, lat + size[0])) {
+			for (double lon = left; ; lon = Math.min(right, lon + size[1])) {
+				cells.add(encode(lat, lon, precision));
+				if (lon >= right) break;
+			}
+			if (lat >= top) break;
+		}
+		return cells;
+	}
+
+	/** The great circle (haversine) distance between two points
+	 * @return the distance in metres
+	 */
+	public static double distance(final double lat1, final double lon1, final double lat2, final double lon2) {
+		final double d_lat = Math.toRadians(lat2 - lat1);
+		final double d_lon = Math.toRadians(lon2 - lon1);
+		final double a = Math.sin(d_lat/2)*Math.sin(d_lat/2) + Math.cos(Math.toRadians(lat1))*Math.cos(Math.toRadians(lat2))*Math.sin(d_lon/2)*Math.sin(d_lon/2);
+		return 2*EARTH_RADIUS_M*Math.asin(Math.min(1.0, Math.sqrt(a)));
+	}
+
+	/** Whether a point is inside a polygon (ray casting, treating lat/lon as planar - fine for polygons that don't span large distances or the anti-meridian)
+	 * @param lat - the point's latitude
+	 * @param lon - the point's longitude
+	 * @param polygon - the vertices, as { lat, lon } (the polygon is closed automatically)
+	 * @return whether the point is inside
+	 */
+	public static boolean inPolygon(final double lat, final double lon, final List<double[]> polygon) {
+		boolean inside = false;
+		for (int i = 0, j = polygon.size() - 1; i < polygon.size(); j = i++) {
+			final double[] a = polygon.get(i), b = polygon.get(j);
+			if (((a[0] > lat) != (b[0] > lat)) && (lon < (b[1] - a[1])*(lat - a[0])/(b[0] - a[0]) + a[1])) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/** Extracts a point from a JSON location
+	 *  Supported formats: GeoJSON point { "type": "Point", "coordinates": [ lon, lat ] }, [ lon, lat ], { "lat": lat, "lon"/"lng": lon }, "lat,lon"
+	 * @param location - the location (can be null)
+	 * @return { lat, lon }, or empty if it isn't a valid location
+	 */
+	public static Optional<double[]> getPoint(final JsonNode location) {
+		if (null == location) {
+			return Optional.empty();
+		}
+		if (location.has("coordinates")) {
+			return getPoint(location.get("coordinates"));
+		}
+		final List<Double> lat_lon = new ArrayList<Double>(2);
+		if (location.isArray() && (location.size() >= 2) && location.get(0).isNumber() && location.get(1).isNumber()) {
+			lat_lon.add(location.get(1).asDouble());
+			lat_lon.add(location.get(0).asDouble());
+		}
+		else if (location.isObject() && location.has("lat") && (location.has("lon") || location.has("lng"))) {
+			lat_lon.add(location.get("lat").asDouble());
+			lat_lon.add((location.has("lon") ? location.get("lon") : location.get("lng")).asDouble());
+		}
+		else if (location.isTextual() && location.asText().contains(",")) {
+			try {
+				final String[] parts = location.asText().split(",");
+				lat_lon.add(Double.parseDouble(parts[0].trim()));
+				lat_lon.add(Double.parseDouble(parts[1].trim()));
+			}
+			catch (NumberFormatException e) {
+				return Optional.empty();
+			}
+		}
+		return Optional.of(lat_lon)
+				.filter(l -> 2 == l.size())
+				.filter(l -> (Math.abs(l.get(0)) <= 90.0) && (Math.abs(l.get(1)) <= 180.0))
+				.map(l -> new double[] { l.get(0), l.get(1) });
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/** A spatial query, which is combined with a CrudUtils query (for the non-spatial fields, limit and order by) when run against a geospatial index
+ *  eg index.getObjectsBySpec(GeoQuery.radius(51.5, -0.12, 1000), CrudUtils.allOf().when("type", "cafe").limit(10))
+ *  Radius and point queries return the results nearest first unless the CRUD query specifies an order
+ */
+public abstract class GeoQuery {
+	public static final int DEFAULT_MAX_COVER_CELLS = 32;
+	public static final double POINT_TOLERANCE_M = 0.1;
+
+	protected GeoQuery() {}
+
+	/** The bounding box of the query, as { min_lat, min_lon, max_lat, max_lon } (min_lon > max_lon if it crosses the anti-meridian)
+	 */
+	public abstract double[] getBoundingBox();
+
+	/** Whether a point matches the query
+	 */
+	public abstract boolean contains(final double lat, final double lon);
+
+	/** The distance from the query's centre to a point, for queries that have one (used to order the results)
+	 */
+	public Optional<Double> getDistance(final double lat, final double lon) {
+		return Optional.empty();
+	}
+
+	/** The geohash cells that must be searched to find all matching points
+	 */
+	public Set<String> getCells() {
+		final double[] box = getBoundingBox();
+		return GeoHashUtils.cover(box[0], box[1], box[2], box[3], DEFAULT_MAX_COVER_CELLS);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// QUERIES
+
+	/** Points at a location (to within POINT_TOLERANCE_M)
+	 */
+	public static GeoQuery point(final double lat, final double lon) {
+		return radius(lat, lon, POINT_TOLERANCE_M);
+	}
+
+	/** Points within a distance of a location
+	 * @param lat - the centre's latitude
+	 * @param lon - the centre's longitude
+	 * @param radius_m - the distance in metres
+	 */
+	public static GeoQuery radius(final double lat, final double lon, final double radius_m) {
+		return new GeoQuery() {
+			public double[] getBoundingBox() {
+				final double d_lat = Math.toDegrees(radius_m/GeoHashUtils.EARTH_RADIUS_M);
+				final double cos_lat = Math.cos(Math.toRadians(Math.min(89.9999, Math.abs(lat) + d_lat)));
+				final double d_lon = Math.min(180.0, d_lat/cos_lat);
+				if ((lat + d_lat >= 90.0) || (lat - d_lat <= -90.0) || (d_lon >= 180.0)) { // (includes a pole)
+					return new double[] { Math.max(-90.0, lat - d_lat), -180.0, Math.min(90.0, lat + d_lat), 180.0 };
+				}
+				return new double[] { lat - d_lat, wrap(lon - d_lon), lat + d_lat, wrap(lon + d_lon) };
+			}
+			public boolean contains(final double p_lat, final double p_lon) {
+				return GeoHashUtils.distance(lat, lon, p_lat, p_lon) <= radius_m;
+			}
+			public Optional<Double> getDistance(final double p_lat, final double p_lon) {
+				return Optional.of(GeoHashUtils.distance(lat, lon, p_lat, p_lon));
+			}
+		};
+	}
+
+	/** Points within a bounding box
+	 * @param min_lat - the bottom of the box
+	 * @param min_lon - the left of the box (if > max_lon then the box crosses the anti-meridian)
+	 * @param max_lat - the top of the box
+	 * @param max_lon - the right of the box
+	 */
+	public static GeoQuery box(final double min_lat, final double min_lon, final double max_lat, final double max_lon) {
+		return new GeoQuery() {
+			public double[] getBoundingBox() {
+				return new double[] { min_lat, min_lon, max_lat, max_lon };
+			}
+			public boolean contains(final double lat, final double lon) {
+				return (lat >= min_lat) && (lat <= max_lat) && ((min_lon <= max_lon) ? ((lon >= min_lon) && (lon <= max_lon)) : ((lon >= min_lon) || (lon <= max_lon)));
+			}
+		};
+	}
+
+	/** Points within a polygon (see GeoHashUtils.inPolygon for restrictions)
+	 * @param vertices - the vertices, as { lat, lon }
+	 */
+	public static GeoQuery polygon(final List<double[]> vertices) {
+		final List<double[]> polygon = Collections.unmodifiableList(new ArrayList<double[]>(vertices));
+		return new GeoQuery() {
+			public double[] getBoundingBox() {
+				return new double[] {
+						polygon.stream().mapToDouble(v -> v[0]).min().orElse(0.0), polygon.stream().mapToDouble(v -> v[1]).min().orElse(0.0),
+						polygon.stream().mapToDouble(v -> v[0]).max().orElse(0.0), polygon.stream().mapToDouble(v -> v[1]).max().orElse(0.0)
+				};
+			}
+			public boolean contains(final double lat, final double lon) {
+				return GeoHashUtils.inPolygon(lat, lon, polygon);
+			}
+		};
+	}
+
+	/** Normalizes a longitude to -180 to 180
+	 */
+	protected static double wrap(final double lon) {
+		return (lon > 180.0) ? (lon - 360.0) : (lon < -180.0) ? (lon + 360.0) : lon;
+	}
+}
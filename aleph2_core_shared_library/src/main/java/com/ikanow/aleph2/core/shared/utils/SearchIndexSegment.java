@@ -0,0 +1,608 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** A single segment of an embedded full text index - an append-only file of newline-separated JSON documents, plus an offsets file
+ *  (the start of each document, so documents are read back from disk rather than held in memory)
+ *  While a segment is being written its postings (field -> term -> documents) are held in memory (and rebuilt from the file if it is re-opened);
+ *  once it is full it is sealed: the postings are written to sorted term and value dictionaries which are memory mapped, so sealed segments
+ *  take no heap beyond the current query's results, and are not re-indexed when opened
+ *  Each field is indexed twice: tokenized (lower case words, for queries) and as whole values (for facets and ranges)
+ *  Nested fields are indexed using dot notation, array elements under the array's field, and all tokens are also indexed under ALL_FIELD
+ *  Not thread safe for writes - see LocalSearchIndex for locking
+ */
+public class SearchIndexSegment implements AutoCloseable {
+
+	/** The field under which all the tokens of a document are indexed (used for queries that don't specify a field) */
+	public static final String ALL_FIELD = "_all";
+
+	public static final String OFFSETS_SUFFIX = ".offsets";
+	public static final String TERMS_SUFFIX = ".terms";
+	public static final String VALUES_SUFFIX = ".values";
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected final Optional<File> _file;
+	protected final List<JsonNode> _docs = new ArrayList<JsonNode>(); // (only used if the segment is in memory only)
+	protected Postings _postings = new InMemoryPostings();
+	protected Postings _values = new InMemoryPostings();
+	protected boolean _sealed = false;
+	protected int _num_docs = 0;
+	protected long _size_bytes = 0L;
+	protected FileChannel _doc_reader = null;
+	protected FileChannel _offset_reader = null;
+
+	/** User c'tor - creates an empty segment
+	 * @param file - the file to which documents are appended (if empty, the segment is in memory only)
+	 */
+	public SearchIndexSegment(final Optional<File> file) {
+		_file = file;
+	}
+
+	/** Opens an existing segment file - if it has been sealed then its dictionaries are mapped, otherwise its documents are re-indexed
+	 * @param file - the segment file
+	 * @return the segment
+	 */
+	public static SearchIndexSegment open(final File file) {
+		final SearchIndexSegment segment = new SearchIndexSegment(Optional.of(file));
+		final File offsets = getFile(file, OFFSETS_SUFFIX);
+		if (file.exists() && offsets.exists() && getFile(file, TERMS_SUFFIX).exists() && getFile(file, VALUES_SUFFIX).exists()) {
+			segment._num_docs = (int) (offsets.length() / 8L);
+			segment._size_bytes = file.length();
+			segment.mapDictionaries();
+		}
+		else if (file.exists()) { // (still being written, or written before offsets were stored - re-index it and re-write the offsets)
+			try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+					DataOutputStream offsets_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsets))))
+			{
+				final ByteArrayOutputStream line = new ByteArrayOutputStream();
+				long offset = 0L;
+				for (int b = in.read(); b >= 0; b = in.read()) {
+					if ('\n' != b) {
+						line.write(b);
+						continue;
+					}
+					if (line.size() > 0) {
+						offsets_out.writeLong(offset);
+						segment.index(_mapper.readTree(line.toByteArray()));
+					}
+					offset += line.size() + 1;
+					line.reset();
+				}
+				segment._size_bytes = offset;
+			}
+			catch (IOException e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("Failed to read {1}: {0}", e, file), e);
+			}
+			if (file.length() > segment._size_bytes) { // (discard any partly written last line, so that appends start at the right offset)
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(segment._size_bytes);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(ErrorUtils.getLongForm("Failed to write to {1}: {0}", e, file), e);
+				}
+			}
+		}
+		return segment;
+	}
+
+	/** Appends documents to the segment (writes them and their offsets to disk, then indexes them)
+	 * @param docs - the documents to add
+	 */
+	public void add(final List<JsonNode> docs) {
+		if (_sealed) {
+			throw new IllegalStateException(ErrorUtils.get("Segment {0} is sealed", _file.map(File::toString).orElse("")));
+		}
+		final List<byte[]> lines = docs.stream().map(doc -> doc.toString().getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+		_file.ifPresent(file -> {
+			file.getParentFile().mkdirs();
+			// (documents first, so the offsets never point past the end of the file)
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))) {
+				for (byte[] line: lines) {
+					out.write(line);
+					out.write('\n');
+				}
+			}
+			catch (IOException e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("Failed to write to {1}: {0}", e, file), e);
+			}
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getFile(file, OFFSETS_SUFFIX), true)))) {
+				long offset = _size_bytes;
+				for (byte[] line: lines) {
+					out.writeLong(offset);
+					offset += line.length + 1;
+				}
+			}
+			catch (IOException e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("Failed to write to {1}: {0}", e, file), e);
+			}
+		});
+		lines.forEach(line -> _size_bytes += line.length + 1);
+		docs.forEach(doc -> index(doc));
+	}
+
+	/** Writes the in-memory postings to the term and value dictionaries and maps them, after which no more documents can be added
+	 *  (in-memory only segments are left as they are)
+	 */
+	public void seal() {
+		if (_sealed || !_file.isPresent()) {
+			return;
+		}
+		TermDictionary.write(getFile(_file.get(), TERMS_SUFFIX), ((InMemoryPostings) _postings)._postings);
+		TermDictionary.write(getFile(_file.get(), VALUES_SUFFIX), ((InMemoryPostings) _values)._postings);
+		mapDictionaries();
+	}
+
+	/** Whether the segment has been sealed (see seal)
+	 * @return whether the segment is sealed
+	 */
+	public boolean isSealed() {
+		return _sealed;
+	}
+
+	/** The number of documents in the segment
+	 * @return the number of documents
+	 */
+	public int size() {
+		return _num_docs;
+	}
+
+	/** The (approximate) size of the segment's documents on disk
+	 * @return the size in bytes
+	 */
+	public long sizeBytes() {
+		return _size_bytes;
+	}
+
+	/** The segment's file
+	 * @return the file, or empty if the segment is in memory only
+	 */
+	public Optional<File> getFile() {
+		return _file;
+	}
+
+	/** Returns a document (read from disk)
+	 * @param doc - the document number within the segment
+	 * @return the document
+	 */
+	public JsonNode get(final int doc) {
+		if (!_file.isPresent()) {
+			return _docs.get(doc);
+		}
+		try {
+			final ByteBuffer offsets = ByteBuffer.allocate(16);
+			readFully(getOffsetReader(), offsets, 8L*doc, (doc + 1 < _num_docs) ? 16 : 8);
+			final long start = offsets.getLong(0);
+			final long end = (doc + 1 < _num_docs) ? offsets.getLong(8) : _size_bytes;
+			final ByteBuffer line = ByteBuffer.allocate((int) (end - start - 1)); // (excluding the newline)
+			readFully(getDocReader(), line, start, line.capacity());
+			return _mapper.readTree(line.array());
+		}
+		catch (IOException e) {
+			throw new RuntimeException(ErrorUtils.getLongForm("Failed to read {1}: {0}", e, _file.get()), e);
+		}
+	}
+
+	/** Closes the segment's files (it can't be read afterwards)
+	 */
+	@Override
+	public synchronized void close() {
+		for (FileChannel channel: Arrays.asList(_doc_reader, _offset_reader)) {
+			try {
+				if (null != channel) channel.close();
+			}
+			catch (IOException e) {}
+		}
+		_doc_reader = null;
+		_offset_reader = null;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// QUERIES
+
+	/** Returns all the documents in the segment
+	 * @return a new bit set with a bit set for each document
+	 */
+	public BitSet all() {
+		final BitSet all = new BitSet(_num_docs);
+		all.set(0, _num_docs);
+		return all;
+	}
+
+	/** Returns the documents containing a token in a field
+	 * @param field - the field (dot notation, or ALL_FIELD)
+	 * @param term - the (lower case) token
+	 * @return a new bit set of the matching documents
+	 */
+	public BitSet term(final String field, final String term) {
+		return _postings.get(field, term);
+	}
+
+	/** Returns the documents containing a token starting with a prefix in a field
+	 * @param field - the field (dot notation, or ALL_FIELD)
+	 * @param prefix - the (lower case) prefix
+	 * @return a new bit set of the matching documents
+	 */
+	public BitSet prefix(final String field, final String prefix) {
+		return union(_postings, field, prefix, __ -> true);
+	}
+
+	/** Returns the documents with a value in a range in a field (compared numerically if both the value and the bounds are numbers, else as strings)
+	 * @param field - the field (dot notation)
+	 * @param lower - the lower bound, if any
+	 * @param upper - the upper bound, if any
+	 * @param include_lower - whether the lower bound is inclusive
+	 * @param include_upper - whether the upper bound is inclusive
+	 * @return a new bit set of the matching documents
+	 */
+	public BitSet range(final String field, final Optional<String> lower, final Optional<String> upper, final boolean include_lower, final boolean include_upper) {
+		return union(_values, field, "", value -> {
+			final int cmp_lower = lower.map(l -> compare(value, l)).orElse(1);
+			final int cmp_upper = upper.map(u -> compare(value, u)).orElse(-1);
+			return (include_lower ? cmp_lower >= 0 : cmp_lower > 0) && (include_upper ? cmp_upper <= 0 : cmp_upper < 0);
+		});
+	}
+
+	/** Returns the documents that have a value for a field
+	 * @param field - the field (dot notation)
+	 * @return a new bit set of the matching documents
+	 */
+	public BitSet exists(final String field) {
+		return union(_values, field, "", __ -> true);
+	}
+
+	/** The number of documents containing a token in a field (for scoring)
+	 * @param field - the field (dot notation, or ALL_FIELD)
+	 * @param term - the (lower case) token
+	 * @return the number of matching documents
+	 */
+	public int docFreq(final String field, final String term) {
+		return _postings.docFreq(field, term);
+	}
+
+	/** Counts the values of a field over a set of documents
+	 * @param field - the field (dot notation)
+	 * @param docs - the documents to count over
+	 * @return a map of value to the number of documents in the set having that value
+	 */
+	public Map<String, Long> facet(final String field, final BitSet docs) {
+		final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		_values.forEach(field, "", (value, bits) -> {
+			final BitSet matches = (BitSet) bits.clone();
+			matches.and(docs);
+			if (!matches.isEmpty()) {
+				counts.put(value, (long) matches.cardinality());
+			}
+		});
+		return counts;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// POSTINGS
+
+	/** A map of field -> term -> documents, either in memory or on disk
+	 */
+	protected interface Postings {
+		/** Returns the documents of a term (a new bit set, empty if the term isn't present) */
+		BitSet get(String field, String term);
+		/** Returns the number of documents of a term */
+		int docFreq(String field, String term);
+		/** Calls the consumer with each term (and its documents, which must not be modified) of a field starting with the prefix */
+		void forEach(String field, String prefix, BiConsumer<String, BitSet> consumer);
+	}
+
+	/** The postings of a segment that is still being written
+	 */
+	protected static class InMemoryPostings implements Postings {
+		protected final Map<String, Map<String, BitSet>> _postings = new HashMap<>();
+
+		public void add(final String field, final String term, final int doc) {
+			_postings.computeIfAbsent(field, __ -> new HashMap<>()).computeIfAbsent(term, __ -> new BitSet()).set(doc);
+		}
+		public BitSet get(final String field, final String term) {
+			return Optional.ofNullable(_postings.get(field)).map(terms -> terms.get(term)).map(bits -> (BitSet) bits.clone()).orElseGet(() -> new BitSet());
+		}
+		public int docFreq(final String field, final String term) {
+			return Optional.ofNullable(_postings.get(field)).map(terms -> terms.get(term)).map(bits -> bits.cardinality()).orElse(0);
+		}
+		public void forEach(final String field, final String prefix, final BiConsumer<String, BitSet> consumer) {
+			Optional.ofNullable(_postings.get(field)).ifPresent(terms -> terms.forEach((term, docs) -> {
+				if (term.startsWith(prefix)) {
+					consumer.accept(term, docs);
+				}
+			}));
+		}
+	}
+
+	/** The postings of a sealed segment - a memory mapped file of "<field>\0<term>" keys, sorted so that terms can be found by binary search
+	 *  (and the terms of a field with a given prefix are contiguous), each with its (ascending) document numbers:
+	 *  [int: number of keys] [per key: int key offset, int documents offset, int number of documents] [keys: int length, UTF-8 bytes] [documents: ints]
+	 */
+	protected static class TermDictionary implements Postings {
+		protected static final char SEPARATOR = '\0';
+
+		protected final ByteBuffer _buffer;
+		protected final int _num_keys;
+
+		/** Maps a dictionary file
+		 * @param file - the dictionary file
+		 */
+		protected TermDictionary(final File file) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()); // (remains valid after the channel is closed)
+				_num_keys = _buffer.getInt(0);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("Failed to read {1}: {0}", e, file), e);
+			}
+		}
+
+		/** Writes a dictionary file (to a temp file that is then moved into place, so a partly written dictionary is never read)
+		 * @param file - the dictionary file
+		 * @param postings - the in-memory postings
+		 */
+		protected static void write(final File file, final Map<String, Map<String, BitSet>> postings) {
+			final TreeMap<String, BitSet> sorted = new TreeMap<String, BitSet>();
+			postings.forEach((field, terms) -> terms.forEach((term, docs) -> sorted.put(field + SEPARATOR + term, docs)));
+			final List<byte[]> keys = sorted.keySet().stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+
+			final long keys_offset = 4L + 12L*keys.size();
+			final long docs_offset = keys_offset + keys.stream().mapToLong(key -> 4L + key.length).sum();
+			final long total_size = docs_offset + 4L*sorted.values().stream().mapToLong(docs -> docs.cardinality()).sum();
+			if (total_size > Integer.MAX_VALUE) {
+				throw new RuntimeException(ErrorUtils.get("Dictionary {0} is too large ({1} bytes), reduce the target index size", file, total_size));
+			}
+			final File tmp_file = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp_file)))) {
+					out.writeInt(keys.size());
+					long key_offset = keys_offset;
+					long doc_offset = docs_offset;
+					final Iterator<byte[]> key_it = keys.iterator();
+					for (BitSet docs: sorted.values()) {
+						out.writeInt((int) key_offset);
+						out.writeInt((int) doc_offset);
+						out.writeInt(docs.cardinality());
+						key_offset += 4L + key_it.next().length;
+						doc_offset += 4L*docs.cardinality();
+					}
+					for (byte[] key: keys) {
+						out.writeInt(key.length);
+						out.write(key);
+					}
+					for (BitSet docs: sorted.values()) {
+						for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+							out.writeInt(doc);
+						}
+					}
+				}
+				Files.move(tmp_file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("Failed to write {1}: {0}", e, file), e);
+			}
+		}
+
+		public BitSet get(final String field, final String term) {
+			final int index = find(field + SEPARATOR + term);
+			return (index >= 0) ? getDocs(index) : new BitSet();
+		}
+		public int docFreq(final String field, final String term) {
+			final int index = find(field + SEPARATOR + term);
+			return (index >= 0) ? _buffer.getInt(4 + 12*index + 8) : 0;
+		}
+		public void forEach(final String field, final String prefix, final BiConsumer<String, BitSet> consumer) {
+			final String key_prefix = field + SEPARATOR + prefix;
+			final int start = find(key_prefix);
+			for (int index = (start >= 0) ? start : (-start - 1); index < _num_keys; ++index) {
+				final String key = getKey(index);
+				if (!key.startsWith(key_prefix)) {
+					break;
+				}
+				consumer.accept(key.substring(field.length() + 1), getDocs(index));
+			}
+		}
+
+		/** Binary searches for a key
+		 * @return the index of the key, or (-(insertion point) - 1) if it isn't present
+		 */
+		protected int find(final String key) {
+			int low = 0;
+			int high = _num_keys - 1;
+			while (low <= high) {
+				final int mid = (low + high) >>> 1;
+				final int cmp = getKey(mid).compareTo(key);
+				if (cmp < 0) low = mid + 1;
+				else if (cmp > 0) high = mid - 1;
+				else return mid;
+			}
+			return -(low + 1);
+		}
+
+		/** Reads a key (using absolute gets, so concurrent readers don't interfere) */
+		protected String getKey(final int index) {
+			final int offset = _buffer.getInt(4 + 12*index);
+			final byte[] key = new byte[_buffer.getInt(offset)];
+			for (int i = 0; i < key.length; ++i) {
+				key[i] = _buffer.get(offset + 4 + i);
+			}
+			return new String(key, StandardCharsets.UTF_8);
+		}
+
+		/** Reads the documents of a key into a new bit set */
+		protected BitSet getDocs(final int index) {
+			final int offset = _buffer.getInt(4 + 12*index + 4);
+			final int count = _buffer.getInt(4 + 12*index + 8);
+			final BitSet docs = new BitSet();
+			for (int i = 0; i < count; ++i) {
+				docs.set(_buffer.getInt(offset + 4*i));
+			}
+			return docs;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Splits text into lower case tokens (on anything other than letters, digits, '.' and '_' - leading/trailing '.'s are removed)
+	 * @param text - the text to tokenize
+	 * @return the tokens
+	 */
+	public static List<String> tokenize(final String text) {
+		return Arrays.stream(text.toLowerCase().split("[^\\p{L}\\p{N}._]+"))
+				.map(token -> token.replaceAll("^\\.+|\\.+$", ""))
+				.filter(token -> !token.isEmpty())
+				.collect(Collectors.toList());
+	}
+
+	/** Returns one of the files that accompanies a segment file (eg OFFSETS_SUFFIX)
+	 * @param segment - the segment file
+	 * @param suffix - the suffix of the accompanying file
+	 * @return the accompanying file
+	 */
+	public static File getFile(final File segment, final String suffix) {
+		return new File(segment.getParentFile(), segment.getName() + suffix);
+	}
+
+	/** Maps the term and value dictionaries, and releases the in-memory postings
+	 */
+	protected void mapDictionaries() {
+		_postings = new TermDictionary(getFile(_file.get(), TERMS_SUFFIX));
+		_values = new TermDictionary(getFile(_file.get(), VALUES_SUFFIX));
+		_sealed = true;
+	}
+
+	/** Adds a document to the in-memory postings
+	 */
+	protected void index(final JsonNode doc) {
+		final int doc_num = _num_docs++;
+		if (!_file.isPresent()) {
+			_docs.add(doc);
+		}
+		index(doc_num, "", doc);
+	}
+
+	/** Recursively indexes a document's fields
+	 */
+	protected void index(final int doc_num, final String field, final JsonNode node) {
+		if (node.isObject()) {
+			node.fields().forEachRemaining(kv -> index(doc_num, field.isEmpty() ? kv.getKey() : (field + "." + kv.getKey()), kv.getValue()));
+		}
+		else if (node.isArray()) {
+			node.forEach(element -> index(doc_num, field, element));
+		}
+		else if (!node.isNull() && !field.isEmpty()) {
+			final String value = node.asText();
+			((InMemoryPostings) _values).add(field, value, doc_num);
+			for (String token: node.isTextual() ? tokenize(value) : Collections.singletonList(value.toLowerCase())) {
+				((InMemoryPostings) _postings).add(field, token, doc_num);
+				((InMemoryPostings) _postings).add(ALL_FIELD, token, doc_num);
+			}
+		}
+	}
+
+	/** Returns the union of the documents of all the terms/values of a field starting with a prefix and matching a predicate
+	 */
+	protected static BitSet union(final Postings postings, final String field, final String prefix, final Predicate<String> filter) {
+		final BitSet bits = new BitSet();
+		postings.forEach(field, prefix, (term, docs) -> {
+			if (filter.test(term)) {
+				bits.or(docs);
+			}
+		});
+		return bits;
+	}
+
+	/** Compares 2 values, numerically if both are numbers, else as strings
+	 */
+	protected static int compare(final String a, final String b) {
+		try {
+			return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+		}
+		catch (NumberFormatException e) {
+			return a.compareTo(b);
+		}
+	}
+
+	/** Returns the (lazily opened) channel from which documents are read
+	 */
+	protected synchronized FileChannel getDocReader() throws IOException {
+		if (null == _doc_reader) {
+			_doc_reader = FileChannel.open(_file.get().toPath(), StandardOpenOption.READ);
+		}
+		return _doc_reader;
+	}
+
+	/** Returns the (lazily opened) channel from which document offsets are read
+	 */
+	protected synchronized FileChannel getOffsetReader() throws IOException {
+		if (null == _offset_reader) {
+			_offset_reader = FileChannel.open(getFile(_file.get(), OFFSETS_SUFFIX).toPath(), StandardOpenOption.READ);
+		}
+		return _offset_reader;
+	}
+
+	/** Reads bytes from a position in a file (positional reads, so concurrent readers don't interfere)
+	 */
+	protected static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position, final int length) throws IOException {
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+import fj.data.Validation;
+
+/** Parses the common subset of the Lucene query syntax into queries that can be run against a SearchIndexSegment:
+ *  - terms: word, field:word, field:"some words" (all the words must be present in the field), prefixes: field:wor*
+ *  - ranges: field:[a TO b], field:{a TO b}, field:[a TO *] (numeric if the bounds are numbers)
+ *  - existence: field:*, and *:* for all documents
+ *  - operators: AND/&amp;&amp;, OR/||, NOT/!/-, +, and grouping with (), including field:(a b)
+ *  Clauses with no operator are OR'd together (Lucene's default), and AND binds more tightly than OR
+ *  Terms without a field are matched against SearchIndexSegment.ALL_FIELD
+ *  Scoring is simple: the sum of the IDFs of the matching terms (other clause types contribute a constant 1)
+ */
+public class SearchQueryParser {
+
+	public static final String PARSE_ERROR = "Failed to parse query {0} at position {1}: {2}";
+
+	/** A parsed query
+	 */
+	public static interface Query {
+		/** Returns the matching documents of a segment
+		 * @param segment - the segment to query
+		 * @return a new bit set of the matching documents
+		 */
+		BitSet matches(final SearchIndexSegment segment);
+
+		/** Adds this query's contribution to the scores of the matching documents
+		 * @param segment - the segment to query
+		 * @param docs - the documents to score (usually the output of matches)
+		 * @param scores - the scores, indexed by document number
+		 */
+		void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores);
+	}
+
+	/** Parses a query string
+	 * @param query_string - the query in (a subset of) Lucene syntax
+	 * @return the query, or a parse error
+	 */
+	public static Validation<String, Query> parse(final String query_string) {
+		try {
+			final SearchQueryParser parser = new SearchQueryParser(query_string);
+			final Query query = parser.parseOr(SearchIndexSegment.ALL_FIELD);
+			if (parser._pos < parser._tokens.size()) {
+				throw parser.error("unexpected " + parser._tokens.get(parser._pos)._text);
+			}
+			return Validation.success(query);
+		}
+		catch (IllegalArgumentException e) {
+			return Validation.fail(e.getMessage());
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// QUERY TYPES
+
+	/** Matches every document */
+	public static class MatchAllQuery implements Query {
+		public BitSet matches(final SearchIndexSegment segment) {
+			return segment.all();
+		}
+		public void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores) {
+			docs.stream().forEach(doc -> scores[doc] += 1.0);
+		}
+	}
+
+	/** Matches documents containing all of a list of tokens in a field */
+	public static class TermsQuery implements Query {
+		protected final String _field;
+		protected final List<String> _terms;
+		public TermsQuery(final String field, final List<String> terms) {
+			_field = field;
+			_terms = terms;
+		}
+		public BitSet matches(final SearchIndexSegment segment) {
+			if (_terms.isEmpty()) {
+				return new BitSet();
+			}
+			final BitSet bits = segment.term(_field, _terms.get(0));
+			_terms.stream().skip(1).forEach(term -> bits.and(segment.term(_field, term)));
+			return bits;
+		}
+		public void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores) {
+			for (String term: _terms) {
+				final BitSet bits = segment.term(_field, term);
+				final double idf = Math.log(1.0 + (double) segment.size() / (double) Math.max(1, bits.cardinality()));
+				bits.and(docs);
+				bits.stream().forEach(doc -> scores[doc] += idf);
+			}
+		}
+	}
+
+	/** Matches documents containing a token starting with a prefix in a field */
+	public static class PrefixQuery implements Query {
+		protected final String _field;
+		protected final String _prefix;
+		public PrefixQuery(final String field, final String prefix) {
+			_field = field;
+			_prefix = prefix;
+		}
+		public BitSet matches(final SearchIndexSegment segment) {
+			return segment.prefix(_field, _prefix);
+		}
+		public void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores) {
+			final BitSet bits = matches(segment);
+			bits.and(docs);
+			bits.stream().forEach(doc -> scores[doc] += 1.0);
+		}
+	}
+
+	/** Matches documents with a value in a range in a field */
+	public static class RangeQuery implements Query {
+		protected final String _field;
+		protected final Optional<String> _lower;
+		protected final Optional<String> _upper;
+		protected final boolean _include_lower;
+		protected final boolean _include_upper;
+		public RangeQuery(final String field, final Optional<String> lower, final Optional<String> upper, final boolean include_lower, final boolean include_upper) {
+			_field = field;
+			_lower = lower;
+			_upper = upper;
+			_include_lower = include_lower;
+			_include_upper = include_upper;
+		}
+		public BitSet matches(final SearchIndexSegment segment) {
+			return segment.range(_field, _lower, _upper, _include_lower, _include_upper);
+		}
+		public void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores) {
+			final BitSet bits = matches(segment);
+			bits.and(docs);
+			bits.stream().forEach(doc -> scores[doc] += 1.0);
+		}
+	}
+
+	/** Matches documents with any value in a field */
+	public static class ExistsQuery implements Query {
+		protected final String _field;
+		public ExistsQuery(final String field) {
+			_field = field;
+		}
+		public BitSet matches(final SearchIndexSegment segment) {
+			return segment.exists(_field);
+		}
+		public void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores) {
+			final BitSet bits = matches(segment);
+			bits.and(docs);
+			bits.stream().forEach(doc -> scores[doc] += 1.0);
+		}
+	}
+
+	/** Whether a boolean clause is required, optional or prohibited */
+	public static enum Occur { must, should, must_not }
+
+	/** Combines clauses: if there are any required clauses then all of them must match (optional clauses then only affect the score),
+	 *  else at least one optional clause must match - in both cases no prohibited clause can match
+	 *  (a query of only prohibited clauses matches all other documents)
+	 */
+	public static class BooleanQuery implements Query {
+		protected final List<Occur> _occurs = new ArrayList<Occur>();
+		protected final List<Query> _clauses = new ArrayList<Query>();
+		public BooleanQuery add(final Occur occur, final Query query) {
+			_occurs.add(occur);
+			_clauses.add(query);
+			return this;
+		}
+		public BitSet matches(final SearchIndexSegment segment) {
+			BitSet required = null;
+			BitSet optional = null;
+			for (int i = 0; i < _clauses.size(); ++i) {
+				if (Occur.must == _occurs.get(i)) {
+					final BitSet bits = _clauses.get(i).matches(segment);
+					if (null == required) required = bits; else required.and(bits);
+				}
+				else if (Occur.should == _occurs.get(i)) {
+					final BitSet bits = _clauses.get(i).matches(segment);
+					if (null == optional) optional = bits; else optional.or(bits);
+				}
+			}
+			final BitSet result = (null != required) ? required : (null != optional) ? optional : segment.all();
+			for (int i = 0; i < _clauses.size(); ++i) {
+				if (Occur.must_not == _occurs.get(i)) {
+					result.andNot(_clauses.get(i).matches(segment));
+				}
+			}
+			return result;
+		}
+		public void score(final SearchIndexSegment segment, final BitSet docs, final double[] scores) {
+			for (int i = 0; i < _clauses.size(); ++i) {
+				if (Occur.must_not != _occurs.get(i)) {
+					_clauses.get(i).score(segment, docs, scores);
+				}
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// PARSER
+
+	protected static enum TokenType { lparen, rparen, plus, not, and, or, quoted, range, field, word }
+
+	protected static class Token {
+		final TokenType _type;
+		final String _text;
+		final int _offset;
+		Token(final TokenType type, final String text, final int offset) {
+			_type = type;
+			_text = text;
+			_offset = offset;
+		}
+	}
+
+	protected final String _query_string;
+	protected final List<Token> _tokens;
+	protected int _pos = 0;
+
+	protected SearchQueryParser(final String query_string) {
+		_query_string = query_string;
+		_tokens = lex(query_string);
+	}
+
+	/** or_expr := and_expr ([OR] and_expr)* */
+	protected Query parseOr(final String field) {
+		final BooleanQuery query = new BooleanQuery();
+		int num_clauses = 0;
+		while (_pos < _tokens.size() && (TokenType.rparen != peek())) {
+			if (TokenType.or == peek()) {
+				if (0 == num_clauses) throw error("OR without a left hand side");
+				++_pos;
+			}
+			parseAnd(field, query);
+			++num_clauses;
+		}
+		if (0 == num_clauses) {
+			throw error("empty query");
+		}
+		return (1 == num_clauses) && (Occur.should == query._occurs.get(0)) ? query._clauses.get(0) : query;
+	}
+
+	/** and_expr := unary (AND unary)* - adds the result to the enclosing boolean query */
+	protected void parseAnd(final String field, final BooleanQuery parent) {
+		final BooleanQuery and = new BooleanQuery();
+		parseUnary(field, and);
+		while (_pos < _tokens.size() && (TokenType.and == peek())) {
+			++_pos;
+			parseUnary(field, and);
+		}
+		if (1 == and._clauses.size()) {
+			parent.add(and._occurs.get(0), and._clauses.get(0));
+		}
+		else {
+			final BooleanQuery required = new BooleanQuery();
+			for (int i = 0; i < and._clauses.size(); ++i) {
+				required.add((Occur.must_not == and._occurs.get(i)) ? Occur.must_not : Occur.must, and._clauses.get(i));
+			}
+			parent.add(Occur.should, required);
+		}
+	}
+
+	/** unary := (+|-|!|NOT) unary | primary */
+	protected void parseUnary(final String field, final BooleanQuery parent) {
+		if (_pos >= _tokens.size()) throw error("unexpected end of query");
+		if (TokenType.plus == peek()) {
+			++_pos;
+			parent.add(Occur.must, parsePrimary(field));
+		}
+		else if (TokenType.not == peek()) {
+			++_pos;
+			parent.add(Occur.must_not, parsePrimary(field));
+		}
+		else {
+			parent.add(Occur.should, parsePrimary(field));
+		}
+	}
+
+	/** primary := ( or_expr ) | field: primary | "quoted" | [range] | word */
+	protected Query parsePrimary(final String field) {
+		if (_pos >= _tokens.size()) throw error("unexpected end of query");
+		final Token token = _tokens.get(_pos++);
+		switch (token._type) {
+			case lparen:
+				final Query group = parseOr(field);
+				if (_pos >= _tokens.size() || (TokenType.rparen != peek())) throw error("missing )");
+				++_pos;
+				return group;
+			case field:
+				return parsePrimary(token._text);
+			case quoted:
+				return new TermsQuery(field, SearchIndexSegment.tokenize(token._text));
+			case range:
+				return parseRange(field, token);
+			case word:
+				if (token._text.equals("*")) {
+					return (field.equals("*") || field.equals(SearchIndexSegment.ALL_FIELD)) ? new MatchAllQuery() : new ExistsQuery(field);
+				}
+				else if (token._text.endsWith("*")) {
+					return new PrefixQuery(field, token._text.substring(0, token._text.length() - 1).toLowerCase());
+				}
+				return new TermsQuery(field, SearchIndexSegment.tokenize(token._text));
+			default:
+				--_pos;
+				throw error("unexpected " + token._text);
+		}
+	}
+
+	/** [lower TO upper] or {lower TO upper} (* for an open bound) */
+	protected Query parseRange(final String field, final Token token) {
+		final String[] bounds = token._text.substring(1, token._text.length() - 1).trim().split("\\s+TO\\s+");
+		if (2 != bounds.length) throw error("invalid range " + token._text);
+		final Optional<String> lower = Optional.of(unquote(bounds[0].trim())).filter(s -> !s.equals("*"));
+		final Optional<String> upper = Optional.of(unquote(bounds[1].trim())).filter(s -> !s.equals("*"));
+		return new RangeQuery(field, lower, upper, token._text.startsWith("["), token._text.endsWith("]"));
+	}
+
+	protected TokenType peek() {
+		return _tokens.get(_pos)._type;
+	}
+
+	protected IllegalArgumentException error(final String reason) {
+		final int offset = (_pos < _tokens.size()) ? _tokens.get(_pos)._offset : _query_string.length();
+		return new IllegalArgumentException(ErrorUtils.get(PARSE_ERROR, _query_string, offset, reason));
+	}
+
+	protected static String unquote(final String s) {
+		return (s.length() > 1 && s.startsWith("\"") && s.endsWith("\"")) ? s.substring(1, s.length() - 1) : s;
+	}
+
+	/** Splits a query string into tokens (\ escapes the next character in words and quoted strings)
+	 */
+	protected static List<Token> lex(final String query_string) {
+		final List<Token> tokens = new ArrayList<Token>();
+		final int len = query_string.length();
+		int i = 0;
+		while (i < len) {
+			final char c = query_string.charAt(i);
+			final int start = i;
+			if (Character.isWhitespace(c)) {
+				++i;
+			}
+			else if ('(' == c || ')' == c) {
+				tokens.add(new Token(('(' == c) ? TokenType.lparen : TokenType.rparen, String.valueOf(c), start));
+				++i;
+			}
+			else if ('+' == c || '-' == c || '!' == c) {
+				tokens.add(new Token(('+' == c) ? TokenType.plus : TokenType.not, String.valueOf(c), start));
+				++i;
+			}
+			else if ('"' == c) {
+				final StringBuilder sb = new StringBuilder();
+				for (++i; i < len && '"' != query_string.charAt(i); ++i) {
+					if ('\\' == query_string.charAt(i) && (i + 1 < len)) ++i;
+					sb.append(query_string.charAt(i));
+				}
+				if (i >= len) throw new IllegalArgumentException(ErrorUtils.get(PARSE_ERROR, query_string, start, "unterminated quote"));
+				++i;
+				tokens.add(new Token(TokenType.quoted, sb.toString(), start));
+			}
+			else if ('[' == c || '{' == c) {
+				for (++i; i < len && ']' != query_string.charAt(i) && '}' != query_string.charAt(i); ++i) {}
+				if (i >= len) throw new IllegalArgumentException(ErrorUtils.get(PARSE_ERROR, query_string, start, "unterminated range"));
+				++i;
+				tokens.add(new Token(TokenType.range, query_string.substring(start, i), start));
+			}
+			else {
+				final StringBuilder sb = new StringBuilder();
+				boolean is_field = false;
+				for (; i < len; ++i) {
+					final char w = query_string.charAt(i);
+					if (Character.isWhitespace(w) || '(' == w || ')' == w) break;
+					if ('\\' == w && (i + 1 < len)) {
+						sb.append(query_string.charAt(++i));
+						continue;
+					}
+					if (':' == w) {
+						is_field = true;
+						++i;
+						break;
+					}
+					sb.append(w);
+				}
+				final String word = sb.toString();
+				tokens.add(new Token(
+						is_field ? TokenType.field
+						: ("AND".equals(word) || "&&".equals(word)) ? TokenType.and
+						: ("OR".equals(word) || "||".equals(word)) ? TokenType.or
+						: "NOT".equals(word) ? TokenType.not
+						: TokenType.word,
+						word, start));
+			}
+		}
+		return tokens;
+	}
+}
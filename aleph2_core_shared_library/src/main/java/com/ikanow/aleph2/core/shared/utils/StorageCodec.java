@@ -0,0 +1,105 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.iq80.snappy.SnappyFramedInputStream;
+import org.iq80.snappy.SnappyFramedOutputStream;
+
+/** The compression codecs supported by StorageSchemaBean.StorageSubSchemaBean.codec, all in pure java
+ *  (the file extension identifies the codec, so files can be read back without the schema)
+ *  Snappy always uses the (standard) framed format, so "snappy" and "snappy_framed" are the same codec
+ */
+public enum StorageCodec {
+	none("", "plain", "none"),
+	gzip(".gz", "gz", "gzip"),
+	snappy(".sz", "sz", "snappy", "fr.sz", "snappy_framed"),
+	lz4(".lz4", "lz4");
+
+	protected static final int LZ4_BLOCK_SIZE = 64*1024;
+
+	protected final String _extension;
+	protected final String[] _names;
+
+	StorageCodec(final String extension, final String... names) {
+		_extension = extension;
+		_names = names;
+	}
+
+	/** Returns the codec corresponding to the codec name in the storage schema
+	 * @param codec_name - the codec name (null/empty means no compression)
+	 * @return the codec, or empty if the name isn't supported
+	 */
+	public static Optional<StorageCodec> fromName(final String codec_name) {
+		final String name = Optional.ofNullable(codec_name).orElse("").trim().toLowerCase();
+		if (name.isEmpty()) {
+			return Optional.of(none);
+		}
+		return Arrays.stream(values()).filter(c -> Arrays.asList(c._names).contains(name)).findFirst();
+	}
+
+	/** Returns the codec used by a file, based on its extension
+	 * @param file_name - the name of the file
+	 * @return the codec (none if the extension isn't recognized)
+	 */
+	public static StorageCodec fromFileName(final String file_name) {
+		return Arrays.asList(snappy, gzip, lz4).stream().filter(c -> file_name.endsWith(c._extension)).findFirst().orElse(none);
+	}
+
+	/** The extension that is appended to files written with this codec
+	 * @return the file extension (including the ".", empty for no compression)
+	 */
+	public String getExtension() {
+		return _extension;
+	}
+
+	/** Wraps an output stream so that data written to it is compressed
+	 * @param out - the underlying stream
+	 * @return the compressing stream (closing it closes the underlying stream)
+	 */
+	public OutputStream wrap(final OutputStream out) throws IOException {
+		switch (this) {
+			case gzip: return new GZIPOutputStream(out);
+			case snappy: return new SnappyFramedOutputStream(out);
+			case lz4: return new LZ4BlockOutputStream(out, LZ4_BLOCK_SIZE, LZ4Factory.safeInstance().fastCompressor());
+			default: return out;
+		}
+	}
+
+	/** Wraps an input stream so that data read from it is decompressed
+	 * @param in - the underlying stream
+	 * @return the decompressing stream (closing it closes the underlying stream)
+	 */
+	public InputStream wrap(final InputStream in) throws IOException {
+		switch (this) {
+			case gzip: return new GZIPInputStream(in);
+			case snappy: return new SnappyFramedInputStream(in, true);
+			case lz4: return new LZ4BlockInputStream(in, LZ4Factory.safeInstance().fastDecompressor());
+			default: return in;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+import fj.data.Validation;
+
+/** Utilities for reading the stored data of a bucket (as written by the storage service: <stage dir>/<time partition>/<segment files>)
+ *  as a lazily evaluated stream that can be processed in parallel - the stream splits over files, each of which is opened when it is reached
+ *  and read sequentially a line at a time, so memory usage is bounded regardless of the size of the bucket
+ */
+public class StorageStreamUtils {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String NO_FILE_CONTEXT = "Storage service {0} does not provide a FileContext";
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	/** Returns the directory containing a storage stage's partitions
+	 * @param storage_service - the storage service
+	 * @param bucket - the bucket
+	 * @param stage - the storage stage
+	 * @return the stage directory
+	 */
+	public static String getStageDirectory(final IStorageService storage_service, final DataBucketBean bucket, final IStorageService.StorageStage stage) {
+		final String suffix = (IStorageService.StorageStage.raw == stage)
+				? IStorageService.STORED_DATA_SUFFIX_RAW
+				: (IStorageService.StorageStage.json == stage) ? IStorageService.STORED_DATA_SUFFIX_JSON : IStorageService.STORED_DATA_SUFFIX_PROCESSED;
+		return (storage_service.getBucketRootPath() + bucket.full_name() + suffix).replaceAll("([^:])//+", "$1/");
+	}
+
+	/** Returns a stream of the objects stored in a bucket's storage stage, skipping time partitions outside the time range
+	 *  (the partitioning and time field are taken from the bucket's schema)
+	 * @param storage_service - the storage service, which must provide a FileContext driver
+	 * @param bucket - the bucket
+	 * @param stage - the storage stage
+	 * @param from - optionally, the start of the time range (inclusive)
+	 * @param to - optionally, the end of the time range (exclusive)
+	 * @return a stream of objects (see getObjectStream)
+	 */
+	public static Stream<JsonNode> getObjectStream(final IStorageService storage_service, final DataBucketBean bucket, final IStorageService.StorageStage stage,
+			final Optional<Date> from, final Optional<Date> to)
+	{
+		final FileContext file_context = storage_service.getUnderlyingPlatformDriver(FileContext.class, Optional.empty())
+				.orElseThrow(() -> new RuntimeException(ErrorUtils.get(NO_FILE_CONTEXT, storage_service.getClass().getSimpleName())));
+
+		final Optional<DataSchemaBean> schema = Optional.ofNullable(bucket.data_schema());
+		final Validation<String, TemporalPartitioner> partitioner = TemporalPartitioner.from(schema
+				.map(DataSchemaBean::storage_schema)
+				.map(s -> (IStorageService.StorageStage.raw == stage) ? s.raw() : (IStorageService.StorageStage.json == stage) ? s.json() : s.processed())
+				.orElse(null));
+		final Optional<String> time_field = schema.map(DataSchemaBean::temporal_schema).map(DataSchemaBean.TemporalSchemaBean::time_field);
+
+		return getObjectStream(file_context, getStageDirectory(storage_service, bucket, stage),
+				partitioner.isSuccess() ? partitioner.success() : new TemporalPartitioner(Optional.empty(), Optional.empty()), // (can't prune partitions if the schema is invalid)
+				time_field, from, to);
+	}
+
+	/** Returns the segment files of a storage stage, skipping partitions outside the time range
+	 * @param file_context - the file system containing the data
+	 * @param stage_dir - the directory containing the stage's partitions (see getStageDirectory)
+	 * @param partitioner - describes the partitions (see TemporalPartitioner)
+	 * @param from - optionally, the start of the time range (inclusive)
+	 * @param to - optionally, the end of the time range (exclusive)
+	 * @return the segment files, ordered by partition then name (hidden and in-progress files are skipped)
+	 */
+	public static List<FileStatus> getSegments(final FileContext file_context, final String stage_dir, final TemporalPartitioner partitioner, final Optional<Date> from, final Optional<Date> to) {
+		return listVisible(file_context, new Path(stage_dir)).stream()
+				.filter(status -> status.isDirectory())
+				.filter(status -> partitioner.overlaps(status.getPath().getName(), from, to))
+				.flatMap(status -> listVisible(file_context, status.getPath()).stream())
+				.filter(status -> status.isFile())
+				.sorted(Comparator.comparing((FileStatus status) -> status.getPath().getParent().getName()).thenComparing(status -> status.getPath().getName()))
+				.collect(Collectors.toList());
+	}
+
+	/** Returns a stream of the objects in a storage stage, skipping partitions outside the time range
+	 *  (the stream is sequential, call parallel() to read the files concurrently - the stream should be closed if not fully consumed)
+	 * @param file_context - the file system containing the data
+	 * @param stage_dir - the directory containing the stage's partitions (see getStageDirectory)
+	 * @param partitioner - describes the partitions (see TemporalPartitioner)
+	 * @param time_field - optionally, the time field of the objects - if specified (together with a time range) then objects in partly overlapping partitions are filtered by it
+	 * @param from - optionally, the start of the time range (inclusive)
+	 * @param to - optionally, the end of the time range (exclusive)
+	 * @return a stream of objects
+	 */
+	public static Stream<JsonNode> getObjectStream(final FileContext file_context, final String stage_dir, final TemporalPartitioner partitioner,
+			final Optional<String> time_field, final Optional<Date> from, final Optional<Date> to)
+	{
+		final List<FileStatus> segments = getSegments(file_context, stage_dir, partitioner, from, to);
+		final SegmentSpliterator spliterator = new SegmentSpliterator(file_context, segments.spliterator(), ConcurrentHashMap.newKeySet());
+		final Stream<JsonNode> objects = StreamSupport.stream(spliterator, false).onClose(() -> spliterator.closeAll());
+
+		return time_field.filter(__ -> from.isPresent() || to.isPresent())
+				.map(field -> objects.filter(json -> TemporalPartitioner.getTime(json.get(field))
+						.map(time -> from.map(f -> !time.before(f)).orElse(true) && to.map(t -> time.before(t)).orElse(true))
+						.orElse(true))) // (objects without a valid time field aren't filtered out)
+				.orElse(objects);
+	}
+
+	/** Reads the objects from a segment file (the codec is determined from the file extension, lines that aren't JSON are skipped)
+	 * @param file_context - the file system containing the data
+	 * @param segment - the segment file
+	 * @return a stream of objects (the file is closed when the stream is)
+	 */
+	public static Stream<JsonNode> readSegment(final FileContext file_context, final Path segment) {
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(
+					StorageCodec.fromFileName(segment.getName()).wrap(file_context.open(segment)), StandardCharsets.UTF_8));
+			return reader.lines()
+					.filter(line -> !line.isEmpty())
+					.<JsonNode>map(line -> {
+						try {
+							return _mapper.readTree(line);
+						}
+						catch (IOException e) {
+							_logger.debug(ErrorUtils.getLongForm("Skipping non JSON line in {1}: {0}", e, segment));
+							return null;
+						}
+					})
+					.filter(json -> null != json)
+					.onClose(() -> {
+						try {
+							reader.close();
+						}
+						catch (IOException e) {}
+					});
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(ErrorUtils.getLongForm("Failed to read {1}: {0}", e, segment), e);
+		}
+	}
+
+	/** Streams the objects from a list of segment files, advancing one segment (and one line) at a time - unlike Stream.flatMap, which
+	 *  (pre Java 9, JDK-8075939) pushes a whole segment into a buffer whenever it is pulled from by a short-circuiting operation or an iterator
+	 *  Splits over the (not yet opened) segments, so each split reads its own files sequentially
+	 */
+	protected static class SegmentSpliterator implements Spliterator<JsonNode> {
+		protected final FileContext _file_context;
+		protected final Spliterator<FileStatus> _segments;
+		protected final Set<Stream<JsonNode>> _open; // (shared between the splits, so that closing the top level stream closes everything)
+		protected Stream<JsonNode> _current = null;
+		protected Iterator<JsonNode> _current_it = null;
+
+		/** User c'tor
+		 * @param file_context - the file system containing the data
+		 * @param segments - the segment files to read
+		 * @param open - the segments currently being read (shared between splits)
+		 */
+		protected SegmentSpliterator(final FileContext file_context, final Spliterator<FileStatus> segments, final Set<Stream<JsonNode>> open) {
+			_file_context = file_context;
+			_segments = segments;
+			_open = open;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+		 */
+		@Override
+		public boolean tryAdvance(final Consumer<? super JsonNode> action) {
+			for (;;) {
+				if ((null != _current_it) && _current_it.hasNext()) {
+					action.accept(_current_it.next());
+					return true;
+				}
+				closeCurrent();
+				if (!_segments.tryAdvance(segment -> {
+					_current = readSegment(_file_context, segment.getPath());
+					_open.add(_current);
+					_current_it = _current.iterator(); // (no flatMap in readSegment, so this pulls a line at a time)
+				}))
+				{
+					return false;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#trySplit()
+		 */
+		@Override
+		public Spliterator<JsonNode> trySplit() {
+			final Spliterator<FileStatus> split = _segments.trySplit();
+			return (null == split) ? null : new SegmentSpliterator(_file_context, split, _open);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#estimateSize()
+		 */
+		@Override
+		public long estimateSize() {
+			return Long.MAX_VALUE; // (the number of objects per segment isn't known)
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#characteristics()
+		 */
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.NONNULL;
+		}
+
+		/** Closes any segments that are still being read (eg if the stream wasn't fully consumed)
+		 */
+		public void closeAll() {
+			_open.forEach(Stream::close);
+			_open.clear();
+		}
+
+		/** Closes the segment currently being read, if any
+		 */
+		protected void closeCurrent() {
+			if (null != _current) {
+				_current.close();
+				_open.remove(_current);
+				_current = null;
+				_current_it = null;
+			}
+		}
+	}
+
+	/** Lists the contents of a directory, excluding hidden/in-progress files (starting with . or _)
+	 */
+	protected static List<FileStatus> listVisible(final FileContext file_context, final Path dir) {
+		try {
+			return Arrays.stream(file_context.util().listStatus(dir))
+					.filter(status -> !status.getPath().getName().startsWith(".") && !status.getPath().getName().startsWith("_"))
+					.collect(Collectors.toList());
+		}
+		catch (FileNotFoundException e) {
+			return Arrays.asList();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(ErrorUtils.getLongForm("Failed to list {1}: {0}", e, dir), e);
+		}
+	}
+}
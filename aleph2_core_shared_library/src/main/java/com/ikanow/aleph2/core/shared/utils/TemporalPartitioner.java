@@ -0,0 +1,230 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.TimeUtils;
+
+import fj.data.Validation;
+
+/** Splits a bucket's data into time segments ("partitions") named by its grouping period, as per TimeUtils.getTimeBasedSuffix
+ *  (eg "2015-06-01" for "day", with the ':'s removed so the names are filesystem safe, eg "2015-06-01-1230" for "minute"), so that age out can drop whole expired partitions - ie costs O(expired partitions) rather than O(expired records)
+ *  Built from the grouping_time_period/exist_age_max of a TemporalSchemaBean (or StorageSubSchemaBean)
+ */
+public class TemporalPartitioner {
+
+	/** The single partition used when there is no grouping period (never aged out)
+	 */
+	public static final String ALL_TIME_PARTITION = "all_time";
+
+	protected final Optional<ChronoUnit> _period;
+	protected final Optional<Duration> _max_age;
+	protected final Optional<String> _format;
+
+	/** User c'tor
+	 * @param period - the grouping period (if empty, everything goes in ALL_TIME_PARTITION)
+	 * @param max_age - the max age of data (if empty, nothing is aged out)
+	 */
+	public TemporalPartitioner(final Optional<ChronoUnit> period, final Optional<Duration> max_age) {
+		_period = period;
+		_max_age = max_age;
+		_format = period.map(p -> TimeUtils.getTimeBasedSuffix(p, Optional.empty()).replace(":", "")).filter(f -> !f.isEmpty());
+	}
+
+	/** Builds a partitioner from the temporal schema
+	 * @param schema - the temporal schema (can be null)
+	 * @return the partitioner, or an error if the grouping period or max age cannot be parsed
+	 */
+	public static Validation<String, TemporalPartitioner> from(final DataSchemaBean.TemporalSchemaBean schema) {
+		return (null == schema)
+				? from((String)null, (String)null)
+				: from(schema.grouping_time_period(), schema.exist_age_max());
+	}
+
+	/** Builds a partitioner from a storage sub-schema
+	 * @param schema - the storage sub-schema (can be null)
+	 * @return the partitioner, or an error if the grouping period or max age cannot be parsed
+	 */
+	public static Validation<String, TemporalPartitioner> from(final DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean schema) {
+		return (null == schema)
+				? from((String)null, (String)null)
+				: from(schema.grouping_time_period(), schema.exist_age_max());
+	}
+
+	/** Builds a partitioner from the schema strings
+	 * @param grouping_time_period - the grouping period, eg "day" (can be null)
+	 * @param exist_age_max - the max age, eg "10 days" (can be null)
+	 * @return the partitioner, or an error if either string cannot be parsed
+	 */
+	public static Validation<String, TemporalPartitioner> from(final String grouping_time_period, final String exist_age_max) {
+		final Optional<Validation<String, ChronoUnit>> period = Optional.ofNullable(grouping_time_period).map(p -> TimeUtils.getTimePeriod(p));
+		final Optional<Validation<String, Duration>> max_age = Optional.ofNullable(exist_age_max).map(a -> TimeUtils.getDuration(a));
+		if (period.isPresent() && period.get().isFail()) {
+			return Validation.fail(period.get().fail());
+		}
+		if (max_age.isPresent() && max_age.get().isFail()) {
+			return Validation.fail(max_age.get().fail());
+		}
+		return Validation.success(new TemporalPartitioner(period.map(v -> v.success()), max_age.map(v -> v.success())));
+	}
+
+	/** Returns the grouping period
+	 * @return the grouping period, if there is one
+	 */
+	public Optional<ChronoUnit> getPeriod() {
+		return _period;
+	}
+
+	/** Returns the max age of data
+	 * @return the max age, if there is one
+	 */
+	public Optional<Duration> getMaxAge() {
+		return _max_age;
+	}
+
+	/** Returns the partition that an object with the given time belongs to
+	 * @param time - the time of the object
+	 * @return the partition name
+	 */
+	public String getPartition(final Date time) {
+		return _format.map(f -> new SimpleDateFormat(f).format(time)).orElse(ALL_TIME_PARTITION);
+	}
+
+	/** Returns the partition that an object belongs to, using its time field (epoch millis or an ISO-8601 string)
+	 * @param json - the object
+	 * @param time_field - the time field (if empty, or missing/unparseable in the object, then now is used)
+	 * @return the partition name
+	 */
+	public String getPartition(final JsonNode json, final Optional<String> time_field) {
+		return getPartition(time_field.map(field -> json.get(field)).flatMap(TemporalPartitioner::getTime).orElseGet(() -> new Date()));
+	}
+
+	/** Returns the time at which a partition starts
+	 * @param partition - the partition name
+	 * @return the start time, or empty if the partition is not time based (eg ALL_TIME_PARTITION, or a name not produced by this partitioner)
+	 */
+	public Optional<Date> getPartitionStart(final String partition) {
+		return _format.flatMap(f -> {
+			final SimpleDateFormat format = new SimpleDateFormat(f);
+			format.setLenient(false);
+			final ParsePosition pos = new ParsePosition(0);
+			final Date start = format.parse(partition, pos);
+			return ((null != start) && (pos.getIndex() == partition.length())) ? Optional.of(start) : Optional.empty();
+		});
+	}
+
+	/** Returns true if the partition might contain objects in the time range [from, to)
+	 * @param partition - the partition name
+	 * @param from - optionally, the start of the time range (inclusive)
+	 * @param to - optionally, the end of the time range (exclusive)
+	 * @return false if the partition can be skipped (partitions that aren't time based are never skipped)
+	 */
+	public boolean overlaps(final String partition, final Optional<Date> from, final Optional<Date> to) {
+		final Optional<Date> start = getPartitionStart(partition);
+		final Optional<Date> end = getPartitionEnd(partition);
+		return from.flatMap(f -> end.map(e -> e.after(f))).orElse(true)
+				&& to.flatMap(t -> start.map(s -> s.before(t))).orElse(true);
+	}
+
+	/** Returns the time at which a partition ends (ie the start of the next partition)
+	 * @param partition - the partition name
+	 * @return the end time, or empty if the partition is not time based (eg ALL_TIME_PARTITION, or a name not produced by this partitioner)
+	 */
+	public Optional<Date> getPartitionEnd(final String partition) {
+		return _period.flatMap(period -> getPartitionStart(partition)
+				.map(start -> Date.from(start.toInstant().atZone(ZoneId.systemDefault()).plus(1, period).toInstant())));
+	}
+
+	/** Returns true if every object in the partition is older than the max age (ie the partition can be dropped)
+	 * @param partition - the partition name
+	 * @param now - the current time
+	 * @return whether the partition has expired
+	 */
+	public boolean isExpired(final String partition, final Date now) {
+		return _max_age.flatMap(max_age -> getPartitionEnd(partition).map(end -> end.getTime() <= (now.getTime() - max_age.toMillis()))).orElse(false);
+	}
+
+	/** Returns the expired partitions from a list of partitions
+	 * @param partitions - the partitions to check
+	 * @param now - the current time
+	 * @return the expired partitions
+	 */
+	public List<String> getExpiredPartitions(final Collection<String> partitions, final Date now) {
+		if (!_max_age.isPresent() || !_format.isPresent()) {
+			return Collections.emptyList();
+		}
+		return partitions.stream().filter(p -> isExpired(p, now)).collect(Collectors.toList());
+	}
+
+	/** Drops all the expired partitions from a list of partitions
+	 * @param partitions - the partitions to check
+	 * @param now - the current time
+	 * @param dropper - drops the partition, returns false if it could not be dropped
+	 * @return the partitions that were dropped
+	 */
+	public List<String> dropExpiredPartitions(final Collection<String> partitions, final Date now, final Predicate<String> dropper) {
+		return getExpiredPartitions(partitions, now).stream().filter(dropper).collect(Collectors.toList());
+	}
+
+	/** Builds the standard reply to an age out request, marked as "loggable" if anything was dropped
+	 * @param source - the service handling the request
+	 * @param bucket_name - the bucket full name
+	 * @param dropped - the partitions that were dropped
+	 * @return the message bean
+	 */
+	public static BasicMessageBean buildAgeOutMessage(final Object source, final String bucket_name, final List<String> dropped) {
+		final BasicMessageBean ret_val = ErrorUtils.buildSuccessMessage(source, "handleAgeOutRequest", "Deleted {0} partitions from {1}: {2}", dropped.size(), bucket_name, dropped);
+		return dropped.isEmpty()
+				? ret_val
+				: new BasicMessageBean(ret_val.date(), ret_val.success(), ret_val.source(), ret_val.command(), ret_val.message_code(), ret_val.message(), Collections.singletonMap("loggable", "true"));
+	}
+
+	/** Returns the time of an object's time field (epoch millis or an ISO-8601 string)
+	 * @param time - the value of the time field (can be null)
+	 * @return the time, or empty if the field is missing or not a recognized time format
+	 */
+	public static Optional<Date> getTime(final JsonNode time) {
+		if (null == time) {
+			return Optional.empty();
+		}
+		else if (time.isNumber()) {
+			return Optional.of(new Date(time.asLong()));
+		}
+		try {
+			return Optional.of(Date.from(Instant.parse(time.asText())));
+		}
+		catch (Exception e) {
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestBufferedDataService {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected static final DataBucketBean _bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/buffered").done().get();
+
+	protected InMemoryDataService _memory_service;
+	protected BufferedDataService _buffered_service;
+
+	@Before
+	public void setup() {
+		_memory_service = new InMemoryDataService();
+		_buffered_service = new BufferedDataService(_memory_service, Runnable::run); // (retire synchronously)
+	}
+
+	protected static List<JsonNode> getObjects(final String run, final int n) {
+		return IntStream.range(0, n).mapToObj(i -> (JsonNode) _mapper.createObjectNode().put("run", run).put("index", i)).collect(Collectors.toList());
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static List<String> getRuns(final IDataWriteService<JsonNode> service) {
+		return ((InMemoryDataService.InMemoryDataWriteService<JsonNode>) service).getObjects().stream().map(json -> json.get("run").asText()).distinct().collect(Collectors.toList());
+	}
+
+	protected List<String> getCurrentRuns() {
+		try (BufferedDataService.ReadLease<JsonNode> lease = _buffered_service.acquireReadLease(JsonNode.class, _bucket, Optional.empty()).get()) {
+			return getRuns(lease.getService());
+		}
+	}
+
+	@Test
+	public void test_inMemoryDataService() throws Exception {
+		final IDataWriteService<JsonNode> primary = _memory_service.getWritableDataService(JsonNode.class, _bucket, Optional.empty(), Optional.empty()).get();
+		final IDataWriteService<JsonNode> secondary = _memory_service.getWritableDataService(JsonNode.class, _bucket, Optional.empty(), Optional.of("next")).get();
+		primary.storeObjects(getObjects("first", 3)).get();
+		secondary.getBatchWriteSubservice().get().storeObjects(getObjects("second", 5));
+		assertEquals(3L, primary.countObjects().get().longValue());
+		assertEquals(Arrays.asList("next"), _memory_service.getSecondaryBufferList(_bucket));
+		assertTrue(_memory_service.switchCrudServiceToPrimaryBuffer(_bucket, Optional.of("next")).get().success());
+		assertEquals(5L, primary.countObjects().get().longValue());
+		assertEquals(0L, secondary.countObjects().get().longValue());
+		assertTrue(_memory_service.getSecondaryBufferList(_bucket).isEmpty());
+	}
+
+	@Test
+	public void test_atomicSwap() throws Exception {
+		final IDataWriteService<JsonNode> primary = _buffered_service.getWritableDataService(JsonNode.class, _bucket, Optional.empty(), Optional.empty()).get();
+		primary.storeObjects(getObjects("first", 10)).get();
+
+		// Rebuild into a secondary buffer: readers don't see it until the swap
+		final IDataWriteService<JsonNode> rebuild = _buffered_service.getWritableDataService(JsonNode.class, _bucket, Optional.empty(), Optional.of("rebuild")).get();
+		rebuild.getBatchWriteSubservice().get().storeObjects(getObjects("second", 20));
+		assertEquals(Arrays.asList("rebuild"), _buffered_service.getSecondaryBufferList(_bucket));
+		assertEquals(10L, primary.countObjects().get().longValue());
+
+		// A reader that started before the swap keeps its consistent view until it's closed, and the old buffer isn't deleted until then
+		final BufferedDataService.ReadLease<JsonNode> lease = _buffered_service.acquireReadLease(JsonNode.class, _bucket, Optional.empty()).get();
+		assertTrue(_buffered_service.switchCrudServiceToPrimaryBuffer(_bucket, Optional.of("rebuild")).get().success());
+		assertFalse(_buffered_service.switchCrudServiceToPrimaryBuffer(_bucket, Optional.of("rebuild")).get().success());
+		assertTrue(_buffered_service.getSecondaryBufferList(_bucket).isEmpty());
+
+		assertEquals(20L, primary.countObjects().get().longValue()); // (new readers/writers follow the alias)
+		assertEquals(Arrays.asList("second"), getCurrentRuns());
+		assertEquals(Arrays.asList("first"), getRuns(lease.getService()));
+		assertEquals(Optional.empty(), lease.getPhysicalBuffer());
+		lease.close();
+		assertEquals(0L, _memory_service.getWritableDataService(JsonNode.class, _bucket, Optional.empty(), Optional.empty()).get().countObjects().get().longValue()); // (retired)
+
+		// Rebuild helper, and retirement of a secondary generation
+		final String second_generation = _buffered_service.getCurrentPhysicalBuffer(_bucket).get();
+		assertTrue(second_generation.startsWith("rebuild" + BufferedDataService.GENERATION_SEPARATOR));
+		assertTrue(_buffered_service.rebuild(JsonNode.class, _bucket, "rebuild", getObjects("third", 2500).stream(), 1000).get().success());
+		assertEquals(Arrays.asList("third"), getCurrentRuns());
+		assertEquals(2500L, primary.countObjects().get().longValue());
+		assertNotEquals(second_generation, _buffered_service.getCurrentPhysicalBuffer(_bucket).get());
+		assertEquals(Arrays.asList(_buffered_service.getCurrentPhysicalBuffer(_bucket).get()), _memory_service.getSecondaryBufferList(_bucket));
+
+		// A failed rebuild leaves the current buffer alone and deletes its secondary buffer
+		final Stream<JsonNode> failing = IntStream.range(0, 10).mapToObj(i -> { if (i > 5) throw new RuntimeException("test"); return getObjects("fourth", 1).get(0); });
+		assertFalse(_buffered_service.rebuild(JsonNode.class, _bucket, "rebuild", failing).get().success());
+		assertEquals(Arrays.asList("third"), getCurrentRuns());
+		assertTrue(_buffered_service.getSecondaryBufferList(_bucket).isEmpty());
+		assertEquals(1, _memory_service.getSecondaryBufferList(_bucket).size());
+
+		// Deletion removes every generation
+		_buffered_service.getWritableDataService(JsonNode.class, _bucket, Optional.empty(), Optional.of("abandoned")).get().storeObjects(getObjects("fifth", 1)).get();
+		assertTrue(_buffered_service.handleBucketDeletionRequest(_bucket, Optional.empty(), true).get().success());
+		assertTrue(_memory_service.getSecondaryBufferList(_bucket).isEmpty());
+		assertEquals(0L, primary.countObjects().get().longValue());
+	}
+}
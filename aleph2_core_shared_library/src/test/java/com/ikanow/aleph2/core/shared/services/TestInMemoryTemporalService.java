@@ -0,0 +1,83 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestInMemoryTemporalService {
+
+	protected static DataBucketBean getBucket(final String exist_age_max) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/temporal")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::temporal_schema,
+									BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class)
+										.with(DataSchemaBean.TemporalSchemaBean::grouping_time_period, "day")
+										.with(DataSchemaBean.TemporalSchemaBean::exist_age_max, exist_age_max)
+										.with(DataSchemaBean.TemporalSchemaBean::time_field, "@timestamp")
+									.done().get())
+						.done().get())
+				.done().get();
+	}
+
+	protected static JsonNode getObject(final int i, final long time) {
+		return BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("index", i).put("@timestamp", time);
+	}
+
+	@Test
+	public void test_ageOut() throws Exception {
+		final InMemoryTemporalService service = new InMemoryTemporalService();
+		final DataBucketBean bucket = getBucket("10 days");
+		final long day = 24L*3600L*1000L;
+		final long now = System.currentTimeMillis();
+
+		assertEquals(0, service.validateSchema(bucket.data_schema().temporal_schema(), bucket)._2().size());
+		assertEquals(1, service.validateSchema(getBucket("not a duration").data_schema().temporal_schema(), bucket)._2().size());
+
+		service.storeObjects(bucket, Arrays.asList(getObject(0, now), getObject(1, now - 30*day), getObject(2, now - 31*day), getObject(3, now - 30*day), getObject(4, now - 2*day)));
+		assertEquals(4, service.getPartitions(bucket).size());
+		assertEquals(5, service.getObjects(bucket).size());
+
+		final BasicMessageBean res = service.handleAgeOutRequest(bucket).get();
+		assertTrue(res.success());
+		assertEquals("true", res.details().get("loggable"));
+
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		assertEquals(Arrays.asList(format.format(new Date(now - 2*day)), format.format(new Date(now))), Arrays.asList(service.getPartitions(bucket).toArray()));
+		assertEquals(2, service.getObjects(bucket).size());
+
+		// Nothing left to do
+		assertEquals(null, service.handleAgeOutRequest(bucket).get().details());
+
+		// Invalid schema / unknown bucket
+		assertFalse(service.handleAgeOutRequest(getBucket("not a duration")).get().success());
+		assertTrue(service.handleAgeOutRequest(BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/other").done().get()).get().success());
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestLocalColumnarService {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected String _root_dir;
+	protected LocalColumnarService _columnar_service;
+
+	@Before
+	public void setup() {
+		_root_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_local_columnar_" + System.currentTimeMillis();
+		_columnar_service = new LocalColumnarService(new GlobalPropertiesBean(null, null, null, _root_dir));
+	}
+
+	@After
+	public void teardown() {
+		FileUtils.deleteQuietly(new File(_root_dir));
+	}
+
+	protected static DataBucketBean getBucket(final List<String> exclude_patterns, final List<String> exclude_types) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/local/columnar")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::columnar_schema,
+									BeanTemplateUtils.build(DataSchemaBean.ColumnarSchemaBean.class)
+										.with(DataSchemaBean.ColumnarSchemaBean::field_exclude_pattern_list, exclude_patterns)
+										.with(DataSchemaBean.ColumnarSchemaBean::field_type_exclude_list, exclude_types)
+									.done().get())
+						.done().get())
+				.done().get();
+	}
+
+	protected static JsonNode getObject(final int i) {
+		final com.fasterxml.jackson.databind.node.ObjectNode object = _mapper.createObjectNode()
+				.put("index", i)
+				.put("colour", (i < 400) ? "Red" : (i < 700) ? "Green" : "Blue")
+				.put("text", "The quick brown fox, number " + i + ((0 == i % 10) ? " jumps over the lazy dog" : ""))
+				.put("secret_key", "key" + i);
+		object.set("nested", _mapper.createObjectNode().put("flag", i < 500));
+		object.set("tags", _mapper.createArrayNode().add("tag" + (i % 3)).add("all"));
+		return object;
+	}
+
+	protected static List<Integer> indexes(final Iterable<JsonNode> results) {
+		return StreamSupport.stream(results.spliterator(), false).map(json -> json.get("index").asInt()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_writeAndQuery() throws Exception {
+		final DataBucketBean bucket = getBucket(Arrays.asList("secret*"), null);
+		assertEquals(0, _columnar_service.validateSchema(bucket.data_schema().columnar_schema(), bucket)._2().size());
+		assertEquals(1, _columnar_service.validateSchema(getBucket(null, Arrays.asList("string", "blob")).data_schema().columnar_schema(), bucket)._2().size());
+
+		final IDataWriteService<JsonNode> write_service = _columnar_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		write_service.storeObjects(IntStream.range(0, 500).mapToObj(i -> getObject(i)).collect(Collectors.toList())).get();
+		write_service.storeObjects(IntStream.range(500, 1000).mapToObj(i -> getObject(i)).collect(Collectors.toList())).get();
+		final LocalColumnarStore<JsonNode> store = _columnar_service.getColumnarStore(JsonNode.class, bucket, Optional.empty()).get();
+		assertEquals(1000L, store.countObjects().get().longValue());
+		assertEquals(2, store.getSegmentCount());
+
+		// Excluded fields aren't stored, everything else is
+		final JsonNode first = store.getObjectsBySpec(CrudUtils.allOf().when("index", 0)).get().iterator().next();
+		assertEquals("{\"index\":0,\"colour\":\"Red\",\"text\":\"The quick brown fox, number 0 jumps over the lazy dog\",\"nested\":{\"flag\":true},\"tags\":[\"tag0\",\"all\"]}", first.toString());
+
+		// Dictionary + run length encoding makes the low cardinality columns tiny, so the store is much smaller than the JSON
+		final long json_size = IntStream.range(0, 1000).mapToObj(i -> getObject(i).toString().length()).mapToLong(i -> i).sum();
+		assertTrue(FileUtils.sizeOfDirectory(new File(_columnar_service.getStoreDirectory(bucket, Optional.empty()))) < json_size/2);
+
+		// Queries
+		assertEquals(400L, store.countObjectsBySpec(CrudUtils.allOf().when("colour", "Red")).get().longValue());
+		assertEquals(600L, store.countObjectsBySpec(CrudUtils.allOf().whenNot("colour", "Red")).get().longValue());
+		assertEquals(700L, store.countObjectsBySpec(CrudUtils.allOf().withAny("colour", Arrays.asList("Red", "Green"))).get().longValue());
+		assertEquals(100L, store.countObjectsBySpec(CrudUtils.allOf().when("colour", "Red").when("nested.flag", true).rangeAbove("index", 299, true)).get().longValue());
+		assertEquals(11L, store.countObjectsBySpec(CrudUtils.allOf().rangeIn("index", 10, false, 20, false)).get().longValue());
+		assertEquals(334L, store.countObjectsBySpec(CrudUtils.allOf().when("tags", "tag0")).get().longValue());
+		assertEquals(334L, store.countObjectsBySpec(CrudUtils.allOf().withAll("tags", Arrays.asList("tag0", "all"))).get().longValue());
+		assertEquals(0L, store.countObjectsBySpec(CrudUtils.allOf().withPresent("secret_key")).get().longValue());
+		assertEquals(1000L, store.countObjectsBySpec(CrudUtils.allOf().withNotPresent("secret_key")).get().longValue());
+		assertEquals(303L, store.countObjectsBySpec(CrudUtils.anyOf(CrudUtils.allOf().when("colour", "Blue"), CrudUtils.allOf().rangeBelow("index", 2, false))).get().longValue());
+
+		// Projection, ordering, limit
+		final List<JsonNode> projected = StreamSupport.stream(store.getObjectsBySpec(
+				CrudUtils.allOf().when("colour", "Green").orderBy(Tuples._2T("index", -1)).limit(3), Arrays.asList("index", "nested"), true).get().spliterator(), false)
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList(699, 698, 697), indexes(projected));
+		assertEquals("{\"index\":699,\"nested\":{\"flag\":false}}", projected.get(0).toString());
+		assertEquals(Arrays.asList(0, 1), indexes(store.getObjectsBySpec(CrudUtils.allOf().limit(2), Arrays.asList("text", "tags"), false).get()));
+
+		// Column pruning: a count on one column reads much less than a full scan
+		long before = store.getBytesRead();
+		store.countObjectsBySpec(CrudUtils.allOf().when("colour", "Red")).get();
+		final long count_bytes = store.getBytesRead() - before;
+		before = store.getBytesRead();
+		store.getObjectsBySpec(CrudUtils.allOf().when("colour", "Red")).get();
+		final long scan_bytes = store.getBytesRead() - before;
+		assertTrue(count_bytes + " vs " + scan_bytes, 10*count_bytes < scan_bytes);
+
+		// Segment pruning: the first segment's footer shows that it can't match, so nothing is read from it
+		before = store.getBytesRead();
+		assertEquals(100L, store.countObjectsBySpec(CrudUtils.allOf().rangeAbove("index", 900, false)).get().longValue());
+		assertEquals(0L, store.countObjectsBySpec(CrudUtils.allOf().rangeAbove("index", 1000, false)).get().longValue());
+		final long pruned_bytes = store.getBytesRead() - before;
+		before = store.getBytesRead();
+		store.countObjectsBySpec(CrudUtils.allOf().rangeAbove("index", 0, false)).get();
+		assertTrue(pruned_bytes + " vs " + (store.getBytesRead() - before), pruned_bytes < store.getBytesRead() - before);
+
+		// Re-open from disk
+		final LocalColumnarService reopened = new LocalColumnarService(new GlobalPropertiesBean(null, null, null, _root_dir));
+		assertEquals(400L, reopened.getColumnarStore(JsonNode.class, bucket, Optional.empty()).get().countObjectsBySpec(CrudUtils.allOf().when("colour", "Red")).get().longValue());
+
+		// Type exclusion
+		final DataBucketBean no_strings = getBucket(null, Arrays.asList("string", "array"));
+		final LocalColumnarStore<JsonNode> numbers_store = _columnar_service.getColumnarStore(JsonNode.class, no_strings, Optional.of("numbers")).get();
+		numbers_store.storeObjects(Arrays.asList(getObject(5))).get();
+		assertEquals("{\"index\":5,\"nested\":{\"flag\":true}}", numbers_store.getObjectsBySpec(CrudUtils.allOf()).get().iterator().next().toString());
+
+		assertTrue(_columnar_service.handleBucketDeletionRequest(bucket, Optional.empty(), true).get().success());
+		assertFalse(new File(_columnar_service.getStoreDirectory(bucket, Optional.empty())).exists());
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.core.shared.utils.StorageCodec;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+public class TestLocalFileStorageService {
+
+	protected String _root_dir;
+	protected LocalFileStorageService _storage_service;
+
+	@Before
+	public void setup() {
+		_root_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_local_file_storage_" + System.currentTimeMillis();
+		_storage_service = new LocalFileStorageService(new GlobalPropertiesBean(null, null, null, _root_dir));
+	}
+
+	@After
+	public void teardown() {
+		FileUtils.deleteQuietly(new File(_root_dir));
+	}
+
+	protected static DataBucketBean getBucket(final String codec, final String exist_age_max) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/local/storage")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::temporal_schema,
+									BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class)
+										.with(DataSchemaBean.TemporalSchemaBean::time_field, "@timestamp")
+									.done().get())
+							.with(DataSchemaBean::storage_schema,
+									BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.class)
+										.with(DataSchemaBean.StorageSchemaBean::processed,
+												BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.class)
+													.with(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::grouping_time_period, "day")
+													.with(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::exist_age_max, exist_age_max)
+													.with(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::codec, codec)
+												.done().get())
+									.done().get())
+						.done().get())
+				.done().get();
+	}
+
+	protected static ObjectNode getObject(final int i, final long time) {
+		return BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("index", i).put("@timestamp", time);
+	}
+
+	@Test
+	public void test_codecs() throws Exception {
+		final String test = IntStream.range(0, 1000).mapToObj(i -> "{\"test\":" + i + "}").collect(Collectors.joining("\n"));
+		for (StorageCodec codec: StorageCodec.values()) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (OutputStream out = codec.wrap(bytes)) {
+				out.write(test.getBytes(StandardCharsets.UTF_8));
+			}
+			try (InputStream in = codec.wrap(new ByteArrayInputStream(bytes.toByteArray()))) {
+				assertEquals(codec.toString(), test, IOUtils.toString(in, StandardCharsets.UTF_8));
+			}
+			assertEquals(codec, StorageCodec.fromFileName("data_x.json" + codec.getExtension()));
+		}
+		assertEquals(Optional.of(StorageCodec.none), StorageCodec.fromName(null));
+		assertEquals(Optional.of(StorageCodec.snappy), StorageCodec.fromName("Snappy"));
+		assertEquals(Optional.of(StorageCodec.snappy), StorageCodec.fromName("fr.sz"));
+		assertEquals(StorageCodec.snappy, StorageCodec.fromFileName("data_x.json.fr.sz"));
+		assertEquals(Optional.empty(), StorageCodec.fromName("bzip2"));
+
+		// Schema validation
+		assertEquals(0, _storage_service.validateSchema(getBucket("lz4", "10 days").data_schema().storage_schema(), getBucket("lz4", "10 days"))._2().size());
+		final List<BasicMessageBean> errors = _storage_service.validateSchema(getBucket("bzip2", "not a duration").data_schema().storage_schema(), getBucket("bzip2", "not a duration"))._2();
+		assertEquals(2, errors.size());
+		assertEquals(ErrorUtils.get(ErrorUtils.INVALID_CONFIG_ERROR, "processed.codec", "bzip2"), errors.get(1).message());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_writeAndAgeOut() throws Exception {
+		final DataBucketBean bucket = getBucket("gz", "10 days");
+		final IDataWriteService<JsonNode> write_service = _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		final long now = System.currentTimeMillis();
+		final long old = now - 30L*24L*3600L*1000L;
+
+		// Direct writes
+		write_service.storeObjects(Arrays.asList(getObject(0, now), getObject(1, old), getObject(2, now))).get();
+
+		// Batch writes
+		final IDataWriteService.IBatchSubservice<JsonNode> batch_service = write_service.getBatchWriteSubservice().get();
+		batch_service.storeObject(getObject(3, old));
+		batch_service.storeObject(getObject(4, now));
+		assertEquals(3L, write_service.countObjects().get().longValue());
+		((LocalFileDataWriteService<JsonNode>)write_service).flush();
+		assertEquals(5L, write_service.countObjects().get().longValue());
+
+		// The service (and so its batch buffer) is shared between callers, unknown stages aren't supported
+		assertSame(write_service, _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get());
+		assertSame(write_service, _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.of("processed"), Optional.empty()).get());
+		assertFalse(_storage_service.getWritableDataService(JsonNode.class, bucket, Optional.of("errors"), Optional.empty()).isPresent());
+
+		// Check layout
+		final File stage_dir = new File(_storage_service.getStageDirectory(bucket, IStorageService.StorageStage.processed, Optional.empty()));
+		assertTrue(stage_dir.getPath().endsWith("/data/test/local/storage/managed_bucket/import/stored/processed"));
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		assertEquals(Arrays.asList(format.format(new Date(old)), format.format(new Date(now))), Arrays.stream(stage_dir.list()).sorted().collect(Collectors.toList()));
+		final File[] old_segments = new File(stage_dir, format.format(new Date(old))).listFiles();
+		assertEquals(2, old_segments.length);
+		assertTrue(old_segments[0].getName().endsWith(".json.gz"));
+
+		// Age out drops the old partition only
+		final BasicMessageBean res = _storage_service.handleAgeOutRequest(bucket).get();
+		assertTrue(res.success());
+		assertEquals("true", res.details().get("loggable"));
+		assertEquals(Arrays.asList(format.format(new Date(now))), Arrays.asList(stage_dir.list()));
+		assertEquals(3L, write_service.countObjects().get().longValue());
+
+		// (nothing left to age out)
+		assertEquals(null, _storage_service.handleAgeOutRequest(bucket).get().details());
+	}
+
+	@Test
+	public void test_batchCloseDuringWrites() throws Exception {
+		final DataBucketBean bucket = getBucket("none", "10 days");
+		final IDataWriteService<JsonNode> write_service = _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		final IDataWriteService.IBatchSubservice<JsonNode> batch_service = write_service.getBatchWriteSubservice().get();
+		final long now = System.currentTimeMillis();
+
+		// Closing the batch service while other threads are adding to it never strands an object in a closed buffer
+		final List<Thread> writers = IntStream.range(0, 4).mapToObj(t -> new Thread(() -> 
+				IntStream.range(0, 2500).forEach(i -> batch_service.storeObject(getObject(t*2500 + i, now)))))
+				.collect(Collectors.toList());
+		writers.forEach(Thread::start);
+		while (writers.stream().anyMatch(Thread::isAlive)) {
+			((LocalFileDataWriteService<JsonNode>)write_service).close();
+		}
+		((LocalFileDataWriteService<JsonNode>)write_service).close();
+		assertEquals(10000L, write_service.countObjects().get().longValue());
+	}
+
+	@Test
+	public void test_secondaryBuffers() throws Exception {
+		final DataBucketBean bucket = getBucket("snappy", "10 days");
+		final long now = System.currentTimeMillis();
+		_storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get()
+			.storeObjects(Arrays.asList(getObject(0, now))).get();
+		final IDataWriteService<JsonNode> secondary = _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.of("test_buffer")).get();
+		secondary.storeObjects(Arrays.asList(getObject(1, now), getObject(2, now))).get();
+
+		assertEquals(Arrays.asList("test_buffer"), _storage_service.getSecondaryBufferList(bucket));
+
+		assertFalse(_storage_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.empty()).get().success());
+		assertTrue(_storage_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.of("test_buffer")).get().success());
+
+		assertEquals(2L, _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get().countObjects().get().longValue());
+		assertEquals(0, _storage_service.getSecondaryBufferList(bucket).size());
+
+		// Deletion
+		assertTrue(_storage_service.handleBucketDeletionRequest(bucket, Optional.empty(), true).get().success());
+		assertFalse(new File(_storage_service.getStageDirectory(bucket, IStorageService.StorageStage.processed, Optional.empty())).exists());
+	}
+}
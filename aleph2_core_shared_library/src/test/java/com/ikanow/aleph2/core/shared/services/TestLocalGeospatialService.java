@@ -0,0 +1,140 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.core.shared.utils.GeoHashUtils;
+import com.ikanow.aleph2.core.shared.utils.GeoQuery;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestLocalGeospatialService {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected LocalGeospatialService _geospatial_service;
+
+	@Before
+	public void setup() {
+		_geospatial_service = new LocalGeospatialService();
+	}
+
+	protected static DataBucketBean getBucket(final Boolean enabled, final String location_field, final Integer precision) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/local/geospatial")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::geospatial_schema, new DataSchemaBean.GeospatialSchemaBean(enabled, null, location_field, precision, null))
+						.done().get())
+				.done().get();
+	}
+
+	/** A 21x21 grid of points 0.01 degrees (~1.1km) apart centred on (0, 0)
+	 */
+	protected static JsonNode getObject(final int i) {
+		final double lat = 0.01*(i/21 - 10), lon = 0.01*(i % 21 - 10);
+		final ObjectNode object = _mapper.createObjectNode().put("index", i).put("type", (0 == i % 2) ? "even" : "odd");
+		switch (i % 4) { // (all the location formats)
+			case 0: object.set("location", _mapper.createObjectNode().put("type", "Point").set("coordinates", _mapper.createArrayNode().add(lon).add(lat))); break;
+			case 1: object.set("location", _mapper.createArrayNode().add(lon).add(lat)); break;
+			case 2: object.set("location", _mapper.createObjectNode().put("lat", lat).put("lon", lon)); break;
+			default: object.put("location", lat + "," + lon); break;
+		}
+		return object;
+	}
+
+	protected static List<Integer> indexes(final Iterable<JsonNode> results) {
+		return StreamSupport.stream(results.spliterator(), false).map(json -> json.get("index").asInt()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_geoHashUtils() {
+		assertEquals("u4pruydqqvj", GeoHashUtils.encode(57.64911, 10.40744, 11));
+		assertTrue(GeoHashUtils.cover(-1.0, -1.0, 1.0, 1.0, 32).size() <= 32);
+		assertTrue(GeoHashUtils.cover(-1.0, 179.0, 1.0, -179.0, 32).stream().anyMatch(cell -> GeoHashUtils.encode(0.0, -179.5, cell.length()).equals(cell)));
+		assertTrue(GeoHashUtils.cover(-1.0, 179.0, 1.0, -179.0, 32).stream().anyMatch(cell -> GeoHashUtils.encode(0.0, 179.5, cell.length()).equals(cell)));
+		assertEquals(111195.0, GeoHashUtils.distance(0.0, 0.0, 1.0, 0.0), 1.0);
+		assertFalse(GeoHashUtils.getPoint(_mapper.createObjectNode().put("lat", 91.0).put("lon", 0.0)).isPresent());
+		assertFalse(GeoHashUtils.getPoint(_mapper.getNodeFactory().textNode("not a location")).isPresent());
+	}
+
+	@Test
+	public void test_writeAndQuery() throws Exception {
+		final DataBucketBean bucket = getBucket(true, null, 7);
+		assertEquals(0, _geospatial_service.validateSchema(bucket.data_schema().geospatial_schema(), bucket)._2().size());
+		assertEquals(1, _geospatial_service.validateSchema(getBucket(true, null, 13).data_schema().geospatial_schema(), bucket)._2().size());
+		assertEquals(1, _geospatial_service.validateSchema(getBucket(true, " ", null).data_schema().geospatial_schema(), bucket)._2().size());
+		assertFalse(_geospatial_service.getWritableDataService(JsonNode.class, getBucket(false, null, null), Optional.empty(), Optional.empty()).isPresent());
+
+		final IDataWriteService<JsonNode> write_service = _geospatial_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		write_service.storeObjects(IntStream.range(0, 441).mapToObj(i -> getObject(i)).collect(Collectors.toList())).get();
+		write_service.storeObject(_mapper.createObjectNode().put("index", -1)).get(); // (no location, not indexed)
+		final LocalGeospatialIndex<JsonNode> index = _geospatial_service.getGeospatialIndex(JsonNode.class, bucket, Optional.empty()).get();
+		assertEquals(441L, index.countObjects().get().longValue());
+
+		// Point: the centre is index 220
+		assertEquals(Arrays.asList(220), indexes(index.getObjectsBySpec(GeoQuery.point(0.0, 0.0), CrudUtils.allOf()).get()));
+
+		// Radius: the centre and its 4 neighbours at ~1.1km (the diagonals are ~1.6km), nearest first
+		final List<Integer> nearest = indexes(index.getObjectsBySpec(GeoQuery.radius(0.0, 0.0, 1500), CrudUtils.allOf()).get());
+		assertEquals(5, nearest.size());
+		assertEquals(220, nearest.get(0).intValue());
+		assertEquals(Arrays.asList(199, 219, 221, 241), nearest.subList(1, 5).stream().sorted().collect(Collectors.toList()));
+
+		// Radius combined with a CRUD filter, limit and order
+		assertEquals(4L, index.countObjectsBySpec(GeoQuery.radius(0.0, 0.0, 1500), CrudUtils.allOf().when("type", "odd")).get().longValue());
+		assertEquals(Arrays.asList(220), indexes(index.getObjectsBySpec(GeoQuery.radius(0.0, 0.0, 1500), CrudUtils.allOf().limit(1)).get()));
+		assertEquals(Arrays.asList(241, 221, 220, 219, 199),
+				indexes(index.getObjectsBySpec(GeoQuery.radius(0.0, 0.0, 1500), CrudUtils.allOf().orderBy(Tuples._2T("index", -1))).get()));
+
+		// Box: 3x3 points in the top right corner
+		assertEquals(9L, index.countObjectsBySpec(GeoQuery.box(0.075, 0.075, 0.2, 0.2), CrudUtils.allOf()).get().longValue());
+		assertEquals(441L, index.countObjectsBySpec(GeoQuery.box(-1.0, -1.0, 1.0, 1.0), CrudUtils.allOf()).get().longValue());
+
+		// Polygon: a triangle covering the bottom left half of the grid (the hypotenuse runs between grid points)
+		assertEquals(210L, index.countObjectsBySpec(GeoQuery.polygon(Arrays.asList(new double[] { -0.105, -0.105 }, new double[] { 0.1, -0.105 }, new double[] { -0.105, 0.1 })), CrudUtils.allOf()).get().longValue());
+
+		// Bulk load into a secondary buffer, then switch to it
+		assertEquals(3L, _geospatial_service.bulkLoad(bucket, Optional.of("rebuild"), IntStream.range(0, 3).mapToObj(i -> getObject(i))).get().longValue());
+		assertEquals(Arrays.asList("rebuild"), _geospatial_service.getSecondaryBufferList(bucket));
+		assertTrue(_geospatial_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.of("rebuild")).get().success());
+		assertFalse(_geospatial_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.of("rebuild")).get().success());
+		assertEquals(3L, _geospatial_service.getGeospatialIndex(JsonNode.class, bucket, Optional.empty()).get().countObjects().get().longValue());
+		assertTrue(_geospatial_service.getSecondaryBufferList(bucket).isEmpty());
+
+		// Deletion
+		assertTrue(_geospatial_service.handleBucketDeletionRequest(bucket, Optional.empty(), true).get().success());
+		assertEquals(0L, _geospatial_service.getGeospatialIndex(JsonNode.class, bucket, Optional.empty()).get().countObjects().get().longValue());
+	}
+}
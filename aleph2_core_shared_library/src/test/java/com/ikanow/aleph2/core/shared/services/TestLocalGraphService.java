@@ -0,0 +1,319 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.core.shared.services.LocalGraphStore.Direction;
+import com.ikanow.aleph2.core.shared.utils.AdjacencyList;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestLocalGraphService {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected LocalGraphService _graph_service;
+
+	@Before
+	public void setup() {
+		_graph_service = new LocalGraphService();
+	}
+
+	protected static DataBucketBean getBucket(final Boolean enabled, final String source_field, final String target_field, final Integer max_fan_out) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/local/graph")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::graph_schema, new DataSchemaBean.GraphSchemaBean(enabled, null, source_field, target_field, "relationship", max_fan_out, null))
+						.done().get())
+				.done().get();
+	}
+
+	protected static JsonNode getEdge(final String source, final String target, final String relationship) {
+		return _mapper.createObjectNode().put("from", source).put("to", target).put("relationship", relationship);
+	}
+
+	protected static LocalGraphStore<JsonNode> getStore(final int max_fan_out) {
+		return new LocalGraphStore<JsonNode>(new LocalGraphStore.GraphState("from", "to", Optional.of("relationship"), max_fan_out), JsonNode.class);
+	}
+
+	protected static List<String> toStrings(final List<JsonNode> edges) {
+		return edges.stream().map(e -> e.get("from").asText() + "->" + e.get("to").asText()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_adjacencyList() {
+		final AdjacencyList list = new AdjacencyList();
+		IntStream.range(0, 1000).forEach(i -> list.add(5000 + 3*i, i % 2));
+		list.add(5000, 0); // (duplicate)
+		assertEquals(0, list.size()); // (not visible until compacted)
+		assertTrue(list.compact());
+		assertEquals(1000, list.size());
+		assertTrue(list.getPackedBytes() < 3*1000); // (vs 8 bytes per uncompressed pair)
+		list.add(1, 7);
+		list.compact();
+		final List<Integer> neighbours = new LinkedList<Integer>();
+		assertEquals(3, list.forEach(3, (neighbour, label) -> neighbours.add(neighbour)));
+		assertEquals(Arrays.asList(1, 5000, 5003), neighbours);
+	}
+
+	@Test
+	public void test_adjacencyListEdgeCases() {
+		final AdjacencyList list = new AdjacencyList();
+		assertFalse(list.compact());
+		assertEquals(0, list.forEach(-1, (neighbour, label) -> true));
+
+		// Same neighbour with different labels are separate pairs (sorted by label), re-adding an existing pair doesn't change the list
+		list.add(2, 5);
+		list.add(2, 3);
+		list.add(1, 1);
+		assertTrue(list.compact());
+		list.add(1, 1);
+		assertFalse(list.compact());
+		assertEquals(3, list.size());
+
+		// Ids that need the full 5 byte varint
+		list.add(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		list.compact();
+		final List<String> pairs = new ArrayList<String>();
+		assertEquals(4, list.forEach(-1, (neighbour, label) -> pairs.add(neighbour + ":" + label)));
+		assertEquals(Arrays.asList("1:1", "2:3", "2:5", Integer.MAX_VALUE + ":" + Integer.MAX_VALUE), pairs);
+
+		// The visitor can stop early
+		assertEquals(2, list.forEach(-1, (neighbour, label) -> neighbour < 2));
+	}
+
+	@Test
+	public void test_fanOutTruncation() throws Exception {
+		final LocalGraphStore<JsonNode> store = getStore(3);
+		final ObjectNode hub = _mapper.createObjectNode().put("from", "hub").put("relationship", "knows");
+		hub.set("to", _mapper.createArrayNode().add("v0").add("v1").add("v2").add("v3").add("v4"));
+		store.storeObjects(Arrays.asList(hub,
+				getEdge("hub", "w0", "likes"), getEdge("hub", "w1", "likes"),
+				getEdge("x", "y0", "knows"), getEdge("x", "y1", "knows"), getEdge("x", "y2", "knows"),
+				getEdge("v0", "z0", "knows"), getEdge("v0", "z1", "knows"), getEdge("v0", "z2", "knows")
+				)).get();
+
+		// Only the first max_fan_out edges (in order of vertex id) are followed
+		final LocalGraphStore.GraphResult<JsonNode> from_hub = store.traverse(Arrays.asList("hub"), 1, Direction.out, Optional.empty());
+		assertEquals("{hub=0, v0=1, v1=1, v2=1}", from_hub.vertices().toString());
+		assertTrue(from_hub.truncated());
+		assertEquals(Arrays.asList("v0", "v1", "v2"), store.getNeighbours("hub", Direction.out, Optional.of(Arrays.asList("knows"))));
+
+		// Edges with other labels don't count towards the fan out
+		final LocalGraphStore.GraphResult<JsonNode> likes = store.traverse(Arrays.asList("hub"), 1, Direction.out, Optional.of(Arrays.asList("likes")));
+		assertEquals("{hub=0, w0=1, w1=1}", likes.vertices().toString());
+		assertFalse(likes.truncated());
+
+		// Exactly max_fan_out edges isn't truncated
+		final LocalGraphStore.GraphResult<JsonNode> from_x = store.traverse(Arrays.asList("x"), 1, Direction.out, Optional.empty());
+		assertEquals(4, from_x.vertices().size());
+		assertFalse(from_x.truncated());
+
+		// The fan out is per vertex, not per traversal
+		assertEquals(8, store.traverse(Arrays.asList("x", "hub"), 1, Direction.out, Optional.empty()).vertices().size());
+
+		// ... and is shared between the out and in edges of a vertex (out edges first)
+		final LocalGraphStore.GraphResult<JsonNode> from_v0 = store.traverse(Arrays.asList("v0"), 1, Direction.both, Optional.empty());
+		assertEquals("{v0=0, z0=1, z1=1, z2=1}", from_v0.vertices().toString());
+		assertTrue(from_v0.truncated());
+		assertFalse(store.traverse(Arrays.asList("v0"), 1, Direction.in, Optional.empty()).truncated());
+
+		// Neighbourhoods only return the edges that were followed
+		final LocalGraphStore.GraphResult<JsonNode> neighbourhood = store.getNeighbourhood("hub", 1, Direction.out, Optional.empty());
+		assertEquals(3, neighbourhood.edges().size());
+		assertTrue(neighbourhood.truncated());
+	}
+
+	@Test
+	public void test_missingEndpoints() throws Exception {
+		final LocalGraphStore<JsonNode> store = getStore(10);
+		final ObjectNode no_valid_targets = _mapper.createObjectNode().put("from", "a");
+		no_valid_targets.set("to", _mapper.createArrayNode().addNull().add(_mapper.createObjectNode()));
+		final ObjectNode many_to_many = _mapper.createObjectNode();
+		many_to_many.set("from", _mapper.createArrayNode().add("a").add("b"));
+		many_to_many.set("to", _mapper.createArrayNode().add("c").add("d"));
+
+		final long stored = store.storeObjects(Arrays.asList(
+				_mapper.createObjectNode().put("from", "a"), // (no target)
+				_mapper.createObjectNode().put("to", "b"), // (no source)
+				_mapper.createObjectNode().putNull("from").put("to", "b"),
+				_mapper.createObjectNode().put("from", "").put("to", "b"),
+				_mapper.createObjectNode().put("from", "a").set("to", _mapper.createArrayNode()),
+				no_valid_targets,
+				many_to_many, // (4 edges)
+				_mapper.createObjectNode().put("from", 1).put("to", 2) // (non string ids)
+				)).get()._2().get();
+		assertEquals(2L, stored);
+		assertEquals(2L, store.countObjects().get().longValue());
+		assertEquals(6, store.getVertexCount()); // (a, b, c, d, 1, 2 - objects without edges don't add vertices)
+
+		assertEquals(1, store.getEdges("a", "c").size());
+		assertEquals(0, store.getEdges("a", "b").size());
+		assertEquals(Arrays.asList("c", "d"), store.getNeighbours("b", Direction.out, Optional.empty()));
+		assertEquals(Arrays.asList("2"), store.getNeighbours("1", Direction.out, Optional.empty()));
+		assertEquals(Arrays.asList("1->2"), toStrings(store.getEdges("1", "2")));
+
+		// Unknown vertices are ignored
+		assertEquals(0, store.getEdges("a", "unknown").size());
+		assertEquals(0, store.getEdges("unknown", "c").size());
+		assertEquals("{a=0, c=1, d=1}", store.traverse(Arrays.asList("unknown", "a"), 1, Direction.out, Optional.empty()).vertices().toString());
+		final LocalGraphStore.GraphResult<JsonNode> unknown = store.getNeighbourhood("unknown", 2, Direction.both, Optional.empty());
+		assertTrue(unknown.vertices().isEmpty());
+		assertTrue(unknown.edges().isEmpty());
+		assertFalse(unknown.truncated());
+
+		// Dot notation fields
+		final LocalGraphStore<JsonNode> nested_store = new LocalGraphStore<JsonNode>(new LocalGraphStore.GraphState("link.from", "link.to", Optional.empty(), 10), JsonNode.class);
+		final ObjectNode nested = _mapper.createObjectNode();
+		nested.set("link", _mapper.createObjectNode().put("from", "p").put("to", "q"));
+		assertEquals(1L, nested_store.storeObjects(Arrays.asList(nested, getEdge("p", "r", "knows"))).get()._2().get().longValue());
+		assertEquals(Arrays.asList("q"), nested_store.getNeighbours("p", Direction.out, Optional.empty()));
+	}
+
+	@Test
+	public void test_deletes() throws Exception {
+		final LocalGraphStore<JsonNode> store = getStore(10);
+		store.storeObjects(Arrays.asList(getEdge("a", "b", "knows"), getEdge("b", "c", "knows"))).get();
+		assertEquals(3, store.getVertexCount());
+
+		// Deleting via another service on the same graph clears everything
+		assertTrue(store.getRawService().deleteDatastore().get());
+		assertEquals(0L, store.countObjects().get().longValue());
+		assertEquals(0, store.getVertexCount());
+		assertEquals(0L, store.getAdjacencyBytes());
+		assertEquals(0, store.getEdges("a", "b").size());
+		assertTrue(store.traverse(Arrays.asList("a"), 2, Direction.both, Optional.empty()).vertices().isEmpty());
+
+		// The graph can be re-populated afterwards, with nothing left over from before
+		store.storeObject(getEdge("a", "c", "knows")).get();
+		assertEquals(1L, store.countObjects().get().longValue());
+		assertEquals(2, store.getVertexCount());
+		assertEquals(Arrays.asList("c"), store.getNeighbours("a", Direction.out, Optional.of(Arrays.asList("knows"))));
+		assertEquals(Arrays.asList(), store.getNeighbours("b", Direction.both, Optional.empty()));
+		assertEquals(0, store.getEdges("a", "b").size());
+		assertEquals(Arrays.asList("a->c"), toStrings(store.getEdges("a", "c")));
+	}
+
+	@Test
+	public void test_multiHop() throws Exception {
+		// a -> b -> c -> d -> e -> a (cycle), plus a -> c
+		final LocalGraphStore<JsonNode> store = getStore(10);
+		store.storeObjects(Arrays.asList(
+				getEdge("a", "b", "knows"), getEdge("b", "c", "knows"), getEdge("c", "d", "knows"), getEdge("d", "e", "knows"), getEdge("e", "a", "knows"),
+				getEdge("a", "c", "likes"), getEdge("x", "x", "knows") // (self loop)
+				)).get();
+
+		assertEquals("{a=0}", store.traverse(Arrays.asList("a"), 0, Direction.out, Optional.empty()).vertices().toString());
+		assertEquals("{a=0, b=1, c=1}", store.traverse(Arrays.asList("a"), 1, Direction.out, Optional.empty()).vertices().toString());
+		assertEquals("{a=0, b=1, c=1, d=2}", store.traverse(Arrays.asList("a"), 2, Direction.out, Optional.empty()).vertices().toString());
+
+		// Vertices are only visited once (with the shortest hop count), so cycles terminate
+		assertEquals("{a=0, b=1, c=1, d=2, e=3}", store.traverse(Arrays.asList("a"), 10, Direction.out, Optional.empty()).vertices().toString());
+		assertEquals("{x=0}", store.traverse(Arrays.asList("x"), 10, Direction.both, Optional.empty()).vertices().toString());
+
+		// Labels apply at every hop
+		assertEquals("{a=0, b=1, c=2, d=3, e=4}", store.traverse(Arrays.asList("a"), 10, Direction.out, Optional.of(Arrays.asList("knows"))).vertices().toString());
+		assertEquals("{a=0, c=1}", store.traverse(Arrays.asList("a"), 10, Direction.out, Optional.of(Arrays.asList("likes"))).vertices().toString());
+
+		// In and both directions, multiple start vertices
+		assertEquals("{a=0, e=1, d=2}", store.traverse(Arrays.asList("a"), 2, Direction.in, Optional.empty()).vertices().toString());
+		assertEquals("{c=0, d=1, a=1, b=1}", store.traverse(Arrays.asList("c"), 1, Direction.both, Optional.empty()).vertices().toString());
+		assertEquals("{a=0, d=0, b=1, c=1, e=1}", store.traverse(Arrays.asList("a", "d"), 1, Direction.out, Optional.empty()).vertices().toString());
+
+		// Neighbourhoods include every edge followed, including those between vertices that had already been reached
+		final LocalGraphStore.GraphResult<JsonNode> neighbourhood = store.getNeighbourhood("a", 2, Direction.out, Optional.empty());
+		assertEquals("{a=0, b=1, c=1, d=2}", neighbourhood.vertices().toString());
+		assertEquals(Arrays.asList("a->b", "a->c", "b->c", "c->d"), toStrings(neighbourhood.edges()));
+	}
+
+	@Test
+	public void test_writeAndTraverse() throws Exception {
+		final DataBucketBean bucket = getBucket(true, "from", "to", 10);
+		assertEquals(0, _graph_service.validateSchema(bucket.data_schema().graph_schema(), bucket)._2().size());
+		assertEquals(1, _graph_service.validateSchema(getBucket(true, "from", "to", 0).data_schema().graph_schema(), bucket)._2().size());
+		assertEquals(1, _graph_service.validateSchema(getBucket(true, "link", "link", null).data_schema().graph_schema(), bucket)._2().size());
+		assertFalse(_graph_service.getWritableDataService(JsonNode.class, getBucket(false, null, null, null), Optional.empty(), Optional.empty()).isPresent());
+
+		// a -knows-> b -knows-> d -works_with-> e
+		// a -works_with-> c -knows-> d
+		final IDataWriteService<JsonNode> write_service = _graph_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		write_service.storeObjects(Arrays.asList(
+				getEdge("a", "b", "knows"), getEdge("a", "c", "works_with"), getEdge("b", "d", "knows"), getEdge("c", "d", "knows"), getEdge("d", "e", "works_with"),
+				getEdge("a", "b", "knows"), // (2nd object for the same edge)
+				_mapper.createObjectNode().put("from", "a") // (no target, ignored)
+				)).get();
+		final ObjectNode hub = _mapper.createObjectNode().put("from", "hub").put("relationship", "knows");
+		hub.set("to", _mapper.createArrayNode().addAll(IntStream.range(0, 50).mapToObj(i -> _mapper.getNodeFactory().textNode("v" + i)).collect(Collectors.toList())));
+		write_service.storeObject(hub).get();
+		final LocalGraphStore<JsonNode> store = _graph_service.getGraphStore(JsonNode.class, bucket, Optional.empty()).get();
+		assertEquals(7L, store.countObjects().get().longValue());
+		assertEquals(56, store.getVertexCount());
+
+		// Neighbours
+		assertEquals(Arrays.asList("b", "c"), store.getNeighbours("a", Direction.out, Optional.empty()));
+		assertEquals(Arrays.asList("b", "c"), store.getNeighbours("d", Direction.in, Optional.empty()));
+		assertEquals(Arrays.asList("e", "b", "c"), store.getNeighbours("d", Direction.both, Optional.empty()));
+		assertEquals(Arrays.asList("b"), store.getNeighbours("a", Direction.out, Optional.of(Arrays.asList("knows"))));
+		assertEquals(Arrays.asList(), store.getNeighbours("unknown", Direction.both, Optional.empty()));
+
+		// K-hop
+		assertEquals("{a=0, b=1, c=1, d=2}", store.traverse(Arrays.asList("a"), 2, Direction.out, Optional.empty()).vertices().toString());
+		assertEquals("{a=0, b=1, c=1, d=2, e=3}", store.traverse(Arrays.asList("a"), 5, Direction.out, Optional.empty()).vertices().toString());
+		assertEquals("{a=0, b=1, d=2}", store.traverse(Arrays.asList("a"), 5, Direction.out, Optional.of(Arrays.asList("knows"))).vertices().toString());
+		assertEquals("{e=0, d=1, b=2, c=2, a=3}", store.traverse(Arrays.asList("e"), 3, Direction.in, Optional.empty()).vertices().toString());
+
+		// Neighbourhood, with the edge objects
+		final LocalGraphStore.GraphResult<JsonNode> neighbourhood = store.getNeighbourhood("b", 1, Direction.both, Optional.empty());
+		assertEquals("{b=0, d=1, a=1}", neighbourhood.vertices().toString());
+		assertEquals(3, neighbourhood.edges().size()); // (b->d, and both objects for a->b)
+		assertFalse(neighbourhood.truncated());
+		assertEquals(2, store.getEdges("a", "b").size());
+		assertEquals(0, store.getEdges("b", "a").size());
+
+		// Fan out is bounded
+		final LocalGraphStore.GraphResult<JsonNode> from_hub = store.traverse(Arrays.asList("hub"), 2, Direction.out, Optional.empty());
+		assertEquals(11, from_hub.vertices().size());
+		assertTrue(from_hub.truncated());
+
+		// Bulk load into a secondary buffer, then switch to it
+		assertEquals(1L, _graph_service.bulkLoad(bucket, Optional.of("rebuild"), Arrays.asList(getEdge("x", "y", "knows")).stream()).get().longValue());
+		assertEquals(Arrays.asList("rebuild"), _graph_service.getSecondaryBufferList(bucket));
+		assertTrue(_graph_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.of("rebuild")).get().success());
+		assertEquals(Arrays.asList("y"), _graph_service.getGraphStore(JsonNode.class, bucket, Optional.empty()).get().getNeighbours("x", Direction.out, Optional.empty()));
+
+		// Deletion
+		assertTrue(_graph_service.handleBucketDeletionRequest(bucket, Optional.empty(), true).get().success());
+		assertEquals(0, _graph_service.getGraphStore(JsonNode.class, bucket, Optional.empty()).get().getVertexCount());
+	}
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.services;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.core.shared.utils.SearchQueryParser;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestLocalSearchIndexService {
+
+	protected String _root_dir;
+	protected LocalSearchIndexService _search_service;
+
+	@Before
+	public void setup() {
+		_root_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_local_search_" + System.currentTimeMillis();
+		_search_service = new LocalSearchIndexService(new GlobalPropertiesBean(null, null, null, _root_dir));
+	}
+
+	@After
+	public void teardown() {
+		FileUtils.deleteQuietly(new File(_root_dir));
+	}
+
+	protected static DataBucketBean getBucket(final Long target_index_size_mb, final DataSchemaBean.WriteSettings write_settings) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/local/search")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::search_index_schema,
+									BeanTemplateUtils.build(DataSchemaBean.SearchIndexSchemaBean.class)
+										.with(DataSchemaBean.SearchIndexSchemaBean::target_index_size_mb, target_index_size_mb)
+										.with(DataSchemaBean.SearchIndexSchemaBean::target_write_settings, write_settings)
+									.done().get())
+						.done().get())
+				.done().get();
+	}
+
+	protected static JsonNode getObject(final int i) {
+		return BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode()
+				.put("index", i)
+				.put("colour", (0 == i % 3) ? "Red" : (1 == i % 3) ? "Green" : "Blue")
+				.put("text", "The quick brown fox, number " + i + ((0 == i % 10) ? " jumps over the lazy dog" : ""))
+				.set("nested", BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("flag", 0 == i % 2));
+	}
+
+	protected static List<Integer> indexes(final Iterable<JsonNode> results) {
+		return StreamSupport.stream(results.spliterator(), false).map(json -> json.get("index").asInt()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_search() throws Exception {
+		final DataBucketBean bucket = getBucket(null, null);
+		assertEquals(0, _search_service.validateSchema(bucket.data_schema().search_index_schema(), bucket)._2().size());
+		assertEquals(1, _search_service.validateSchema(getBucket(0L, null).data_schema().search_index_schema(), bucket)._2().size());
+
+		final IDataWriteService<JsonNode> write_service = _search_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		write_service.storeObjects(IntStream.range(0, 100).mapToObj(i -> getObject(i)).collect(Collectors.toList())).get();
+		final IBasicSearchService<JsonNode> search_service = _search_service.getSearchService(JsonNode.class, bucket, Optional.empty()).get();
+
+		// Counts
+		assertEquals(100L, search_service.count(Optional.empty(), Optional.empty()).get().longValue());
+		assertEquals(100L, search_service.count(Optional.of("*:*"), Optional.empty()).get().longValue());
+		assertEquals(34L, search_service.count(Optional.of("colour:red"), Optional.empty()).get().longValue());
+		assertEquals(67L, search_service.count(Optional.of("colour:red OR colour:green"), Optional.empty()).get().longValue());
+		assertEquals(67L, search_service.count(Optional.of("colour:(red green)"), Optional.empty()).get().longValue());
+		assertEquals(17L, search_service.count(Optional.of("colour:red AND nested.flag:true"), Optional.empty()).get().longValue());
+		assertEquals(17L, search_service.count(Optional.of("+colour:red -nested.flag:true"), Optional.empty()).get().longValue());
+		assertEquals(66L, search_service.count(Optional.of("NOT colour:red"), Optional.empty()).get().longValue());
+		assertEquals(10L, search_service.count(Optional.of("text:\"lazy dog\""), Optional.empty()).get().longValue());
+		assertEquals(10L, search_service.count(Optional.of("jump*"), Optional.empty()).get().longValue());
+		assertEquals(11L, search_service.count(Optional.of("index:[10 TO 20]"), Optional.empty()).get().longValue());
+		assertEquals(9L, search_service.count(Optional.of("index:{10 TO 20}"), Optional.empty()).get().longValue());
+		assertEquals(5L, search_service.count(Optional.of("index:[95 TO *]"), Optional.empty()).get().longValue());
+		assertEquals(100L, search_service.count(Optional.of("nested.flag:*"), Optional.empty()).get().longValue());
+		assertEquals(4L, search_service.count(Optional.of("lazy"), Optional.of("colour:red")).get().longValue());
+
+		// Parse errors
+		assertTrue(SearchQueryParser.parse("colour:(red").isFail());
+		assertTrue(SearchQueryParser.parse("index:[1 2]").isFail());
+		try {
+			search_service.count(Optional.of("\"unterminated"), Optional.empty()).get();
+			fail("Should have thrown");
+		}
+		catch (ExecutionException e) {}
+
+		// Ordering, paging, projection
+		assertEquals(Arrays.asList(99, 98, 97), indexes(search_service.search(Optional.empty(), Optional.empty(), Optional.of(3), Optional.of(Tuples._2T("index", 1)), Optional.empty(), Optional.empty()).get()));
+		assertEquals(Arrays.asList(13, 14), indexes(search_service.search(Optional.of("index:[10 TO 20]"), Optional.empty(), Optional.of(2), Optional.of(Tuples._2T("index", -1)), Optional.of(3), Optional.empty()).get()));
+		final JsonNode projected = search_service.search(Optional.of("index:5"), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(Arrays.asList("index", "nested.flag"))).get().iterator().next();
+		assertEquals("{\"index\":5,\"nested\":{\"flag\":false}}", projected.toString());
+
+		// Scoring: rarer terms score higher, documents matching more terms score higher
+		assertEquals(Arrays.asList(0, 10), indexes(search_service.search(Optional.of("lazy OR number"), Optional.empty(), Optional.of(2)).get()));
+
+		// Facets
+		final Tuple2<Iterable<JsonNode>, Optional<Map<String, Collection<Tuple2<String, Long>>>>> faceted = search_service.search(Optional.of("lazy"), Optional.empty(),
+				Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(ImmutableMap.of("colour", 2L, "nested.flag", 5L))).get();
+		assertEquals(10, indexes(faceted._1()).size());
+		assertEquals(Arrays.asList(Tuples._2T("Red", 4L), Tuples._2T("Blue", 3L)), faceted._2().get().get("colour").stream().collect(Collectors.toList()));
+		assertEquals(Arrays.asList(Tuples._2T("true", 10L)), faceted._2().get().get("nested.flag").stream().collect(Collectors.toList()));
+
+		// Re-open from disk
+		final LocalSearchIndexService reopened = new LocalSearchIndexService(new GlobalPropertiesBean(null, null, null, _root_dir));
+		assertEquals(34L, reopened.getSearchService(JsonNode.class, bucket, Optional.empty()).get().count(Optional.of("colour:red"), Optional.empty()).get().longValue());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_batchAndRollover() throws Exception {
+		final DataBucketBean bucket = getBucket(1L, new DataSchemaBean.WriteSettings(500, null, 60, null));
+		final IDataWriteService<JsonNode> write_service = _search_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		final IDataWriteService.IBatchSubservice<JsonNode> batch_service = write_service.getBatchWriteSubservice().get();
+
+		// Batches are committed when full (500 objects), the rest on flush
+		final String padding = IntStream.range(0, 100).mapToObj(i -> "padding").collect(Collectors.joining(" "));
+		IntStream.range(0, 1999).forEach(i -> batch_service.storeObject(((com.fasterxml.jackson.databind.node.ObjectNode) getObject(i)).put("padding", padding)));
+		assertEquals(1500L, write_service.countObjects().get().longValue());
+		((LocalSearchIndex<JsonNode>) write_service).flush();
+		assertEquals(1999L, write_service.countObjects().get().longValue());
+
+		// ~1.8MB of documents, so rolled over into 2 segments - the first is sealed (its postings are on disk), the second is still being written
+		assertEquals(2, ((LocalSearchIndex<JsonNode>) write_service).getSegmentCount());
+		final File index_dir = new File(_search_service.getIndexDirectory(bucket, Optional.empty()));
+		assertEquals(Arrays.asList("segment_0.json", "segment_0.json.offsets", "segment_0.json.terms", "segment_0.json.values", "segment_1.json", "segment_1.json.offsets"),
+				Arrays.stream(index_dir.list()).sorted().collect(Collectors.toList()));
+		assertEquals(1999L, _search_service.getSearchService(JsonNode.class, bucket, Optional.empty()).get().count(Optional.of("padding"), Optional.empty()).get().longValue());
+
+		// Re-open from disk: the sealed segment is mapped rather than re-indexed, and documents are read back from either segment
+		final LocalSearchIndex.IndexState reopened = new LocalSearchIndex.IndexState(index_dir, 1L);
+		assertTrue(reopened._segments.get(0).isSealed());
+		assertFalse(reopened._segments.get(1).isSealed());
+		final IBasicSearchService<JsonNode> reopened_search = new LocalSearchIndex<JsonNode>(reopened, JsonNode.class, Optional.empty());
+		assertEquals(667L, reopened_search.count(Optional.of("colour:red"), Optional.empty()).get().longValue());
+		assertEquals(Arrays.asList(1998, 0), indexes(reopened_search.search(Optional.of("index:(0 1998)"), Optional.empty(), Optional.empty(),
+				Optional.of(Tuples._2T("index", 1)), Optional.empty(), Optional.empty()).get()));
+		assertEquals(Arrays.asList(Tuples._2T("Red", 667L)), reopened_search.search(Optional.of("colour:red"), Optional.empty(), Optional.of(0),
+				Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(ImmutableMap.of("colour", 5L))).get()._2().get().get("colour").stream().collect(Collectors.toList()));
+		reopened.close();
+
+		// Size based batches
+		batch_service.setBatchProperties(Optional.empty(), Optional.of(1L), Optional.of(Duration.ofSeconds(60)), Optional.empty());
+		IntStream.range(0, 20).forEach(i -> batch_service.storeObject(getObject(i)));
+		assertTrue(write_service.countObjects().get() > 1999L);
+
+		// Timed batches (flushed by the batch buffer's own timer), and close commits anything left over
+		((LocalSearchIndex<JsonNode>) write_service).flush();
+		final long committed = write_service.countObjects().get();
+		batch_service.setBatchProperties(Optional.empty(), Optional.empty(), Optional.of(Duration.ofMillis(250L)), Optional.empty());
+		batch_service.storeObject(getObject(0));
+		for (int i = 0; (i < 40) && (committed == write_service.countObjects().get()); ++i) {
+			Thread.sleep(100L);
+		}
+		assertEquals(committed + 1L, write_service.countObjects().get().longValue());
+		batch_service.setBatchProperties(Optional.empty(), Optional.empty(), Optional.of(Duration.ofSeconds(60)), Optional.empty());
+		batch_service.storeObject(getObject(1));
+		((LocalSearchIndex<JsonNode>) write_service).close();
+		assertEquals(committed + 2L, write_service.countObjects().get().longValue());
+
+		// Secondary buffers
+		final IDataWriteService<JsonNode> secondary = _search_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.of("rebuild")).get();
+		secondary.storeObjects(Arrays.asList(getObject(0))).get();
+		assertEquals(Arrays.asList("rebuild"), _search_service.getSecondaryBufferList(bucket));
+		assertTrue(_search_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.of("rebuild")).get().success());
+		assertEquals(1L, _search_service.getSearchService(JsonNode.class, bucket, Optional.empty()).get().count(Optional.empty(), Optional.empty()).get().longValue());
+
+		assertTrue(_search_service.handleBucketDeletionRequest(bucket, Optional.empty(), true).get().success());
+		assertFalse(new File(_search_service.getIndexDirectory(bucket, Optional.empty())).exists());
+	}
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestBatchedOutputBuffer {
+
+	@Test
+	public void test_flushOnSize() {
+		final List<Tuple2<String, List<Integer>>> flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> buffer = new BatchedOutputBuffer<>(3, Duration.ofHours(1L), (k, l) -> flushed.add(Tuples._2T(k, l)));
+
+		buffer.add("a", 1);
+		buffer.add("b", 2);
+		assertEquals(0, flushed.size());
+		assertEquals(2L, buffer.getBufferedCount());
+
+		buffer.add("a", 3); // (hits the max)
+		assertEquals(0L, buffer.getBufferedCount());
+		assertEquals(Arrays.asList(Tuples._2T("a", Arrays.asList(1, 3)), Tuples._2T("b", Arrays.asList(2))), flushed);
+
+		buffer.add("c", 4);
+		buffer.flush();
+		assertEquals(Tuples._2T("c", Arrays.asList(4)), flushed.get(2));
+
+		buffer.flush(); // (nothing to do)
+		assertEquals(3, flushed.size());
+	}
+
+	@Test
+	public void test_flushOnTime() throws InterruptedException {
+		final List<Tuple2<String, List<Integer>>> flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> buffer = new BatchedOutputBuffer<>(1000, Duration.ofMillis(100L), false, (k, l) -> flushed.add(Tuples._2T(k, l)));
+
+		buffer.add("a", 1);
+		assertEquals(0, flushed.size());
+		Thread.sleep(200L);
+		buffer.add("a", 2); // (triggers the time check)
+		assertEquals(Arrays.asList(Tuples._2T("a", Arrays.asList(1, 2))), flushed);
+	}
+
+	@Test
+	public void test_flushOnTimer() throws InterruptedException {
+		final List<Tuple2<String, List<Integer>>> flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> buffer = new BatchedOutputBuffer<>(1000, Duration.ofMillis(100L), (k, l) -> flushed.add(Tuples._2T(k, l)));
+
+		// (a thread that stops emitting still gets flushed)
+		final Thread t1 = new Thread(() -> buffer.add("a", 1));
+		t1.start(); t1.join();
+		for (int i = 0; (i < 50) && flushed.isEmpty(); ++i) Thread.sleep(20L);
+		assertEquals(Arrays.asList(Tuples._2T("a", Arrays.asList(1))), flushed);
+		assertEquals(0L, buffer.getBufferedCount());
+
+		// (close flushes what's left and cancels the timer)
+		buffer.close();
+		assertTrue(buffer._flush_task.get().isCancelled());
+		buffer.add("b", 2);
+		Thread.sleep(300L);
+		assertEquals(1, flushed.size());
+		assertEquals(1L, buffer.getBufferedCount());
+	}
+
+	@Test
+	public void test_flushAllThreads() throws InterruptedException {
+		final List<Tuple2<String, List<Integer>>> flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> buffer = new BatchedOutputBuffer<>(1000, Duration.ofHours(1L), (k, l) -> flushed.add(Tuples._2T(k, l)));
+
+		final Thread t1 = new Thread(() -> { buffer.add("a", 1); buffer.add("a", 2); });
+		final Thread t2 = new Thread(() -> { buffer.add("a", 3); });
+		t1.start(); t2.start();
+		t1.join(); t2.join();
+		buffer.add("b", 4);
+
+		assertEquals(0, flushed.size());
+		assertEquals(4L, buffer.getBufferedCount());
+
+		buffer.flushAll();
+		assertEquals(0L, buffer.getBufferedCount());
+		assertEquals(3, flushed.size());
+		assertEquals(4L, flushed.stream().mapToLong(t2_ -> t2_._2().size()).sum());
+
+		// (exited threads' buffers are discarded, this thread's is retained)
+		assertEquals(1, buffer._all_buffers.size());
+	}
+
+	@Test
+	public void test_flushAllMatchingTargets() throws InterruptedException {
+		final List<Tuple2<String, List<Integer>>> flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> buffer = new BatchedOutputBuffer<>(1000, Duration.ofHours(1L), (k, l) -> flushed.add(Tuples._2T(k, l)));
+
+		final Thread t1 = new Thread(() -> { buffer.add("a", 1); buffer.add("b", 2); });
+		t1.start();
+		t1.join();
+		buffer.add("a", 3);
+		buffer.add("b", 4);
+
+		// Only the matching targets are flushed, from every thread
+		buffer.flushAll(k -> k.equals("a"));
+		assertEquals(2L, buffer.getBufferedCount());
+		assertEquals(2, flushed.size());
+		assertTrue(flushed.stream().allMatch(t2_ -> t2_._1().equals("a")));
+
+		// (the exited thread's buffer is retained until it's empty)
+		assertEquals(2, buffer._all_buffers.size());
+		buffer.flushAll(k -> k.equals("b"));
+		assertEquals(0L, buffer.getBufferedCount());
+		assertEquals(4, flushed.size());
+		assertEquals(1, buffer._all_buffers.size());
+	}
+
+	@Test
+	public void test_slowTimedFlushDoesntBlockOtherBuffers() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Tuple2<String, List<Integer>>> slow_flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> slow_buffer = new BatchedOutputBuffer<>(1000, Duration.ofMillis(50L), (k, l) -> {
+			try { release.await(); } catch (InterruptedException e) {}
+			slow_flushed.add(Tuples._2T(k, l));
+		});
+		final List<Tuple2<String, List<Integer>>> flushed = Collections.synchronizedList(new LinkedList<>());
+		final BatchedOutputBuffer<String, Integer> buffer = new BatchedOutputBuffer<>(1000, Duration.ofMillis(50L), (k, l) -> flushed.add(Tuples._2T(k, l)));
+
+		slow_buffer.add("slow", 1);
+		for (int i = 0; (i < 50) && (0L != slow_buffer.getBufferedCount()); ++i) Thread.sleep(20L);
+		assertEquals(0L, slow_buffer.getBufferedCount()); // (drained by the timer, stuck in the flusher)
+
+		// (the timer thread isn't held up by the slow flush)
+		buffer.add("a", 1);
+		for (int i = 0; (i < 50) && flushed.isEmpty(); ++i) Thread.sleep(20L);
+		assertEquals(Arrays.asList(Tuples._2T("a", Arrays.asList(1))), flushed);
+		buffer.close();
+
+		// (close waits for the timed flush in progress)
+		final Thread closer = new Thread(() -> slow_buffer.close());
+		closer.start();
+		closer.join(200L);
+		assertTrue(closer.isAlive());
+		release.countDown();
+		closer.join(TimeUnit.SECONDS.toMillis(5L));
+		assertFalse(closer.isAlive());
+		assertEquals(Arrays.asList(Tuples._2T("slow", Arrays.asList(1))), slow_flushed);
+	}
+}
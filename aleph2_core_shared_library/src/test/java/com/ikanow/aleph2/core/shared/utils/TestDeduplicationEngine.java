@@ -0,0 +1,213 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IDocumentService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.MockServiceContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+
+public class TestDeduplicationEngine {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	/** The contents of a mocked context, and the queries made against it
+	 *  (scans of the whole context only return once "scan" is completed, so tests control when the Bloom filters get built)
+	 */
+	protected static class Store {
+		final List<JsonNode> _objects = new LinkedList<JsonNode>();
+		final List<QueryComponent<JsonNode>> _queries = new LinkedList<QueryComponent<JsonNode>>();
+		final CompletableFuture<Void> _scan = new CompletableFuture<Void>();
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static ICrudService<JsonNode> getCrudService(final Store store) {
+		final ICrudService<JsonNode> crud_service = Mockito.mock(ICrudService.class);
+		Mockito.when(crud_service.getObjectsBySpec(Matchers.any(), Matchers.any(), Matchers.anyBoolean())).thenAnswer(invocation -> {
+			final QueryComponent<JsonNode> query = (QueryComponent<JsonNode>) invocation.getArguments()[0];
+			store._queries.add(query);
+			final List<JsonNode> matches = store._objects.stream().filter(o -> matches(query, o)).collect(Collectors.toList());
+			final ICrudService.Cursor<JsonNode> cursor = Mockito.mock(ICrudService.Cursor.class);
+			Mockito.when(cursor.iterator()).thenAnswer(__ -> matches.iterator());
+			Mockito.when(cursor.count()).thenReturn((long) matches.size());
+			return isScan(query) ? store._scan.thenApply(__ -> cursor) : CompletableFuture.completedFuture(cursor);
+		});
+		return crud_service;
+	}
+
+	/** A service context whose document service returns the store with the same name as the bucket
+	 */
+	@SuppressWarnings("unchecked")
+	protected static MockServiceContext getServiceContext(final Map<String, Store> stores) {
+		final IDocumentService document_service = Mockito.mock(IDocumentService.class);
+		Mockito.when(document_service.getCrudService(Matchers.eq(JsonNode.class), Matchers.any(DataBucketBean.class))).thenAnswer(invocation ->
+			getCrudService(stores.get(((DataBucketBean) invocation.getArguments()[1]).full_name())));
+		final MockServiceContext service_context = new MockServiceContext();
+		service_context.addService(IDocumentService.class, Optional.empty(), document_service);
+		return service_context;
+	}
+
+	protected static boolean isScan(final QueryComponent<JsonNode> query) {
+		return (query instanceof SingleQueryComponent) && ((SingleQueryComponent<JsonNode>) query).getAll().isEmpty();
+	}
+
+	protected static boolean matches(final QueryComponent<JsonNode> query, final JsonNode object) {
+		if (query instanceof MultiQueryComponent) {
+			final List<QueryComponent<JsonNode>> elements = ((MultiQueryComponent<JsonNode>) query).getElements();
+			return (CrudUtils.Operator.any_of == query.getOp())
+					? elements.stream().anyMatch(q -> matches(q, object))
+					: elements.stream().allMatch(q -> matches(q, object));
+		}
+		final Collection<Map.Entry<String, Tuple2<CrudUtils.Operator, Tuple2<Object, Object>>>> terms = ((SingleQueryComponent<JsonNode>) query).getAll().entries();
+		return terms.stream().allMatch(kv -> {
+			final Object value = DeduplicationEngine.toValue(DeduplicationEngine.getField(object, kv.getKey()));
+			if (CrudUtils.Operator.any_of == kv.getValue()._1()) {
+				return ((Collection<?>) kv.getValue()._2()._1()).contains(value);
+			}
+			return kv.getValue()._2()._1().equals(value);
+		});
+	}
+
+	protected static DataBucketBean getBucket(final List<String> fields, final List<String> contexts) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/dedup")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::document_schema,
+									BeanTemplateUtils.build(DataSchemaBean.DocumentSchemaBean.class)
+										.with(DataSchemaBean.DocumentSchemaBean::deduplicate, true)
+										.with(DataSchemaBean.DocumentSchemaBean::deduplication_fields, fields)
+										.with(DataSchemaBean.DocumentSchemaBean::deduplication_contexts, contexts)
+									.done().get())
+						.done().get())
+				.done().get();
+	}
+
+	protected static JsonNode getObject(final String id, final String url, final int version) {
+		return _mapper.createObjectNode().put("_id", id).put("version", version)
+				.set("source", _mapper.createObjectNode().put("url", url));
+	}
+
+	protected static List<String> ids(final List<JsonNode> objects) {
+		return objects.stream().map(o -> o.get("_id").asText()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_deduplicateOnId() {
+		final Store store = new Store();
+		store._objects.addAll(IntStream.range(0, 100).mapToObj(i -> getObject("id" + i, "url" + i, 0)).collect(Collectors.toList()));
+
+		final DeduplicationEngine engine = new DeduplicationEngine(getBucket(null, null), __ -> getCrudService(store), 10000, 0.01, Duration.ofHours(1L), 10);
+		assertEquals(Arrays.asList("_id"), engine.getFields());
+
+		// 50 existing objects, 50 new objects, 1 repeat within the batch, 1 object without a key
+		final List<JsonNode> batch = new ArrayList<JsonNode>();
+		IntStream.range(50, 150).forEach(i -> batch.add(getObject("id" + i, "url" + i, 1)));
+		batch.add(getObject("id120", "url120", 2));
+		batch.add(_mapper.createObjectNode().put("version", 1));
+
+		// Until the filter has been built, everything is looked up (10 at a time)
+		final List<JsonNode> non_duplicates = engine.filterDuplicates(batch);
+		assertEquals(51, non_duplicates.size());
+		assertEquals(IntStream.range(100, 150).mapToObj(i -> "id" + i).collect(Collectors.toList()), ids(non_duplicates.subList(0, 50)));
+		assertEquals(1, non_duplicates.get(50).get("version").asInt());
+		assertEquals(1, non_duplicates.get(20).get("version").asInt()); // (the first of the repeats is kept)
+		assertEquals(100L, engine.getStatistics().get("lookups").longValue());
+		assertEquals(0L, engine.getStatistics().get("skipped_lookups").longValue());
+		assertEquals(1 + 10, store._queries.size());
+
+		// The let through objects are written, and the filter is built from a scan that started before they were (so are added from the engine)
+		store._objects.addAll(non_duplicates);
+		store._scan.complete(null);
+		engine.refreshFilters().join();
+		store._queries.clear();
+
+		// Now only the (50 + false positives) existing objects are looked up
+		final List<JsonNode> second = engine.filterDuplicates(IntStream.range(100, 200).mapToObj(i -> getObject("id" + i, "url" + i, 3)).collect(Collectors.toList()));
+		assertEquals(IntStream.range(150, 200).mapToObj(i -> "id" + i).collect(Collectors.toList()), ids(second));
+		final Map<String, Long> stats = engine.getStatistics();
+		assertEquals(202L, stats.get("checked").longValue());
+		assertEquals(101L, stats.get("duplicates").longValue());
+		assertEquals(200L, stats.get("lookups") + stats.get("skipped_lookups"));
+		assertTrue("lookups: " + stats.get("lookups"), stats.get("lookups") < 160L);
+		assertEquals((stats.get("lookups") - 100 + 9)/10, store._queries.size());
+	}
+
+	@Test
+	public void test_deduplicateOnFieldsAndContexts() {
+		final Store this_store = new Store();
+		final Store other_store = new Store();
+		final Store unused_store = new Store();
+		this_store._objects.add(getObject("a", "http://a", 0));
+		other_store._objects.add(getObject("b", "http://b", 0));
+		unused_store._objects.add(getObject("c", "http://c", 0));
+		final Map<String, Store> stores = new HashMap<String, Store>();
+		stores.put("/test/dedup", this_store);
+		stores.put("/test/other", other_store);
+		stores.put("/test/unused", unused_store);
+
+		final DataBucketBean bucket = getBucket(Arrays.asList("source.url", "version"), Arrays.asList("/test/dedup", "/test/other"));
+		final DeduplicationEngine engine = DeduplicationEngine.from(bucket, getServiceContext(stores)).get();
+		assertEquals("/test/dedup", engine.getBucket().full_name());
+
+		final List<JsonNode> non_duplicates = engine.filterDuplicates(Arrays.asList(
+				getObject("a2", "http://a", 0), // (duplicate in this bucket)
+				getObject("a3", "http://a", 1), // (different version so not a duplicate)
+				getObject("b2", "http://b", 0), // (duplicate in the other context)
+				getObject("c2", "http://c", 0) // (not in either context)
+				));
+		assertEquals(Arrays.asList("a3", "c2"), ids(non_duplicates));
+
+		// Multi-field lookups are a single "any of" query per context (plus the scan that builds the filter)
+		assertEquals(1L, this_store._queries.stream().filter(q -> isScan(q)).count());
+		assertEquals(1L, this_store._queries.stream().filter(q -> q instanceof MultiQueryComponent).count());
+		assertTrue(unused_store._queries.isEmpty());
+
+		// Engine is only created when deduplication is enabled
+		assertFalse(DeduplicationEngine.from(BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test").done().get(), null).isPresent());
+		// ... and there is a document service
+		assertFalse(DeduplicationEngine.from(bucket, new MockServiceContext()).isPresent());
+	}
+}
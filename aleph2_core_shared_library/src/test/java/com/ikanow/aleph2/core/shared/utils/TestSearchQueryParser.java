@@ -0,0 +1,168 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+import fj.data.Validation;
+
+public class TestSearchQueryParser {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected SearchIndexSegment _segment;
+
+	@Before
+	public void setup() {
+		_segment = new SearchIndexSegment(Optional.empty());
+		_segment.add(Arrays.asList(
+				getDoc("red apple pie", 5, "fruit"), // 0
+				getDoc("green apple", 10, "fruit"), // 1
+				getDoc("red car", 10000, "vehicle"), // 2
+				getDoc("blue car fast", 20000, null), // 3
+				getDoc("apple red", 50, null) // 4
+				));
+	}
+
+	protected static JsonNode getDoc(final String title, final int price, final String tag) {
+		return (null == tag)
+				? _mapper.createObjectNode().put("title", title).put("price", price)
+				: _mapper.createObjectNode().put("title", title).put("price", price).put("tag", tag);
+	}
+
+	/** Returns the documents matching a query (which must parse)
+	 */
+	protected List<Integer> matches(final String query_string) {
+		final Validation<String, SearchQueryParser.Query> query = SearchQueryParser.parse(query_string);
+		assertTrue(query_string + ": " + (query.isFail() ? query.fail() : ""), query.isSuccess());
+		return query.success().matches(_segment).stream().boxed().collect(Collectors.toList());
+	}
+
+	/** Returns the parse error of a query (which must fail to parse)
+	 */
+	protected static String error(final String query_string) {
+		final Validation<String, SearchQueryParser.Query> query = SearchQueryParser.parse(query_string);
+		assertTrue(query_string, query.isFail());
+		return query.fail();
+	}
+
+	@Test
+	public void test_termsAndFields() {
+		assertEquals(Arrays.asList(0, 1, 4), matches("apple"));
+		assertEquals(Arrays.asList(0, 1, 4), matches("APPLE")); // (terms are lower cased like the index)
+		assertEquals(Arrays.asList(2, 3), matches("title:car"));
+		assertEquals(Arrays.asList(0, 1), matches("tag:fruit"));
+		assertEquals(Arrays.asList(), matches("tag:car"));
+		assertEquals(Arrays.asList(1, 3), matches("title:(green blue)"));
+
+		// Prefixes and existence
+		assertEquals(Arrays.asList(0, 1, 4), matches("title:app*"));
+		assertEquals(Arrays.asList(0, 1, 2), matches("tag:*"));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), matches("*:*"));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), matches("*"));
+
+		// (escaped characters are part of the term)
+		assertEquals(Arrays.asList(0, 1), matches("tag\\:fruit OR tag:fruit"));
+	}
+
+	@Test
+	public void test_phrases() {
+		// All the words must be present in the field (not necessarily adjacent)
+		assertEquals(Arrays.asList(0, 4), matches("\"red apple\""));
+		assertEquals(Arrays.asList(0), matches("title:\"apple pie\""));
+		assertEquals(Arrays.asList(), matches("tag:\"red apple\""));
+		assertEquals(Arrays.asList(0, 4), matches("\"red \\\"apple\\\"\""));
+	}
+
+	@Test
+	public void test_precedence() {
+		// Clauses with no operator are OR'd
+		assertEquals(Arrays.asList(0, 1, 2, 4), matches("red green"));
+
+		// AND binds more tightly than OR, brackets override it
+		assertEquals(Arrays.asList(0, 1, 2, 4), matches("red OR green AND apple"));
+		assertEquals(Arrays.asList(0, 1, 2, 4), matches("green AND apple OR red"));
+		assertEquals(Arrays.asList(0, 1, 4), matches("(red OR green) AND apple"));
+		assertEquals(Arrays.asList(0, 4), matches("red && apple"));
+		assertEquals(Arrays.asList(0, 1, 2, 4), matches("red || green"));
+
+		// Required and prohibited clauses
+		assertEquals(Arrays.asList(0, 2, 4), matches("+red apple"));
+		assertEquals(Arrays.asList(0, 4), matches("red -car"));
+		assertEquals(Arrays.asList(1, 4), matches("apple AND NOT pie"));
+		assertEquals(Arrays.asList(1, 4), matches("apple && !pie"));
+		assertEquals(Arrays.asList(0, 1, 4), matches("NOT car"));
+		assertEquals(Arrays.asList(3), matches("car AND NOT (red OR green)"));
+	}
+
+	@Test
+	public void test_ranges() {
+		// Numeric
+		assertEquals(Arrays.asList(1, 4), matches("price:[10 TO 100]"));
+		assertEquals(Arrays.asList(4), matches("price:{10 TO 100]"));
+		assertEquals(Arrays.asList(1), matches("price:[10 TO 50}"));
+		assertEquals(Arrays.asList(2, 3), matches("price:[10000 TO *]"));
+		assertEquals(Arrays.asList(0), matches("price:[* TO 10}"));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), matches("price:[* TO *]"));
+
+		// Strings (and quoted bounds)
+		assertEquals(Arrays.asList(0, 1), matches("tag:[a TO g]"));
+		assertEquals(Arrays.asList(2), matches("tag:[\"g\" TO \"z\"]"));
+
+		// Combined with other clauses
+		assertEquals(Arrays.asList(2), matches("car AND price:[* TO 10000]"));
+	}
+
+	@Test
+	public void test_invalidQueries() {
+		assertTrue(error("").contains("empty query"));
+		assertTrue(error("()").contains("empty query"));
+		assertTrue(error("OR apple").contains("OR without a left hand side"));
+		assertEquals("Failed to parse query apple AND at position 9: unexpected end of query", error("apple AND"));
+		assertTrue(error("(apple").contains("missing )"));
+		assertTrue(error("apple)").contains("unexpected )"));
+		assertTrue(error("apple AND )").contains("unexpected )"));
+		assertTrue(error("title:").contains("unexpected end of query"));
+		assertTrue(error("\"apple").contains("unterminated quote"));
+		assertTrue(error("price:[1 TO").contains("unterminated range"));
+		assertTrue(error("price:[1 2]").contains("invalid range"));
+	}
+
+	@Test
+	public void test_scoring() {
+		// Rarer terms score higher
+		final SearchQueryParser.Query query = SearchQueryParser.parse("red OR fast").success();
+		final BitSet docs = query.matches(_segment);
+		final double[] scores = new double[_segment.size()];
+		query.score(_segment, docs, scores);
+		assertTrue(scores[3] > scores[0]);
+		assertEquals(scores[0], scores[2], 0.0001);
+		assertEquals(0.0, scores[1], 0.0001);
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.services.LocalFileStorageService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestStorageStreamUtils {
+
+	protected static final long DAY_MS = 24L*3600L*1000L;
+
+	protected String _root_dir;
+	protected LocalFileStorageService _storage_service;
+
+	@Before
+	public void setup() {
+		_root_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_storage_stream_" + System.currentTimeMillis();
+		_storage_service = new LocalFileStorageService(new GlobalPropertiesBean(null, null, null, _root_dir));
+	}
+
+	@After
+	public void teardown() {
+		FileUtils.deleteQuietly(new File(_root_dir));
+	}
+
+	protected static DataBucketBean getBucket(final String codec) {
+		return BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/storage/stream")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::temporal_schema,
+									BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class)
+										.with(DataSchemaBean.TemporalSchemaBean::time_field, "@timestamp")
+									.done().get())
+							.with(DataSchemaBean::storage_schema,
+									BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.class)
+										.with(DataSchemaBean.StorageSchemaBean::processed,
+												BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.class)
+													.with(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::grouping_time_period, "day")
+													.with(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::codec, codec)
+												.done().get())
+									.done().get())
+						.done().get())
+				.done().get();
+	}
+
+	/** Writes 100 objects per day for 10 days (in 2 segments per day), ending at the start of the current day
+	 */
+	protected long writeObjects(final DataBucketBean bucket) throws Exception {
+		final IDataWriteService<JsonNode> write_service = _storage_service.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()).get();
+		final long today = (System.currentTimeMillis() / DAY_MS) * DAY_MS;
+		for (int segment = 0; segment < 20; ++segment) {
+			final long day = today - (10 - segment/2)*DAY_MS;
+			final int offset = segment*50;
+			write_service.storeObjects(IntStream.range(0, 50)
+					.<JsonNode>mapToObj(i -> BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode()
+							.put("index", offset + i).put("@timestamp", day + (offset % 100 + i)*60000L))
+					.collect(Collectors.toList())).get();
+		}
+		return today;
+	}
+
+	@Test
+	public void test_parallelStream() throws Exception {
+		for (String codec: new String[] { null, "snappy", "lz4" }) {
+			final DataBucketBean bucket = getBucket(codec);
+			writeObjects(bucket);
+			final String stage_dir = StorageStreamUtils.getStageDirectory(_storage_service, bucket, IStorageService.StorageStage.processed);
+			assertEquals(_storage_service.getStageDirectory(bucket, IStorageService.StorageStage.processed, Optional.empty()), stage_dir);
+
+			// Junk that should be ignored: a hidden (in-progress) file, and a non-JSON line
+			final File partition = new File(stage_dir).listFiles()[0];
+			FileUtils.write(new File(partition, ".data_tmp.json"), "{\"index\":-1}\n", StandardCharsets.UTF_8);
+			FileUtils.write(new File(partition, "data_junk.json"), "not json\n\n{\"index\":-2}\n", StandardCharsets.UTF_8);
+
+			try (Stream<JsonNode> stream = StorageStreamUtils.getObjectStream(_storage_service, bucket, IStorageService.StorageStage.processed, Optional.empty(), Optional.empty())) {
+				final List<Integer> indexes = stream.parallel().map(json -> json.get("index").asInt()).sorted().collect(Collectors.toList());
+				assertEquals(codec, 1001, indexes.size());
+				assertEquals(-2, indexes.get(0).intValue());
+				assertEquals(IntStream.range(0, 1000).boxed().collect(Collectors.toList()), indexes.subList(1, 1001));
+			}
+			// Sequential, short-circuiting pulls are served a line at a time (the remaining segments are never opened)
+			try (Stream<JsonNode> stream = StorageStreamUtils.getObjectStream(_storage_service, bucket, IStorageService.StorageStage.processed, Optional.empty(), Optional.empty())) {
+				final Iterator<JsonNode> it = stream.iterator();
+				assertTrue(it.hasNext());
+				assertTrue(it.next().get("index").asInt() < 100); // (ie from the first partition)
+			}
+			try (Stream<JsonNode> stream = StorageStreamUtils.getObjectStream(_storage_service, bucket, IStorageService.StorageStage.processed, Optional.empty(), Optional.empty())) {
+				assertEquals(5L, stream.limit(5).count());
+			}
+			FileUtils.deleteQuietly(new File(_root_dir));
+		}
+	}
+
+	@Test
+	public void test_timeRange() throws Exception {
+		final DataBucketBean bucket = getBucket("gz");
+		final long today = writeObjects(bucket);
+		final String stage_dir = StorageStreamUtils.getStageDirectory(_storage_service, bucket, IStorageService.StorageStage.processed);
+		final TemporalPartitioner partitioner = TemporalPartitioner.from("day", null).success();
+
+		// Partition pruning: only the last 3 days' segments are opened
+		final Optional<Date> from = Optional.of(new Date(today - 3*DAY_MS));
+		assertEquals(6, StorageStreamUtils.getSegments(_storage_service.getUnderlyingPlatformDriver(org.apache.hadoop.fs.FileContext.class, Optional.empty()).get(),
+				stage_dir, partitioner, from, Optional.empty()).size());
+		assertEquals(300L, StorageStreamUtils.getObjectStream(_storage_service, bucket, IStorageService.StorageStage.processed, from, Optional.empty()).parallel().count());
+
+		// Record level filtering within the boundary partitions: [day-3 + 30 mins, day-2)
+		final Optional<Date> from_mid = Optional.of(new Date(today - 3*DAY_MS + 30L*60000L));
+		final Optional<Date> to = Optional.of(new Date(today - 2*DAY_MS));
+		assertEquals(70L, StorageStreamUtils.getObjectStream(_storage_service, bucket, IStorageService.StorageStage.processed, from_mid, to).parallel().count());
+
+		// Empty stage
+		assertEquals(0L, StorageStreamUtils.getObjectStream(_storage_service, bucket, IStorageService.StorageStage.raw, Optional.empty(), Optional.empty()).count());
+	}
+}
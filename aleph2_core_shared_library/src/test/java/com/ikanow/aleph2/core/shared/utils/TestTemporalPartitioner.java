@@ -0,0 +1,99 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.core.shared.utils;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestTemporalPartitioner {
+
+	@Test
+	public void test_fromSchema() {
+		assertTrue(TemporalPartitioner.from("not a period", "10 days").isFail());
+		assertTrue(TemporalPartitioner.from("day", "not a duration").isFail());
+
+		final TemporalPartitioner from_schema = TemporalPartitioner.from(
+				BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class)
+					.with(DataSchemaBean.TemporalSchemaBean::grouping_time_period, "month")
+					.with(DataSchemaBean.TemporalSchemaBean::exist_age_max, "1 year")
+				.done().get()).success();
+		assertEquals(Optional.of(ChronoUnit.MONTHS), from_schema.getPeriod());
+		assertTrue(from_schema.getMaxAge().isPresent());
+
+		// No schema: single partition, nothing ever ages out
+		final TemporalPartitioner none = TemporalPartitioner.from((DataSchemaBean.TemporalSchemaBean)null).success();
+		assertEquals(TemporalPartitioner.ALL_TIME_PARTITION, none.getPartition(new Date()));
+		assertFalse(none.isExpired(TemporalPartitioner.ALL_TIME_PARTITION, new Date()));
+		assertEquals(Collections.emptyList(), none.getExpiredPartitions(Arrays.asList(TemporalPartitioner.ALL_TIME_PARTITION), new Date()));
+	}
+
+	@Test
+	public void test_partitions() throws Exception {
+		final TemporalPartitioner partitioner = TemporalPartitioner.from("day", "2 days").success();
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd-HH:mm");
+		final Date time = format.parse("2015-06-10-12:00");
+
+		assertEquals("2015-06-10", partitioner.getPartition(time));
+		final ObjectNode json = BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("time", time.getTime());
+		assertEquals("2015-06-10", partitioner.getPartition(json, Optional.of("time")));
+		json.put("time", "2015-06-09T12:00:00Z");
+		assertEquals(partitioner.getPartition(Date.from(Instant.parse("2015-06-09T12:00:00Z"))), partitioner.getPartition(json, Optional.of("time")));
+		assertEquals(partitioner.getPartition(new Date()), partitioner.getPartition(json, Optional.of("missing")));
+
+		assertEquals(format.parse("2015-06-11-00:00"), partitioner.getPartitionEnd("2015-06-10").get());
+		assertEquals(Optional.empty(), partitioner.getPartitionEnd("not_a_partition"));
+
+		// Expires once the _end_ of the partition is older than the max age
+		final Date now = format.parse("2015-06-13-00:00");
+		assertTrue(partitioner.isExpired("2015-06-10", now));
+		assertFalse(partitioner.isExpired("2015-06-11", now));
+		assertFalse(partitioner.isExpired("not_a_partition", now));
+
+		final List<String> dropped = new LinkedList<String>();
+		assertEquals(Arrays.asList("2015-06-09", "2015-06-10"),
+				partitioner.dropExpiredPartitions(Arrays.asList("2015-06-09", "2015-06-10", "2015-06-11", "2015-06-12"), now, p -> dropped.add(p)));
+		assertEquals(Arrays.asList("2015-06-09", "2015-06-10"), dropped);
+
+		// Month partitions end at the start of the next month
+		assertEquals(format.parse("2015-03-01-00:00"), TemporalPartitioner.from("month", null).success().getPartitionEnd("2015-02").get());
+
+		// Sub-hour partitions are filesystem safe (no ':'s)
+		final TemporalPartitioner by_minute = TemporalPartitioner.from("minute", "1 hour").success();
+		assertEquals("2015-06-10-1200", by_minute.getPartition(time));
+		assertEquals(format.parse("2015-06-10-12:01"), by_minute.getPartitionEnd("2015-06-10-1200").get());
+		assertEquals(Optional.empty(), by_minute.getPartitionEnd("2015-06-10-12:00"));
+		assertEquals("2015-06-10-120000", TemporalPartitioner.from("second", null).success().getPartition(time));
+
+		// Age out reply
+		assertEquals(null, TemporalPartitioner.buildAgeOutMessage(this, "/test", Collections.emptyList()).details());
+		assertEquals("true", TemporalPartitioner.buildAgeOutMessage(this, "/test", dropped).details().get("loggable"));
+	}
+}
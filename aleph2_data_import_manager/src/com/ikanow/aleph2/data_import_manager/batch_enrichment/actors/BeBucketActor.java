@@ -16,19 +16,27 @@
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.actors;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.data.Stat;
 
+import scala.concurrent.duration.Duration;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.PoisonPill;
 import akka.actor.UntypedActor;
 
@@ -57,13 +65,26 @@ public class BeBucketActor extends UntypedActor {
 	protected GlobalPropertiesBean _global_properties_Bean = null;
 
 	protected String bucketZkPath = null;
+	protected String bucketPathStr = null;
+	protected String bucketFullName = null;
 	protected FileContext fileContext = null;
 
 	private IBeJobService beJobService;
 
-
+	public static String MSG_CHECK = "check";
+	
+	/** The initial/minimum delay before re-checking a bucket (eg for job completion, or for more input) */
+	public static long MIN_BACKOFF_MS = 8000L;
+	/** Once the re-check delay grows past this (no input, and no jobs running), the actor stops re-checking until it's woken by the folder watcher */
+	public static long MAX_BACKOFF_MS = 5L*60L*1000L;
 	
-	// not null means agent has been initialized.
+	// state - this actor lives as long as the bucket is being watched, so it remembers its lease, any running jobs, and the current backoff
+	protected boolean hasLease = false;
+	protected List<String> runningJobs = new ArrayList<String>();
+	protected boolean launching = false; // (true from launchReadyJobs being called until its JobsLaunched message arrives)
+	protected long backoffMs = MIN_BACKOFF_MS;
+	protected Cancellable nextCheck = null;
+	protected ConnectionStateListener connectionListener = null;
 
 	public BeBucketActor(IStorageService storage_service, IBeJobService beJobService) {
 		this._actor_context = DataImportActorContext.get();
@@ -78,16 +99,81 @@ public class BeBucketActor extends UntypedActor {
 		
 	}
 
+	/**
+	 * Constructor with the services passed in directly rather than taken from the actor context (eg for testing) 
+	 */
+	protected BeBucketActor(CuratorFramework curator, IManagementDbService management_db, FileContext fileContext, IBeJobService beJobService, String bucketPathStr, String bucketFullName) {
+		this._actor_context = null;
+		this._core_distributed_services = null;
+		this._curator = curator;
+		this._management_db = management_db;
+		this.storage_service = null;
+		this.fileContext = fileContext;
+		this.beJobService = beJobService;
+		this.bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bucketFullName;
+		this.bucketFullName = bucketFullName;
+		this.bucketPathStr = bucketPathStr;
+	}
+
+	/**
+	 * Constructor used by the folder watcher - since the bucket is known up front, the actor carries on checking it if it's restarted by its supervisor 
+	 */
+	public BeBucketActor(IStorageService storage_service, IBeJobService beJobService, String bucketPathStr, String bucketFullName) {
+		this(storage_service, beJobService);
+		this.bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bucketFullName;
+		this.bucketFullName = bucketFullName;
+		this.bucketPathStr = bucketPathStr;
+	}
+
+	/**
+	 * Sent by the actor to itself when the state of its ZK connection changes (the listener is called from a curator thread) 
+	 */
+	protected static class ConnectionStateChanged {
+		protected ConnectionStateChanged(ConnectionState newState) {
+			this.newState = newState;
+		}
+		protected final ConnectionState newState;
+	}
+
+	/**
+	 * Sent by the actor to itself once the jobs started by launchReadyJobs have been launched 
+	 */
+	protected static class JobsLaunched {
+		protected JobsLaunched(List<String> jobNames) {
+			this.jobNames = jobNames;
+		}
+		protected final List<String> jobNames;
+	}
+
+	@Override
+	public void preStart() {
+		final ActorRef self = getSelf();
+		connectionListener = (client, newState) -> self.tell(new ConnectionStateChanged(newState), self);
+		_curator.getConnectionStateListenable().addListener(connectionListener);
+		
+		// (eg after a restart - otherwise the bucket would be ignored until the folder watcher next woke it)
+		if (null != bucketPathStr) {
+			getSelf().tell(MSG_CHECK, getSelf());
+		}
+	}
+
 	@Override
 	public void postStop() {
 		logger.debug("postStop");
-		if (bucketZkPath != null) {
+		if (nextCheck != null) {
+			nextCheck.cancel();
+		}
+		if (connectionListener != null) {
+			_curator.getConnectionStateListenable().removeListener(connectionListener);
+		}
+		if (hasLease && (bucketZkPath != null)) {
 			try {
 				logger.debug("Deleting bucket path in ZK:" + bucketZkPath);
 				_curator.delete().forPath(bucketZkPath);
 			} catch (Exception e) {
 				logger.error("Caught exception", e);
 			}
+			hasLease = false;
 		}		
 	}
 
@@ -95,38 +181,143 @@ public class BeBucketActor extends UntypedActor {
 	public void onReceive(Object message) throws Exception {
 		logger.debug("Message received:" + message);
 		if (message instanceof BucketEnrichmentMessage) {
-
+			// Woken by the folder watcher (ready folder has changed), so start checking frequently again
 			BucketEnrichmentMessage bem = (BucketEnrichmentMessage) message;
-			Stat bucketExists = null;
-			try {
-				this.bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bem.getBuckeFullName();				
-				bucketExists = _curator.checkExists().forPath(bucketZkPath);
-			} catch (Exception e) {
-				// do nothing on purpose, whole path might not exist in zk
-				//logger.debug("Caught exception for zk path:"+bucketZkPath,e);
-			}
-			if (bucketExists == null) {
-				// bucket is not registered yet, grab it and do the processing
-				// on this node
-				_curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(bucketZkPath);
-				launchReadyJobs(fileContext,bem.getBuckeFullName(), bem.getBucketPathStr(),beJobService,_management_db,this.self());
-
-				// stop actor after all the processing
-				getContext().stop(getSelf());
-			} else {
-				logger.debug("Bucket alrady exists in ZK:" + bucketExists);
-				// stop actor if node exists
-				getContext().stop(getSelf());
+			this.bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bem.getBuckeFullName();
+			this.bucketFullName = bem.getBuckeFullName();
+			this.bucketPathStr = bem.getBucketPathStr();
+			backoffMs = MIN_BACKOFF_MS;
+			checkBucket();
+		} 
+		else if (MSG_CHECK.equals(message)) {
+			nextCheck = null;
+			checkBucket();
+		}
+		else if (message instanceof JobsLaunched) {
+			launching = false;
+			runningJobs = new ArrayList<String>(((JobsLaunched) message).jobNames);
+			scheduleCheck(!runningJobs.isEmpty());
+		}
+		else if (message instanceof ConnectionStateChanged) {
+			// (once the connection is suspended the ephemeral lease node may be deleted at any time, so stop treating it as held - 
+			//  acquireLease recognizes the node as this session's if the connection is restored before the session expires)
+			final ConnectionState newState = ((ConnectionStateChanged) message).newState;
+			if ((ConnectionState.SUSPENDED == newState) || (ConnectionState.LOST == newState)) {
+				if (hasLease) {
+					logger.info("Lost ZK connection, releasing lease for bucket:" + bucketFullName);
+				}
+				hasLease = false;
 			}
-		} else {
+		}
+		else {
 			logger.debug("unhandeld message:" + message);
 			unhandled(message);
 		}
 	}
 
+	/**
+	 * Launches jobs if there's input, this node holds the bucket's lease and no job is already running for it; 
+	 * otherwise schedules another check, backing off while there's nothing to do.
+	 */
+	protected void checkBucket() {
+		if (null == bucketPathStr) {
+			return; // (not woken yet)
+		}
+		if (launching) {
+			return; // (the next check is scheduled once the launch completes)
+		}
+		if (isJobRunning()) {
+			logger.debug("Job still running for bucket:" + bucketFullName);
+			scheduleCheck(false);
+			return;
+		}
+		if (!acquireLease()) {
+			logger.debug("Bucket is being processed by another node:" + bucketFullName);
+			scheduleCheck(false);
+			return;
+		}
+		if (!hasReadyFiles(fileContext, bucketPathStr)) {
+			scheduleCheck(false);
+			return;
+		}
+		// (the bucket lookup is asynchronous, so the job names are passed back as a message rather than updated from the future's thread)
+		launching = true;
+		final ActorRef self = this.self();
+		launchReadyJobs(fileContext, bucketFullName, bucketPathStr, beJobService, _management_db, self)
+			.whenComplete((jobNames, t) -> {
+				if (null != t) {
+					logger.error("launchReadyJobs caught Exception:", t);
+				}
+				self.tell(new JobsLaunched(null == jobNames ? Collections.<String>emptyList() : jobNames), self);
+			});
+	}
 
-	public  static List<String> launchReadyJobs(FileContext fileContext, String bucketFullName, String bucketPathStr,IBeJobService beJobService,IManagementDbService managementDbService,ActorRef closingSelf) {
-		List<String> jobNames = new ArrayList<String>();
+	/**
+	 * Checks the jobs launched by the last completed call to launchReadyJobs 
+	 */
+	protected boolean isJobRunning() {
+		runningJobs.removeIf(jobName -> beJobService.isJobComplete(jobName).orElse(true));
+		return !runningJobs.isEmpty();
+	}
+
+	/**
+	 * Takes the bucket's ZK lease (an ephemeral node, held until this actor stops or its ZK session is lost) unless this or another node already holds it
+	 */
+	protected boolean acquireLease() {
+		if (!hasLease) {
+			try {
+				_curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(bucketZkPath);
+				hasLease = true;
+			} catch (NodeExistsException e) {
+				// (another node holds the lease - or this one does, if the connection was suspended and then restored within the same session)
+				try {
+					final Stat stat = _curator.checkExists().forPath(bucketZkPath);
+					hasLease = (null != stat) && (stat.getEphemeralOwner() == _curator.getZookeeperClient().getZooKeeper().getSessionId());
+				} catch (Exception e2) {
+					logger.error("acquireLease caught Exception:", e2);
+				}
+			} catch (Exception e) {
+				logger.error("acquireLease caught Exception:", e);
+			}
+		}
+		return hasLease;
+	}
+
+	/**
+	 * Schedules the next check: soon if there was activity, else after an exponentially increasing delay - stops re-checking 
+	 * altogether once that passes MAX_BACKOFF_MS (the folder watcher wakes the bucket again when new input arrives)
+	 * @param activity - whether any jobs were just launched
+	 */
+	protected void scheduleCheck(boolean activity) {
+		if (nextCheck != null) {
+			nextCheck.cancel();
+			nextCheck = null;
+		}
+		backoffMs = activity ? MIN_BACKOFF_MS : 2*backoffMs;
+		if (backoffMs <= MAX_BACKOFF_MS) {
+			nextCheck = getContext().system().scheduler().scheduleOnce(Duration.create(backoffMs, TimeUnit.MILLISECONDS), 
+					getSelf(), MSG_CHECK, getContext().dispatcher(), null);
+		}
+		else {
+			logger.debug("No input for bucket, idle until woken:" + bucketFullName);
+		}
+	}
+
+	public static boolean hasReadyFiles(FileContext fileContext, String bucketPathStr) {
+		try {
+			Path bucketReady = new Path(bucketPathStr + "/managed_bucket/import/ready");
+			return fileContext.util().exists(bucketReady) && (fileContext.util().listStatus(bucketReady).length > 0);
+		} catch (Exception e) {
+			logger.error("hasReadyFiles caught Exception:", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Launches a job for each enabled enrichment config of the bucket, if it has files in its ready folder
+	 * @return a future containing the names of the jobs that were launched, completed once the bucket lookup and the launches have completed 
+	 */
+	public static CompletableFuture<List<String>> launchReadyJobs(FileContext fileContext, String bucketFullName, String bucketPathStr,IBeJobService beJobService,IManagementDbService managementDbService,ActorRef closingSelf) {
 		try {
 			Path bucketReady = new Path(bucketPathStr + "/managed_bucket/import/ready");
 			//Path bucketTmp = new Path(bucketPathStr + "/managed_bucket/import/temp");
@@ -138,8 +329,9 @@ public class BeBucketActor extends UntypedActor {
 					IManagementCrudService<DataBucketBean> dataBucketStore = managementDbService.getDataBucketStore();
 					SingleQueryComponent<DataBucketBean> querydatBucketFullName = CrudUtils.anyOf(DataBucketBean.class).when("full_name",bucketFullName);
 					
-					dataBucketStore.getObjectBySpec(querydatBucketFullName).thenAccept(
+					return dataBucketStore.getObjectBySpec(querydatBucketFullName).thenApply(
 							odb -> {
+								final List<String> jobNames = new ArrayList<String>();
 								if (odb.isPresent()) {
 									DataBucketBean dataBucketBean = odb.get();
 									List<EnrichmentControlMetadataBean> enrichmentConfigs = dataBucketBean.batch_enrichment_configs();
@@ -166,6 +358,7 @@ public class BeBucketActor extends UntypedActor {
 									closingSelf.tell(PoisonPill.getInstance(), closingSelf);
 									}
 								}
+								return jobNames;
 							});
 				} // status length
 				else{
@@ -178,7 +371,6 @@ public class BeBucketActor extends UntypedActor {
 		} catch (Exception e) {
 			logger.error("checkReady caught Exception:", e);
 		}
-		return jobNames;
+		return CompletableFuture.completedFuture(Collections.<String>emptyList());
 	}
 }
-
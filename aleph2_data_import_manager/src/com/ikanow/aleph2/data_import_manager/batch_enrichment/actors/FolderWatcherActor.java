@@ -15,10 +15,10 @@
 ******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.actors;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -27,19 +27,27 @@ import org.apache.hadoop.fs.Path;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import scala.Tuple2;
 import scala.concurrent.duration.Duration;
 import akka.actor.ActorRef;
 import akka.actor.Cancellable;
+import akka.actor.OneForOneStrategy;
 import akka.actor.Props;
+import akka.actor.SupervisorStrategy;
+import akka.actor.Terminated;
 import akka.actor.UntypedActor;
+import akka.japi.Function;
 
 import com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce.IBeJobService;
+import com.ikanow.aleph2.data_import_manager.batch_enrichment.utils.BucketFolderTracker;
 import com.ikanow.aleph2.data_import_manager.services.DataImportActorContext;
-import com.ikanow.aleph2.core.shared.utils.DirUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+import com.ikanow.aleph2.management_db.data_model.BucketActionMessage;
+import com.ikanow.aleph2.management_db.data_model.BucketActionMessage.BucketActionEventBusWrapper;
+import com.ikanow.aleph2.management_db.services.ManagementDbActorContext;
 import com.ikanow.aleph2.management_db.utils.ActorUtils;
 
 public class FolderWatcherActor extends UntypedActor {
@@ -53,9 +61,13 @@ public class FolderWatcherActor extends UntypedActor {
 	protected final ICoreDistributedServices _core_distributed_services;
 	protected final IStorageService _storage_service;
 	protected GlobalPropertiesBean _global_properties_Bean = null; 
-	protected List<Path> _bucket_paths = null;
+	protected BucketFolderTracker _bucket_tracker = null;
 	protected FileContext fileContext = null;
 	protected Path dataPath = null;
+	protected long _tick_count = 0;
+	protected boolean _subscribed = false;
+	// one long lived actor per bucket (created the first time the bucket has input)
+	protected final Map<String, ActorRef> _bucket_actors = new HashMap<String, ActorRef>();
 
 	protected IBeJobService beJobService;
 
@@ -63,6 +75,11 @@ public class FolderWatcherActor extends UntypedActor {
 	public static String MSG_STOP = "stop";
 	public static String MSG_FOLDER_WATCH = "folderWatch";
 	
+	/** Every this many ticks the bucket list is rebuilt from a full listing (in case any management DB events were missed), 
+	 *  and all buckets with ready directories are woken (in case any changes were missed - leftover files are retried every tick by the tracker)
+	 */
+	public static int FULL_RESCAN_TICKS = 30;
+	
     public FolderWatcherActor(IStorageService storage_service,IBeJobService beJobService){
     	this._context = DataImportActorContext.get();
     	this._global_properties_Bean = _context.getGlobalProperties();
@@ -74,9 +91,22 @@ public class FolderWatcherActor extends UntypedActor {
     	this.beJobService = beJobService;
 		this.fileContext = storage_service.getUnderlyingPlatformDriver(FileContext.class,Optional.of("hdfs://localhost:8020")).get();
 		this.dataPath = new Path(_global_properties_Bean.distributed_root_dir()+"/data");
-		this._bucket_paths = detectBucketPaths();
+		this._bucket_tracker = new BucketFolderTracker(fileContext, dataPath);
+		this._bucket_tracker.rescanBuckets();
     }
     
+	@Override
+	public void preStart() {
+		// Keep the bucket list up to date from management DB events, rather than relisting the file system
+		try {
+			ManagementDbActorContext.get().getBucketActionMessageBus().subscribe(getSelf(), ActorUtils.BUCKET_ACTION_EVENT_BUS);
+			_subscribed = true;
+		}
+		catch (Exception e) {
+			logger.warn("Couldn't subscribe to bucket action events, relying on full rescans", e);
+		}
+	}
+    
 	
     private  Cancellable folderWatch = null;
     
@@ -86,6 +116,9 @@ public class FolderWatcherActor extends UntypedActor {
 		if(folderWatch!=null){
 			folderWatch.cancel();
 		}
+		if (_subscribed) {
+			ManagementDbActorContext.get().getBucketActionMessageBus().unsubscribe(getSelf(), ActorUtils.BUCKET_ACTION_EVENT_BUS);
+		}
 	}
 
 	@Override
@@ -97,12 +130,17 @@ public class FolderWatcherActor extends UntypedActor {
 			.scheduler()
 			.schedule(Duration.create(1000, TimeUnit.MILLISECONDS),
 					Duration.create(8000, TimeUnit.MILLISECONDS), getSelf(),
-					"tick", getContext().dispatcher(), null);				
+					MSG_FOLDER_WATCH, getContext().dispatcher(), null);				
 
 		}else
 		if (MSG_FOLDER_WATCH.equals(message)) {
 			logger.debug("watchFolders message received");
 			traverseFolders();
+		}else if (message instanceof Terminated) {
+			// (eg bucket has no enrichment config - will be recreated if the bucket's input changes)
+			_bucket_actors.values().remove(((Terminated) message).getActor());
+		}else if (message instanceof BucketActionEventBusWrapper) {
+			onBucketAction(((BucketActionEventBusWrapper) message).message());
 		}else 	if (MSG_STOP.equals(message)) {
 				logger.debug("Stop message received");
 				if(folderWatch!=null){
@@ -114,19 +152,37 @@ public class FolderWatcherActor extends UntypedActor {
 		}
 	}
 
+	/**
+	 * Updates the tracked bucket list from a management DB bucket event (this actor never replies, it just listens).
+	 */
+	protected void onBucketAction(BucketActionMessage message) {
+		if ((null == message.bucket()) || (null == message.bucket().full_name())) {
+			return;
+		}
+		if (message instanceof BucketActionMessage.DeleteBucketActionMessage) {
+			logger.debug("Bucket deleted, no longer watching: "+message.bucket().full_name());
+			_bucket_tracker.removeBucket(message.bucket().full_name());
+			final ActorRef beActor = _bucket_actors.remove(message.bucket().full_name());
+			if (null != beActor) {
+				getContext().stop(beActor);
+			}
+		}
+		else if ((message instanceof BucketActionMessage.NewBucketActionMessage) || (message instanceof BucketActionMessage.UpdateBucketActionMessage)) {
+			_bucket_tracker.addBucket(message.bucket().full_name());
+		}
+	}
+
 	protected void traverseFolders() {
-		logger.debug("traverseFolders for path: "+_bucket_paths);
 		try {
-			detectBucketPaths();
-			if(_bucket_paths!=null){
-				logger.debug("traverseFolders for path: "+_bucket_paths);
-				for (Path path : _bucket_paths) {
-					String bucketPathStr = path.toString();
-					String dataPathStr = dataPath.toString();
-				    String bucketFullName = createFullName(bucketPathStr, dataPathStr);
-				    // create or send message to BatchBucketActors
-				    checkAndScheduleBucketAgent(bucketPathStr, bucketFullName);					
-				}
+			if ((++_tick_count % FULL_RESCAN_TICKS) == 0) {
+				_bucket_tracker.rescanBuckets();
+				_bucket_tracker.resetReadyStates();
+			}
+			final List<Tuple2<String, String>> changedBuckets = _bucket_tracker.getChangedBuckets();
+			logger.debug("traverseFolders: "+changedBuckets.size()+" of "+_bucket_tracker.getBucketCount()+" buckets have changed ready folders");
+			for (Tuple2<String, String> bucket : changedBuckets) {
+			    // create or send message to BatchBucketActors
+			    checkAndScheduleBucketAgent(bucket._1(), bucket._2());					
 			}
 		} catch (Exception e) {
 			logger.error("traverseFolders Caught Exception:",e);
@@ -135,26 +191,42 @@ public class FolderWatcherActor extends UntypedActor {
 	}
 	
 	protected static String createFullName(String bucketPathStr, String dataPathStr) {
-		String fullName = bucketPathStr;
-		int dataPathPos = bucketPathStr.indexOf(dataPathStr);
-		if(dataPathPos>0 && bucketPathStr.length()> dataPathPos + dataPathStr.length()){
-			fullName = bucketPathStr.substring(dataPathPos + dataPathStr.length());
-		}
-		return fullName;
+		return BucketFolderTracker.createFullName(bucketPathStr, dataPathStr);
 	}
 
 	protected static String createAgentName(String fullName) {
-		String agentName = fullName.replace('/', '@').replace('\\', '@')+  UUID.randomUUID().toString();
+		String agentName = fullName.replace('/', '@').replace('\\', '@');
 		return agentName;
 		
 	}
 
+	/**
+	 * Bucket actors are restarted (which releases their ZK lease) if they fail, and are woken again the next time their input changes
+	 */
+	private static final SupervisorStrategy bucketActorStrategy = new OneForOneStrategy(10, Duration.create(1, TimeUnit.MINUTES), 
+			new Function<Throwable, SupervisorStrategy.Directive>() {
+				@Override
+				public SupervisorStrategy.Directive apply(Throwable t) {
+					logger.error("BeBucketActor failed, restarting", t);
+					return SupervisorStrategy.restart();
+				}
+			});
+
+	@Override
+	public SupervisorStrategy supervisorStrategy() {
+		return bucketActorStrategy;
+	}
+
 	protected void checkAndScheduleBucketAgent(String bucketPathStr, String bucketFullName) {
 		//curator_framework.
 	    logger.debug("checkAndScheduleBucketAgent for Bucket Path: "+bucketPathStr+" ,Bucket id: "+bucketFullName);
 		try{
-			    String agentName = createAgentName(bucketFullName);
-				ActorRef beActor = getContext().actorOf(Props.create(BeBucketActor.class,_storage_service, beJobService),agentName);
+				ActorRef beActor = _bucket_actors.get(bucketFullName);
+				if (null == beActor) {
+					beActor = getContext().actorOf(Props.create(BeBucketActor.class,_storage_service, beJobService, bucketPathStr, bucketFullName),createAgentName(bucketFullName));
+					getContext().watch(beActor);
+					_bucket_actors.put(bucketFullName, beActor);
+				}
 				String bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bucketFullName;
 				beActor.tell(new BucketEnrichmentMessage(bucketPathStr, bucketFullName, bucketZkPath), getSelf());						
 		}
@@ -162,19 +234,4 @@ public class FolderWatcherActor extends UntypedActor {
 			logger.error("Caught Exception",e);
 		}
 	}
-
-	protected List<Path> detectBucketPaths(){
-		logger.debug("detectBucketPaths");
-		if(_bucket_paths==null){
-			try {
-				// looking for managed_bucket underneath /app/aleph2/data
-				_bucket_paths =  new ArrayList<Path>();
-				DirUtils.findAllSubdirectories(_bucket_paths, fileContext, dataPath, "managed_bucket",false);
-				logger.info("detectBucketPath found "+_bucket_paths.size()+" folders.");
-			} catch (Exception e) {
-				logger.error("detectBucketPath Caught Exception",e);
-			} 
-		}
-		return _bucket_paths;
-	}
 }
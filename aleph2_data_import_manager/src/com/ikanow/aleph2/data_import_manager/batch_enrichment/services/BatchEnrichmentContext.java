@@ -15,8 +15,10 @@
 ******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.services;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -37,6 +39,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.DeduplicationEngine;
 import com.ikanow.aleph2.data_import.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -50,6 +54,7 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingServic
 import com.ikanow.aleph2.data_model.objects.data_import.AnnotationBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.AssetStateDirectoryBean.StateDirectoryType;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
@@ -62,11 +67,13 @@ import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.distributed_services.data_model.DistributedServicesPropertyBean;
 import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+import com.ikanow.aleph2.distributed_services.utils.ZookeeperIdAllocator;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigRenderOptions;
 import com.typesafe.config.ConfigValueFactory;
 
+import fj.Unit;
 import fj.data.Either;
 
 /** The implementation of the batch  enrichment context
@@ -107,6 +114,10 @@ public class BatchEnrichmentContext implements IEnrichmentModuleContext {
 	protected Optional<IDataWriteService<JsonNode>> _crud_index_service;
 	protected Optional<IDataWriteService.IBatchSubservice<JsonNode>> _batch_index_service;
 	
+	// (if the bucket is deduplicated then objects are buffered per thread, and the non-duplicates written out a batch at a time)
+	protected Optional<DeduplicationEngine> _deduplication_engine = Optional.empty();
+	protected volatile BatchedOutputBuffer<String, JsonNode> _deduplication_buffer = null;
+	
 	private static ConcurrentHashMap<String, BatchEnrichmentContext> static_instances = new ConcurrentHashMap<>();
 	
 	/**Guice injector
@@ -199,6 +210,8 @@ public class BatchEnrichmentContext implements IEnrichmentModuleContext {
 					)
 					.flatMap(IDataWriteService::getBatchWriteSubservice)
 					.map(x -> (ICrudService.IBatchSubservice<JsonNode>) x);
+			
+			_deduplication_engine = DeduplicationEngine.from(retrieve_bucket.get(), _service_context);
 
 			static_instances.put(signature, this);
 		}
@@ -354,6 +367,10 @@ public class BatchEnrichmentContext implements IEnrichmentModuleContext {
 		if (annotation.isPresent()) {
 			throw new RuntimeException(ErrorUtils.NOT_YET_IMPLEMENTED);			
 		}
+		if (_deduplication_engine.isPresent()) {
+			getDeduplicationBuffer().add(_deduplication_engine.get().getBucket().full_name(), mutated_json);
+			return;
+		}
 		//TODO move this to output format based on library configuration
 		if (_batch_index_service.isPresent()) {
 			_batch_index_service.get().storeObject(mutated_json);
@@ -367,6 +384,65 @@ public class BatchEnrichmentContext implements IEnrichmentModuleContext {
 		//(else nothing to do)
 	}
 
+	////////////////////////////////////////////////////////////////
+	
+	// DEDUPLICATION
+	
+	/** Lazily creates the per-thread buffer that objects are deduplicated from in batches, sized from the bucket's search index write settings if present (else the buffer defaults)
+	 *  (the buffer's timer makes sure objects are written out within the max latency, and runs on the deduplication engine's own flush executor since the lookups block)
+	 * @return the deduplication buffer
+	 */
+	protected BatchedOutputBuffer<String, JsonNode> getDeduplicationBuffer() {
+		if (null == _deduplication_buffer) {
+			synchronized (this) {
+				if (null == _deduplication_buffer) {
+					final Optional<DataSchemaBean.WriteSettings> write_settings = 
+							this.getBucket()
+								.map(b -> b.data_schema())
+								.map(schema -> schema.search_index_schema())
+								.map(search_index_schema -> search_index_schema.target_write_settings());
+					
+					_deduplication_buffer = new BatchedOutputBuffer<>(
+							write_settings.map(w -> w.batch_max_objects()).orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS),
+							write_settings.map(w -> w.batch_flush_interval()).<Duration>map(secs -> Duration.ofSeconds(secs)).orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY),
+							DeduplicationEngine.getFlushExecutor(),
+							this::flushDeduplicationBatch);
+				}
+			}
+		}
+		return _deduplication_buffer;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext#flushBatchOutput(java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket) {
+		// (flushes in place rather than swapping the buffer out, so objects emitted concurrently by other threads can't be stranded)
+		final BatchedOutputBuffer<String, JsonNode> deduplication_buffer = _deduplication_buffer;
+		if (null != deduplication_buffer) {
+			deduplication_buffer.flushAll();
+		}
+		return CompletableFuture.completedFuture(Unit.unit());
+	}
+	
+	/** Writes the non-duplicates from a batch of buffered objects out
+	 * @param bucket_path - the full_name of the bucket to which the objects belong
+	 * @param objects - the batch of objects
+	 */
+	protected void flushDeduplicationBatch(final String bucket_path, final List<JsonNode> objects) {
+		final List<JsonNode> non_duplicates = _deduplication_engine.get().filterDuplicates(objects);
+		if (non_duplicates.isEmpty()) {
+			return;
+		}
+		if (_batch_index_service.isPresent()) {
+			_batch_index_service.get().storeObjects(non_duplicates);
+		}
+		else if (_crud_index_service.isPresent()){ // (slow, but at least it's a single call per batch)
+			_crud_index_service.get().storeObjects(non_duplicates);
+		}
+	}
+	
 	@Override
 	public void emitImmutableObject(final long id, final JsonNode original_json, final Optional<ObjectNode> mutations, final Optional<AnnotationBean> annotations)
 	{
@@ -388,8 +464,11 @@ public class BatchEnrichmentContext implements IEnrichmentModuleContext {
 
 	@Override
 	public long getNextUnusedId() {
-		//TODO
-		return 0;
+		if (!_mutable_state.bucket.isSet()) {
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.BUCKET_NOT_SET, "getNextUnusedId"));
+		}
+		// (ids are leased from zookeeper in blocks, shared across all contexts for this bucket in this process)
+		return ZookeeperIdAllocator.getAllocator(_distributed_services.getCuratorFramework(), _mutable_state.bucket.get().full_name()).getNextId();
 	}
 
 	/* (non-Javadoc)
@@ -62,7 +62,7 @@ public class BatchEnrichmentModule implements IEnrichmentBatchModule {
 		logger.debug("BatchEnrichmentModule.onObjectBatch:" + batch);
 		for (Tuple2<Long, IBatchRecord> t2 : batch) {
 			// if stream is not present data is inside the json object
-			if (!t2._2().getContent().isPresent()) {
+			if (!t2._2().hasContent()) {
 				if (mutable) {
 					ObjectNode mutableObject = context.convertToMutable(t2._2().getJson());
 
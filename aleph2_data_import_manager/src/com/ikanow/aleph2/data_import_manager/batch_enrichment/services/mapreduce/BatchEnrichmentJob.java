@@ -31,6 +31,7 @@
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Optional;
 
 import org.apache.hadoop.conf.Configuration;
@@ -43,19 +44,30 @@ import scala.Tuple2;
 import scala.Tuple3;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.core.shared.utils.ClassloaderUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.ContextUtils;
 
+import fj.data.Validation;
+
 public class BatchEnrichmentJob{
 
 	public static String BATCH_SIZE_PARAM = "batchSize";
 	public static String BE_META_BEAN_PARAM = "metadataName";
 	public static String BE_CONTEXT_SIGNATURE = "beContextSignature";
+	public static String NUM_WORKERS_PARAM = "numWorkers"; // (number of enrichment module instances run in parallel per task, default 1)
+	public static String MAX_SPLIT_SIZE_PARAM = "maxSplitSizeBytes"; // (input files are combined into splits of up to this many bytes)
+	public static long DEFAULT_MAX_SPLIT_SIZE = 64L*1024L*1024L;
+	public static String LOCAL_MODE_THRESHOLD_PARAM = "localModeThresholdBytes"; // (jobs with less input than this run in-process instead of being submitted, 0 to disable)
+	public static long DEFAULT_LOCAL_MODE_THRESHOLD = 1024L*1024L;
+	public static String BE_MODULE_JARS_PARAM = "moduleJars"; // (the locally cached jars of the bucket's libraries, module first - if not set the module is loaded from the job's classpath)
+	public static String PRESERVE_ORDER_PARAM = "preserveOrder"; // (if true - the default - output is emitted in input order even with multiple workers)
 
 	private static final Logger logger = LogManager.getLogger(BatchEnrichmentJob.class);
 	
@@ -167,7 +179,28 @@ public class BatchEnrichmentJob{
 		beJobConfigurable.setBeSharedLibrary(beSharedLibrary);		
 		beJobConfigurable.setEcMetadata(BeJobBean.extractEnrichmentControlMetadata(dataBucket, configuration.get(BE_META_BEAN_PARAM)).get());	
 		beJobConfigurable.setBatchSize(configuration.getInt(BATCH_SIZE_PARAM,100));	
-		beJobConfigurable.setEnrichmentBatchModule((IEnrichmentBatchModule)Class.forName(beSharedLibrary.batch_enrichment_entry_point()).newInstance());
+		beJobConfigurable.setEnrichmentBatchModule(createEnrichmentBatchModule(beSharedLibrary, configuration));
+	}
+
+	/** Creates a new instance of the enrichment module described by the shared library bean
+	 *  (from the module's own jars if they have been set in the configuration, see BE_MODULE_JARS_PARAM)
+	 * @param beSharedLibrary - the shared library bean containing the batch enrichment entry point
+	 * @param configuration - the job configuration
+	 * @return a new instance of the module
+	 */
+	public static IEnrichmentBatchModule createEnrichmentBatchModule(SharedLibraryBean beSharedLibrary, Configuration configuration) throws Exception {
+		final String entryPoint = beSharedLibrary.batch_enrichment_entry_point();
+		final String[] moduleJars = configuration.getTrimmedStrings(BE_MODULE_JARS_PARAM);
+		if (0 == moduleJars.length) { // (eg mapreduce, where the module is on the job's classpath)
+			return (IEnrichmentBatchModule)Class.forName(entryPoint, true, Thread.currentThread().getContextClassLoader()).newInstance();
+		}
+		final Validation<BasicMessageBean, IEnrichmentBatchModule> module = ClassloaderUtils.getFromCustomClasspath(IEnrichmentBatchModule.class, entryPoint, 
+				Optional.of(moduleJars[0]), Arrays.asList(moduleJars).subList(1, moduleJars.length), 
+				BatchEnrichmentJob.class.getSimpleName(), entryPoint);
+		if (module.isFail()) {
+			throw new ClassNotFoundException(module.fail().message());
+		}
+		return module.success();
 	}
 
 }
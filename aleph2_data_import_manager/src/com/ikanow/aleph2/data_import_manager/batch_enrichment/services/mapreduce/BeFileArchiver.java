@@ -0,0 +1,236 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import java.text.SimpleDateFormat;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.ikanow.aleph2.data_import.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.TimeUtils;
+
+/** Collects the input files a task has finished reading, and archives (or deletes) them in one batch once the task's output has been committed
+ *  (so a failed or killed task leaves its input in the ready directory to be picked up again)
+ *  Archivers are registered per task attempt so that the record reader and the output committer (which Hadoop creates separately) can share one
+ */
+public class BeFileArchiver {
+	private static final Logger logger = LogManager.getLogger(BeFileArchiver.class);
+
+	public static final int MAX_ARCHIVE_THREADS = 8;
+	public static final String DEFAULT_GROUPING = "daily";
+
+	protected static final Map<String, BeFileArchiver> _archivers_by_task = new ConcurrentHashMap<String, BeFileArchiver>();
+
+	protected final FileSystem _fs;
+	protected final Optional<String> _time_group; // (if not present then processed files are deleted instead of archived)
+	protected final List<Path> _processed = new ArrayList<Path>();
+
+	/** Creates an archiver (use register to share it with the task's output committer)
+	 * @param fs - the filesystem containing the input files
+	 * @param bucket - the bucket being processed, determines whether files are archived or deleted, and the archive grouping
+	 * @param start - the time processing started, determines the archive sub-directory
+	 */
+	public BeFileArchiver(final FileSystem fs, final DataBucketBean bucket, final Date start) {
+		_fs = fs;
+		_time_group = getTimeGroup(bucket, start);
+	}
+
+	/** Returns the archiver for the task attempt, creating it if necessary
+	 * @param task_attempt_id - the task attempt id
+	 * @param fs - the filesystem containing the input files
+	 * @param bucket - the bucket being processed
+	 * @param start - the time processing started
+	 * @return the archiver for the task attempt
+	 */
+	public static BeFileArchiver register(final String task_attempt_id, final FileSystem fs, final DataBucketBean bucket, final Date start) {
+		return _archivers_by_task.computeIfAbsent(task_attempt_id, __ -> new BeFileArchiver(fs, bucket, start));
+	}
+
+	/** Removes and returns the archiver for the task attempt, if one has been registered
+	 * @param task_attempt_id - the task attempt id
+	 * @return the archiver for the task attempt, if there is one
+	 */
+	public static Optional<BeFileArchiver> deregister(final String task_attempt_id) {
+		return Optional.ofNullable(_archivers_by_task.remove(task_attempt_id));
+	}
+
+	/** Removes (and aborts, leaving their files in place) the archivers of all the job's task attempts - eg when the job fails or is killed,
+	 *  in which case tasks that never reached commitTask/abortTask would otherwise leave their archivers registered
+	 * @param job_id - the job id
+	 * @return the number of archivers that were removed
+	 */
+	public static int deregisterJob(final String job_id) {
+		final AtomicInteger removed = new AtomicInteger(0);
+		_archivers_by_task.entrySet().removeIf(kv -> {
+			if (isAttemptOfJob(kv.getKey(), job_id)) {
+				kv.getValue().abort();
+				removed.incrementAndGet();
+				return true;
+			}
+			return false;
+		});
+		return removed.get();
+	}
+
+	/** Returns whether the task attempt has any processed files waiting to be archived
+	 * @param task_attempt_id - the task attempt id
+	 * @return true if commit has anything to do
+	 */
+	public static boolean hasPendingFiles(final String task_attempt_id) {
+		return Optional.ofNullable(_archivers_by_task.get(task_attempt_id)).map(a -> a.getPendingCount() > 0).orElse(false);
+	}
+
+	/** Marks a file as processed - it will be archived or deleted on commit
+	 * @param path - the path of the input file
+	 */
+	public synchronized void addProcessedFile(final Path path) {
+		_processed.add(path);
+	}
+
+	/** Returns the number of files waiting to be archived
+	 * @return the number of files waiting to be archived
+	 */
+	public synchronized int getPendingCount() {
+		return _processed.size();
+	}
+
+	/** Discards the pending files, leaving them in place to be re-processed
+	 */
+	public synchronized void abort() {
+		_processed.clear();
+	}
+
+	/** Archives or deletes all the pending files, in parallel, returning when they are all done
+	 *  Failures are logged and otherwise ignored (as before, probably a permissions error)
+	 * @return the number of files successfully archived or deleted
+	 */
+	public int commit() {
+		final List<Path> to_process;
+		synchronized (this) {
+			to_process = new ArrayList<Path>(_processed);
+			_processed.clear();
+		}
+		if (to_process.isEmpty()) return 0;
+
+		// Create each archive directory once, up front, so that files are always moved into it
+		final Map<Path, List<Path>> files_by_dir = to_process.stream()
+				.collect(Collectors.groupingBy(path -> _time_group.map(tg -> getArchiveDir(path, tg)).orElse(path.getParent())));
+		_time_group.ifPresent(__ -> files_by_dir.keySet().forEach(dir -> {
+			try {
+				_fs.mkdirs(dir);
+			}
+			catch (Exception e) {
+				logger.error(ErrorUtils.getLongForm(ErrorUtils.EXCEPTION_CAUGHT, e));
+			}
+		}));
+
+		final AtomicInteger success = new AtomicInteger(0);
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_ARCHIVE_THREADS, to_process.size()));
+		try {
+			final List<Future<?>> futures = files_by_dir.entrySet().stream()
+					.flatMap(kv -> kv.getValue().stream().map(path -> executor.submit(() -> {
+						try {
+							final boolean done = _time_group.isPresent()
+									? _fs.rename(path, new Path(kv.getKey(), path.getName()))
+									: _fs.delete(path, false);
+							if (done) success.incrementAndGet();
+						}
+						catch (Exception e) {
+							logger.error(ErrorUtils.getLongForm(ErrorUtils.EXCEPTION_CAUGHT, e));
+						}
+					})))
+					.collect(Collectors.toList());
+			for (Future<?> f: futures) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			logger.error(ErrorUtils.getLongForm(ErrorUtils.EXCEPTION_CAUGHT, e));
+		}
+		finally {
+			executor.shutdown();
+		}
+		logger.debug("BeFileArchiver: " + (_time_group.isPresent() ? "archived " : "deleted ") + success.get() + " of " + to_process.size() + " files");
+		return success.get();
+	}
+
+	//////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Returns whether the task attempt id belongs to the job (false if it isn't a valid task attempt id)
+	 * @param task_attempt_id - the task attempt id
+	 * @param job_id - the job id
+	 * @return whether the task attempt id belongs to the job
+	 */
+	protected static boolean isAttemptOfJob(final String task_attempt_id, final String job_id) {
+		try {
+			return TaskAttemptID.forName(task_attempt_id).getJobID().toString().equals(job_id);
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/** Returns the directory processed files are archived into
+	 * @param file - the input file (in the bucket's ready directory)
+	 * @param time_group - the formatted time group
+	 * @return the archive directory
+	 */
+	public static Path getArchiveDir(final Path file, final String time_group) {
+		return Path.mergePaths(file.getParent().getParent(), new Path("/stored/processed/" + time_group));
+	}
+
+	/** Works out the archive time group from the bucket's processed storage schema (computed once per task, rather than per file)
+	 * @param bucket - the bucket being processed
+	 * @param start - the time processing started
+	 * @return the formatted time group, or empty if the bucket doesn't store processed data (in which case files are deleted)
+	 */
+	protected static Optional<String> getTimeGroup(final DataBucketBean bucket, final Date start) {
+		final boolean archive = Optionals.of(() -> bucket.data_schema().storage_schema().enabled()).orElse(false);
+		if (!archive) return Optional.empty();
+
+		ChronoUnit timeGroupingUnit = ChronoUnit.DAYS;
+		try {
+			timeGroupingUnit = TimeUtils.getTimePeriod(Optionals.of(() -> bucket.data_schema().storage_schema().processed().grouping_time_period()).orElse(DEFAULT_GROUPING)).success();
+		} catch (Throwable t) {
+			logger.error(ErrorUtils.getLongForm(ErrorUtils.VALIDATION_ERROR,t),t);
+		}
+		final String timeGroupingFormat = TimeUtils.getTimeBasedSuffix(timeGroupingUnit, Optional.of(ChronoUnit.MINUTES));
+		return Optional.of(new SimpleDateFormat(timeGroupingFormat).format(start));
+	}
+}
@@ -65,7 +65,8 @@ public class BeFileInputFormat extends CombineFileInputFormat<String, Tuple2<Lon
 		logger.debug("BeFileInputFormat.getSplits");
 		List<InputSplit> tmp = null;
 		try {
-			
+			// Pack the (typically many small) input files into splits by total byte count
+			setMaxSplitSize(context.getConfiguration().getLong(BatchEnrichmentJob.MAX_SPLIT_SIZE_PARAM, BatchEnrichmentJob.DEFAULT_MAX_SPLIT_SIZE));
 			tmp = super.getSplits(context);
 		} catch (Throwable t) {
 			logger.error(t);
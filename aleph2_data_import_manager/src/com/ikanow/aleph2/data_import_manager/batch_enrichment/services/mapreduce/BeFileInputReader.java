@@ -19,12 +19,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.SimpleDateFormat;
-import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -47,8 +49,6 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.ContextUtils;
-import com.ikanow.aleph2.data_model.utils.Optionals;
-import com.ikanow.aleph2.data_model.utils.TimeUtils;
 
 public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatchRecord>> implements IBeJobConfigurable{
 
@@ -66,7 +66,7 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 	}
 	
 	private static final Logger logger = LogManager.getLogger(BeJobLauncher.class);
-	public static String DEFAULT_GROUPING = "daily";
+	public static String DEFAULT_GROUPING = BeFileArchiver.DEFAULT_GROUPING;
 
 	protected CombineFileSplit _fileSplit;
 	protected InputStream _inStream = null;
@@ -76,6 +76,9 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 	protected int _numFiles = 1;
 	
 	protected String currrentFileName = null;
+	protected Tuple2<Integer, CompletableFuture<InputStream>> _openedNext = null;
+	protected ExecutorService _openNextExecutor = null;
+	protected BeFileArchiver _archiver = null;
 
 	private Tuple2<Long, IBatchRecord> _record;
 
@@ -86,6 +89,7 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 	protected SharedLibraryBean beSharedLibrary;
 
 	protected EnrichmentControlMetadataBean ecMetadata;
+	// (parsers are stateless, so a single instance of each is shared across files and readers)
 	protected static Map<String, IParser> parsers = new HashMap<String, IParser>();
 	static{
 		parsers.put("JSON", new JsonParser());
@@ -121,6 +125,16 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 			logger.error(ErrorUtils.getLongForm("{0}", e),e);
 		}
 
+		_fs = FileSystem.get(_config);
+		if (null != context.getTaskAttemptID()) {
+			_archiver = BeFileArchiver.register(context.getTaskAttemptID().toString(), _fs, dataBucket, start);
+		}
+		_openNextExecutor = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "BeFileInputReader-open-next");
+			t.setDaemon(true);
+			return t;
+		});
+
 		String jobName = _config.get("mapred.job.name", "unknown");
 		logger.info(jobName + ": new split, contains " + _numFiles + " files, total size: " + _fileSplit.getLength());		
 		
@@ -128,84 +142,81 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 
 	@Override
 	public boolean nextKeyValue() throws IOException, InterruptedException {
-		if (_currFile >= _numFiles) {
-			return false;
-		}
-		
-		if (null == _inStream){
-			
-			// Step 1: get input stream
-			_fs = FileSystem.get(_config);
-			try {
-				_inStream = _fs.open(_fileSplit.getPath(_currFile));
-			}
-			catch (FileNotFoundException e) { // probably: this is a spare mapper, and the original mapper has deleted this file using renameAfterParse
-				_currFile++;
-				if (_currFile < _numFiles) {
-					_inStream.close();
-					_inStream = null;
-					return nextKeyValue();		// (just a lazy way of getting to the next file)		
-				}
-				else {
-					return false; // all done
+		while (_currFile < _numFiles) {
+			if (null == _inStream) {
+				_inStream = openFile(_currFile);
+				if (null == _inStream) { // probably: this is a spare mapper, and the original mapper has deleted this file using renameAfterParse
+					_currFile++;
+					continue;
 				}
 			}
-		}	 // instream = null		
-		this.currrentFileName = _fileSplit.getPath(_currFile).toString();
-		IParser parser = getParser(currrentFileName);
-		_record = parser.getNextRecord(_currFile,currrentFileName,_inStream);
-		if (null == _record) { // Finished this file - are there any others?
-			archiveOrDeleteFile();
-			_currFile++;
-			if (_currFile < _numFiles) {
-				_inStream.close();
-				_inStream = null;
-				return nextKeyValue();				
-			}
-			else {
-				return false; // all done
+			this.currrentFileName = _fileSplit.getPath(_currFile).toString();
+			IParser parser = getParser(currrentFileName);
+			_record = parser.getNextRecord(_currFile,currrentFileName,_inStream,_fs,_fileSplit.getPath(_currFile),_fileSplit.getLength(_currFile));
+			// close stream if finished this file, or if not multiple records per file supported
+			if ((null == _record) || !parser.multipleRecordsPerFile()) {
+				finishCurrentFile();
+				if (null == _record) {
+					continue; // (on to the next file, if any)
+				}
 			}
-		} // record = null
-		// close stream if not multiple records per file supported
-		if(!parser.multipleRecordsPerFile()){
-			archiveOrDeleteFile();
-			_currFile++;
-			_inStream.close();
-			_inStream = null;
+			return true;
 		}
-		return true;
+		return false; // all done
 	}
 
-	private void archiveOrDeleteFile() {
+	/** Opens the specified file from the split (using the already opened stream if there is one), and starts opening the next one in the background
+	 * @param index - the index of the file within the split
+	 * @return the open stream, or null if the file no longer exists
+	 */
+	protected InputStream openFile(int index) throws IOException {
+		final Tuple2<Integer, CompletableFuture<InputStream>> opened_next = _openedNext;
+		_openedNext = null;
+		InputStream in = null;
 		try {
-			if (dataBucket.data_schema()!=null && dataBucket.data_schema().storage_schema()!=null && dataBucket.data_schema().storage_schema().enabled()) {
-				Path currentPath = _fileSplit.getPath(_currFile);
-				_fs.rename(currentPath, createArchivePath(currentPath));
-			} else {
-				_fs.delete(_fileSplit.getPath(_currFile), false);
+			in = ((null != opened_next) && (index == opened_next._1()))
+					? opened_next._2().join()
+					: _fs.open(_fileSplit.getPath(index));
+		}
+		catch (FileNotFoundException e) {
+			in = null;
+		}
+		catch (CompletionException e) {
+			if (!(e.getCause() instanceof FileNotFoundException)) {
+				throw new IOException(e.getCause());
 			}
-		} catch (Exception e) {
-			logger.error(ErrorUtils.getLongForm(ErrorUtils.EXCEPTION_CAUGHT, e));
-			// We're just going to move on if we can't delete the file, it's
-			// probably a permissions error
 		}
+		openNext(index + 1);
+		return in;
 	}
 
-	private Path createArchivePath(Path currentPath) throws Exception {
-		
-
-		ChronoUnit timeGroupingUnit = ChronoUnit.DAYS;
-		try {
-			timeGroupingUnit = TimeUtils.getTimePeriod(Optionals.of(() -> dataBucket.data_schema().storage_schema().processed().grouping_time_period()).orElse(DEFAULT_GROUPING)).success();			
-		} catch (Throwable t) {			
-			logger.error(ErrorUtils.getLongForm(ErrorUtils.VALIDATION_ERROR,t),t);
+	/** Starts opening the specified file on a background thread, so that it's open by the time the current file has been parsed
+	 *  (this only hides the latency of opening the file, eg the name node round trip - its contents are read by the parser as before)
+	 * @param index - the index of the file within the split
+	 */
+	protected void openNext(int index) {
+		if (index < _numFiles) {
+			final Path path = _fileSplit.getPath(index);
+			_openedNext = new Tuple2<Integer, CompletableFuture<InputStream>>(index, CompletableFuture.supplyAsync(() -> {
+				try {
+					return _fs.open(path);
+				}
+				catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, _openNextExecutor));
 		}
-		String timeGroupingFormat = TimeUtils.getTimeBasedSuffix(timeGroupingUnit,Optional.of(ChronoUnit.MINUTES));
-		SimpleDateFormat sdf = new SimpleDateFormat(timeGroupingFormat);
-		String timeGroup = sdf.format(start);
-		Path storedPath = Path.mergePaths(currentPath.getParent().getParent(),new Path("/stored/processed/"+timeGroup));
+	}
 
-		return storedPath;
+	/** Closes the current file and hands it to the archiver, to be archived or deleted once the task commits
+	 */
+	protected void finishCurrentFile() throws IOException {
+		if (null != _archiver) {
+			_archiver.addProcessedFile(_fileSplit.getPath(_currFile));
+		}
+		_currFile++;
+		_inStream.close();
+		_inStream = null;
 	}
 
 	protected  IParser getParser(String fileName) {
@@ -244,9 +255,14 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		if (null != _inStream) {
 			_inStream.close();
 		}
-		if (null != _fs) {
-			_fs.close();
-		}		
+		if (null != _openedNext) { // (eg if the task was stopped early)
+			_openedNext._2().thenAccept(in -> { try { in.close(); } catch (IOException e) {} });
+			_openedNext = null;
+		}
+		if (null != _openNextExecutor) {
+			_openNextExecutor.shutdown();
+		}
+		// (don't close _fs - it's Hadoop's shared cached instance, and the archiver still needs it when the task commits)
 	}
 
 	@Override
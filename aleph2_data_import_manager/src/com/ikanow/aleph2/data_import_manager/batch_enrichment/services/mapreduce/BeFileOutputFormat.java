@@ -16,9 +16,14 @@
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
 
 import java.io.IOException;
+import java.util.Optional;
 
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 import scala.Tuple2;
@@ -37,6 +42,7 @@ public class BeFileOutputFormat extends FileOutputFormat<String, Tuple2<Long, IB
 	private DataBucketBean dataBucket;
 	private IEnrichmentModuleContext enrichmentContext;
 	private IEnrichmentBatchModule enrichmentBatchModule = null;			
+	private FileOutputCommitter committer = null;
 
 
 	@Override
@@ -50,6 +56,46 @@ public class BeFileOutputFormat extends FileOutputFormat<String, Tuple2<Long, IB
 		return new BeFileOutputWriter(jobContext.getConfiguration(), enrichmentContext,enrichmentBatchModule,dataBucket,beSharedLibrary,ecMetadata);
 	}
 
+	/** Wraps the standard committer so that the task's input files are only archived/deleted once its output has been committed
+	 * (and are left in place to be retried if the task or job is aborted, or the commit fails)
+	 */
+	@Override
+	public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+		if (null == committer) {
+			committer = new FileOutputCommitter(getOutputPath(context), context) {
+				@Override
+				public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+					// (the writer doesn't normally create any files, so need to force the commit if there are files to archive)
+					return super.needsTaskCommit(context) || BeFileArchiver.hasPendingFiles(context.getTaskAttemptID().toString());
+				}
+				@Override
+				public void commitTask(TaskAttemptContext context) throws IOException {
+					final Optional<BeFileArchiver> archiver = BeFileArchiver.deregister(context.getTaskAttemptID().toString());
+					try {
+						super.commitTask(context);
+					}
+					catch (IOException | RuntimeException e) { // (output not committed, so leave the input to be retried)
+						archiver.ifPresent(a -> a.abort());
+						throw e;
+					}
+					archiver.ifPresent(a -> a.commit());
+				}
+				@Override
+				public void abortTask(TaskAttemptContext context) throws IOException {
+					BeFileArchiver.deregister(context.getTaskAttemptID().toString()).ifPresent(archiver -> archiver.abort());
+					super.abortTask(context);
+				}
+				@Override
+				public void abortJob(JobContext context, JobStatus.State state) throws IOException {
+					// (eg the job failed or was killed before some of its tasks were committed or aborted)
+					BeFileArchiver.deregisterJob(context.getJobID().toString());
+					super.abortJob(context, state);
+				}
+			};
+		}
+		return committer;
+	}
+
 	@Override
 	public void setEcMetadata(EnrichmentControlMetadataBean ecMetadata) {
 		this.ecMetadata = ecMetadata;
@@ -16,8 +16,8 @@
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.RecordWriter;
@@ -37,15 +37,14 @@ import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 public class BeFileOutputWriter extends RecordWriter<String, Tuple2<Long, IBatchRecord>>{
 
 	static final Logger _logger = LogManager.getLogger(BeFileOutputWriter.class); 
-	List<Tuple2<Long, IBatchRecord>> batch = new ArrayList<Tuple2<Long, IBatchRecord>>();
 
 	Configuration configuration = null;
 	IEnrichmentModuleContext enrichmentContext = null;
 	DataBucketBean dataBucket = null;
 	SharedLibraryBean beSharedLibrary = null;
 	EnrichmentControlMetadataBean ecMetadata = null;
-	private int batchSize = 100;
 	private IEnrichmentBatchModule enrichmentBatchModule = null;
+	private BeParallelStageExecutor stageExecutor = null;
 	
 	public BeFileOutputWriter(Configuration configuration, IEnrichmentModuleContext enrichmentContext,IEnrichmentBatchModule enrichmentBatchModule,DataBucketBean dataBucket,
 			SharedLibraryBean beSharedLibrary, EnrichmentControlMetadataBean ecMetadata) {
@@ -58,27 +57,36 @@ public class BeFileOutputWriter extends RecordWriter<String, Tuple2<Long, IBatch
 		this.ecMetadata = ecMetadata;
 		// TODO check where final_stage is defined
 		boolean final_stage = true;
-		enrichmentBatchModule.onStageInitialize(enrichmentContext, dataBucket, final_stage);
-
+		
+		// The first worker uses the module that was passed in, any others get their own instance
+		final AtomicBoolean first_module_used = new AtomicBoolean(false);
+		final int num_workers = Math.max(1, configuration.getInt(BatchEnrichmentJob.NUM_WORKERS_PARAM, 1));
+		_logger.debug("BeFileOutputWriter: creating stage executor with " + num_workers + " worker(s)");
+		stageExecutor = new BeParallelStageExecutor(() -> {
+					if (!first_module_used.getAndSet(true)) return enrichmentBatchModule;
+					try {
+						return BatchEnrichmentJob.createEnrichmentBatchModule(beSharedLibrary, configuration);
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				},
+				enrichmentContext, dataBucket, final_stage,
+				num_workers,
+				configuration.getBoolean(BatchEnrichmentJob.PRESERVE_ORDER_PARAM, true),
+				configuration.getInt(BatchEnrichmentJob.BATCH_SIZE_PARAM, 100));
 	}
 
 	@Override
 	public void write(String key, Tuple2<Long, IBatchRecord> value) throws IOException, InterruptedException {
-				batch.add(value);
-		checkBatch(false);
+		stageExecutor.add(value);
 	}
 
-	protected void checkBatch(boolean flush){
-		if((batch.size()>=batchSize) || flush){
-			enrichmentBatchModule.onObjectBatch(batch);
-			batch.clear();
-		}		
-	}
-	
 	@Override
 	public void close(TaskAttemptContext context) throws IOException, InterruptedException {
-		checkBatch(true);
-		enrichmentBatchModule.onStageComplete();		
+		stageExecutor.close();
+		// (anything the context is still buffering has to be written out before the task commits)
+		enrichmentContext.flushBatchOutput(Optional.of(dataBucket)).join();
 	}
 
 }
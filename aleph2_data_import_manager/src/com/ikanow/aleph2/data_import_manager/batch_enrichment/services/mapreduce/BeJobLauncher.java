@@ -17,10 +17,16 @@ package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduc
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -29,11 +35,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.inject.Inject;
+import com.ikanow.aleph2.core.shared.utils.JarCacheUtils;
 import com.ikanow.aleph2.data_import_manager.batch_enrichment.services.BatchEnrichmentContext;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 
+import fj.data.Validation;
+
 
 public class BeJobLauncher implements IBeJobService{
 
@@ -47,6 +58,10 @@ public class BeJobLauncher implements IBeJobService{
 	protected String yarnConfigie = null;
 
 	protected BatchEnrichmentContext batchEnrichmentContext;
+	
+	protected final Map<String, Job> launchedJobs = new ConcurrentHashMap<String, Job>();
+	protected final Map<String, CompletableFuture<Void>> localJobs = new ConcurrentHashMap<String, CompletableFuture<Void>>(); // (keyed by getLocalJobKey)
+	protected final BeLocalJobRunner localJobRunner = new BeLocalJobRunner();
 
 	@Inject 
 	BeJobLauncher(GlobalPropertiesBean globals, BeJobLoader beJobLoader, BatchEnrichmentContext batchEnrichmentContext) {
@@ -97,7 +112,8 @@ public class BeJobLauncher implements IBeJobService{
 			if(bucket!=null){
 
 				batchEnrichmentContext.setBucket(bucket);
-				batchEnrichmentContext.setLibraryConfig(BeJobBean.extractLibrary(beJob.getSharedLibraries(),SharedLibraryBean.LibraryType.enrichment_module).get());
+				final SharedLibraryBean moduleLibrary = BeJobBean.extractLibrary(beJob.getSharedLibraries(),SharedLibraryBean.LibraryType.enrichment_module).get();
+				batchEnrichmentContext.setLibraryConfig(moduleLibrary);
 
 				String contextSignature = batchEnrichmentContext.getEnrichmentContextSignature(Optional.of(bucket), Optional.empty()); 
 			    config.set(BatchEnrichmentJob.BE_CONTEXT_SIGNATURE, contextSignature);
@@ -106,6 +122,31 @@ public class BeJobLauncher implements IBeJobService{
 				// set metadata bean to job jik we need to have more config, bean is included in bucket data but needs to be identified
 				config.set(BatchEnrichmentJob.BE_META_BEAN_PARAM, ecMetadataBeanName);
 
+			    Path inPath = new Path(beJob.getBucketInputPath());
+				// delete output path if it exists
+				Path outPath = new Path(beJob.getBucketOutPath());
+
+				try {
+					FileContext.getLocalFSFileContext().delete(outPath, true);
+				}
+				catch (Exception e1) {} // (just doesn't exist yet)
+			    
+			    // Small inputs are processed in-process, avoiding the overhead of job submission
+			    final long localThreshold = config.getLong(BatchEnrichmentJob.LOCAL_MODE_THRESHOLD_PARAM, BatchEnrichmentJob.DEFAULT_LOCAL_MODE_THRESHOLD);
+			    if (localThreshold > 0) {
+			    	final List<FileStatus> inputFiles = BeLocalJobRunner.listInputFiles(config, inPath);
+			    	final long inputSize = inputFiles.stream().mapToLong(f -> f.getLen()).sum();
+			    	if (inputSize <= localThreshold) {
+			    		logger.debug("Running "+jobName+" locally, input size="+inputSize);
+			    		// (the module is loaded from its own jars, since they aren't on this process's classpath)
+			    		final Configuration localConfig = new Configuration(config);
+			    		localConfig.setStrings(BatchEnrichmentJob.BE_MODULE_JARS_PARAM, getCachedJars(moduleLibrary, beJob.getSharedLibraries(), jobName).stream().toArray(String[]::new));
+			    		final String localJobKey = getLocalJobKey(bucketPathStr, jobName);
+			    		localJobs.put(localJobKey, localJobRunner.runJob(localConfig, jobName, inputFiles, outPath));
+			    		return localJobKey;
+			    	}
+			    }
+			    
 			    // do not set anything into config past this line
 			    Job job = Job.getInstance( config ,jobName);
 			    job.setJarByClass(BatchEnrichmentJob.class);
@@ -121,19 +162,12 @@ public class BeJobLauncher implements IBeJobService{
 			    job.setOutputFormatClass(BeFileOutputFormat.class);
 	
 
-			    Path inPath = new Path(beJob.getBucketInputPath());
 			    logger.debug("Bucket Input Path:"+inPath.toString());
 				FileInputFormat.addInputPath(job, inPath);
-				// delete output path if it exists
-				Path outPath = new Path(beJob.getBucketOutPath());
-
-				try {
-					FileContext.getLocalFSFileContext().delete(outPath, true);
-				}
-				catch (Exception e1) {} // (just doesn't exist yet)
 				FileOutputFormat.setOutputPath(job, outPath);    
 			    
 				launch(job);
+				launchedJobs.put(jobName, job);
 			}
 		}
 		} catch (Exception e) {
@@ -143,6 +177,66 @@ public class BeJobLauncher implements IBeJobService{
 	     		
 	}
 	
+	/** Returns the name under which a local job is tracked (and which is returned from runEnhancementJob)
+	 *  - includes the bucket path since the job name alone isn't guaranteed to be unique across buckets
+	 * @param bucketPathStr - the bucket's path
+	 * @param jobName - the job name
+	 * @return the key for localJobs
+	 */
+	protected static String getLocalJobKey(String bucketPathStr, String jobName) {
+		return bucketPathStr + ":" + jobName;
+	}
+
+	/** Copies the bucket's libraries into the local jar cache (if needed), returning the local paths, module first
+	 * @param moduleLibrary - the enrichment module's library
+	 * @param sharedLibraries - all the bucket's libraries
+	 * @param jobName - the job name, for errors
+	 * @return the list of cached jars
+	 */
+	protected List<String> getCachedJars(SharedLibraryBean moduleLibrary, List<SharedLibraryBean> sharedLibraries, String jobName) throws Exception {
+		final IStorageService storageService = batchEnrichmentContext.getServiceContext().getStorageService();
+		final List<SharedLibraryBean> libraries = new ArrayList<SharedLibraryBean>();
+		libraries.add(moduleLibrary);
+		sharedLibraries.stream().filter(lib -> lib != moduleLibrary).forEach(lib -> libraries.add(lib));
+		
+		final List<String> cachedJars = new ArrayList<String>();
+		for (SharedLibraryBean library: libraries) {
+			final Validation<BasicMessageBean, String> cachedJar = 
+					JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library, storageService, BeJobLauncher.class.getSimpleName(), jobName).get();
+			if (cachedJar.isFail()) {
+				throw new IOException(cachedJar.fail().message());
+			}
+			cachedJars.add(cachedJar.success());
+		}
+		return cachedJars;
+	}
+	
+	@Override
+	public Optional<Boolean> isJobComplete(String jobName) {
+		final CompletableFuture<Void> localJob = localJobs.get(jobName);
+		if (null != localJob) {
+			if (localJob.isDone()) {
+				localJobs.remove(jobName, localJob);
+			}
+			return Optional.of(localJob.isDone());
+		}
+		final Job job = launchedJobs.get(jobName);
+		if (null == job) {
+			return Optional.empty();
+		}
+		try {
+			final boolean complete = job.isComplete();
+			if (complete) {
+				launchedJobs.remove(jobName, job);
+			}
+			return Optional.of(complete);
+		} catch (Exception e) { // (eg job was never submitted)
+			logger.error("isJobComplete Caught Exception for "+jobName, e);
+			launchedJobs.remove(jobName, job);
+			return Optional.empty();
+		}
+	}
+	
 	// default behavior is to
 	public void launch(Job job) throws ClassNotFoundException, IOException, InterruptedException{
 		job.submit();
@@ -0,0 +1,252 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_import.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+
+/** Runs a batch enrichment job in-process, on a local thread pool, without submitting anything to Hadoop
+ *  Uses the same reader, writer and output committer as the mapreduce job (with the identity mapper inlined), so modules see no difference
+ *  Intended for buckets whose ready directory is small enough that job submission would dominate the processing time
+ */
+public class BeLocalJobRunner {
+	private static final Logger logger = LogManager.getLogger(BeLocalJobRunner.class);
+
+	public static final int DEFAULT_NUM_THREADS = 2;
+
+	protected final ExecutorService _executor;
+	protected final AtomicInteger _job_counter = new AtomicInteger(0);
+
+	/** Creates a local runner with the default number of threads
+	 */
+	public BeLocalJobRunner() {
+		this(DEFAULT_NUM_THREADS);
+	}
+
+	/** Creates a local runner
+	 * @param num_threads - the max number of splits processed concurrently, across all jobs
+	 */
+	public BeLocalJobRunner(final int num_threads) {
+		_executor = Executors.newFixedThreadPool(Math.max(1, num_threads), r -> {
+			final Thread t = new Thread(r, "BeLocalJobRunner");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/** Lists the files a mapreduce job would read from the input path (ie ignoring directories and hidden files)
+	 * @param config - the job configuration
+	 * @param input_path - the bucket's ready directory
+	 * @return the list of input files
+	 */
+	public static List<FileStatus> listInputFiles(final Configuration config, final Path input_path) throws IOException {
+		final FileSystem fs = input_path.getFileSystem(config);
+		if (!fs.exists(input_path)) {
+			return Collections.emptyList();
+		}
+		return Arrays.stream(fs.listStatus(input_path, p -> !p.getName().startsWith("_") && !p.getName().startsWith(".")))
+				.filter(f -> f.isFile())
+				.collect(Collectors.toList());
+	}
+
+	/** Runs the job in the background - returns a future that completes when every split has been processed and the job's output committed
+	 *  (or aborted, in which case the input is left in place to be retried)
+	 * @param config - the job configuration (as built for the mapreduce job)
+	 * @param job_name - the job name, for logging
+	 * @param input_files - the files to process (see listInputFiles)
+	 * @param output_path - the job's output directory (as for FileOutputFormat.setOutputPath)
+	 * @return a future that completes when the job is complete (exceptionally if any split failed)
+	 */
+	public CompletableFuture<Void> runJob(final Configuration config, final String job_name, final List<FileStatus> input_files, final Path output_path) {
+		final Configuration job_config = new Configuration(config);
+		job_config.set(FileOutputFormat.OUTDIR, output_path.toString());
+		final JobID job_id = new JobID("local_be", _job_counter.incrementAndGet());
+		final JobContext job_context = new JobContextImpl(job_config, job_id);
+		final List<CombineFileSplit> splits = createSplits(input_files, job_config.getLong(BatchEnrichmentJob.MAX_SPLIT_SIZE_PARAM, BatchEnrichmentJob.DEFAULT_MAX_SPLIT_SIZE));
+		logger.info(job_name + ": running locally, " + input_files.size() + " files in " + splits.size() + " splits");
+
+		final OutputCommitter job_committer;
+		try {
+			job_committer = createOutputFormat().getOutputCommitter(new TaskAttemptContextImpl(job_config, new TaskAttemptID(new TaskID(job_id, TaskType.JOB_SETUP, 0), 0)));
+			job_committer.setupJob(job_context);
+		}
+		catch (Exception e) {
+			logger.error(ErrorUtils.getLongForm("{0}", e), e);
+			final CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		final CompletableFuture<?>[] tasks = IntStream.range(0, splits.size())
+				.mapToObj(i -> CompletableFuture.runAsync(() -> {
+					try {
+						runSplit(job_config, new TaskAttemptID(new TaskID(job_id, TaskType.MAP, i), 0), splits.get(i));
+					}
+					catch (Exception e) {
+						logger.error(ErrorUtils.getLongForm("{0}", e), e);
+						throw new CompletionException(e);
+					}
+				}, _executor))
+				.toArray(CompletableFuture<?>[]::new);
+
+		return CompletableFuture.allOf(tasks).handle((__, error) -> {
+			try {
+				if (null == error) {
+					job_committer.commitJob(job_context);
+				}
+				else {
+					job_committer.abortJob(job_context, JobStatus.State.FAILED);
+				}
+			}
+			catch (IOException e) {
+				logger.error(ErrorUtils.getLongForm("{0}", e), e);
+				if (null == error) throw new CompletionException(e);
+			}
+			if (null != error) {
+				throw (error instanceof CompletionException) ? (CompletionException)error : new CompletionException(error);
+			}
+			return null;
+		});
+	}
+
+	/** Shuts down the thread pool (any running jobs complete)
+	 */
+	public void shutdown() {
+		_executor.shutdown();
+	}
+
+	//////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Reads every record in the split and passes it to the writer, then commits the task's output (which archives the split's input)
+	 *  (this is the local equivalent of a map task followed by its commit or abort)
+	 * @param config - the job configuration
+	 * @param task_id - the (synthetic) task attempt id
+	 * @param split - the files to process
+	 */
+	protected void runSplit(final Configuration config, final TaskAttemptID task_id, final CombineFileSplit split) throws Exception {
+		final TaskAttemptContext task_context = new TaskAttemptContextImpl(config, task_id);
+		final BeFileOutputFormat output_format = createOutputFormat();
+		final OutputCommitter committer = output_format.getOutputCommitter(task_context);
+		committer.setupTask(task_context);
+		final BeFileInputReader reader = new BeFileInputReader();
+		boolean success = false;
+		try {
+			reader.initialize(split, task_context);
+			final RecordWriter<String, Tuple2<Long, IBatchRecord>> writer = output_format.getRecordWriter(task_context);
+			try {
+				while (reader.nextKeyValue()) {
+					writer.write(reader.getCurrentKey(), reader.getCurrentValue());
+				}
+			}
+			finally {
+				writer.close(task_context);
+			}
+			success = true;
+		}
+		finally {
+			reader.close();
+			if (!success) {
+				try {
+					committer.abortTask(task_context);
+				}
+				catch (Exception e) { // (don't hide the original error)
+					logger.error(ErrorUtils.getLongForm("{0}", e), e);
+				}
+			}
+		}
+		if (committer.needsTaskCommit(task_context)) {
+			committer.commitTask(task_context);
+		}
+	}
+
+	/** Returns the output format whose writer and committer are used for each split (overridden in tests)
+	 * @return a new output format
+	 */
+	protected BeFileOutputFormat createOutputFormat() {
+		return new BeFileOutputFormat();
+	}
+
+	/** Packs the files into splits of at most max_split_size bytes (a file bigger than that gets a split to itself)
+	 * @param input_files - the files to process
+	 * @param max_split_size - the max number of bytes per split
+	 * @return the list of splits
+	 */
+	protected static List<CombineFileSplit> createSplits(final List<FileStatus> input_files, final long max_split_size) {
+		final List<CombineFileSplit> splits = new ArrayList<CombineFileSplit>();
+		final List<FileStatus> current = new ArrayList<FileStatus>();
+		long current_size = 0L;
+		for (FileStatus file: input_files) {
+			if (!current.isEmpty() && ((current_size + file.getLen()) > max_split_size)) {
+				splits.add(toSplit(current));
+				current.clear();
+				current_size = 0L;
+			}
+			current.add(file);
+			current_size += file.getLen();
+		}
+		if (!current.isEmpty()) {
+			splits.add(toSplit(current));
+		}
+		return splits;
+	}
+
+	/** Converts a list of files into a CombineFileSplit covering the whole of each file
+	 */
+	protected static CombineFileSplit toSplit(final List<FileStatus> files) {
+		return new CombineFileSplit(
+				files.stream().map(f -> f.getPath()).toArray(Path[]::new),
+				new long[files.size()],
+				files.stream().mapToLong(f -> f.getLen()).toArray(),
+				new String[0]);
+	}
+}
@@ -0,0 +1,312 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+
+/** Runs an enrichment stage across a pool of workers, each with its own module instance (initialized via onStageInitialize on its own thread)
+ *  Records are collected into batches (whose size adapts to the time the module takes per batch) and dispatched to the least loaded worker
+ *  Objects emitted by the modules are captured per batch and replayed against the real context from the calling thread, either in
+ *  submission order (preserve_order) or in completion order - so the context itself never sees concurrent emits
+ *  With a single worker and preserve_order this behaves exactly like calling the module directly, just on a different thread
+ */
+public class BeParallelStageExecutor {
+	private static final Logger _logger = LogManager.getLogger(BeParallelStageExecutor.class);
+
+	public static final int DEFAULT_MIN_BATCH_SIZE = 10;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 5000;
+	public static final long DEFAULT_TARGET_BATCH_TIME_MS = 1000L;
+	public static final int MAX_BATCHES_IN_FLIGHT_PER_WORKER = 2;
+
+	// (the context calls that generate output and so get captured and replayed in order)
+	protected static final Set<String> EMIT_METHODS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("emitMutableObject", "emitImmutableObject", "storeErroredObject")));
+
+	protected final IEnrichmentModuleContext _context;
+	protected final boolean _preserve_order;
+	protected final int _min_batch_size;
+	protected final int _max_batch_size;
+	protected final long _target_batch_time_ms;
+	protected final List<Worker> _workers;
+
+	protected List<Tuple2<Long, IBatchRecord>> _batch = new ArrayList<Tuple2<Long, IBatchRecord>>();
+	protected volatile int _batch_size;
+	protected final LinkedList<CompletableFuture<List<Runnable>>> _in_flight = new LinkedList<>();
+	protected boolean _closed = false;
+
+	/** Creates an executor with the default batch size limits
+	 * @param module_factory - called once per worker to create that worker's module instance (must not return shared instances)
+	 * @param context - the enrichment context, emits are always made against this from the calling thread
+	 * @param bucket - the bucket being enriched
+	 * @param final_stage - passed to onStageInitialize
+	 * @param num_workers - the number of workers (each with its own thread and module instance)
+	 * @param preserve_order - if true, objects are emitted in the order their input records were added
+	 * @param initial_batch_size - the starting batch size, which is then adjusted based on the module's processing time
+	 */
+	public BeParallelStageExecutor(final Supplier<IEnrichmentBatchModule> module_factory, final IEnrichmentModuleContext context, final DataBucketBean bucket,
+			final boolean final_stage, final int num_workers, final boolean preserve_order, final int initial_batch_size)
+	{
+		this(module_factory, context, bucket, final_stage, num_workers, preserve_order, initial_batch_size,
+				DEFAULT_MIN_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE, DEFAULT_TARGET_BATCH_TIME_MS);
+	}
+
+	/** Creates an executor with user specified batch size limits
+	 * @param module_factory - called once per worker to create that worker's module instance (must not return shared instances)
+	 * @param context - the enrichment context, emits are always made against this from the calling thread
+	 * @param bucket - the bucket being enriched
+	 * @param final_stage - passed to onStageInitialize
+	 * @param num_workers - the number of workers (each with its own thread and module instance)
+	 * @param preserve_order - if true, objects are emitted in the order their input records were added
+	 * @param initial_batch_size - the starting batch size, which is then adjusted based on the module's processing time
+	 * @param min_batch_size - the smallest the batch size is allowed to shrink to
+	 * @param max_batch_size - the largest the batch size is allowed to grow to
+	 * @param target_batch_time_ms - the batch size is halved if a batch takes more than twice this, and doubled if it takes less than half of it
+	 */
+	public BeParallelStageExecutor(final Supplier<IEnrichmentBatchModule> module_factory, final IEnrichmentModuleContext context, final DataBucketBean bucket,
+			final boolean final_stage, final int num_workers, final boolean preserve_order, final int initial_batch_size,
+			final int min_batch_size, final int max_batch_size, final long target_batch_time_ms)
+	{
+		_context = context;
+		_preserve_order = preserve_order;
+		_min_batch_size = Math.max(1, min_batch_size);
+		_max_batch_size = Math.max(_min_batch_size, max_batch_size);
+		_target_batch_time_ms = Math.max(1L, target_batch_time_ms);
+		_batch_size = Math.min(_max_batch_size, Math.max(_min_batch_size, initial_batch_size));
+
+		_workers = IntStream.range(0, Math.max(1, num_workers))
+					.mapToObj(i -> new Worker(i, module_factory.get(), bucket, final_stage))
+					.collect(Collectors.toList());
+	}
+
+	/** Adds a record to the current batch, dispatching the batch to a worker once it is full
+	 *  (Blocks if all the workers are already busy)
+	 * @param record - the record to enrich
+	 */
+	public void add(final Tuple2<Long, IBatchRecord> record) {
+		if (_closed) {
+			throw new IllegalStateException("BeParallelStageExecutor: add called after close");
+		}
+		_batch.add(record);
+		if (_batch.size() >= _batch_size) {
+			dispatch();
+		}
+	}
+
+	/** Dispatches the current batch (if any) and waits for all the outstanding batches to complete and their output to be emitted
+	 */
+	public void flush() {
+		dispatch();
+		while (!_in_flight.isEmpty()) {
+			replay(_in_flight.removeFirst());
+		}
+	}
+
+	/** Flushes all outstanding batches, calls onStageComplete once per worker, and shuts the workers down
+	 *  (Any error from a worker is rethrown here, after all the workers have been shut down)
+	 */
+	public void close() {
+		if (_closed) return;
+		_closed = true;
+		try {
+			flush();
+			final List<CompletableFuture<List<Runnable>>> completions = _workers.stream()
+					.map(w -> w.submit(() -> w._module.onStageComplete()))
+					.collect(Collectors.toList());
+			completions.forEach(this::replay);
+		}
+		finally {
+			_workers.forEach(w -> w._executor.shutdown());
+		}
+	}
+
+	/** Returns the current (adaptive) batch size
+	 * @return the number of records that will be collected before a batch is dispatched
+	 */
+	public int getBatchSize() {
+		return _batch_size;
+	}
+
+	/** Returns the number of workers
+	 * @return the number of workers
+	 */
+	public int getNumWorkers() {
+		return _workers.size();
+	}
+
+	//////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Hands the current batch to the least loaded worker, first making space if too many batches are in flight
+	 */
+	protected void dispatch() {
+		if (_batch.isEmpty()) return;
+
+		// (bound the memory used by completed-but-unreplayed batches)
+		drainCompleted();
+		while (_in_flight.size() >= MAX_BATCHES_IN_FLIGHT_PER_WORKER*_workers.size()) {
+			replay(_in_flight.removeFirst());
+			drainCompleted();
+		}
+		final List<Tuple2<Long, IBatchRecord>> to_process = _batch;
+		_batch = new ArrayList<Tuple2<Long, IBatchRecord>>(_batch_size);
+
+		final Worker worker = _workers.stream().min((a, b) -> Integer.compare(a._pending.get(), b._pending.get())).get();
+		_in_flight.add(worker.submit(() -> {
+			final long start = System.currentTimeMillis();
+			worker._module.onObjectBatch(to_process);
+			adaptBatchSize(System.currentTimeMillis() - start);
+		}));
+	}
+
+	/** Replays any batches that have already completed - in ordered mode only from the head of the queue
+	 */
+	protected void drainCompleted() {
+		if (_preserve_order) {
+			while (!_in_flight.isEmpty() && _in_flight.getFirst().isDone()) {
+				replay(_in_flight.removeFirst());
+			}
+		}
+		else {
+			final Iterator<CompletableFuture<List<Runnable>>> it = _in_flight.iterator();
+			while (it.hasNext()) {
+				final CompletableFuture<List<Runnable>> next = it.next();
+				if (next.isDone()) {
+					it.remove();
+					replay(next);
+				}
+			}
+		}
+	}
+
+	/** Waits for the batch to complete, then performs its captured emits against the real context
+	 * @param batch_future - the future returned when the batch was submitted
+	 */
+	protected void replay(final CompletableFuture<List<Runnable>> batch_future) {
+		try {
+			batch_future.get().forEach(Runnable::run);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+		}
+	}
+
+	/** Halves or doubles the batch size if the last batch took much more or less time than the target
+	 * @param batch_time_ms - the time the module spent on the last batch
+	 */
+	protected void adaptBatchSize(final long batch_time_ms) {
+		final int curr_batch_size = _batch_size;
+		if ((batch_time_ms > 2*_target_batch_time_ms) && (curr_batch_size > _min_batch_size)) {
+			_batch_size = Math.max(_min_batch_size, curr_batch_size/2);
+		}
+		else if ((batch_time_ms < _target_batch_time_ms/2) && (curr_batch_size < _max_batch_size)) {
+			_batch_size = Math.min(_max_batch_size, curr_batch_size*2);
+		}
+		if (curr_batch_size != _batch_size) {
+			_logger.debug("BeParallelStageExecutor: batch took " + batch_time_ms + "ms, batch size " + curr_batch_size + " -> " + _batch_size);
+		}
+	}
+
+	/** A single worker - one thread, one module instance, and a context wrapper that captures that module's emits
+	 */
+	protected class Worker {
+		protected final ExecutorService _executor;
+		protected final IEnrichmentBatchModule _module;
+		protected final AtomicInteger _pending = new AtomicInteger(0); //(incremented on submit, decremented by the worker thread)
+		protected List<Runnable> _captured = null; //(only accessed from the worker thread)
+
+		protected Worker(final int index, final IEnrichmentBatchModule module, final DataBucketBean bucket, final boolean final_stage) {
+			_executor = Executors.newSingleThreadExecutor(r -> {
+				final Thread t = new Thread(r, "BeParallelStageExecutor-worker-" + index);
+				t.setDaemon(true);
+				return t;
+			});
+			_module = module;
+			final IEnrichmentModuleContext capturing_context = (IEnrichmentModuleContext) Proxy.newProxyInstance(
+					IEnrichmentModuleContext.class.getClassLoader(), new Class<?>[] { IEnrichmentModuleContext.class },
+					(proxy, method, args) -> {
+						if (EMIT_METHODS.contains(method.getName()) && (null != _captured)) {
+							_captured.add(() -> invoke(method, args));
+							return null;
+						}
+						else return invoke(method, args);
+					});
+			_in_flight.add(submit(() -> _module.onStageInitialize(capturing_context, bucket, final_stage)));
+		}
+
+		/** Runs the task on this worker's thread, returning the emits it made
+		 */
+		protected CompletableFuture<List<Runnable>> submit(final Runnable task) {
+			_pending.incrementAndGet();
+			return CompletableFuture.supplyAsync(() -> {
+				_captured = new ArrayList<Runnable>();
+				try {
+					task.run();
+					return _captured;
+				}
+				finally {
+					_captured = null;
+				}
+			}, _executor)
+			.whenComplete((__, ___) -> _pending.decrementAndGet());
+		}
+
+		/** Calls the method on the real context, unwrapping any exception
+		 */
+		protected Object invoke(final Method method, final Object[] args) {
+			try {
+				return method.invoke(_context, args);
+			}
+			catch (InvocationTargetException e) {
+				throw (e.getCause() instanceof RuntimeException) ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+			}
+			catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_import.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+
+/** A batch record whose binary content is left in the input file until a module asks for it
+ *  - getContentStream streams the file, getContentBuffer memory maps it (local filesystems only, else it is read into a single buffer)
+ *  - getContent (the legacy heap copy) is only built if a module calls it
+ *  - getContentBuffer and getContent are limited to MAX_BUFFER_LENGTH bytes (a single array or mapping), and throw for larger files - use getContentStream for those
+ *  - the JSON is built on first access
+ *  (Input files are only archived once the task commits, so they remain readable for the lifetime of the record)
+ */
+public class FileBatchRecord implements IBatchRecord {
+
+	/** The largest content that can be returned in a single buffer (the JVM's array size limit, which is also just under the memory mapping limit) */
+	public static final long MAX_BUFFER_LENGTH = Integer.MAX_VALUE - 8;
+
+	protected final FileSystem _fs;
+	protected final Path _path;
+	protected final long _length;
+	protected final Supplier<JsonNode> _json_builder;
+	protected JsonNode _json = null;
+	protected ByteArrayOutputStream _content = null;
+
+	/** Creates a record over an input file
+	 * @param fs - the filesystem containing the file
+	 * @param path - the file
+	 * @param length - the size of the file, in bytes
+	 * @param json_builder - called (at most once) the first time the JSON is requested
+	 */
+	public FileBatchRecord(final FileSystem fs, final Path path, final long length, final Supplier<JsonNode> json_builder) {
+		_fs = fs;
+		_path = path;
+		_length = length;
+		_json_builder = json_builder;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getJson()
+	 */
+	@Override
+	public synchronized JsonNode getJson() {
+		if (null == _json) {
+			_json = _json_builder.get();
+		}
+		return _json;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#hasContent()
+	 */
+	@Override
+	public boolean hasContent() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getContentLength()
+	 */
+	@Override
+	public Optional<Long> getContentLength() {
+		return Optional.of(_length);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getContentStream()
+	 */
+	@Override
+	public Optional<InputStream> getContentStream() {
+		try {
+			return Optional.of(_fs.open(_path));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getContentBuffer()
+	 */
+	@Override
+	public Optional<ByteBuffer> getContentBuffer() {
+		checkBufferLength(_length);
+		try {
+			if ((_fs instanceof LocalFileSystem) || (_fs instanceof RawLocalFileSystem)) {
+				try (FileChannel channel = FileChannel.open(Paths.get(_path.toUri().getPath()), StandardOpenOption.READ)) {
+					checkBufferLength(channel.size());
+					return Optional.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+				}
+			}
+			else {
+				final byte[] bytes = new byte[(int) _length];
+				try (InputStream in = _fs.open(_path)) {
+					IOUtils.readFully(in, bytes);
+				}
+				return Optional.of(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord#getContent()
+	 */
+	@Override
+	public synchronized Optional<ByteArrayOutputStream> getContent() {
+		if (null == _content) {
+			checkBufferLength(_length);
+			final ByteArrayOutputStream content = new ByteArrayOutputStream((int) _length);
+			try (InputStream in = _fs.open(_path)) {
+				IOUtils.copy(in, content);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			_content = content;
+		}
+		return Optional.of(_content);
+	}
+
+	/** Rejects content that is too large to fit in a single buffer (rather than overflowing the size and returning a truncated or corrupt buffer)
+	 * @param length - the size of the content in bytes
+	 */
+	protected void checkBufferLength(final long length) {
+		if (length > MAX_BUFFER_LENGTH) {
+			throw new UnsupportedOperationException(ErrorUtils.get(ErrorUtils.CONTENT_TOO_LARGE_FOR_BUFFER, _path, length, MAX_BUFFER_LENGTH));
+		}
+	}
+
+	/** Returns the input file backing this record
+	 * @return the input file backing this record
+	 */
+	public Path getPath() {
+		return _path;
+	}
+}
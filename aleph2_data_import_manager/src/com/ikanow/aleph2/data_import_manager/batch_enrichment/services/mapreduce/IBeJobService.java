@@ -15,10 +15,21 @@
 ******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
 
+import java.util.Optional;
+
 
 public interface IBeJobService {
 
 
 	String runEnhancementJob(String bucketFullName, String bucketPathStr, String ecMetadataBeanName);
 
+	/**
+	 * Returns whether a job launched via runEnhancementJob has completed (so the caller doesn't submit duplicate jobs for the same input)
+	 * @param jobName - the name returned from runEnhancementJob
+	 * @return whether the job has completed, or Optional.empty() if the job isn't known (or the service doesn't track jobs)
+	 */
+	default Optional<Boolean> isJobComplete(String jobName) {
+		return Optional.empty();
+	}
+
 }
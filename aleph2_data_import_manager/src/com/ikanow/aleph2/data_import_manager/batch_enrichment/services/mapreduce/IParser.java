@@ -17,6 +17,9 @@ package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduc
 
 import java.io.InputStream;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
 import scala.Tuple2;
 
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
@@ -25,6 +28,11 @@ public interface IParser {
 
 		// Returns null when done
 	Tuple2<Long, IBatchRecord> getNextRecord(long currentFileIndex,String fileName,  InputStream inStream);
+	
+		// As above, but with the file's location so parsers can return records that read the file lazily (defaults to the stream version)
+	default Tuple2<Long, IBatchRecord> getNextRecord(long currentFileIndex,String fileName,  InputStream inStream, FileSystem fs, Path path, long length){
+		return getNextRecord(currentFileIndex, fileName, inStream);
+	}
 	default boolean multipleRecordsPerFile(){
 		return false;
 	}
@@ -31,12 +31,14 @@ import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 public class JsonParser implements IParser {
 	private static final Logger logger = LogManager.getLogger(JsonParser.class);
 
+	// (ObjectMapper is thread safe, so one per parser rather than one per record)
+	protected final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
 	@Override
 	public Tuple2<Long, IBatchRecord> getNextRecord(long currentFileIndex,String fileName,  InputStream inStream) {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 		Tuple2<Long, IBatchRecord> t2 = null;
 		try {
-			JsonNode node = object_mapper.readTree(inStream);
+			JsonNode node = _mapper.readTree(inStream);
 			t2 = new Tuple2<Long, IBatchRecord>(currentFileIndex, new BeFileInputReader.BatchRecord(node, null));
 		} catch (Exception e) {
 			logger.error("JsonParser caught exception",e);
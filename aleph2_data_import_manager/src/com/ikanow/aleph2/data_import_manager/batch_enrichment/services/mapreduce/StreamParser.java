@@ -19,6 +19,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.Optional;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -33,15 +35,17 @@ import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 public class StreamParser implements IParser {
 
 	private static final Logger logger = LogManager.getLogger(StreamParser.class);
+
+	// (ObjectMapper is thread safe, so one per parser rather than one per record)
+	protected final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 	
 	@Override
 	public Tuple2<Long, IBatchRecord> getNextRecord(long currentFileIndex,String fileName,  InputStream inStream) {
 		logger.debug("StreamParser.getNextRecord");
 
-		ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 		Tuple2<Long, IBatchRecord> t2 = null;
 		try {
-		   JsonNode node = mapper.createObjectNode(); 
+		   JsonNode node = _mapper.createObjectNode(); 
 		   ((ObjectNode) node).put("fileName", fileName);
 		   // create output stream
 			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
@@ -59,4 +63,17 @@ public class StreamParser implements IParser {
 		return t2;
 	}
 
+	/** Returns a record that leaves the binary content in the file until a module asks for it (see FileBatchRecord)
+	 *  - the stream is not read at all
+	 */
+	@Override
+	public Tuple2<Long, IBatchRecord> getNextRecord(long currentFileIndex, String fileName, InputStream inStream, FileSystem fs, Path path, long length) {
+		logger.debug("StreamParser.getNextRecord (lazy)");
+		return new Tuple2<Long, IBatchRecord>(currentFileIndex, new FileBatchRecord(fs, path, length, () -> {
+			final ObjectNode node = _mapper.createObjectNode();
+			node.put("fileName", fileName);
+			return node;
+		}));
+	}
+
 }
@@ -0,0 +1,175 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+* 
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.utils;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.core.shared.utils.DirUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/**
+ * Tracks the set of managed buckets underneath the data path, together with the last seen state of each bucket's import/ready directory,
+ * so that the folder watcher only needs one (cheap) status call per bucket per tick and only wakes buckets whose ready directories changed.
+ * The bucket list itself is built by a (expensive) recursive listing at startup and after that is maintained from management DB events, 
+ * with an optional full rescan as a safety net.
+ * Buckets that still have files in their ready directory after being woken (eg their job failed and left files behind) are woken 
+ * again on every call until the directory is empty, at the cost of one extra listing per such bucket.
+ * Works with any FileContext, eg the local file system for testing.
+ */
+public class BucketFolderTracker {
+	private static final Logger logger = LogManager.getLogger(BucketFolderTracker.class);
+
+	protected static final long READY_DIR_MISSING = -1L;
+	
+	protected final FileContext fileContext;
+	protected final Path dataPath;
+	
+	// bucket full name -> (bucket path, last seen modification time of the ready dir, or READY_DIR_MISSING)
+	protected final Map<String, Tuple2<String, Long>> buckets = new LinkedHashMap<String, Tuple2<String, Long>>();
+	// (not known until the first time the ready dir is checked - so the first check always wakes the bucket)
+	protected static final Long READY_DIR_UNKNOWN = null; 
+	// buckets that have been woken and whose ready dir hasn't yet been seen empty - these are checked for leftover files every call
+	protected final Set<String> pendingBuckets = new HashSet<String>();
+	
+	public BucketFolderTracker(FileContext fileContext, Path dataPath) {
+		this.fileContext = fileContext;
+		this.dataPath = dataPath;
+	}
+
+	/**
+	 * Rebuilds the bucket list from a full recursive listing of the data path, retaining the ready state of buckets that are still present.
+	 */
+	public synchronized void rescanBuckets() {
+		final List<Path> bucketPaths = new ArrayList<Path>();
+		DirUtils.findAllSubdirectories(bucketPaths, fileContext, dataPath, "managed_bucket", false);
+		final Map<String, Tuple2<String, Long>> oldBuckets = new LinkedHashMap<String, Tuple2<String, Long>>(buckets);
+		buckets.clear();
+		for (Path path : bucketPaths) {
+			final String bucketPathStr = path.toString();
+			final String bucketFullName = createFullName(bucketPathStr, dataPath.toString());
+			final Tuple2<String, Long> oldState = oldBuckets.get(bucketFullName);
+			buckets.put(bucketFullName, Tuples._2T(bucketPathStr, null == oldState ? READY_DIR_UNKNOWN : oldState._2()));
+		}
+		pendingBuckets.retainAll(buckets.keySet());
+		logger.info("rescanBuckets found " + buckets.size() + " buckets.");
+	}
+
+	/**
+	 * Adds a bucket (eg on a new/update management DB event) without rescanning the file system - no-op if it's already tracked
+	 * @param bucketFullName the bucket's full name, eg /misc/bucket1
+	 */
+	public synchronized void addBucket(String bucketFullName) {
+		if (!buckets.containsKey(bucketFullName)) {
+			buckets.put(bucketFullName, Tuples._2T(dataPath.toString() + bucketFullName, READY_DIR_UNKNOWN));
+		}
+	}
+
+	/**
+	 * Stops tracking a bucket (eg on a delete management DB event)
+	 * @param bucketFullName the bucket's full name, eg /misc/bucket1
+	 */
+	public synchronized void removeBucket(String bucketFullName) {
+		buckets.remove(bucketFullName);
+		pendingBuckets.remove(bucketFullName);
+	}
+
+	/**
+	 * Checks the ready directory of each tracked bucket (one status call per bucket) 
+	 * @return the (bucket path, bucket full name) of each bucket whose ready directory has appeared or been modified since the last call,
+	 *         or that was woken previously and still has files in its ready directory
+	 */
+	public synchronized List<Tuple2<String, String>> getChangedBuckets() {
+		final List<Tuple2<String, String>> changed = new ArrayList<Tuple2<String, String>>();
+		for (Map.Entry<String, Tuple2<String, Long>> bucket : buckets.entrySet()) {
+			final String bucketPathStr = bucket.getValue()._1();
+			final long readyState = getReadyDirState(bucketPathStr);
+			final Long lastState = bucket.getValue()._2();
+			if ((READY_DIR_MISSING != readyState) && ((READY_DIR_UNKNOWN == lastState) || (readyState != lastState))) {
+				changed.add(Tuples._2T(bucketPathStr, bucket.getKey()));
+				pendingBuckets.add(bucket.getKey());
+			}
+			else if (pendingBuckets.contains(bucket.getKey())) {
+				if ((READY_DIR_MISSING != readyState) && hasReadyFiles(bucketPathStr)) { // (retry the leftover files now rather than waiting for a reset)
+					changed.add(Tuples._2T(bucketPathStr, bucket.getKey()));
+				}
+				else {
+					pendingBuckets.remove(bucket.getKey());
+				}
+			}
+			bucket.setValue(Tuples._2T(bucketPathStr, readyState));
+		}
+		return changed;
+	}
+
+	/**
+	 * Forgets the last seen ready state of all buckets, so the next call to getChangedBuckets wakes every bucket that has a ready directory
+	 * (eg after a full rescan, as a safety net in case any changes were missed)
+	 */
+	public synchronized void resetReadyStates() {
+		for (Map.Entry<String, Tuple2<String, Long>> bucket : buckets.entrySet()) {
+			bucket.setValue(Tuples._2T(bucket.getValue()._1(), READY_DIR_UNKNOWN));
+		}
+	}
+
+	public synchronized int getBucketCount() {
+		return buckets.size();
+	}
+
+	protected long getReadyDirState(String bucketPathStr) {
+		try {
+			return fileContext.getFileStatus(new Path(bucketPathStr + IStorageService.TO_IMPORT_DATA_SUFFIX)).getModificationTime();
+		} catch (FileNotFoundException e) {
+			return READY_DIR_MISSING;
+		} catch (Exception e) {
+			logger.error("getReadyDirState Caught Exception for " + bucketPathStr, e);
+			return READY_DIR_MISSING;
+		}
+	}
+
+	protected boolean hasReadyFiles(String bucketPathStr) {
+		try {
+			return fileContext.listStatus(new Path(bucketPathStr + IStorageService.TO_IMPORT_DATA_SUFFIX)).hasNext();
+		} catch (FileNotFoundException e) {
+			return false;
+		} catch (Exception e) {
+			logger.error("hasReadyFiles Caught Exception for " + bucketPathStr, e);
+			return false;
+		}
+	}
+
+	public static String createFullName(String bucketPathStr, String dataPathStr) {
+		String fullName = bucketPathStr;
+		int dataPathPos = bucketPathStr.indexOf(dataPathStr);
+		if(dataPathPos>=0 && bucketPathStr.length()> dataPathPos + dataPathStr.length()){
+			fullName = bucketPathStr.substring(dataPathPos + dataPathStr.length());
+		}
+		return fullName;
+	}
+}
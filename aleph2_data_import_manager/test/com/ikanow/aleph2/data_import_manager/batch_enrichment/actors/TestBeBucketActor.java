@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.actors;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+
+import com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce.IBeJobService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
+import com.ikanow.aleph2.management_db.utils.ActorUtils;
+
+public class TestBeBucketActor {
+
+	public static final String BUCKET_NAME = "/test/be_bucket_actor";
+
+	protected TestingServer _test_server;
+	protected CuratorFramework _curator;
+	protected ActorSystem _system;
+	protected IManagementDbService _management_db;
+	protected File _bucket_dir;
+	protected long _saved_min_backoff;
+	protected long _saved_max_backoff;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() throws Exception {
+		_test_server = new TestingServer();
+		_test_server.start();
+		_curator = getCurator();
+		_system = ActorSystem.create("test_be_bucket_actor");
+
+		// A bucket with a single enabled enrichment config, and a file in its ready folder
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, BUCKET_NAME)
+				.with(DataBucketBean::batch_enrichment_configs, Arrays.asList(
+						BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
+							.with(EnrichmentControlMetadataBean::name, "ec1")
+							.with(EnrichmentControlMetadataBean::enabled, true)
+						.done().get()))
+				.done().get();
+		final IManagementCrudService<DataBucketBean> bucket_store = Mockito.mock(IManagementCrudService.class);
+		Mockito.when(bucket_store.getObjectBySpec(Matchers.any())).thenReturn(FutureUtils.createManagementFuture(CompletableFuture.completedFuture(Optional.of(bucket))));
+		_management_db = Mockito.mock(IManagementDbService.class);
+		Mockito.when(_management_db.getDataBucketStore()).thenReturn(bucket_store);
+
+		_bucket_dir = Files.createTempDirectory("test_be_bucket_actor").toFile();
+		final File ready_dir = new File(_bucket_dir, "managed_bucket/import/ready");
+		ready_dir.mkdirs();
+		FileUtils.writeStringToFile(new File(ready_dir, "input.json"), "{}");
+
+		// (short backoffs so the tests don't take minutes)
+		_saved_min_backoff = BeBucketActor.MIN_BACKOFF_MS;
+		_saved_max_backoff = BeBucketActor.MAX_BACKOFF_MS;
+		BeBucketActor.MIN_BACKOFF_MS = 50L;
+		BeBucketActor.MAX_BACKOFF_MS = 400L;
+	}
+
+	@After
+	public void teardown() throws Exception {
+		BeBucketActor.MIN_BACKOFF_MS = _saved_min_backoff;
+		BeBucketActor.MAX_BACKOFF_MS = _saved_max_backoff;
+		_system.shutdown();
+		_system.awaitTermination();
+		_curator.close();
+		_test_server.close();
+		FileUtils.deleteQuietly(_bucket_dir);
+	}
+
+	protected CuratorFramework getCurator() {
+		final CuratorFramework curator = CuratorFrameworkFactory.newClient(_test_server.getConnectString(), new ExponentialBackoffRetry(100, 3));
+		curator.start();
+		return curator;
+	}
+
+	protected ActorRef createActor(final CuratorFramework curator, final IBeJobService job_service) throws Exception {
+		return _system.actorOf(Props.create(BeBucketActor.class, curator, _management_db, FileContext.getLocalFSFileContext(), job_service,
+				_bucket_dir.getAbsolutePath(), BUCKET_NAME));
+	}
+
+	protected Optional<Long> getLeaseOwner() throws Exception {
+		final Stat stat = _curator.checkExists().forPath(ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + BUCKET_NAME);
+		return Optional.ofNullable(stat).map(s -> s.getEphemeralOwner());
+	}
+
+	protected static long getSessionId(final CuratorFramework curator) throws Exception {
+		return curator.getZookeeperClient().getZooKeeper().getSessionId();
+	}
+
+	protected static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; (i < 100) && !condition.getAsBoolean(); ++i) {
+			Thread.sleep(100L);
+		}
+	}
+
+	@Test
+	public void test_backoffWhenNoJobsLaunched() throws Exception {
+		// Every launch fails, so there's no activity and the checks back off: 0, +100, +200, +400 ms, then idle until woken
+		final IBeJobService job_service = Mockito.mock(IBeJobService.class);
+		final ActorRef actor = createActor(_curator, job_service);
+
+		Thread.sleep(2000L);
+		Mockito.verify(job_service, Mockito.times(4)).runEnhancementJob(BUCKET_NAME, _bucket_dir.getAbsolutePath(), "ec1");
+
+		// Waking the actor resets the backoff
+		actor.tell(new BucketEnrichmentMessage(_bucket_dir.getAbsolutePath(), BUCKET_NAME, ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + BUCKET_NAME), ActorRef.noSender());
+		Thread.sleep(2000L);
+		Mockito.verify(job_service, Mockito.times(8)).runEnhancementJob(BUCKET_NAME, _bucket_dir.getAbsolutePath(), "ec1");
+	}
+
+	@Test
+	public void test_recheckSoonWhenJobsLaunched() throws Exception {
+		// The launched job stays running, so the first re-check comes after the min backoff
+		final IBeJobService job_service = Mockito.mock(IBeJobService.class);
+		Mockito.when(job_service.runEnhancementJob(Matchers.anyString(), Matchers.anyString(), Matchers.anyString())).thenReturn("job1");
+		Mockito.when(job_service.isJobComplete("job1")).thenReturn(Optional.of(false));
+		createActor(_curator, job_service);
+
+		Thread.sleep(300L);
+		Mockito.verify(job_service, Mockito.times(1)).runEnhancementJob(BUCKET_NAME, _bucket_dir.getAbsolutePath(), "ec1");
+		Mockito.verify(job_service, Mockito.atLeast(2)).isJobComplete("job1"); // (at +50 and +150 ms)
+	}
+
+	@Test
+	public void test_leaseHeldUntilSessionLost() throws Exception {
+		final CuratorFramework curator1 = getCurator();
+		final CuratorFramework curator2 = getCurator();
+		final List<ConnectionState> states1 = Collections.synchronizedList(new ArrayList<ConnectionState>());
+		curator1.getConnectionStateListenable().addListener((client, new_state) -> states1.add(new_state));
+		try {
+			final IBeJobService job_service1 = Mockito.mock(IBeJobService.class);
+			final ActorRef actor1 = createActor(curator1, job_service1);
+			waitFor(() -> Mockito.mockingDetails(job_service1).getInvocations().size() > 0);
+			assertEquals(Optional.of(getSessionId(curator1)), getLeaseOwner());
+
+			// A second node can't process the bucket while the first holds its lease
+			final IBeJobService job_service2 = Mockito.mock(IBeJobService.class);
+			final ActorRef actor2 = createActor(curator2, job_service2);
+			Thread.sleep(1000L);
+			Mockito.verifyZeroInteractions(job_service2);
+			_system.stop(actor2);
+
+			// Once the first node's session expires its lease node is deleted, so it must re-take the lease when it's next woken
+			KillSession.kill(curator1.getZookeeperClient().getZooKeeper(), _test_server.getConnectString());
+			waitFor(() -> states1.contains(ConnectionState.LOST) && (ConnectionState.RECONNECTED == states1.get(states1.size() - 1)));
+			assertEquals(Optional.empty(), getLeaseOwner());
+			Thread.sleep(500L); // (let the connection state changes reach the actor)
+			actor1.tell(new BucketEnrichmentMessage(_bucket_dir.getAbsolutePath(), BUCKET_NAME, ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + BUCKET_NAME), ActorRef.noSender());
+			waitFor(() -> {
+				try { return getLeaseOwner().isPresent(); } catch (Exception e) { return false; }
+			});
+			assertEquals(Optional.of(getSessionId(curator1)), getLeaseOwner());
+
+			// The lease is released when the actor stops
+			_system.stop(actor1);
+			waitFor(() -> {
+				try { return !getLeaseOwner().isPresent(); } catch (Exception e) { return false; }
+			});
+			assertEquals(Optional.empty(), getLeaseOwner());
+		}
+		finally {
+			curator1.close();
+			curator2.close();
+		}
+	}
+}
@@ -367,7 +367,13 @@ public class TestBatchEnrichmentContext {
 			assertEquals(ErrorUtils.NOT_YET_IMPLEMENTED, e.getMessage());
 		}
 
-		test_context.getNextUnusedId();
+		try {
+			test_context.getNextUnusedId();
+			fail("Should have thrown exception");
+		}
+		catch (Exception e) {
+			assertEquals(ErrorUtils.get(ErrorUtils.BUCKET_NOT_SET, "getNextUnusedId"), e.getMessage());
+		}
 		try {
 			test_context.storeErroredObject(0L, null);
 			fail("Should have thrown exception");
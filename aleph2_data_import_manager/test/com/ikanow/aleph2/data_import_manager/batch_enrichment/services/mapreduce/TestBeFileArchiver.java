@@ -0,0 +1,117 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestBeFileArchiver {
+
+	protected FileSystem fs;
+	protected String importDir;
+
+	@Before
+	public void setup() throws Exception {
+		importDir = System.getProperty("java.io.tmpdir") + File.separator + "test_be_file_archiver" + File.separator + "import";
+		FileUtils.deleteQuietly(new File(importDir));
+		for (int i = 0; i < 5; ++i) {
+			FileUtils.writeStringToFile(new File(importDir + "/ready/file" + i + ".json"), "{\"test\":" + i + "}");
+		}
+		fs = FileSystem.getLocal(new Configuration());
+	}
+
+	@Test
+	public void test_archiveOnCommit() throws Exception {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/archiver")
+				.with(DataBucketBean::data_schema, BeanTemplateUtils.build(DataSchemaBean.class)
+						.with(DataSchemaBean::storage_schema, BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.class)
+								.with(DataSchemaBean.StorageSchemaBean::enabled, true)
+							.done().get())
+					.done().get())
+				.done().get();
+
+		final BeFileArchiver archiver = BeFileArchiver.register("attempt_archive", fs, bucket, new Date());
+		assertSame(archiver, BeFileArchiver.register("attempt_archive", fs, bucket, new Date()));
+		assertFalse(BeFileArchiver.hasPendingFiles("attempt_archive"));
+
+		for (int i = 0; i < 5; ++i) {
+			archiver.addProcessedFile(new Path(importDir + "/ready/file" + i + ".json"));
+		}
+		assertTrue(BeFileArchiver.hasPendingFiles("attempt_archive"));
+		// (nothing happens until commit)
+		assertEquals(5, new File(importDir + "/ready").list().length);
+
+		assertEquals(Optional.of(archiver), BeFileArchiver.deregister("attempt_archive"));
+		assertEquals(5, archiver.commit());
+		assertEquals(0, archiver.getPendingCount());
+		assertEquals(0, new File(importDir + "/ready").list().length);
+
+		// All files are moved into a single time grouped directory
+		final File[] archive_dirs = new File(importDir + "/stored/processed").listFiles();
+		assertEquals(1, archive_dirs.length);
+		assertEquals(5, archive_dirs[0].list().length);
+	}
+
+	@Test
+	public void test_deleteOnCommit_keepOnAbort() throws Exception {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/archiver").done().get();
+
+		final BeFileArchiver archiver = new BeFileArchiver(fs, bucket, new Date());
+		archiver.addProcessedFile(new Path(importDir + "/ready/file0.json"));
+		archiver.addProcessedFile(new Path(importDir + "/ready/file1.json"));
+		archiver.abort();
+		assertEquals(0, archiver.commit());
+		assertEquals(5, new File(importDir + "/ready").list().length);
+
+		archiver.addProcessedFile(new Path(importDir + "/ready/file0.json"));
+		archiver.addProcessedFile(new Path(importDir + "/ready/file1.json"));
+		assertEquals(2, archiver.commit());
+		assertEquals(3, new File(importDir + "/ready").list().length);
+		assertFalse(new File(importDir + "/stored").exists());
+	}
+
+	@Test
+	public void test_deregisterJob() throws Exception {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/archiver").done().get();
+
+		final BeFileArchiver archiver1 = BeFileArchiver.register("attempt_1_0001_m_000000_0", fs, bucket, new Date());
+		BeFileArchiver.register("attempt_1_0001_m_000001_0", fs, bucket, new Date());
+		BeFileArchiver.register("attempt_1_0002_m_000000_0", fs, bucket, new Date());
+		archiver1.addProcessedFile(new Path(importDir + "/ready/file0.json"));
+
+		// (only the aborted job's archivers are removed, and their files are left in place)
+		assertEquals(2, BeFileArchiver.deregisterJob("job_1_0001"));
+		assertEquals(0, archiver1.getPendingCount());
+		assertFalse(BeFileArchiver.deregister("attempt_1_0001_m_000000_0").isPresent());
+		assertTrue(BeFileArchiver.deregister("attempt_1_0002_m_000000_0").isPresent());
+		assertEquals(5, new File(importDir + "/ready").list().length);
+	}
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.core.shared.utils.DeduplicationEngine;
+import com.ikanow.aleph2.data_import_manager.batch_enrichment.services.BatchEnrichmentContext;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestBeFileOutputWriter {
+
+	/** A context for a deduplicated bucket that writes to the specified batch service
+	 */
+	public static class DeduplicatingContext extends BatchEnrichmentContext {
+		public DeduplicatingContext(final DeduplicationEngine engine, final IDataWriteService.IBatchSubservice<JsonNode> batch_service) {
+			_deduplication_engine = Optional.of(engine);
+			_batch_index_service = Optional.of(batch_service);
+			_crud_index_service = Optional.empty();
+		}
+		public long getBufferedCount() {
+			return (null == _deduplication_buffer) ? 0L : _deduplication_buffer.getBufferedCount();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_deduplicatedOutputFlushedOnClose() throws Exception {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/output_writer").done().get();
+
+		final List<JsonNode> written = Collections.synchronizedList(new ArrayList<JsonNode>());
+		final IDataWriteService.IBatchSubservice<JsonNode> batch_service = Mockito.mock(IDataWriteService.IBatchSubservice.class);
+		Mockito.doAnswer(invocation -> written.addAll((List<JsonNode>) invocation.getArguments()[0]))
+			.when(batch_service).storeObjects(Matchers.anyListOf(JsonNode.class));
+
+		final DeduplicationEngine engine = Mockito.mock(DeduplicationEngine.class);
+		Mockito.when(engine.getBucket()).thenReturn(bucket);
+		Mockito.when(engine.filterDuplicates(Matchers.anyListOf(JsonNode.class))).thenAnswer(invocation -> invocation.getArguments()[0]);
+
+		final DeduplicatingContext context = new DeduplicatingContext(engine, batch_service);
+		final BeFileOutputWriter writer = new BeFileOutputWriter(new Configuration(false), context, new TestBeParallelStageExecutor.SlowEchoModule(), bucket, null, null);
+
+		// Far fewer objects than the dedup buffer's max batch size, so (well within its max latency) they're all still buffered when the stage completes
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+		LongStream.range(0, 50).forEach(i -> {
+			try {
+				writer.write("", Tuples._2T(i, new BeFileInputReader.BatchRecord(mapper.createObjectNode().put("_id", "id" + i), null)));
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		writer.close(null);
+
+		// Closing the writer (ie the end of the task, before it commits) writes out everything the context was buffering
+		assertEquals(0L, context.getBufferedCount());
+		assertEquals(LongStream.range(0, 50).mapToObj(i -> "id" + i).collect(Collectors.toList()),
+				written.stream().map(j -> j.get("_id").asText()).collect(Collectors.toList()));
+		Mockito.verify(engine, Mockito.atLeastOnce()).filterDuplicates(Matchers.anyListOf(JsonNode.class));
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+
+public class TestBeLocalJobRunner {
+
+	protected String readyDir;
+	protected String outputDir;
+
+	@Before
+	public void setup() throws Exception {
+		readyDir = System.getProperty("java.io.tmpdir") + File.separator + "test_be_local_job_runner" + File.separator + "ready";
+		outputDir = System.getProperty("java.io.tmpdir") + File.separator + "test_be_local_job_runner" + File.separator + "output";
+		FileUtils.deleteQuietly(new File(readyDir));
+		FileUtils.deleteQuietly(new File(outputDir));
+		FileUtils.writeStringToFile(new File(readyDir + "/a.json"), "{\"a\":1}"); // (7 bytes)
+		FileUtils.writeStringToFile(new File(readyDir + "/b.json"), "{\"b\":22}"); // (8 bytes)
+		FileUtils.writeStringToFile(new File(readyDir + "/c.bin"), "0123456789"); // (10 bytes)
+		FileUtils.writeStringToFile(new File(readyDir + "/_SUCCESS"), "");
+		FileUtils.writeStringToFile(new File(readyDir + "/.hidden"), "xxx");
+		new File(readyDir + "/subdir").mkdirs();
+	}
+
+	@Test
+	public void test_listInputFiles() throws Exception {
+		final List<FileStatus> files = BeLocalJobRunner.listInputFiles(new Configuration(), new Path(readyDir));
+		assertEquals(Arrays.asList("a.json", "b.json", "c.bin"), files.stream().map(f -> f.getPath().getName()).sorted().collect(Collectors.toList()));
+		assertEquals(25L, files.stream().mapToLong(f -> f.getLen()).sum());
+
+		assertEquals(0, BeLocalJobRunner.listInputFiles(new Configuration(), new Path(readyDir + "/missing")).size());
+	}
+
+	@Test
+	public void test_createSplits() throws Exception {
+		final List<FileStatus> files = BeLocalJobRunner.listInputFiles(new Configuration(), new Path(readyDir)).stream()
+											.sorted((a, b) -> a.getPath().getName().compareTo(b.getPath().getName()))
+											.collect(Collectors.toList());
+
+		// Everything fits in one split
+		final List<CombineFileSplit> one_split = BeLocalJobRunner.createSplits(files, 1024L);
+		assertEquals(1, one_split.size());
+		assertEquals(3, one_split.get(0).getNumPaths());
+		assertEquals(25L, one_split.get(0).getLength());
+
+		// Split by bytes: a+b (15 bytes) then c (10 bytes)
+		final List<CombineFileSplit> two_splits = BeLocalJobRunner.createSplits(files, 15L);
+		assertEquals(2, two_splits.size());
+		assertEquals(2, two_splits.get(0).getNumPaths());
+		assertEquals(1, two_splits.get(1).getNumPaths());
+		assertEquals("c.bin", two_splits.get(1).getPath(0).getName());
+
+		// Files larger than the max get a split to themselves
+		assertEquals(3, BeLocalJobRunner.createSplits(files, 1L).size());
+	}
+
+	@Test
+	public void test_runJob() throws Exception {
+		final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+		final BeLocalJobRunner runner = new TestRunner(written, false);
+		try {
+			final Configuration config = new Configuration();
+			config.setLong(BatchEnrichmentJob.MAX_SPLIT_SIZE_PARAM, 15L); // (2 splits)
+			runner.runJob(config, "test_runJob", BeLocalJobRunner.listInputFiles(config, new Path(readyDir)), new Path(outputDir)).join();
+		}
+		finally {
+			runner.shutdown();
+		}
+		// Every file was passed to the writer
+		assertEquals(Arrays.asList("a.json", "b.json", "c.bin"), written.stream().sorted().collect(Collectors.toList()));
+
+		// The job's output was committed
+		assertTrue(new File(outputDir + "/_SUCCESS").exists());
+		assertFalse(new File(outputDir + "/_temporary").exists());
+
+		// The input was deleted on commit (the bucket doesn't store processed data), other files left alone
+		assertFalse(new File(readyDir + "/a.json").exists());
+		assertFalse(new File(readyDir + "/b.json").exists());
+		assertFalse(new File(readyDir + "/c.bin").exists());
+		assertTrue(new File(readyDir + "/_SUCCESS").exists());
+		assertTrue(new File(readyDir + "/.hidden").exists());
+	}
+
+	@Test
+	public void test_runJob_failed() throws Exception {
+		final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+		final BeLocalJobRunner runner = new TestRunner(written, true);
+		try {
+			final Configuration config = new Configuration();
+			runner.runJob(config, "test_runJob_failed", BeLocalJobRunner.listInputFiles(config, new Path(readyDir)), new Path(outputDir)).join();
+			fail("Should have thrown");
+		}
+		catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		finally {
+			runner.shutdown();
+		}
+		// The job was aborted, so nothing was committed and the input is left to be retried
+		assertFalse(new File(outputDir + "/_SUCCESS").exists());
+		assertTrue(new File(readyDir + "/a.json").exists());
+		assertTrue(new File(readyDir + "/b.json").exists());
+		assertTrue(new File(readyDir + "/c.bin").exists());
+	}
+
+	/** Replaces the enrichment module with a writer that just records the file names (optionally failing on close)
+	 */
+	public static class TestRunner extends BeLocalJobRunner {
+		protected final List<String> _written;
+		protected final boolean _fail;
+
+		public TestRunner(final List<String> written, final boolean fail) {
+			_written = written;
+			_fail = fail;
+		}
+
+		@Override
+		protected BeFileOutputFormat createOutputFormat() {
+			return new BeFileOutputFormat() {
+				@Override
+				public RecordWriter<String, Tuple2<Long, IBatchRecord>> getRecordWriter(TaskAttemptContext context) {
+					return new RecordWriter<String, Tuple2<Long, IBatchRecord>>() {
+						@Override
+						public void write(String key, Tuple2<Long, IBatchRecord> value) {
+							_written.add(new Path(key).getName());
+						}
+						@Override
+						public void close(TaskAttemptContext context) throws IOException {
+							if (_fail) throw new IOException("test failure");
+						}
+					};
+				}
+			};
+		}
+	}
+}
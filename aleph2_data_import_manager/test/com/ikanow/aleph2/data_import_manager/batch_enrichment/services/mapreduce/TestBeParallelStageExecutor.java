@@ -0,0 +1,137 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestBeParallelStageExecutor {
+
+	/** Emits every record it is given, taking a variable amount of time per batch
+	 */
+	public static class SlowEchoModule implements IEnrichmentBatchModule {
+		static final Set<Thread> init_threads = ConcurrentHashMap.newKeySet();
+		static final AtomicInteger num_completes = new AtomicInteger(0);
+		IEnrichmentModuleContext _context;
+		Thread _init_thread;
+
+		@Override
+		public void onStageInitialize(IEnrichmentModuleContext context, DataBucketBean bucket, boolean final_stage) {
+			_context = context;
+			_init_thread = Thread.currentThread();
+			init_threads.add(_init_thread);
+		}
+
+		@Override
+		public void onObjectBatch(List<Tuple2<Long, IBatchRecord>> batch) {
+			assertEquals(_init_thread, Thread.currentThread());
+			try { Thread.sleep((batch.get(0)._1() % 3)*5L); } catch (InterruptedException e) {}
+			batch.forEach(record -> _context.emitImmutableObject(record._1(), record._2().getJson(), Optional.empty(), Optional.empty()));
+		}
+
+		@Override
+		public void onStageComplete() {
+			assertEquals(_init_thread, Thread.currentThread());
+			num_completes.incrementAndGet();
+		}
+	}
+
+	protected List<Long> runExecutor(final int num_workers, final boolean preserve_order, final int num_records) {
+		final List<Long> emitted = Collections.synchronizedList(new ArrayList<Long>());
+		final IEnrichmentModuleContext context = Mockito.mock(IEnrichmentModuleContext.class);
+		Mockito.doAnswer(invocation -> emitted.add((Long)invocation.getArguments()[0]))
+			.when(context).emitImmutableObject(Matchers.anyLong(), Matchers.any(JsonNode.class), Matchers.any(), Matchers.any());
+
+		SlowEchoModule.init_threads.clear();
+		SlowEchoModule.num_completes.set(0);
+
+		final BeParallelStageExecutor executor = new BeParallelStageExecutor(() -> new SlowEchoModule(), context,
+				BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/parallel").done().get(),
+				true, num_workers, preserve_order, 10, 10, 10, 1000L);
+
+		final JsonNode json = new ObjectMapper().createObjectNode();
+		LongStream.range(0, num_records).forEach(i -> executor.add(Tuples._2T(i, new BeFileInputReader.BatchRecord(json, null))));
+		executor.close();
+
+		assertEquals(num_workers, SlowEchoModule.init_threads.size());
+		assertEquals(num_workers, SlowEchoModule.num_completes.get());
+		return emitted;
+	}
+
+	@Test
+	public void test_preserveOrder() {
+		final List<Long> emitted = runExecutor(4, true, 1000);
+		assertEquals(LongStream.range(0, 1000).boxed().collect(Collectors.toList()), emitted);
+	}
+
+	@Test
+	public void test_unordered() {
+		final List<Long> emitted = runExecutor(4, false, 1000);
+		assertEquals(1000, emitted.size());
+		assertEquals(LongStream.range(0, 1000).boxed().collect(Collectors.toSet()), emitted.stream().collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void test_adaptiveBatchSize() {
+		final IEnrichmentModuleContext context = Mockito.mock(IEnrichmentModuleContext.class);
+		final BeParallelStageExecutor executor = new BeParallelStageExecutor(() -> new SlowEchoModule(), context,
+				BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/parallel").done().get(),
+				true, 2, true, 100, 10, 1000, 100L);
+
+		// Fast batches grow the batch size, up to the max
+		executor.adaptBatchSize(0L);
+		assertEquals(200, executor.getBatchSize());
+		for (int i = 0; i < 10; ++i) executor.adaptBatchSize(0L);
+		assertEquals(1000, executor.getBatchSize());
+
+		// Slow batches shrink it, down to the min
+		executor.adaptBatchSize(500L);
+		assertEquals(500, executor.getBatchSize());
+		for (int i = 0; i < 10; ++i) executor.adaptBatchSize(500L);
+		assertEquals(10, executor.getBatchSize());
+
+		// Batches close to the target leave it alone
+		executor.adaptBatchSize(100L);
+		assertEquals(10, executor.getBatchSize());
+
+		executor.close();
+		assertEquals(2, executor.getNumWorkers());
+	}
+}
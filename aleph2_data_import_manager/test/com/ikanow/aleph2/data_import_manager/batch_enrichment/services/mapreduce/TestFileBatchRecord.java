@@ -0,0 +1,140 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.services.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+
+public class TestFileBatchRecord {
+
+	protected static final String CONTENTS = "some binary contents";
+
+	protected FileSystem fs;
+	protected Path path;
+
+	@Before
+	public void setup() throws Exception {
+		final File file = new File(System.getProperty("java.io.tmpdir") + File.separator + "test_file_batch_record" + File.separator + "test.bin");
+		FileUtils.deleteQuietly(file);
+		FileUtils.writeStringToFile(file, CONTENTS);
+		fs = FileSystem.getLocal(new Configuration());
+		path = fs.makeQualified(new Path(file.getAbsolutePath()));
+	}
+
+	@Test
+	public void test_lazyRecord() throws Exception {
+		final AtomicInteger json_builds = new AtomicInteger(0);
+		final FileBatchRecord record = new FileBatchRecord(fs, path, CONTENTS.length(), () -> {
+			json_builds.incrementAndGet();
+			return new ObjectMapper().createObjectNode().put("fileName", path.toString());
+		});
+
+		// Metadata doesn't touch the contents (or build the JSON)
+		assertTrue(record.hasContent());
+		assertEquals(Long.valueOf(CONTENTS.length()), record.getContentLength().get());
+		assertEquals(0, json_builds.get());
+
+		// JSON is built once
+		assertEquals(path.toString(), record.getJson().get("fileName").asText());
+		assertEquals(path.toString(), record.getJson().get("fileName").asText());
+		assertEquals(1, json_builds.get());
+
+		// Each stream starts from the beginning
+		for (int i = 0; i < 2; ++i) {
+			try (InputStream in = record.getContentStream().get()) {
+				assertEquals(CONTENTS, IOUtils.toString(in));
+			}
+		}
+
+		// Local files are memory mapped
+		final ByteBuffer buffer = record.getContentBuffer().get();
+		assertTrue(buffer instanceof MappedByteBuffer);
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		assertEquals(CONTENTS, new String(bytes));
+
+		// Legacy heap copy is only built on demand, and then cached
+		final ByteArrayOutputStream content = record.getContent().get();
+		assertEquals(CONTENTS, content.toString());
+		assertSame(content, record.getContent().get());
+	}
+
+	@Test
+	public void test_streamParserDoesntReadContents() throws Exception {
+		final InputStream unreadable = new InputStream() {
+			@Override
+			public int read() {
+				fail("stream should not be read");
+				return -1;
+			}
+		};
+		final Tuple2<Long, IBatchRecord> t2 = new StreamParser().getNextRecord(3L, path.toString(), unreadable, fs, path, CONTENTS.length());
+		assertEquals(Long.valueOf(3L), t2._1());
+		assertTrue(t2._2().hasContent());
+		assertEquals(path.toString(), t2._2().getJson().get("fileName").asText());
+		assertEquals(CONTENTS, t2._2().getContent().get().toString());
+
+		// Eager records still work via the interface defaults
+		final IBatchRecord eager = new BeFileInputReader.BatchRecord(t2._2().getJson(), t2._2().getContent().get());
+		assertEquals(Long.valueOf(CONTENTS.length()), eager.getContentLength().get());
+		try (InputStream in = eager.getContentStream().get()) {
+			assertEquals(CONTENTS, IOUtils.toString(in));
+		}
+		assertEquals(CONTENTS.length(), eager.getContentBuffer().get().remaining());
+	}
+
+	@Test
+	public void test_oversizeContent() throws Exception {
+		// (the length is only used for the size check, so a small file can stand in for one that is too large to buffer)
+		final FileBatchRecord record = new FileBatchRecord(fs, path, FileBatchRecord.MAX_BUFFER_LENGTH + 1L, () -> null);
+		try {
+			record.getContentBuffer();
+			fail("Should have thrown");
+		}
+		catch (UnsupportedOperationException e) {
+			assertTrue(e.getMessage().contains("getContentStream"));
+		}
+		try {
+			record.getContent();
+			fail("Should have thrown");
+		}
+		catch (UnsupportedOperationException e) {}
+		
+		// (streaming is unaffected)
+		try (InputStream in = record.getContentStream().get()) {
+			assertEquals(CONTENTS, IOUtils.toString(in));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+* 
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestBucketFolderTracker {
+
+	protected FileContext fileContext;
+	protected String dataDir;
+	
+	@Before
+	public void setup() throws Exception {
+		dataDir = System.getProperty("java.io.tmpdir") + File.separator + "test_bucket_folder_tracker" + File.separator + "data";
+		FileUtils.deleteQuietly(new File(dataDir));
+		fileContext = FileContext.getLocalFSFileContext();
+		fileContext.mkdir(new Path(dataDir + "/misc/bucket1" + IStorageService.TO_IMPORT_DATA_SUFFIX), FileContext.DIR_DEFAULT_PERM, true);
+		fileContext.mkdir(new Path(dataDir + "/misc/bucket2" + IStorageService.BUCKET_SUFFIX), FileContext.DIR_DEFAULT_PERM, true);
+	}
+	
+	@Test
+	public void test_changeDetection() throws Exception {
+		final BucketFolderTracker tracker = new BucketFolderTracker(fileContext, fileContext.makeQualified(new Path(dataDir)));
+		tracker.rescanBuckets();
+		assertEquals(2, tracker.getBucketCount());
+		
+		// First check: only the bucket with a ready dir is woken
+		final String bucket1Path = fileContext.makeQualified(new Path(dataDir + "/misc/bucket1")).toString();
+		assertEquals(Arrays.asList(Tuples._2T(bucket1Path, "/misc/bucket1")), tracker.getChangedBuckets());
+		
+		// Nothing has changed
+		assertEquals(Collections.emptyList(), tracker.getChangedBuckets());
+		
+		// Add a file to the ready dir (and force the mod time since some file systems only have 1s resolution)
+		final Path readyDir = new Path(dataDir + "/misc/bucket1" + IStorageService.TO_IMPORT_DATA_SUFFIX);
+		fileContext.create(new Path(readyDir, "file1.json"), EnumSet.of(CreateFlag.CREATE)).close();
+		fileContext.setTimes(readyDir, fileContext.getFileStatus(readyDir).getModificationTime() + 5000L, -1L);
+		assertEquals(Arrays.asList(Tuples._2T(bucket1Path, "/misc/bucket1")), tracker.getChangedBuckets());
+		
+		// The file hasn't been processed, so the bucket is woken again on the next call
+		assertEquals(Arrays.asList(Tuples._2T(bucket1Path, "/misc/bucket1")), tracker.getChangedBuckets());
+		
+		// Once the ready dir is empty the bucket is left alone
+		fileContext.delete(new Path(readyDir, "file1.json"), false);
+		fileContext.setTimes(readyDir, fileContext.getFileStatus(readyDir).getModificationTime() + 10000L, -1L);
+		assertEquals(Arrays.asList(Tuples._2T(bucket1Path, "/misc/bucket1")), tracker.getChangedBuckets()); // (changed)
+		assertEquals(Collections.emptyList(), tracker.getChangedBuckets());
+		
+		// Buckets added via events (no rescan)
+		fileContext.mkdir(new Path(dataDir + "/misc/bucket3" + IStorageService.TO_IMPORT_DATA_SUFFIX), FileContext.DIR_DEFAULT_PERM, true);
+		tracker.addBucket("/misc/bucket3");
+		assertEquals(3, tracker.getBucketCount());
+		assertEquals(Arrays.asList("/misc/bucket3"), tracker.getChangedBuckets().stream().map(t2 -> t2._2()).collect(Collectors.toList()));
+		tracker.removeBucket("/misc/bucket3");
+		assertEquals(2, tracker.getBucketCount());
+		
+		// Rescans retain state (so only bucket3, which is still on disk, is new), resets wake everything with a ready dir
+		tracker.rescanBuckets();
+		assertEquals(3, tracker.getBucketCount());
+		assertEquals(Arrays.asList("/misc/bucket3"), tracker.getChangedBuckets().stream().map(t2 -> t2._2()).collect(Collectors.toList()));
+		assertEquals(Collections.emptyList(), tracker.getChangedBuckets());
+		tracker.resetReadyStates();
+		assertEquals(2, tracker.getChangedBuckets().size()); // (bucket2 has no ready dir)
+	}
+}
@@ -71,6 +71,14 @@ public interface IAnalyticsContext extends IUnderlyingService {
 	 * @param annotation - the generic annotation parameters can either be copied directly into the object, or appended via this bean (merging if the object also has annotatiosn)
 	 */
 	void emitObject(final Optional<DataBucketBean> bucket, final AnalyticThreadJobBean job, final Either<JsonNode, Map<String, Object>> object, final Optional<AnnotationBean> annotations);
+
+	/** Objects passed to emitObject/sendObjectToStreamingPipeline are buffered per thread and written out in batches - this forces out any objects still buffered (from all threads)
+	 *  The analytic technology should call this when a job completes, ie from IAnalyticsTechnologyModule.stopAnalyticJob and once checkAnalyticJobProgress reports completion
+	 * @param bucket An optional bucket - if there is no ambiguity in the bucket then Optional.empty() can be passed (Note that the behavior of the context if called on another bucket than the one currently being processed is undefined)
+	 * @param job - the job for which data is being output
+	 * @return a future that completes when the buffered objects have been handed to their output services
+	 */
+	CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket, final AnalyticThreadJobBean job);
 	
 	//////////////////////////////////////////////////////
 	
@@ -185,6 +185,7 @@ public interface IAnalyticsTechnologyModule {
 
 	/**
 	 * Responsible for actually stopping the specified analytic job (eg if the job is deleted)
+	 * Should call context.flushBatchOutput so that any objects emitted via the context are not lost
 	 * @param analytic_bucket - the bucket containing the analytic thread that this job is part of
 	 * @param jobs - a list of all jobs handled by this thread
 	 * @param job_to_stop - the specific job
@@ -228,6 +229,7 @@ public interface IAnalyticsTechnologyModule {
 	
 	/**
 	 * Checks the job's progress: return true if complete, false if still going (optionally, "in progress" information can be returned via the management side-channel)
+	 * On detecting completion, should call context.flushBatchOutput (and wait for it) before returning true
 	 * @param analytic_bucket - the bucket containing the analytic thread that this job is part of
 	 * @param jobs - a list of all jobs handled by this thread
 	 * @param job_to_check - the specific job
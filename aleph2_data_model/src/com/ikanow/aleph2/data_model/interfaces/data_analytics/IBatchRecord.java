@@ -15,7 +15,10 @@
  ******************************************************************************/
 package com.ikanow.aleph2.data_model.interfaces.data_analytics;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -31,7 +34,38 @@ public interface IBatchRecord {
 	JsonNode getJson();
 	
 	/** For files, a stream containing the binary contents of the file
+	 *  (Note this requires the entire file to be copied onto the heap - for large files prefer getContentStream/getContentBuffer)
 	 * @return For files, a stream containing the binary contents of the file
 	 */
 	Optional<ByteArrayOutputStream> getContent();
+	
+	/** Whether the record has binary content, without reading it
+	 * @return true if the record has binary content
+	 */
+	default boolean hasContent() {
+		return getContent().isPresent();
+	}
+	
+	/** For files, the size of the binary contents, without reading them
+	 * @return For files, the size of the binary contents in bytes
+	 */
+	default Optional<Long> getContentLength() {
+		return getContent().map(c -> (long) c.size());
+	}
+	
+	/** For files, a new stream over the binary contents of the file - the caller must close it
+	 *  (Each call returns a new stream starting at the beginning of the file)
+	 * @return For files, a new stream over the binary contents of the file
+	 */
+	default Optional<InputStream> getContentStream() {
+		return getContent().map(c -> new ByteArrayInputStream(c.toByteArray()));
+	}
+	
+	/** For files, a read-only buffer over the binary contents of the file - memory mapped where the underlying storage supports it
+	 *  (A single buffer holds at most ~2GB, implementations may throw for larger files - use getContentStream for those)
+	 * @return For files, a read-only buffer over the binary contents of the file
+	 */
+	default Optional<ByteBuffer> getContentBuffer() {
+		return getContent().map(c -> ByteBuffer.wrap(c.toByteArray()).asReadOnlyBuffer());
+	}
 }
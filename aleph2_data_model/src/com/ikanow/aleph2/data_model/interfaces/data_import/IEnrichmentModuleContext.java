@@ -18,6 +18,7 @@ package com.ikanow.aleph2.data_model.interfaces.data_import;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import scala.Tuple2;
@@ -133,6 +134,13 @@ public interface IEnrichmentModuleContext extends IUnderlyingService {
 	 */
 	void storeErroredObject(final long id, final JsonNode original_json);
 	
+	/** Emitted objects may be buffered per thread and written out in batches (eg if the bucket is deduplicated) - this forces out any objects still buffered (from all threads)
+	 *  Should be called once the objects of a batch have all been emitted (eg after IEnrichmentBatchModule.onStageComplete) and before shutting down
+	 * @param bucket An optional bucket - if there is no ambiguity in the bucket then Optional.empty() can be passed (Note that the behavior of the context if called on another bucket than the one currently being processed is undefined)
+	 * @return a future that completes when the buffered objects have been handed to the output services
+	 */
+	CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket);
+	
 	
 	////////////////////////////////////////////
 	
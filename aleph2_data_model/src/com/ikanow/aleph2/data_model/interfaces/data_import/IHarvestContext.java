@@ -65,6 +65,13 @@ public interface IHarvestContext extends IUnderlyingService {
 	 * @param object the object to emit represented by either Jackson JsonNode or a generic map-of-objects
 	 */
 	void emitObject(final Optional<DataBucketBean> bucket, final Either<JsonNode, Map<String, Object>> object);
+	
+	/** Objects passed to sendObjectToStreamingPipeline are buffered per thread and written out in batches - this forces out any objects still buffered (from all threads)
+	 *  Harvesters should call this at the end of each batch (eg before returning from IHarvestTechnologyModule.onHarvestComplete) and before shutting down
+	 * @param bucket An optional bucket - if there is no ambiguity in the bucket then Optional.empty() can be passed (Note that the behavior of the context if called on another bucket than the one currently being processed is undefined)
+	 * @return a future that completes when the buffered objects have been handed to the storage service and message queue
+	 */
+	CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket);
 
 	//////////////////////////////////////////////////////
 	
@@ -116,6 +116,7 @@ public interface IHarvestTechnologyModule {
 	
 	/**
 	 * For batch type harvest technologies (eg file not streaming), this callback is called when a batch is complete
+	 * (If objects have been sent via context.sendObjectToStreamingPipeline, then context.flushBatchOutput should be called here)
 	 * @param completed_bucket The bucket whose batch has completed
 	 * @param context - the context available to this harvester
 	 * @return A future for the response
@@ -554,21 +554,134 @@ public class DataSchemaBean implements Serializable {
 	 */
 	public static class GeospatialSchemaBean implements Serializable {
 		private static final long serialVersionUID = -3380350300379967374L;
-		//TODO (ALEPH-16): define an initial set of geo-spatial schema
-		//private Boolean enabled;
-		//private String service_name;
-		//private Map<String, Object> technology_override_schema;
+		protected GeospatialSchemaBean() {}
+		
+		/** User constructor
+		 */
+		public GeospatialSchemaBean(final Boolean enabled,
+				final String service_name,
+				final String location_field,
+				final Integer index_precision,
+				final Map<String, Object> technology_override_schema) {
+			this.enabled = enabled;
+			this.service_name = service_name;
+			this.location_field = location_field;
+			this.index_precision = index_precision;
+			this.technology_override_schema = technology_override_schema;
+		}
+		/** Describes if the geospatial service is used for this bucket
+		 * @return the enabled
+		 */
+		public Boolean enabled() {
+			return enabled;
+		}
+		/** (OPTIONAL) Enables a non-default service to be used for this schema
+		 * @return the overriding service_name
+		 */
+		public String service_name() {
+			return service_name;
+		}
+		/** The field in the data object that contains its location (dot notation, defaults to "location")
+		 *  Supported formats: GeoJSON point, [ lon, lat ], { "lat": lat, "lon": lon }, "lat,lon"
+		 * @return the location_field
+		 */
+		public String location_field() {
+			return location_field;
+		}
+		/** (OPTIONAL) A technology-specific hint for the resolution of the spatial index (eg geohash length)
+		 * @return the index_precision
+		 */
+		public Integer index_precision() {
+			return index_precision;
+		}
+		/** Technology-specific settings for this schema - see the specific service implementation for details 
+		 * USE WITH CAUTION
+		 * @return the technology_override_schema
+		 */
+		public Map<String, Object> technology_override_schema() {
+			return technology_override_schema;
+		}
+		private Boolean enabled;
+		private String service_name;
+		private String location_field;
+		private Integer index_precision;
+		private Map<String, Object> technology_override_schema;
 	}
 	/** Per bucket schema for the Graph DB Service
 	 * @author acp
 	 */
 	public static class GraphSchemaBean implements Serializable {
 		private static final long serialVersionUID = -824592579880124213L;
-		//TODO (ALEPH-15): define an initial set of graph schema 
-		// (eg options: 1] use annotations, 2] link on specified field pairs within object or fields across object, 3] build 2-hop via objects) 
-		//private Boolean enabled;
-		//private String service_name;
-		//private Map<String, Object> technology_override_schema;
+		protected GraphSchemaBean() {}
+
+		/** User constructor
+		 */
+		public GraphSchemaBean(final Boolean enabled,
+				final String service_name,
+				final String source_field,
+				final String target_field,
+				final String label_field,
+				final Integer max_fan_out,
+				final Map<String, Object> technology_override_schema) {
+			this.enabled = enabled;
+			this.service_name = service_name;
+			this.source_field = source_field;
+			this.target_field = target_field;
+			this.label_field = label_field;
+			this.max_fan_out = max_fan_out;
+			this.technology_override_schema = technology_override_schema;
+		}
+		/** Describes if the graph service is used for this bucket
+		 * @return the enabled
+		 */
+		public Boolean enabled() {
+			return enabled;
+		}
+		/** (OPTIONAL) Enables a non-default service to be used for this schema
+		 * @return the overriding service_name
+		 */
+		public String service_name() {
+			return service_name;
+		}
+		/** The field in the data object that contains the id (or list of ids) of the edge's source vertex (dot notation, defaults to "source")
+		 *  Objects that don't have both the source and target fields aren't added to the graph
+		 * @return the source_field
+		 */
+		public String source_field() {
+			return source_field;
+		}
+		/** The field in the data object that contains the id (or list of ids) of the edge's target vertex (dot notation, defaults to "target")
+		 * @return the target_field
+		 */
+		public String target_field() {
+			return target_field;
+		}
+		/** (OPTIONAL) The field in the data object that contains the edge's label (eg the relationship type), if not present edges are unlabelled
+		 * @return the label_field
+		 */
+		public String label_field() {
+			return label_field;
+		}
+		/** (OPTIONAL) The max number of edges followed out of any one vertex during a traversal, which bounds the cost of queries that hit highly connected vertices
+		 * @return the max_fan_out
+		 */
+		public Integer max_fan_out() {
+			return max_fan_out;
+		}
+		/** Technology-specific settings for this schema - see the specific service implementation for details
+		 * USE WITH CAUTION
+		 * @return the technology_override_schema
+		 */
+		public Map<String, Object> technology_override_schema() {
+			return technology_override_schema;
+		}
+		private Boolean enabled;
+		private String service_name;
+		private String source_field;
+		private String target_field;
+		private String label_field;
+		private Integer max_fan_out;
+		private Map<String, Object> technology_override_schema;
 	}
 
 	/** Per bucket schema for the Data Warehouse service 
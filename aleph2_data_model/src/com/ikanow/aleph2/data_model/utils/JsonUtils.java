@@ -16,7 +16,6 @@
 package com.ikanow.aleph2.data_model.utils;
 
 import java.math.BigDecimal;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -33,6 +32,9 @@ public class JsonUtils {
 	/** Takes a tuple expressed as LinkedHashMap<String, Object> (by convention the Objects are primitives, JsonNode, or POJO), and where one of the objects
 	 *  is a JSON representation of the original object and creates an object by folding them all together
 	 *  Note the other fields of the tuple take precedence over the JSON
+	 *  (Single pass: the base object is parsed once and the other fields are written straight into it, using a handler resolved once per value class,
+	 *   fields whose value is unchanged from the base object are skipped. If the base object is already an ObjectNode it is shallow copied rather than re-parsed,
+	 *   so the caller's object is never modified - its nested objects are shared with the returned object though.)
 	 * @param in - the tuple
 	 * @param mapper - the Jackson object mapper
 	 * @param json_field - optional fieldname of the string representation of the JSON - if not present then the last field is used (set to eg "" if there is no base object)
@@ -40,27 +42,30 @@ public class JsonUtils {
 	 */
 	public static JsonNode foldTuple(final LinkedHashMap<String, Object> in, final ObjectMapper mapper, final Optional<String> json_field) {
 		try {
-			// (do this imperatively to handle the "last element can be the base object case"
-			final Iterator<Map.Entry<String,Object>> it = in.entrySet().iterator();
-			ObjectNode acc = mapper.createObjectNode();
-			while (it.hasNext()) {
-				final Map.Entry<String, Object> kv = it.next();
-				if ((json_field.isPresent() && kv.getKey().equals(json_field.get()))
-						|| !json_field.isPresent() && !it.hasNext()) {
-					acc = (ObjectNode) ((ObjectNode) mapper.readTree(kv.getValue().toString())).setAll(acc);
+			// Step 1: find and parse the base object
+			final String base_field = json_field.orElseGet(() -> in.isEmpty() ? null : getLastKey(in));
+			final Object base = (null == base_field) ? null : in.get(base_field);
+			final ObjectNode acc = ((null == base) || (base instanceof ObjectNode))
+					? mapper.createObjectNode()
+					: (ObjectNode) mapper.readTree(base.toString());
+			if (base instanceof ObjectNode) {
+				acc.setAll((ObjectNode) base);
+			}
+			
+			// Step 2: fold the other fields into it
+			for (Map.Entry<String, Object> kv: in.entrySet()) {
+				final String key = kv.getKey();
+				final Object val = kv.getValue();
+				if (key.equals(base_field)) continue;
+				if (null == val) {
+					final JsonNode existing = acc.get(key);
+					if ((null == existing) || !existing.isNull()) acc.putNull(key);
+					continue;
 				}
-				else {
-					final ObjectNode acc_tmp = acc;
-					Patterns.match(kv.getValue()).andAct()
-								.when(String.class, s -> acc_tmp.put(kv.getKey(), s))
-								.when(Long.class, l -> acc_tmp.put(kv.getKey(), l))
-								.when(Integer.class, l -> acc_tmp.put(kv.getKey(), l))
-								.when(Boolean.class, b -> acc_tmp.put(kv.getKey(), b))
-								.when(Double.class, d -> acc_tmp.put(kv.getKey(), d))
-								.when(JsonNode.class, j -> acc_tmp.set(kv.getKey(), j))
-								.when(Float.class, f -> acc_tmp.put(kv.getKey(), f))
-								.when(BigDecimal.class, f -> acc_tmp.put(kv.getKey(), f))
-								.otherwise(x -> acc_tmp.set(kv.getKey(), BeanTemplateUtils.toJson(x)));
+				
+				final FieldHandler handler = _field_handlers.get(val.getClass());
+				if (!handler.isUnchanged(acc.get(key), val)) {
+					handler.set(acc, key, val);
 				}
 			}
 			return acc;
@@ -68,6 +73,67 @@ public class JsonUtils {
 		catch (Exception e) { throw new RuntimeException(e); } // (convert to unchecked exception)
 	}
 	
+	/** Returns the last key of a linked hash map (there's no way of doing this without iterating)
+	 */
+	private static String getLastKey(final LinkedHashMap<String, Object> in) {
+		String last = null;
+		for (String key: in.keySet()) last = key;
+		return last;
+	}
+	
+	/** Writes a single tuple value into an object
+	 */
+	private interface FieldHandler {
+		/** Whether the existing field already has this value (existing can be null) */
+		boolean isUnchanged(final JsonNode existing, final Object val);
+		/** Sets the field */
+		void set(final ObjectNode acc, final String key, final Object val);
+	}
+	
+	/** The handlers for each value class, resolved the first time each class is seen 
+	 */
+	private static final ClassValue<FieldHandler> _field_handlers = new ClassValue<FieldHandler>() {
+		@Override
+		protected FieldHandler computeValue(final Class<?> clazz) {
+			if (String.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isTextual() && existing.textValue().equals(val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (String) val); }
+			};
+			else if (Long.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isLong() && (existing.longValue() == (Long) val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (Long) val); }
+			};
+			else if (Integer.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isInt() && (existing.intValue() == (Integer) val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (Integer) val); }
+			};
+			else if (Boolean.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isBoolean() && (existing.booleanValue() == (Boolean) val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (Boolean) val); }
+			};
+			else if (Double.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isDouble() && (existing.doubleValue() == (Double) val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (Double) val); }
+			};
+			else if (Float.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isFloat() && (existing.floatValue() == (Float) val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (Float) val); }
+			};
+			else if (BigDecimal.class == clazz) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return (null != existing) && existing.isBigDecimal() && existing.decimalValue().equals(val); }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.put(key, (BigDecimal) val); }
+			};
+			else if (JsonNode.class.isAssignableFrom(clazz)) return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return existing == val; } // (only skip if it's the same object, deep equality costs as much as setting)
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.set(key, (JsonNode) val); }
+			};
+			else return new FieldHandler() {
+				public boolean isUnchanged(final JsonNode existing, final Object val) { return false; }
+				public void set(final ObjectNode acc, final String key, final Object val) { acc.set(key, BeanTemplateUtils.toJson(val)); }
+			};
+		}
+	};
+	
 	//TODO (ALEPH-3): need a NestedAccessHelper for nested access to objects that can include maps
 	//(see Joern's code for the harvester...)
 	
@@ -61,6 +61,7 @@ import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 import com.ikanow.aleph2.data_model.utils.Lambdas.ThrowableWrapper.Supplier;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
 
 import fj.data.Either;
 
@@ -81,7 +82,7 @@ public class ModuleUtils {
 			"SearchIndexService", "StorageService", "TemporalService", "CoreDistributedServices"));
 	private static Logger logger = LogManager.getLogger();	
 	@SuppressWarnings("rawtypes")
-	private static Map<Key, Injector> serviceInjectors = null;
+	private static volatile Map<Key, Injector> serviceInjectors = null;
 	private static Injector parent_injector = null;
 	private static GlobalPropertiesBean globals = BeanTemplateUtils.build(GlobalPropertiesBean.class).done().get();
 		//(do it this way to avoid having to keep changing this test every time globals changes)
@@ -89,6 +90,46 @@ public class ModuleUtils {
 	@SuppressWarnings("rawtypes")
 	private static BiFunction<Injector,Key,Object> getInstance = ModuleUtils.memoize(ModuleUtils::getInstance_onceOnly);
 	
+	/** Initialization steps (config load, service creation, context initialization) taking longer than this are logged as warnings 
+	 *  (override with the system property aleph2.startup_budget_ms)
+	 */
+	public static final long DEFAULT_STARTUP_BUDGET_MS = 500L;
+	private static final long startup_budget_ms = Long.getLong("aleph2.startup_budget_ms", DEFAULT_STARTUP_BUDGET_MS);
+	private static final Map<String, Long> startup_timings = new ConcurrentHashMap<String, Long>();
+	
+	/** Returns the time taken (ms) by each initialization step so far, keyed by step name - for monitoring the startup budget
+	 * @return a read-only view of the startup timings
+	 */
+	public static Map<String, Long> getStartupTimings() {
+		return Collections.unmodifiableMap(startup_timings);
+	}
+	
+	/** Records the time taken by an initialization step, and logs a warning if it was over the startup budget 
+	 * @param step - the name of the step (eg "HarvestContext.initializeNewContext")
+	 * @param start_time_ms - when the step started, from System.currentTimeMillis()
+	 */
+	public static void recordStartupTiming(final String step, final long start_time_ms) {
+		final long duration = System.currentTimeMillis() - start_time_ms;
+		startup_timings.put(step, duration);
+		if (duration > startup_budget_ms) {
+			logger.warn(ErrorUtils.get("Startup step {0} took {1}ms, budget is {2}ms", step, duration, startup_budget_ms));
+		}
+	}
+	
+	/** Returns a signature of the config that ignores the specified (eg per-bucket) paths, so that contexts whose configs only differ
+	 *  in those paths can share the services (and hence injectors) already resolved by another context
+	 * @param config - the context config
+	 * @param ignore_paths - the paths that don't affect which services are created
+	 * @return a string that is equal for configs that only differ in the ignored paths 
+	 */
+	public static String getServiceConfigSignature(final Config config, final String... ignore_paths) {
+		Config service_config = config;
+		for (String path: ignore_paths) {
+			service_config = service_config.withoutPath(path);
+		}
+		return service_config.root().render(ConfigRenderOptions.concise());
+	}
+	
 	/** Returns the static config set up by a call to loadModulesFromConfig or createInjector
 	 *  INTENDED TO BE CALLED FROM guice_submodule.configure() (or later of course, though you should be using injected beans by then)
 	 * @return the user config (or whatever is on the classpath as a fallback)
@@ -332,14 +373,18 @@ public class ModuleUtils {
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static <I> I getService(Class<I> serviceClazz, Optional<String> serviceName) {
 		if ( serviceInjectors == null ) {
-			try {
-				loadModulesFromConfig(ConfigFactory.load());
-			} catch (Exception e) {
-				logger.error("Error loading modules", e);
+			synchronized (ModuleUtils.class) { // (double checked so concurrent first calls only load the config once)
+				if ( serviceInjectors == null ) {
+					try {
+						loadModulesFromConfig(ConfigFactory.load());
+					} catch (Exception e) {
+						logger.error("Error loading modules", e);
+					}
+				}
 			}
 		}
 		Key key = getKey(serviceClazz, serviceName);		
-		Injector injector = serviceInjectors.get(key);		
+		Injector injector = Optional.ofNullable(serviceInjectors).map(m -> m.get(key)).orElse(null);		
 		if ( injector != null ) {			
 			//return (I) getInstance_onceOnly(injector, key);
 			return (I) getInstance.apply(injector, key);
@@ -370,28 +415,45 @@ public class ModuleUtils {
 	 */
 	private static class BiFunctionMemoize<T, U, R> {
 		protected BiFunctionMemoize() {}
-		private final Map<T, R> instance_cache = new ConcurrentHashMap<T, R>();
+		private final Map<T, LazyValue<R>> instance_cache = new ConcurrentHashMap<T, LazyValue<R>>();
 
 		/**
 		 * If T is in the cache, returns the instance, otherwise calls function with T,U.
+		 * Concurrent first calls for the same T only call function once (the others wait for its result).
 		 * 
 		 * @param function
 		 * @return
 		 */
 		public BiFunction<T, U, R> doMemoizeIgnoreSecondArg(final BiFunction<T, U, R> function) {
 			return (input1, input2) -> {
-				if (instance_cache.keySet().contains(input1)) {
-					return instance_cache.get(input1);
-				}
-				else {
-					final R res = function.apply(input1, input2);
-					instance_cache.put(input1, res);
-					return res;
-				}
+				final LazyValue<R> cached = instance_cache.get(input1); // (lock free once created)
+				//computeIfAbsent cannot be called recursively (creating a service can request other services) 
+				//so it just atomically creates the holder, which then calls the function outside of the map
+				return (null != cached ? cached : instance_cache.computeIfAbsent(input1, ___ -> new LazyValue<R>()))
+						.get(() -> function.apply(input1, input2));
 			};
-			//computeIfAbsent cannot be called recursively currently (oracle claims to fix that up later)
-			//if they fix it, this function can be minimized to this:
-			//return (input1, input2) -> instance_cache.computeIfAbsent(input1, ___ -> function.apply(input1, input2));
+		}
+	}
+	
+	/**
+	 * Holds a value that is created at most once (unless creation throws, in which case the next call retries).
+	 * 
+	 * @param <R>
+	 */
+	private static class LazyValue<R> {
+		private volatile boolean created = false;
+		private R value = null;
+		
+		public R get(final java.util.function.Supplier<R> creator) {
+			if (!created) {
+				synchronized (this) {
+					if (!created) {
+						value = creator.get();
+						created = true;
+					}
+				}
+			}
+			return value;
 		}
 	}
 	
@@ -404,7 +466,10 @@ public class ModuleUtils {
 	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private static Object getInstance_onceOnly(Injector injector, Key key) {		
-		return injector.getInstance(key);
+		final long start = System.currentTimeMillis();
+		final Object instance = injector.getInstance(key);
+		recordStartupTiming("getService:" + key, start);
+		return instance;
 	}
 	
 	/**
@@ -417,6 +482,7 @@ public class ModuleUtils {
 	 * @throws Exception
 	 */
 	private static void initialize(Config config) throws Exception {
+		final long start = System.currentTimeMillis();
 		saved_config = config;
 		final Config subconfig = PropertiesUtils.getSubConfig(config, GlobalPropertiesBean.PROPERTIES_ROOT).orElse(null);
 		synchronized (ModuleUtils.class) {
@@ -427,6 +493,7 @@ public class ModuleUtils {
 		interfaceHasDefault = new HashSet<Class<?>>();
 		parent_injector = Guice.createInjector(new ServiceModule());		
 		serviceInjectors = loadServicesFromConfig(config, parent_injector);		
+		recordStartupTiming("ModuleUtils.initialize", start);
 	}
 	
 	/** GENERIC - CALLED BY TEST / APP
@@ -186,11 +186,37 @@ public class TestDataSchemaBean {
 		
 		// Geospatial
 
-		DataSchemaBean.GeospatialSchemaBean geospatial_bean = new DataSchemaBean.GeospatialSchemaBean();
+		DataSchemaBean.GeospatialSchemaBean geospatial_bean = new DataSchemaBean.GeospatialSchemaBean(
+				true, 
+				"service_name", 
+				"location",
+				8,
+				ImmutableMap.<String, Object>builder().put("technology_override", "schema").build());
+		
+		assertEquals("Geospatial bean enabled", geospatial_bean.enabled(), true);
+		assertEquals("Geospatial bean service_name", geospatial_bean.service_name(), "service_name");
+		assertEquals("Geospatial bean location_field", geospatial_bean.location_field(), "location");
+		assertEquals("Geospatial bean index_precision", geospatial_bean.index_precision(), (Integer)8);
+		assertEquals("Geospatial bean technology_override_schema", geospatial_bean.technology_override_schema(), ImmutableMap.<String, Object>builder().put("technology_override", "schema").build());		
 		
 		// Graph
 
-		DataSchemaBean.GraphSchemaBean graph_bean = new DataSchemaBean.GraphSchemaBean();
+		DataSchemaBean.GraphSchemaBean graph_bean = new DataSchemaBean.GraphSchemaBean(
+				true,
+				"service_name",
+				"source",
+				"target",
+				"label",
+				100,
+				ImmutableMap.<String, Object>builder().put("technology_override", "schema").build());
+
+		assertEquals("Graph bean enabled", graph_bean.enabled(), true);
+		assertEquals("Graph bean service_name", graph_bean.service_name(), "service_name");
+		assertEquals("Graph bean source_field", graph_bean.source_field(), "source");
+		assertEquals("Graph bean target_field", graph_bean.target_field(), "target");
+		assertEquals("Graph bean label_field", graph_bean.label_field(), "label");
+		assertEquals("Graph bean max_fan_out", graph_bean.max_fan_out(), (Integer)100);
+		assertEquals("Graph bean technology_override_schema", graph_bean.technology_override_schema(), ImmutableMap.<String, Object>builder().put("technology_override", "schema").build());
 		
 		// Data warehouse
 
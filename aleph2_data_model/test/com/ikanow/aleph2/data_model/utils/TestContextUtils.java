@@ -248,6 +248,11 @@ public class TestContextUtils {
 				Either<JsonNode, Map<String, Object>> object) {
 		}
 
+		@Override
+		public CompletableFuture<?> flushBatchOutput(Optional<DataBucketBean> bucket) {
+			return null;
+		}
+
 		@Override
 		public Optional<SharedLibraryBean> getModuleConfig() {
 			return null;
@@ -404,6 +409,11 @@ public class TestContextUtils {
 				Either<JsonNode, Map<String, Object>> object, Optional<AnnotationBean> annotations) {
 		}
 
+		@Override
+		public CompletableFuture<?> flushBatchOutput(Optional<DataBucketBean> bucket, AnalyticThreadJobBean job) {
+			return null;
+		}
+
 		@Override
 		public List<String> getInputTopics(Optional<DataBucketBean> bucket,
 				AnalyticThreadJobBean job, AnalyticThreadJobInputBean job_input) {
@@ -494,6 +504,11 @@ public class TestContextUtils {
 		public void storeErroredObject(long id, JsonNode original_json) {
 		}
 
+		@Override
+		public CompletableFuture<?> flushBatchOutput(Optional<DataBucketBean> bucket) {
+			return null;
+		}
+
 		@Override
 		public IServiceContext getServiceContext() {
 			return null;
@@ -25,6 +25,7 @@ import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class TestJsonUtils {
 
@@ -83,4 +84,45 @@ public class TestJsonUtils {
 		
 		new JsonUtils(); // (just for coverage)		
 	}
+	
+	@Test
+	public void test_foldTuple_objectNode() {
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+		
+		// Base object that is already an ObjectNode is copied (not modified), nested objects are shared
+		final ObjectNode base = (ObjectNode) mapper.createObjectNode().put("misc", true).put("long", 10L).put("string", "val");
+		final JsonNode nested = mapper.createObjectNode().put("a", 1);
+		base.set("nested", nested);
+		
+		LinkedHashMap<String, Object> test1 = new LinkedHashMap<String, Object>();
+		test1.put("long", 10L);
+		test1.put("string", "val");
+		test1.put("nested", nested);
+		test1.put("misc", false);
+		test1.put("null", null);
+		test1.put("json", base);
+		
+		final JsonNode j1 = JsonUtils.foldTuple(test1, mapper, Optional.empty());
+		assertNotSame(base, j1);
+		assertSame(nested, j1.get("nested"));
+		assertEquals("{\"misc\":false,\"long\":10,\"string\":\"val\",\"nested\":{\"a\":1},\"null\":null}", j1.toString());
+		assertEquals("{\"misc\":true,\"long\":10,\"string\":\"val\",\"nested\":{\"a\":1}}", base.toString());
+		
+		// No base object
+		LinkedHashMap<String, Object> test2 = new LinkedHashMap<String, Object>();
+		test2.put("int", 3);
+		test2.put("string", "x");
+		final JsonNode j2 = JsonUtils.foldTuple(test2, mapper, Optional.of(""));
+		assertEquals("{\"int\":3,\"string\":\"x\"}", j2.toString());
+		assertEquals("{}", JsonUtils.foldTuple(new LinkedHashMap<String, Object>(), mapper, Optional.empty()).toString());
+		
+		// Type changes are not treated as unchanged
+		LinkedHashMap<String, Object> test3 = new LinkedHashMap<String, Object>();
+		test3.put("long", 1);
+		test3.put("string", 2.0);
+		test3.put("json", "{\"long\":1, \"string\":\"2.0\"}");
+		final JsonNode j3 = JsonUtils.foldTuple(test3, mapper, Optional.empty());
+		assertTrue(j3.get("long").isInt());
+		assertTrue(j3.get("string").isDouble());
+	}
 }
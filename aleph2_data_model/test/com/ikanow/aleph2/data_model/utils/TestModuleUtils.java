@@ -19,9 +19,12 @@ import static org.junit.Assert.*;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -195,6 +198,36 @@ public class TestModuleUtils {
 		assertEquals(service_one.hashCode(), service_two.hashCode());
 	}
 	
+	@Test
+	public void test_ServicesAreSingletons_concurrent() throws Exception {
+		Map<String, Object> configMap = new HashMap<String, Object>();
+		configMap.put("service.SampleCustomServiceOne.interface", ICustomService.class.getCanonicalName());
+		configMap.put("service.SampleCustomServiceOne.service", SampleCustomServiceOne.class.getCanonicalName());	
+		ModuleUtils.loadModulesFromConfig(ConfigFactory.parseMap(configMap));
+		
+		// Concurrent first calls should all get the same instance
+		final List<CompletableFuture<ICustomService>> services = IntStream.range(0, 8).boxed()
+				.map(__ -> CompletableFuture.supplyAsync(() -> ModuleUtils.getService(ICustomService.class, Optional.of(SampleCustomServiceOne.class.getSimpleName()))))
+				.collect(Collectors.toList());
+		
+		final ICustomService service_one = services.get(0).join();
+		assertNotNull(service_one);
+		services.forEach(f -> assertSame(service_one, f.join()));
+		
+		assertTrue("Startup timings: " + ModuleUtils.getStartupTimings(), ModuleUtils.getStartupTimings().containsKey("ModuleUtils.initialize"));
+	}
+	
+	@Test
+	public void test_ServiceConfigSignature() {
+		final Config config_1 = ConfigFactory.parseString("{ \"service\": { \"a\": \"b\" }, \"bucket\": \"x\" }");
+		final Config config_2 = ConfigFactory.parseString("{ \"service\": { \"a\": \"b\" }, \"bucket\": \"y\" }");
+		final Config config_3 = ConfigFactory.parseString("{ \"service\": { \"a\": \"c\" }, \"bucket\": \"x\" }");
+		
+		assertNotEquals(ModuleUtils.getServiceConfigSignature(config_1), ModuleUtils.getServiceConfigSignature(config_2));
+		assertEquals(ModuleUtils.getServiceConfigSignature(config_1, "bucket"), ModuleUtils.getServiceConfigSignature(config_2, "bucket"));
+		assertNotEquals(ModuleUtils.getServiceConfigSignature(config_1, "bucket"), ModuleUtils.getServiceConfigSignature(config_3, "bucket"));
+	}
+	
 	@Test
 	public void test_GetServiceWithoutInterface() throws Exception {
 		Map<String, Object> configMap = new HashMap<String, Object>();
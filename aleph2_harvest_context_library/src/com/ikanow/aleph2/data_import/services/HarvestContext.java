@@ -16,6 +16,7 @@
 package com.ikanow.aleph2.data_import.services;
 
 import java.io.File;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -42,6 +43,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.DeduplicationEngine;
 import com.ikanow.aleph2.core.shared.utils.LiveInjector;
 import com.ikanow.aleph2.data_import.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IHarvestContext;
@@ -54,6 +57,7 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingServic
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.AssetStateDirectoryBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
@@ -79,6 +83,7 @@ import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigRenderOptions;
 import com.typesafe.config.ConfigValueFactory;
 
+import fj.Unit;
 import fj.data.Either;
 
 //TODO: ALEPH-12 wire up module config via signature
@@ -112,10 +117,16 @@ public class HarvestContext implements IHarvestContext {
 	
 	protected Optional<IDataWriteService<String>> _crud_storage_service;
 	protected Optional<IDataWriteService.IBatchSubservice<String>> _batch_storage_service;	
+	protected Optional<DeduplicationEngine> _deduplication_engine = Optional.empty();
+	
+	// Objects sent to the streaming pipeline are buffered per thread, keyed by bucket path (the topic is resolved once per bucket path)
+	protected volatile BatchedOutputBuffer<String, String> _output_buffer = null;
+	protected final ConcurrentHashMap<String, String> _topic_cache = new ConcurrentHashMap<>();
 	
 	protected final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 	
 	private static ConcurrentHashMap<String, HarvestContext> static_instances = new ConcurrentHashMap<>();
+	private static ConcurrentHashMap<String, HarvestContext> static_service_instances = new ConcurrentHashMap<>(); // (keyed on the config minus the bucket/library, see ModuleUtils.getServiceConfigSignature)
 	
 	/**Guice injector
 	 * @param service_context
@@ -170,11 +181,14 @@ public class HarvestContext implements IHarvestContext {
 	 */
 	@Override
 	public void initializeNewContext(final String signature) {
+		final long start = System.currentTimeMillis();
 		try {
 			// Inject dependencies
 			
 			final Config parsed_config = ConfigFactory.parseString(signature);
-			final HarvestContext to_clone = static_instances.get(signature);			
+			final String service_signature = ModuleUtils.getServiceConfigSignature(parsed_config, __MY_BUCKET_ID, __MY_TECH_LIBRARY_ID, __MY_MODULE_LIBRARY_ID);
+			// (contexts for other buckets with the same config can share their already resolved services)
+			final HarvestContext to_clone = Optional.ofNullable(static_instances.get(signature)).orElseGet(() -> static_service_instances.get(service_signature));			
 			if (null != to_clone) { //copy the fields				
 				_service_context = to_clone._service_context;
 				_core_management_db = to_clone._core_management_db;
@@ -210,7 +224,11 @@ public class HarvestContext implements IHarvestContext {
 					.flatMap(IDataWriteService::getBatchWriteSubservice)
 					;			
 			
+			_deduplication_engine = DeduplicationEngine.from(retrieve_bucket.get(), _service_context);
+			
 			static_instances.put(signature, this);
+			static_service_instances.putIfAbsent(service_signature, this);
+			ModuleUtils.recordStartupTiming("HarvestContext.initializeNewContext", start);
 		}
 		catch (Exception e) {
 			//DEBUG
@@ -235,15 +253,91 @@ public class HarvestContext implements IHarvestContext {
 	public void sendObjectToStreamingPipeline(
 			Optional<DataBucketBean> bucket, Either<JsonNode, Map<String, Object>> object) {
 				
+		final String bucket_path = bucket.orElseGet(() -> _mutable_state.bucket.get()).full_name();
+		if (_deduplication_engine.isPresent() && !_deduplication_engine.get().getBucket().full_name().equals(bucket_path)) {
+			// (the engine only knows about this bucket's contexts, and the non-duplicates are written to this bucket's storage)
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.DEDUPLICATED_BUCKET_MISMATCH, _deduplication_engine.get().getBucket().full_name(), "sendObjectToStreamingPipeline", bucket_path));
+		}
 		final String obj_str =  object.either(JsonNode::toString, map -> _mapper.convertValue(map, JsonNode.class).toString());
 		
+		getOutputBuffer().add(bucket_path, obj_str);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IHarvestContext#flushBatchOutput(java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket) {
+		// (closing the buffer flushes it and cancels its timer - a new one is created if any more objects are sent)
+		final BatchedOutputBuffer<String, String> output_buffer;
+		synchronized (this) {
+			output_buffer = _output_buffer;
+			_output_buffer = null;
+		}
+		if (null != output_buffer) {
+			output_buffer.close();
+		}
+		return CompletableFuture.completedFuture(Unit.unit());
+	}
+	
+	/** Lazily creates the per-thread output buffer, sized from the write settings of the bucket's search index schema if that is the active output (else the buffer defaults)
+	 *  (the buffer also flushes on a background timer, so objects from a harvester that goes quiet aren't stranded)
+	 * @return the output buffer
+	 */
+	protected BatchedOutputBuffer<String, String> getOutputBuffer() {
+		if (null == _output_buffer) {
+			synchronized (this) {
+				if (null == _output_buffer) {
+					final Optional<DataSchemaBean.WriteSettings> write_settings = 
+							this.getBucket()
+								.map(b -> b.data_schema())
+								.map(schema -> schema.search_index_schema())
+								.filter(search_index_schema -> Optional.ofNullable(search_index_schema.enabled()).orElse(true))
+								.map(search_index_schema -> search_index_schema.target_write_settings());
+					
+					_output_buffer = new BatchedOutputBuffer<>(
+							write_settings.map(w -> w.batch_max_objects()).orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS),
+							write_settings.map(w -> w.batch_flush_interval()).<Duration>map(secs -> Duration.ofSeconds(secs)).orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY),
+							this::flushOutputBatch);
+				}
+			}
+		}
+		return _output_buffer;
+	}
+	
+	/** Writes a batch of buffered objects to the storage service and the bucket's topic (minus any duplicates, if the bucket is deduplicated)
+	 * @param bucket_path - the full_name of the bucket to which the objects belong
+	 * @param batch - the batch of objects (JSON strings) to write
+	 */
+	protected void flushOutputBatch(final String bucket_path, final List<String> batch) {
+		final List<String> objects = _deduplication_engine
+				.map(engine -> engine.filterDuplicates(batch.stream().map(obj_str -> parseJson(obj_str)).collect(Collectors.toList()))
+									.stream().map(JsonNode::toString).collect(Collectors.toList()))
+				.orElse(batch);
+		if (objects.isEmpty()) {
+			return;
+		}
 		if (_batch_storage_service.isPresent()) {
-			_batch_storage_service.get().storeObject(obj_str);
+			_batch_storage_service.get().storeObjects(objects);
+		}
+		else if (_crud_storage_service.isPresent()){ // (slow, but at least it's a single call per batch)
+			_crud_storage_service.get().storeObjects(objects);
+		}
+		final String topic = _topic_cache.computeIfAbsent(bucket_path, path -> _distributed_services.generateTopicName(path, Optional.empty()));
+		_distributed_services.produce(topic, objects);
+	}
+	
+	/** Parses a buffered object back into JSON (for deduplication)
+	 * @param obj_str - the JSON string
+	 * @return the JSON
+	 */
+	protected JsonNode parseJson(final String obj_str) {
+		try {
+			return _mapper.readTree(obj_str);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(ErrorUtils.getLongForm(ErrorUtils.EXCEPTION_CAUGHT, e), e);
 		}
-		else if (_crud_storage_service.isPresent()){ // (super slow)
-			_crud_storage_service.get().storeObject(obj_str);
-		}				
-		_distributed_services.produce(_distributed_services.generateTopicName(bucket.orElseGet(() -> _mutable_state.bucket.get()).full_name(), Optional.empty()), obj_str);
 	}
 
 	/* (non-Javadoc)
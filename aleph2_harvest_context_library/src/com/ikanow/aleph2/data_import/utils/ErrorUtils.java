@@ -23,9 +23,12 @@ public class ErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUtils {
 	final public static String NOT_YET_IMPLEMENTED = "This operation is not currently supported";
 	final public static String TECHNOLOGY_NOT_MODULE = "Can only be called from technology, not module";
 	final public static String NO_BUCKET = "Unable to locate bucket: {0}";
+	final public static String BUCKET_NOT_SET = "This method {0} cannot be called until the framework has set the bucket";
 	final public static String NOT_SUPPORTED_IN_BATCH_ENRICHMENT = "Functionality does not apply to batch enrichment context - this is for streaming enrichment";
 	final public static String SERVICE_RESTRICTIONS = "Can't call getHarvestContextSignature with different 'services' parameter; can't call getUnderlyingArtefacts without having called getHarvestContextSignature.";
 	final public static String VALIDATION_ERROR = "Validation Error: {0}";
 	final public static String EXCEPTION_CAUGHT = "Caught Exception: {0}";
+	final public static String CONTENT_TOO_LARGE_FOR_BUFFER = "Content of {0} is {1} bytes, more than the {2} bytes that fit in a single buffer - use getContentStream instead";
+	final public static String DEDUPLICATED_BUCKET_MISMATCH = "Bucket {0} is deduplicated, so {1} can only be called for it, not for {2}";
 
 }
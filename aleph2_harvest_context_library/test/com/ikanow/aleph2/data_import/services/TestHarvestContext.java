@@ -351,6 +351,12 @@ public class TestHarvestContext {
 		test_context.sendObjectToStreamingPipeline(Optional.empty(), Either.right(msg3));
 		test_context.sendObjectToStreamingPipeline(Optional.of(bucket), Either.right(msg4));
 		
+		// (objects are buffered until flushed)
+		assertEquals(4L, test_context._output_buffer.getBufferedCount());
+		test_context.flushBatchOutput(Optional.empty()).join();
+		assertEquals(0L, test_context._output_buffer.getBufferedCount());
+		assertEquals(1, test_context._topic_cache.size());
+		
 		final HashSet<String> mutable_set = new HashSet<>(Arrays.asList(message1, message2, message3, message4));
 		
 		//nothing will be in consume
@@ -36,6 +36,7 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -56,6 +57,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IColumnarService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IDocumentService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IGeospatialService;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IGraphService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.ISearchIndexService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
@@ -98,6 +101,7 @@ import com.ikanow.aleph2.management_db.data_model.BucketActionReplyMessage.Bucke
 import com.ikanow.aleph2.management_db.data_model.BucketActionRetryMessage;
 import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketDeletionMessage;
 import com.ikanow.aleph2.management_db.utils.ManagementDbErrorUtils;
+import com.ikanow.aleph2.management_db.utils.BucketPathTrie;
 import com.ikanow.aleph2.management_db.utils.MgmtCrudUtils;
 
 import fj.data.Validation;
@@ -125,6 +129,13 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 	protected final ManagementDbActorContext _actor_context;
 	protected final IServiceContext _service_context;
 	
+	// In-memory copy of the bucket paths, so path chain validation doesn't need to query the store for every bucket
+	// (maintained from this service's own creates/deletes, and reloaded periodically to pick up changes made elsewhere)
+	public static final long BUCKET_PATH_TRIE_REFRESH_MS = 10L*60L*1000L;
+	protected volatile Optional<BucketPathTrie> _bucket_path_trie = Optional.empty();
+	protected volatile long _bucket_path_trie_load_time = 0L;
+	protected final AtomicReference<BucketPathTrie> _loading_bucket_path_trie = new AtomicReference<>();
+	
 	/** Guice invoked constructor
 	 */
 	@Inject
@@ -292,6 +303,7 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 		// OK if the bucket is validated we can store it (and create a status object)
 				
 		final CompletableFuture<Supplier<Object>> ret_val = _underlying_data_bucket_db.get().storeObject(new_object, replace_if_present);
+		ret_val.thenRun(() -> applyToBucketPathTries(trie -> trie.add(new_object.full_name())));
 
 		// Get the status and then decide whether to broadcast out the new/update message
 		
@@ -480,6 +492,9 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 			
 			final CompletableFuture<Boolean> delete_reply = enqueue_delete
 																.thenCompose(__ -> _underlying_data_bucket_db.get().deleteObjectById(to_delete._id()));
+			delete_reply.thenAccept(deleted -> {
+				if (deleted) applyToBucketPathTries(trie -> trie.remove(to_delete.full_name()));
+			});
 
 			return FutureUtils.denestManagementFuture(delete_reply
 				.thenCompose(del_reply -> {		
@@ -970,17 +985,29 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 								.orElse(Arrays.asList(MgmtCrudUtils.createValidationError(
 										ErrorUtils.get(ManagementDbErrorUtils.SCHEMA_ENABLED_BUT_SERVICE_NOT_PRESENT, bucket.full_name(), "temporal_schema")))));
 			}
-			//TODO (ALEPH-19) Data warehouse schema, graph schame, geospatial schema
-			if (null != bucket.data_schema().geospatial_schema())
+			if ((null != bucket.data_schema().geospatial_schema()) && Optional.ofNullable(bucket.data_schema().geospatial_schema().enabled()).orElse(true))
 			{
-				errors.add(MgmtCrudUtils.createValidationError(
-						ErrorUtils.get(ManagementDbErrorUtils.SCHEMA_ENABLED_BUT_SERVICE_NOT_PRESENT, bucket.full_name(), "geospatial_schema")));
+				errors.addAll(service_context.getService(IGeospatialService.class, Optional.ofNullable(bucket.data_schema().geospatial_schema().service_name()))
+								.map(s -> s.validateSchema(bucket.data_schema().geospatial_schema(), bucket))
+								.map(s -> { 
+									if ((null != s._1()) && !s._1().isEmpty()) data_locations.put("geospatial_schema", s._1());
+									return s._2(); 
+								})
+								.orElse(Arrays.asList(MgmtCrudUtils.createValidationError(
+										ErrorUtils.get(ManagementDbErrorUtils.SCHEMA_ENABLED_BUT_SERVICE_NOT_PRESENT, bucket.full_name(), "geospatial_schema")))));
 			}
-			if (null != bucket.data_schema().graph_schema())
+			if ((null != bucket.data_schema().graph_schema()) && Optional.ofNullable(bucket.data_schema().graph_schema().enabled()).orElse(true))
 			{
-				errors.add(MgmtCrudUtils.createValidationError(
-						ErrorUtils.get(ManagementDbErrorUtils.SCHEMA_ENABLED_BUT_SERVICE_NOT_PRESENT, bucket.full_name(), "graph_schema")));
+				errors.addAll(service_context.getService(IGraphService.class, Optional.ofNullable(bucket.data_schema().graph_schema().service_name()))
+								.map(s -> s.validateSchema(bucket.data_schema().graph_schema(), bucket))
+								.map(s -> {
+									if ((null != s._1()) && !s._1().isEmpty()) data_locations.put("graph_schema", s._1());
+									return s._2();
+								})
+								.orElse(Arrays.asList(MgmtCrudUtils.createValidationError(
+										ErrorUtils.get(ManagementDbErrorUtils.SCHEMA_ENABLED_BUT_SERVICE_NOT_PRESENT, bucket.full_name(), "graph_schema")))));
 			}
+			//TODO (ALEPH-19) Data warehouse schema
 			if (null != bucket.data_schema().data_warehouse_schema())
 			{
 				errors.add(MgmtCrudUtils.createValidationError(
@@ -994,32 +1021,83 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 	 * @param bucket - the bucket to validate
 	 * @return a future containing validation errors based on the path
 	 */
-	private CompletableFuture<Collection<BasicMessageBean>> validateOtherBucketsInPathChain(final DataBucketBean bucket) {
+	protected CompletableFuture<Collection<BasicMessageBean>> validateOtherBucketsInPathChain(final DataBucketBean bucket) {
 		final MethodNamingHelper<DataBucketBean> helper = BeanTemplateUtils.from(DataBucketBean.class);
 		final String bucket_full_name = normalizeBucketPath(bucket.full_name(), true);
 
+		// If the in-memory copy of the bucket paths is loaded (and fresh) and there are no other buckets in the chain then there's nothing to check
+		// (it can only be missing buckets created by other nodes since it was last loaded) - otherwise the buckets are checked against the store
+		if (getBucketPathTrie().map(trie -> !trie.hasOtherBucketsInPathChain(bucket_full_name)).orElse(false)) {
+			return CompletableFuture.completedFuture(Collections.emptyList());
+		}
+		
 		return this._underlying_data_bucket_db.get().getObjectsBySpec(getPathQuery(bucket_full_name), 
 				Arrays.asList(helper.field(DataBucketBean::full_name)), true)
-				.thenApply(cursor -> {
-					return StreamSupport.stream(cursor.spliterator(), false)
-						.filter(b -> (null == b.full_name()))
-						.<BasicMessageBean>map(b -> {
-							final String norm_name = normalizeBucketPath(b.full_name(), true);							
-							if (norm_name.startsWith(bucket_full_name)) {
-								//TODO (ALEPH-19) call out other function, create BasicMessageBean error if not
-								return null;
-							}
-							else if (norm_name.startsWith(bucket_full_name)) {								
-								//TODO (ALEPH-19) call out other function, create BasicMessageBean error if not
-								return null;
-							}
-							else { // we're good
-								return null;
-							}
-						})								
-						.filter(err -> err != null)
-						.collect(Collectors.toList());
-				});
+				.thenApply(cursor -> getPathChainErrors(bucket_full_name, StreamSupport.stream(cursor.spliterator(), false).map(b -> b.full_name())));
+	}
+	
+	/** Checks the other buckets in the path chain of a bucket
+	 * @param bucket_full_name - the normalized (ending with /) full name of the bucket being validated
+	 * @param other_bucket_names - the full names of the buckets above and below it 
+	 * @return a list of validation errors
+	 */
+	protected Collection<BasicMessageBean> getPathChainErrors(final String bucket_full_name, final Stream<String> other_bucket_names) {
+		return other_bucket_names
+				.filter(name -> (null != name))
+				.<BasicMessageBean>map(name -> {
+					final String norm_name = normalizeBucketPath(name, true);							
+					if (norm_name.startsWith(bucket_full_name)) {
+						//TODO (ALEPH-19) call out other function, create BasicMessageBean error if not
+						return null;
+					}
+					else if (norm_name.startsWith(bucket_full_name)) {								
+						//TODO (ALEPH-19) call out other function, create BasicMessageBean error if not
+						return null;
+					}
+					else { // we're good
+						return null;
+					}
+				})								
+				.filter(err -> err != null)
+				.collect(Collectors.toList());
+	}
+	
+	/** Returns the in-memory copy of the bucket paths, if it's loaded and fresh - (re)loads it in the background if it's missing or stale
+	 * @return the bucket path trie, or empty if it isn't loaded or is stale (in which case the store should be queried)
+	 */
+	protected Optional<BucketPathTrie> getBucketPathTrie() {
+		final boolean stale = (System.currentTimeMillis() - _bucket_path_trie_load_time) > BUCKET_PATH_TRIE_REFRESH_MS;
+		if (stale) {
+			final BucketPathTrie loading_trie = new BucketPathTrie();
+			if (_loading_bucket_path_trie.compareAndSet(null, loading_trie)) { // (else someone else is already loading it)
+				final MethodNamingHelper<DataBucketBean> helper = BeanTemplateUtils.from(DataBucketBean.class);
+				_underlying_data_bucket_db.get().getObjectsBySpec(CrudUtils.allOf(DataBucketBean.class), Arrays.asList(helper.field(DataBucketBean::full_name)), true)
+					.thenAccept(cursor -> {
+						StreamSupport.stream(cursor.spliterator(), false)
+							.filter(b -> null != b.full_name())
+							.forEach(b -> loading_trie.add(b.full_name()));
+						// (creates/deletes that happened during the load have been applied to loading_trie as well)
+						_bucket_path_trie = Optional.of(loading_trie);
+						_bucket_path_trie_load_time = System.currentTimeMillis();
+					})
+					.whenComplete((__, err) -> {
+						if (null != err) {
+							_logger.warn(ErrorUtils.getLongForm("Failed to load bucket paths: {0}", err));
+						}
+						_loading_bucket_path_trie.set(null);
+					});
+			}
+			return Optional.empty();
+		}
+		return _bucket_path_trie;
+	}
+	
+	/** Applies a create or delete to the bucket path tries (current and, if one is being loaded, the one being loaded)
+	 * @param mutator - the change to apply
+	 */
+	protected void applyToBucketPathTries(final Consumer<BucketPathTrie> mutator) {
+		_bucket_path_trie.ifPresent(mutator);
+		Optional.ofNullable(_loading_bucket_path_trie.get()).ifPresent(mutator);
 	}
 	
 	/** Ensures that the bucket.full_name starts and ends with /s
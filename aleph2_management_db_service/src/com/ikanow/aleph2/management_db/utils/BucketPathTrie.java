@@ -0,0 +1,197 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+* 
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.management_db.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/** In-memory trie of bucket full_names, split on /
+ *  Used to check for other buckets above or below a bucket's path in O(depth) rather than with a query per bucket
+ *  (thread safe)
+ */
+public class BucketPathTrie {
+
+	protected static class Node {
+		final Map<String, Node> children = new HashMap<String, Node>();
+		boolean is_bucket = false;
+		int num_buckets_below = 0; // (not including this one)
+	}
+	protected final Node _root = new Node();
+	protected int _size = 0;
+
+	/** Adds a bucket path to the trie
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return false if the bucket was already present
+	 */
+	public synchronized boolean add(final String bucket_full_name) {
+		final String[] parts = split(bucket_full_name);
+		Node node = _root;
+		final List<Node> chain = new ArrayList<Node>(parts.length);
+		for (String part: parts) {
+			chain.add(node);
+			node = node.children.computeIfAbsent(part, __ -> new Node());
+		}
+		if (node.is_bucket) {
+			return false;
+		}
+		node.is_bucket = true;
+		chain.forEach(n -> n.num_buckets_below++);
+		_size++;
+		return true;
+	}
+
+	/** Removes a bucket path from the trie (pruning any nodes that no longer lead to a bucket)
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return false if the bucket was not present
+	 */
+	public synchronized boolean remove(final String bucket_full_name) {
+		final String[] parts = split(bucket_full_name);
+		Node node = _root;
+		final List<Node> chain = new ArrayList<Node>(parts.length);
+		for (String part: parts) {
+			chain.add(node);
+			node = node.children.get(part);
+			if (null == node) {
+				return false;
+			}
+		}
+		if (!node.is_bucket) {
+			return false;
+		}
+		node.is_bucket = false;
+		chain.forEach(n -> n.num_buckets_below--);
+		_size--;
+		// Prune empty nodes, bottom up
+		for (int i = parts.length - 1; i >= 0; --i) {
+			final Node child = chain.get(i).children.get(parts[i]);
+			if (child.is_bucket || (child.num_buckets_below > 0)) {
+				break;
+			}
+			chain.get(i).children.remove(parts[i]);
+		}
+		return true;
+	}
+
+	/** Whether the exact bucket path is in the trie
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return true if the bucket is present
+	 */
+	public synchronized boolean contains(final String bucket_full_name) {
+		final Node node = find(split(bucket_full_name));
+		return (null != node) && node.is_bucket;
+	}
+
+	/** Returns the buckets whose paths are strict prefixes of this path, shortest first
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return the list of ancestor bucket paths, in the form /path/to/bucket
+	 */
+	public synchronized List<String> getAncestors(final String bucket_full_name) {
+		final String[] parts = split(bucket_full_name);
+		final List<String> ret_val = new ArrayList<String>();
+		Node node = _root;
+		for (int i = 0; i < parts.length - 1; ++i) {
+			node = node.children.get(parts[i]);
+			if (null == node) {
+				break;
+			}
+			if (node.is_bucket) {
+				ret_val.add(join(parts, i + 1));
+			}
+		}
+		return ret_val;
+	}
+
+	/** Returns the number of buckets whose paths have this path as a strict prefix
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return the number of descendant buckets
+	 */
+	public synchronized int countDescendants(final String bucket_full_name) {
+		final Node node = find(split(bucket_full_name));
+		return (null == node) ? 0 : node.num_buckets_below;
+	}
+
+	/** Returns the buckets that have this path as a strict prefix
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return the list of descendant bucket paths, in the form /path/to/bucket (in no particular order)
+	 */
+	public synchronized List<String> getDescendants(final String bucket_full_name) {
+		final String[] parts = split(bucket_full_name);
+		final List<String> ret_val = new ArrayList<String>();
+		Optional.ofNullable(find(parts)).ifPresent(node -> addDescendants(node, join(parts, parts.length), ret_val));
+		return ret_val;
+	}
+
+	/** Returns true if there are any other buckets above or below this path
+	 * @param bucket_full_name - the bucket path (leading/trailing /s are ignored)
+	 * @return whether there are any other buckets in the path chain
+	 */
+	public synchronized boolean hasOtherBucketsInPathChain(final String bucket_full_name) {
+		return (countDescendants(bucket_full_name) > 0) || !getAncestors(bucket_full_name).isEmpty();
+	}
+
+	/** Returns the number of buckets in the trie
+	 * @return the number of buckets in the trie
+	 */
+	public synchronized int size() {
+		return _size;
+	}
+
+	/** Empties the trie
+	 */
+	public synchronized void clear() {
+		_root.children.clear();
+		_root.num_buckets_below = 0;
+		_size = 0;
+	}
+
+	////////////////////////////////////////////////
+
+	// UTILS
+
+	protected Node find(final String[] parts) {
+		Node node = _root;
+		for (String part: parts) {
+			node = node.children.get(part);
+			if (null == node) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	protected static void addDescendants(final Node node, final String path, final List<String> acc) {
+		node.children.forEach((part, child) -> {
+			final String child_path = (path.endsWith("/") ? path : (path + "/")) + part;
+			if (child.is_bucket) {
+				acc.add(child_path);
+			}
+			addDescendants(child, child_path, acc);
+		});
+	}
+
+	protected static String[] split(final String bucket_full_name) {
+		return Arrays.stream(bucket_full_name.split("/")).filter(s -> !s.isEmpty()).toArray(String[]::new);
+	}
+
+	protected static String join(final String[] parts, final int n) {
+		return Arrays.stream(parts, 0, n).collect(Collectors.joining("/", "/", ""));
+	}
+}
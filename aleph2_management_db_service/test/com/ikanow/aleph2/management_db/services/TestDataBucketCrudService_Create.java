@@ -19,15 +19,18 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
@@ -365,6 +368,10 @@ public class TestDataBucketCrudService_Create {
 						BeanTemplateUtils.build(DataSchemaBean.StorageSchemaBean.class).with(DataSchemaBean.StorageSchemaBean::enabled, false).done().get())
 				.with(DataSchemaBean::temporal_schema, 
 						BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class).with(DataSchemaBean.TemporalSchemaBean::enabled, false).done().get())
+				.with(DataSchemaBean::geospatial_schema, 
+						BeanTemplateUtils.build(GeospatialSchemaBean.class).with(GeospatialSchemaBean::enabled, false).done().get())
+				.with(DataSchemaBean::graph_schema,
+						BeanTemplateUtils.build(GraphSchemaBean.class).with(GraphSchemaBean::enabled, false).done().get())
 				.done().get();
 		
 		final DataBucketBean bucket_with_disabled_schema = BeanTemplateUtils.clone(valid_bucket)
@@ -569,6 +576,58 @@ public class TestDataBucketCrudService_Create {
 		}
 	}	
 	
+	@Test
+	public void test_ValidatePathChain() throws Exception {
+		cleanDatabases();
+		
+		// (the buckets in the path chain are only checked if they were fetched from the store)
+		final List<List<String>> store_queries = Collections.synchronizedList(new LinkedList<List<String>>());
+		final DataBucketCrudService bucket_crud = new DataBucketCrudService(_mock_service_context, _db_actor_context) {
+			@Override
+			protected Collection<BasicMessageBean> getPathChainErrors(final String bucket_full_name, final Stream<String> other_bucket_names) {
+				final List<String> names = other_bucket_names.collect(Collectors.toList());
+				store_queries.add(names);
+				return super.getPathChainErrors(bucket_full_name, names.stream());
+			}
+		};
+		
+		// Wait for the (empty) in-memory copy of the bucket paths to load
+		for (int i = 0; (i < 50) && !bucket_crud.getBucketPathTrie().isPresent(); ++i) {
+			Thread.sleep(100L);
+		}
+		assertTrue("Bucket paths loaded", bucket_crud.getBucketPathTrie().isPresent());
+		
+		// 1) No other buckets in the chain according to the in-memory copy, so the store isn't queried
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::_id, "path_chain")
+				.with(DataBucketBean::full_name, "/test/path_chain")
+				.done().get();
+		assertEquals(0, bucket_crud.validateOtherBucketsInPathChain(bucket).get().size());
+		assertEquals(Collections.emptyList(), store_queries);
+		
+		// 2) Once a bucket in the chain is created (and added to the in-memory copy, as this service does on create), the store is queried
+		_underlying_bucket_crud.storeObject(BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::_id, "path_chain_child")
+				.with(DataBucketBean::full_name, "/test/path_chain/child")
+				.done().get()).get();
+		bucket_crud.applyToBucketPathTries(trie -> trie.add("/test/path_chain/child"));
+		assertTrue(bucket_crud.getBucketPathTrie().get().hasOtherBucketsInPathChain("/test/path_chain"));
+		
+		assertEquals(0, bucket_crud.validateOtherBucketsInPathChain(bucket).get().size());
+		assertEquals(1, store_queries.size());
+		assertEquals(Arrays.asList("/test/path_chain/child"), store_queries.get(0));
+		
+		// 3) ... and it's also queried once the in-memory copy is stale (eg other nodes may have created buckets since it was loaded)
+		bucket_crud.applyToBucketPathTries(trie -> trie.remove("/test/path_chain/child"));
+		assertEquals(0, bucket_crud.validateOtherBucketsInPathChain(bucket).get().size());
+		assertEquals(1, store_queries.size());
+		
+		bucket_crud._bucket_path_trie_load_time = 0L;
+		assertEquals(0, bucket_crud.validateOtherBucketsInPathChain(bucket).get().size());
+		assertEquals(2, store_queries.size());
+		assertEquals(Arrays.asList("/test/path_chain/child"), store_queries.get(1));
+	}
+	
 	@Test
 	public void test_ValidateInsert() throws Exception {
 		cleanDatabases();
@@ -0,0 +1,93 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.management_db.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class TestBucketPathTrie {
+
+	@Test
+	public void test_pathChain() {
+		final BucketPathTrie trie = new BucketPathTrie();
+
+		assertTrue(trie.add("/test/a"));
+		assertTrue(trie.add("test/a/b/c/")); // (normalized)
+		assertTrue(trie.add("/test/d"));
+		assertFalse(trie.add("/test/a/"));
+		assertEquals(3, trie.size());
+
+		assertTrue(trie.contains("/test/a/b/c"));
+		assertFalse(trie.contains("/test/a/b"));
+		assertFalse(trie.contains("/test"));
+
+		// Ancestors
+		assertEquals(Arrays.asList("/test/a", "/test/a/b/c"), trie.getAncestors("/test/a/b/c/d"));
+		assertEquals(Arrays.asList("/test/a"), trie.getAncestors("/test/a/b/c"));
+		assertEquals(Collections.emptyList(), trie.getAncestors("/test/a"));
+		assertEquals(Collections.emptyList(), trie.getAncestors("/other/a/b"));
+
+		// Descendants
+		assertEquals(3, trie.countDescendants("/"));
+		assertEquals(3, trie.countDescendants("/test"));
+		assertEquals(1, trie.countDescendants("/test/a"));
+		assertEquals(1, trie.countDescendants("/test/a/b"));
+		assertEquals(0, trie.countDescendants("/test/a/b/c"));
+		assertEquals(0, trie.countDescendants("/test/e"));
+		assertEquals(Arrays.asList("/test/a", "/test/a/b/c", "/test/d"), trie.getDescendants("/").stream().sorted().collect(Collectors.toList()));
+		assertEquals(Arrays.asList("/test/a/b/c"), trie.getDescendants("/test/a"));
+		assertEquals(Collections.emptyList(), trie.getDescendants("/test/a/b/c"));
+		assertEquals(Collections.emptyList(), trie.getDescendants("/test/e"));
+
+		// Conflicts (the bucket itself doesn't count)
+		assertTrue(trie.hasOtherBucketsInPathChain("/test/a"));
+		assertTrue(trie.hasOtherBucketsInPathChain("/test"));
+		assertTrue(trie.hasOtherBucketsInPathChain("/test/d/e"));
+		assertFalse(trie.hasOtherBucketsInPathChain("/test/d"));
+		assertFalse(trie.hasOtherBucketsInPathChain("/test/e"));
+		assertFalse(trie.hasOtherBucketsInPathChain("/test/ab")); // (prefix of the string, but not of the path)
+	}
+
+	@Test
+	public void test_remove() {
+		final BucketPathTrie trie = new BucketPathTrie();
+		trie.add("/test/a");
+		trie.add("/test/a/b/c");
+
+		assertFalse(trie.remove("/test/a/b"));
+		assertFalse(trie.remove("/test/x/y"));
+		assertTrue(trie.remove("/test/a/b/c"));
+		assertFalse(trie.remove("/test/a/b/c"));
+		assertEquals(1, trie.size());
+		assertEquals(0, trie.countDescendants("/test/a"));
+		assertFalse(trie.hasOtherBucketsInPathChain("/test/a"));
+		assertNull(trie.find(new String[] { "test", "a", "b" })); // (pruned)
+
+		assertTrue(trie.remove("/test/a"));
+		assertEquals(0, trie.size());
+		assertTrue(trie._root.children.isEmpty());
+
+		trie.add("/test/a");
+		trie.clear();
+		assertEquals(0, trie.size());
+		assertFalse(trie.contains("/test/a"));
+	}
+}
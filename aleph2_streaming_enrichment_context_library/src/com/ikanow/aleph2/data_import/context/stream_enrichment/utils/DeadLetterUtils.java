@@ -0,0 +1,152 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import.context.stream_enrichment.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+
+/** Utilities for the streaming enrichment dead letter queue - ie the per bucket error topic that objects a topology can't process are sent to
+ *  (instead of failing their tuple, which causes them to be replayed from the spout indefinitely)
+ *  Each dead letter is an "envelope" containing the original object plus failure metadata
+ */
+public class DeadLetterUtils {
+	protected static final Logger _logger = LogManager.getLogger();
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	/** The sub-channel of the bucket's topics that errored objects are written to
+	 */
+	public final static Optional<String> QUEUE_ERROR_NAME = Optional.of("errors");
+
+	/** The data service option passed to the storage service to get the location errored objects are persisted to (if the storage service supports it)
+	 */
+	public final static String ERROR_STORAGE_STAGE = "errors";
+
+	/** If a tuple sent to the error endpoint contains this field, it is used as the error message
+	 */
+	public final static String TUPLE_ERROR_FIELD = "_error";
+
+	// Envelope fields
+	public final static String DEAD_LETTER_MARKER = "__aleph2_dead_letter";
+	public final static String OBJECT = "object";
+	public final static String BUCKET = "bucket";
+	public final static String ERROR = "error";
+	public final static String SOURCE = "source";
+	public final static String TIME = "time";
+
+	/** Wraps an errored object in a dead letter envelope
+	 * @param bucket_name - the full name of the bucket the object came from
+	 * @param object - the errored object
+	 * @param error - optional error message
+	 * @param source - optional source of the error (eg component name)
+	 * @return the envelope
+	 */
+	public static ObjectNode buildDeadLetter(final String bucket_name, final JsonNode object, final Optional<String> error, final Optional<String> source) {
+		final ObjectNode envelope = _mapper.createObjectNode();
+		envelope.put(DEAD_LETTER_MARKER, true);
+		envelope.put(BUCKET, bucket_name);
+		envelope.put(TIME, new Date().getTime());
+		error.ifPresent(e -> envelope.put(ERROR, e));
+		source.ifPresent(s -> envelope.put(SOURCE, s));
+		envelope.set(OBJECT, object);
+		return envelope;
+	}
+
+	/** Whether the object is already a dead letter envelope
+	 * @param object - the object to check
+	 * @return true if the object was built with buildDeadLetter
+	 */
+	public static boolean isDeadLetter(final JsonNode object) {
+		return (null != object) && object.path(DEAD_LETTER_MARKER).asBoolean(false);
+	}
+
+	/** Returns the name of the bucket's error topic
+	 * @param distributed_services - the distributed services (which generates the topic names)
+	 * @param bucket_name - the full name of the bucket
+	 * @return the name of the bucket's error topic
+	 */
+	public static String getErrorTopic(final ICoreDistributedServices distributed_services, final String bucket_name) {
+		return distributed_services.generateTopicName(bucket_name, QUEUE_ERROR_NAME);
+	}
+
+	/** Reads at most max_batch dead letters from the bucket's error topic (returns early if the topic is idle)
+	 *  Successive calls with the same consumer name continue from where the last call finished
+	 * @param distributed_services - the distributed services
+	 * @param bucket_name - the full name of the bucket
+	 * @param consumer_name - the consumer group, so that different tools can read the topic independently
+	 * @param max_batch - the max number of dead letters to read
+	 * @return the list of dead letter envelopes (messages that aren't valid JSON are skipped)
+	 */
+	public static List<JsonNode> readDeadLetters(final ICoreDistributedServices distributed_services, final String bucket_name, final String consumer_name, final int max_batch) {
+		final String topic = getErrorTopic(distributed_services, bucket_name);
+		final List<JsonNode> ret_val = new ArrayList<JsonNode>(Math.min(max_batch, 1000));
+		if (!distributed_services.doesTopicExist(topic)) {
+			return ret_val;
+		}
+		final Iterator<String> it = distributed_services.consumeAs(topic, Optional.of(consumer_name));
+		try {
+			while ((ret_val.size() < max_batch) && it.hasNext()) {
+				final String message = it.next();
+				try {
+					ret_val.add(_mapper.readTree(message));
+				}
+				catch (Exception e) {
+					_logger.warn("Skipping invalid dead letter in " + topic + ": " + message);
+				}
+			}
+		}
+		finally {
+			if (it instanceof Closeable) {
+				try { ((Closeable) it).close(); } catch (IOException e) {}
+			}
+		}
+		return ret_val;
+	}
+
+	/** Reads at most max_batch dead letters from the bucket's error topic and re-submits the original objects to the bucket's input topic
+	 * @param distributed_services - the distributed services
+	 * @param bucket_name - the full name of the bucket
+	 * @param consumer_name - the consumer group, so that different tools can read the topic independently
+	 * @param max_batch - the max number of dead letters to replay
+	 * @return the number of objects replayed
+	 */
+	public static int replayDeadLetters(final ICoreDistributedServices distributed_services, final String bucket_name, final String consumer_name, final int max_batch) {
+		final List<String> to_replay = readDeadLetters(distributed_services, bucket_name, consumer_name, max_batch).stream()
+				.map(envelope -> isDeadLetter(envelope) ? envelope.get(OBJECT) : envelope)
+				.filter(object -> (null != object) && !object.isNull())
+				.map(object -> object.toString())
+				.collect(Collectors.toList());
+
+		if (!to_replay.isEmpty()) {
+			distributed_services.produce(distributed_services.generateTopicName(bucket_name, ICoreDistributedServices.QUEUE_START_NAME), to_replay);
+		}
+		return to_replay.size();
+	}
+}
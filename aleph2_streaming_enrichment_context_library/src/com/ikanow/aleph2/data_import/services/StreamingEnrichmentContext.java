@@ -15,9 +15,11 @@
 ******************************************************************************/
 package com.ikanow.aleph2.data_import.services;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -44,7 +46,11 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
+import com.ikanow.aleph2.core.shared.utils.BatchedOutputBuffer;
+import com.ikanow.aleph2.core.shared.utils.DeduplicationEngine;
+import com.ikanow.aleph2.data_import.context.stream_enrichment.utils.DeadLetterUtils;
 import com.ikanow.aleph2.data_import.context.stream_enrichment.utils.ErrorUtils;
+import com.ikanow.aleph2.data_import.stream_enrichment.storm.ErrorBolt;
 import com.ikanow.aleph2.data_import.stream_enrichment.storm.OutputBolt;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -58,6 +64,7 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IUnderlyingServic
 import com.ikanow.aleph2.data_model.objects.data_import.AnnotationBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.AssetStateDirectoryBean.StateDirectoryType;
 import com.ikanow.aleph2.data_model.objects.shared.AssetStateDirectoryBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
@@ -66,6 +73,7 @@ import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.BeanTemplate;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.PropertiesUtils;
@@ -73,12 +81,14 @@ import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.distributed_services.data_model.DistributedServicesPropertyBean;
 import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+import com.ikanow.aleph2.distributed_services.utils.ZookeeperIdAllocator;
 import com.ikanow.aleph2.distributed_services.utils.KafkaUtils;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigRenderOptions;
 import com.typesafe.config.ConfigValueFactory;
 
+import fj.Unit;
 import fj.data.Either;
 
 /** The implementation of an enrichment context, specifically designed for enrichment
@@ -98,6 +108,8 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 		//TODO (ALEPH-10) logging information - will be genuinely mutable
 		SetOnce<DataBucketBean> bucket = new SetOnce<DataBucketBean>();
 		SetOnce<String> post_enrichment_topic = new SetOnce<>();
+		SetOnce<String> error_topic = new SetOnce<>();
+		volatile boolean error_topic_created = false;
 		SetOnce<SharedLibraryBean> library_config = new SetOnce<>();
 		SetOnce<String> user_topology_entry_point = new SetOnce<>();
 		final SetOnce<ImmutableSet<Tuple2<Class<? extends IUnderlyingService>, Optional<String>>>> service_manifest_override = new SetOnce<>();
@@ -122,8 +134,14 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 	protected Optional<IDataWriteService.IBatchSubservice<JsonNode>> _batch_index_service;
 	protected Optional<IDataWriteService<JsonNode>> _crud_storage_service;
 	protected Optional<IDataWriteService.IBatchSubservice<JsonNode>> _batch_storage_service;
+	protected Optional<IDataWriteService<JsonNode>> _crud_error_storage_service = Optional.empty();
+	
+	// (if the bucket is deduplicated then objects are buffered per thread, and the non-duplicates written out a batch at a time)
+	protected Optional<DeduplicationEngine> _deduplication_engine = Optional.empty();
+	protected volatile BatchedOutputBuffer<String, JsonNode> _deduplication_buffer = null;
 	
 	private static ConcurrentHashMap<String, StreamingEnrichmentContext> static_instances = new ConcurrentHashMap<>();
+	private static ConcurrentHashMap<String, StreamingEnrichmentContext> static_service_instances = new ConcurrentHashMap<>(); // (keyed on the config minus the bucket/library, see ModuleUtils.getServiceConfigSignature)
 	
 	/**Guice injector
 	 * @param service_context
@@ -158,6 +176,7 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 	 */
 	public boolean setBucket(DataBucketBean this_bucket) {
 		_mutable_state.post_enrichment_topic.set(_distributed_services.generateTopicName(this_bucket.full_name(), ICoreDistributedServices.QUEUE_END_NAME));
+		_mutable_state.error_topic.set(DeadLetterUtils.getErrorTopic(_distributed_services, this_bucket.full_name()));
 		return _mutable_state.bucket.set(this_bucket);
 	}
 	
@@ -188,10 +207,13 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 	 */
 	@Override
 	public void initializeNewContext(final String signature) {
+		final long start = System.currentTimeMillis();
 		try {
 			// Inject dependencies
 			final Config parsed_config = ConfigFactory.parseString(signature);
-			final StreamingEnrichmentContext to_clone = static_instances.get(signature);
+			final String service_signature = ModuleUtils.getServiceConfigSignature(parsed_config, __MY_BUCKET_ID, __MY_LIBRARY_ID);
+			// (contexts for other buckets with the same config can share their already resolved services)
+			final StreamingEnrichmentContext to_clone = Optional.ofNullable(static_instances.get(signature)).orElseGet(() -> static_service_instances.get(service_signature));
 			
 			if (null != to_clone) { //copy the fields				
 				_service_context = to_clone._service_context;
@@ -234,7 +256,22 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 					.flatMap(IDataWriteService::getBatchWriteSubservice)
 					;
 
+			// (errored objects are also persisted if the storage service supports it - it's fine if it doesn't, they're still in the error topic)
+			_crud_error_storage_service = Lambdas.get(() -> {
+				try {
+					return _storage_service.getDataService()
+								.flatMap(s -> s.getWritableDataService(JsonNode.class, retrieve_bucket.get(), Optional.of(DeadLetterUtils.ERROR_STORAGE_STAGE), Optional.empty()));
+				}
+				catch (Exception e) {
+					return Optional.empty();
+				}
+			});
+			
+			_deduplication_engine = DeduplicationEngine.from(retrieve_bucket.get(), _service_context);
+
 			static_instances.put(signature, this);
+			static_service_instances.putIfAbsent(service_signature, this);
+			ModuleUtils.recordStartupTiming("StreamingEnrichmentContext.initializeNewContext", start);
 		}
 		catch (Exception e) {
 			//DEBUG
@@ -395,10 +432,19 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext#getTopologyErrorEndpoint(java.lang.Class, java.util.Optional)
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T getTopologyErrorEndpoint(final Class<T> clazz, final Optional<DataBucketBean> bucket) {
 		if (_state_name == State.IN_TECHNOLOGY) {
-			throw new RuntimeException(ErrorUtils.NOT_YET_IMPLEMENTED);
+			if (!_mutable_state.user_topology_entry_point.isSet()) {
+				throw new RuntimeException(ErrorUtils.get(ErrorUtils.USER_TOPOLOGY_NOT_SET, "getTopologyErrorEndpoint"));
+			}
+			if (!_mutable_state.signature_override.isSet()) {
+				// Assume the user is happy with defaults:
+				getEnrichmentContextSignature(bucket, Optional.empty());
+			}
+			final DataBucketBean my_bucket = bucket.orElseGet(() -> _mutable_state.bucket.get());
+			return (T) new ErrorBolt(my_bucket, _mutable_state.signature_override.get(), _mutable_state.user_topology_entry_point.get());
 		}
 		else {
 			throw new RuntimeException(ErrorUtils.TECHNOLOGY_NOT_MODULE);						
@@ -418,6 +464,10 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 		if (annotation.isPresent()) {
 			throw new RuntimeException(ErrorUtils.NOT_YET_IMPLEMENTED);			
 		}
+		if (_deduplication_engine.isPresent()) {
+			getDeduplicationBuffer().add(_deduplication_engine.get().getBucket().full_name(), mutated_json);
+			return;
+		}
 		if (_batch_index_service.isPresent()) {
 			_batch_index_service.get().storeObject(mutated_json);
 		}
@@ -438,6 +488,76 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 		//(else nothing to do)
 	}
 
+	////////////////////////////////////////////////////////////////
+	
+	// DEDUPLICATION
+	
+	/** Lazily creates the per-thread buffer that objects are deduplicated from in batches, sized from the bucket's search index write settings if present (else the buffer defaults)
+	 *  (the buffer's timer makes sure objects are written out within the max latency, and runs on the deduplication engine's own flush executor since the lookups block)
+	 * @return the deduplication buffer
+	 */
+	protected BatchedOutputBuffer<String, JsonNode> getDeduplicationBuffer() {
+		if (null == _deduplication_buffer) {
+			synchronized (this) {
+				if (null == _deduplication_buffer) {
+					final Optional<DataSchemaBean.WriteSettings> write_settings = 
+							this.getBucket()
+								.map(b -> b.data_schema())
+								.map(schema -> schema.search_index_schema())
+								.map(search_index_schema -> search_index_schema.target_write_settings());
+					
+					_deduplication_buffer = new BatchedOutputBuffer<>(
+							write_settings.map(w -> w.batch_max_objects()).orElse(BatchedOutputBuffer.DEFAULT_MAX_OBJECTS),
+							write_settings.map(w -> w.batch_flush_interval()).<Duration>map(secs -> Duration.ofSeconds(secs)).orElse(BatchedOutputBuffer.DEFAULT_MAX_LATENCY),
+							DeduplicationEngine.getFlushExecutor(),
+							this::flushDeduplicationBatch);
+				}
+			}
+		}
+		return _deduplication_buffer;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext#flushBatchOutput(java.util.Optional)
+	 */
+	@Override
+	public CompletableFuture<?> flushBatchOutput(final Optional<DataBucketBean> bucket) {
+		// (flushes in place rather than swapping the buffer out, so objects emitted concurrently by other threads can't be stranded)
+		final BatchedOutputBuffer<String, JsonNode> deduplication_buffer = _deduplication_buffer;
+		if (null != deduplication_buffer) {
+			deduplication_buffer.flushAll();
+		}
+		return CompletableFuture.completedFuture(Unit.unit());
+	}
+	
+	/** Writes the non-duplicates from a batch of buffered objects out
+	 * @param bucket_path - the full_name of the bucket to which the objects belong
+	 * @param objects - the batch of objects
+	 */
+	protected void flushDeduplicationBatch(final String bucket_path, final List<JsonNode> objects) {
+		final List<JsonNode> non_duplicates = _deduplication_engine.get().filterDuplicates(objects);
+		if (non_duplicates.isEmpty()) {
+			return;
+		}
+		if (_batch_index_service.isPresent()) {
+			_batch_index_service.get().storeObjects(non_duplicates);
+		}
+		else if (_crud_index_service.isPresent()){ // (slow, but at least it's a single call per batch)
+			_crud_index_service.get().storeObjects(non_duplicates);
+		}
+		if (_batch_storage_service.isPresent()) {
+			_batch_storage_service.get().storeObjects(non_duplicates);
+		}
+		else if (_crud_storage_service.isPresent()){ // (slow, but at least it's a single call per batch)
+			_crud_storage_service.get().storeObjects(non_duplicates);
+		}
+		final String topic = _mutable_state.post_enrichment_topic.get();
+		if (_distributed_services.doesTopicExist(topic)) {
+			// (ie someone is listening in on our output data, so duplicate it for their benefit)
+			_distributed_services.produce(topic, non_duplicates.stream().map(JsonNode::toString).collect(Collectors.toList()));
+		}
+	}
+	
 	@Override
 	public void emitImmutableObject(final long id, final JsonNode original_json, final Optional<ObjectNode> mutations, final Optional<AnnotationBean> annotations)
 	{
@@ -454,12 +574,32 @@ public class StreamingEnrichmentContext implements IEnrichmentModuleContext {
 
 	@Override
 	public void storeErroredObject(final long id, final JsonNode original_json) {
-		throw new RuntimeException(ErrorUtils.NOT_YET_IMPLEMENTED);
+		if (!_mutable_state.bucket.isSet()) {
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.BUCKET_NOT_SET, "storeErroredObject"));
+		}
+		final String bucket_name = _mutable_state.bucket.get().full_name();
+		final JsonNode dead_letter = DeadLetterUtils.isDeadLetter(original_json)
+				? original_json
+				: DeadLetterUtils.buildDeadLetter(bucket_name, original_json, Optional.empty(), Optional.empty());
+
+		// (unlike the output topic, this is always written to - it's the dead letter queue that replay tools read from)
+		final String topic = _mutable_state.error_topic.get();
+		if (!_mutable_state.error_topic_created) {
+			_distributed_services.createTopic(topic, Optional.empty());
+			_mutable_state.error_topic_created = true;
+		}
+		_distributed_services.produce(topic, dead_letter.toString());
+		
+		_crud_error_storage_service.ifPresent(s -> s.storeObject(dead_letter));
 	}
 
 	@Override
 	public long getNextUnusedId() {
-		throw new RuntimeException(ErrorUtils.NOT_SUPPORTED_IN_STREAMING_ENRICHMENT);
+		if (!_mutable_state.bucket.isSet()) {
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.BUCKET_NOT_SET, "getNextUnusedId"));
+		}
+		// (ids are leased from zookeeper in blocks, shared across all contexts for this bucket in this process)
+		return ZookeeperIdAllocator.getAllocator(_distributed_services.getCuratorFramework(), _mutable_state.bucket.get().full_name()).getNextId();
 	}
 
 	/* (non-Javadoc)
@@ -0,0 +1,123 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import.stream_enrichment.storm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_import.context.stream_enrichment.utils.DeadLetterUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentStreamingTopology;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ContextUtils;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Tuple;
+
+/** Bolt that sends the objects it receives to the bucket's dead letter queue (see DeadLetterUtils), together with failure metadata
+ *  Topologies route tuples they can't process here (optionally with a DeadLetterUtils.TUPLE_ERROR_FIELD field describing the error),
+ *  the tuple is always acked so that it is not replayed from the spout
+ */
+public class ErrorBolt extends BaseRichBolt {
+	private static final long serialVersionUID = 2920370934837427296L;
+	private static final Logger _logger = LogManager.getLogger();
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected final DataBucketBean _bucket;
+	protected final String _context_signature;
+	protected final String _user_topology_entry_point;
+
+	protected IEnrichmentModuleContext _context;
+	protected IEnrichmentStreamingTopology _user_topology;
+
+	protected OutputCollector _collector;
+
+	/** User constructor
+	 * @param bucket
+	 * @param context_signature
+	 * @param user_topology_entry_point
+	 */
+	public ErrorBolt(final DataBucketBean bucket, final String context_signature, final String user_topology_entry_point) {
+		_bucket = bucket;
+		_context_signature = context_signature;
+		_user_topology_entry_point = user_topology_entry_point;
+	}
+
+	@Override
+	public void prepare(final @SuppressWarnings("rawtypes") Map arg0, final TopologyContext arg1, final OutputCollector arg2) {
+		_collector = arg2; // (set first so that tuples are still acked if the rest fails)
+		try {
+			_context = ContextUtils.getEnrichmentContext(_context_signature);
+			_user_topology = (IEnrichmentStreamingTopology )Class.forName(_user_topology_entry_point).newInstance();
+		}
+		catch (Exception e) { // nothing to be done here?
+			_logger.error("Failed to get context", e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see backtype.storm.task.IBolt#execute(backtype.storm.tuple.Tuple)
+	 */
+	@Override
+	public void execute(final Tuple arg0) {
+		final LinkedHashMap<String, Object> fields = OutputBolt.tupleToLinkedHashMap(arg0);
+		final Optional<String> error = Optional.ofNullable(fields.remove(DeadLetterUtils.TUPLE_ERROR_FIELD)).map(Object::toString);
+		final Optional<String> source = Optional.ofNullable(arg0.getSourceComponent()).map(c -> c + ":" + arg0.getSourceStreamId());
+		try {
+			_context.storeErroredObject(0L, DeadLetterUtils.buildDeadLetter(_bucket.full_name(), rebuildObject(arg0, fields), error, source));
+		}
+		catch (Exception e) { // (nowhere else to put it, so log and drop it rather than replaying it forever)
+			_logger.error("Failed to store errored object for " + _bucket.full_name(), e);
+		}
+		_collector.ack(arg0);
+	}
+
+	/** Builds the errored object - as the user topology would for the output bolt if possible, otherwise just the raw fields
+	 *  (errored tuples are often malformed so this can't fail)
+	 */
+	protected JsonNode rebuildObject(final Tuple tuple, final LinkedHashMap<String, Object> fields) {
+		try {
+			return _user_topology.rebuildObject(tuple, __ -> fields);
+		}
+		catch (Exception e) {
+			try {
+				return _mapper.valueToTree(fields);
+			}
+			catch (Exception e2) {
+				return _mapper.getNodeFactory().textNode(fields.toString());
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see backtype.storm.topology.IComponent#declareOutputFields(backtype.storm.topology.OutputFieldsDeclarer)
+	 */
+	@Override
+	public void declareOutputFields(final OutputFieldsDeclarer arg0) {
+		// (nothing to do here)
+	}
+
+}
@@ -16,10 +16,9 @@
 package com.ikanow.aleph2.data_import.stream_enrichment.storm;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -79,8 +78,14 @@ public class OutputBolt extends BaseRichBolt {
 	 * @return
 	 */
 	public static LinkedHashMap<String, Object> tupleToLinkedHashMap(final Tuple t) {
-		return StreamSupport.stream(t.getFields().spliterator(), false)
-							.collect(Collectors.toMap(f -> f, f -> t.getValueByField(f), (m1, m2) -> m1, LinkedHashMap::new));
+		// (this is on the per-tuple path, so: pre-sized, and values by position rather than by name)
+		final List<String> fields = t.getFields().toList();
+		final List<Object> values = t.getValues();
+		final LinkedHashMap<String, Object> ret_val = new LinkedHashMap<String, Object>(1 + (4*fields.size())/3);
+		for (int i = 0; i < fields.size(); ++i) {
+			ret_val.put(fields.get(i), values.get(i));
+		}
+		return ret_val;
 	}
 	
 	/* (non-Javadoc)
@@ -92,6 +97,17 @@ public class OutputBolt extends BaseRichBolt {
 		_collector.ack(arg0);
 	}
 
+	/* (non-Javadoc)
+	 * @see backtype.storm.topology.base.BaseRichBolt#cleanup()
+	 */
+	@Override
+	public void cleanup() {
+		// (objects are acked once they've been handed to the context, which may still be buffering them, so write out anything left over)
+		if (null != _context) {
+			_context.flushBatchOutput(Optional.of(_bucket)).join();
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see backtype.storm.topology.IComponent#declareOutputFields(backtype.storm.topology.OutputFieldsDeclarer)
 	 */
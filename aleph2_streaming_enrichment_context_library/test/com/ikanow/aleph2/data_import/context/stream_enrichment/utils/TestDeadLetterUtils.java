@@ -0,0 +1,106 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License, version 3,
+* as published by the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Affero General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+******************************************************************************/
+package com.ikanow.aleph2.data_import.context.stream_enrichment.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices;
+import com.ikanow.aleph2.distributed_services.services.MockCoreDistributedServices;
+
+public class TestDeadLetterUtils {
+
+	protected static final ObjectMapper _mapper = new ObjectMapper();
+
+	protected static MockCoreDistributedServices _distributed_services;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		_distributed_services = new MockCoreDistributedServices();
+	}
+
+	/** Reads everything currently on the topic (the consumer group must have been registered, eg by a previous call, to see new messages)
+	 */
+	protected static List<String> consumeAll(final String topic, final String consumer_name) {
+		final List<String> ret_val = new ArrayList<String>();
+		final Iterator<String> it = _distributed_services.consumeAs(topic, Optional.of(consumer_name));
+		while (it.hasNext()) { // (closes the consumer on timeout)
+			ret_val.add(it.next());
+		}
+		return ret_val;
+	}
+
+	@Test
+	public void test_deadLetterEnvelope() {
+		final JsonNode object = _mapper.createObjectNode().put("test", "value");
+		final ObjectNode envelope = DeadLetterUtils.buildDeadLetter("/test/bucket", object, Optional.of("bad field"), Optional.empty());
+
+		assertTrue(DeadLetterUtils.isDeadLetter(envelope));
+		assertFalse(DeadLetterUtils.isDeadLetter(object));
+		assertFalse(DeadLetterUtils.isDeadLetter(null));
+		assertEquals("/test/bucket", envelope.get(DeadLetterUtils.BUCKET).asText());
+		assertEquals("bad field", envelope.get(DeadLetterUtils.ERROR).asText());
+		assertFalse(envelope.has(DeadLetterUtils.SOURCE));
+		assertTrue(envelope.get(DeadLetterUtils.TIME).asLong() > 0L);
+		assertEquals(object, envelope.get(DeadLetterUtils.OBJECT));
+	}
+
+	@Test
+	public void test_readAndReplayDeadLetters() {
+		final ICoreDistributedServices distributed_services = _distributed_services;
+
+		// No error topic yet
+		assertEquals(0, DeadLetterUtils.readDeadLetters(distributed_services, "/test/bucket", "test", 10).size());
+		assertEquals(0, DeadLetterUtils.replayDeadLetters(distributed_services, "/test/bucket", "test", 10));
+
+		// (register the consumer groups, so that they see the messages produced below)
+		final String error_topic = DeadLetterUtils.getErrorTopic(distributed_services, "/test/bucket");
+		final String input_topic = distributed_services.generateTopicName("/test/bucket", ICoreDistributedServices.QUEUE_START_NAME);
+		distributed_services.createTopic(error_topic, Optional.empty());
+		distributed_services.createTopic(input_topic, Optional.empty());
+		assertEquals(0, DeadLetterUtils.readDeadLetters(distributed_services, "/test/bucket", "test", 10).size());
+		assertEquals(0, consumeAll(input_topic, "test_input").size());
+		
+		distributed_services.produce(error_topic, Arrays.asList(
+				DeadLetterUtils.buildDeadLetter("/test/bucket", _mapper.createObjectNode().put("n", 1), Optional.empty(), Optional.empty()).toString(),
+				"not json {",
+				DeadLetterUtils.buildDeadLetter("/test/bucket", _mapper.createObjectNode().put("n", 2), Optional.empty(), Optional.empty()).toString(),
+				DeadLetterUtils.buildDeadLetter("/test/bucket", _mapper.createObjectNode().put("n", 3), Optional.empty(), Optional.empty()).toString()
+				));
+
+		// Bounded batch (invalid messages are skipped)
+		assertEquals(2, DeadLetterUtils.readDeadLetters(distributed_services, "/test/bucket", "test", 2).size());
+
+		// Replay into the bucket's input topic (envelopes are unwrapped, anything else is re-submitted as is)
+		// (the remaining dead letter, n=3, is replayed along with the new non-envelope message)
+		final ObjectNode unwrapped = _mapper.createObjectNode().put("n", 4);
+		distributed_services.produce(error_topic, unwrapped.toString());
+		assertEquals(2, DeadLetterUtils.replayDeadLetters(distributed_services, "/test/bucket", "test", 10));
+
+		assertEquals(Arrays.asList("{\"n\":3}", "{\"n\":4}"), consumeAll(input_topic, "test_input"));
+	}
+}
@@ -40,6 +40,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.data_import.context.stream_enrichment.utils.ErrorUtils;
+import com.ikanow.aleph2.data_import.stream_enrichment.storm.ErrorBolt;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.ISearchIndexService;
@@ -140,6 +141,7 @@ public class TestStreamingEnrichmentContext {
 			assertEquals(test_bucket, test_context.getBucket().get());
 			assertTrue("getTopologyStorageEndpoint call succeeded", null != test_context.getTopologyStorageEndpoint(Object.class, Optional.empty()));
 			assertTrue("getTopologyStorageEndpoint call succeeded", null != test_context.getTopologyStorageEndpoint(Object.class, Optional.of(test_bucket)));
+			assertTrue("getTopologyErrorEndpoint call succeeded", test_context.getTopologyErrorEndpoint(Object.class, Optional.empty()) instanceof ErrorBolt);
 			//Other topology call
 			try {
 				test_context2.getTopologyEntryPoints(Object.class, Optional.empty());
@@ -406,21 +408,21 @@ public class TestStreamingEnrichmentContext {
 			fail("Should have thrown exception");
 		}
 		catch (Exception e) {
-			assertEquals(ErrorUtils.NOT_SUPPORTED_IN_STREAMING_ENRICHMENT, e.getMessage());
+			assertEquals(ErrorUtils.get(ErrorUtils.BUCKET_NOT_SET, "getNextUnusedId"), e.getMessage());
 		}
 		try {
 			test_context.storeErroredObject(0L, null);
 			fail("Should have thrown exception");
 		}
 		catch (Exception e) {
-			assertEquals(ErrorUtils.NOT_YET_IMPLEMENTED, e.getMessage());
+			assertEquals(ErrorUtils.get(ErrorUtils.BUCKET_NOT_SET, "storeErroredObject"), e.getMessage());
 		}
 		try {
 			test_context.getTopologyErrorEndpoint(null, null);
 			fail("Should have errored");
 		}
 		catch (Exception e) {
-			assertEquals(ErrorUtils.NOT_YET_IMPLEMENTED, e.getMessage());
+			assertEquals(ErrorUtils.get(ErrorUtils.USER_TOPOLOGY_NOT_SET, "getTopologyErrorEndpoint"), e.getMessage());
 		}
 	}
 	